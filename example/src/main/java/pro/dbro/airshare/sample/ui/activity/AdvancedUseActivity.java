@@ -6,6 +6,8 @@ import android.support.annotation.Nullable;
 import android.support.v7.app.AppCompatActivity;
 
 import pro.dbro.airshare.app.AirShareService;
+import pro.dbro.airshare.app.IncomingTransfer;
+import pro.dbro.airshare.app.Transfer;
 import pro.dbro.airshare.app.ui.AirShareFragment;
 import pro.dbro.airshare.session.Peer;
 import pro.dbro.airshare.transport.Transport;
@@ -92,6 +94,37 @@ public class AdvancedUseActivity extends AppCompatActivity
                     airShareBinder.send("Hello at high speed!".getBytes(), peer);
                 }
             }
+
+            @Override
+            public void onTransferProgress(@NonNull AirShareService.ServiceBinder binder,
+                                           @NonNull Transfer transfer,
+                                           @NonNull Peer peer,
+                                           float progress) {
+                // Handle transfer progress
+            }
+
+            @Override
+            public void onPeerWritable(@NonNull AirShareService.ServiceBinder binder,
+                                       @NonNull Peer peer) {
+                // Resume sending to peer after ServiceBinder#isWritable returned false
+            }
+
+            @Override
+            public void onTransferOffered(@NonNull AirShareService.ServiceBinder binder,
+                                          @NonNull IncomingTransfer transfer) {
+                // Accept or decline data before any of it is sent. Here, decline large offers
+                if (transfer.getOfferedLengthBytes() < 1024 * 1024)
+                    transfer.accept();
+                else
+                    transfer.reject();
+            }
+
+            @Override
+            public void onOfferedDataReceived(@NonNull AirShareService.ServiceBinder binder,
+                                              @NonNull IncomingTransfer transfer,
+                                              @Nullable Exception exception) {
+                // Handle data accepted from the offer transfer.getTransferId()
+            }
         });
     }
 
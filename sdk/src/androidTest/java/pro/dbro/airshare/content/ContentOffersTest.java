@@ -0,0 +1,238 @@
+package pro.dbro.airshare.content;
+
+import android.app.Application;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.test.ApplicationTestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeoutException;
+
+import pro.dbro.airshare.session.DataTransferMessage;
+import pro.dbro.airshare.session.Peer;
+
+/**
+ * Tests that {@link pro.dbro.airshare.content.ContentOffers} sends no content offered for
+ * acceptance until the recipient accepts it, and then only the range accepted
+ */
+public class ContentOffersTest extends ApplicationTestCase<Application> {
+
+    private static final int CONTENT_BYTES = 64 * 1024;
+
+    private final Peer senderPeer    = new Peer(new byte[] {1}, "sender", new Date(), 0, 0);
+    private final Peer recipientPeer = new Peer(new byte[] {2}, "recipient", new Date(), 0, 0);
+
+    private RecordingListener senderListener;
+    private RecordingListener recipientListener;
+    private ContentStore recipientStore;
+    private ContentOffers senderOffers;
+    private ContentOffers recipientOffers;
+    /** Body length of each message exchanged, in either direction */
+    private List<Integer> bodyLengths;
+    /** Messages awaiting delivery while deferred, else null */
+    private List<Runnable> deferred;
+
+    public ContentOffersTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        File cacheDir = getContext().getCacheDir();
+        senderListener    = new RecordingListener();
+        recipientListener = new RecordingListener();
+        recipientStore    = new ContentStore(new File(cacheDir, "offers-recipient-" + getName()),
+                                             ContentStore.DEFAULT_MAX_SIZE_BYTES);
+        bodyLengths       = new ArrayList<>();
+        senderOffers      = new ContentOffers(new ContentStore(new File(cacheDir, "offers-sender-" + getName()),
+                                                               ContentStore.DEFAULT_MAX_SIZE_BYTES),
+                                              new Loopback(senderPeer, true),
+                                              senderListener);
+        recipientOffers   = new ContentOffers(recipientStore, new Loopback(recipientPeer, false), recipientListener);
+    }
+
+    public void testDuplicateIsReadFromStore() {
+        byte[] content = randomBytes(CONTENT_BYTES, 5);
+        recipientStore.put(content);
+
+        senderOffers.offer(content, recipientPeer);
+
+        assertTrue(Arrays.equals(content, recipientListener.received));
+        assertNull(recipientListener.receivedOfferId);
+        assertTrue(senderListener.held);
+        assertNull(senderListener.wanted);
+        assertEquals(Arrays.asList(0, 0), bodyLengths);
+    }
+
+    public void testContentNotHeldIsWanted() {
+        byte[] content = randomBytes(CONTENT_BYTES, 6);
+
+        senderOffers.offer(content, recipientPeer);
+
+        assertTrue(Arrays.equals(content, senderListener.wanted));
+        assertEquals(ContentStore.hash(content), senderListener.wantedExtras.get(ContentOffers.EXTRA_BODY_HASH));
+        assertFalse(senderListener.wantedExtras.containsKey(ContentOffers.EXTRA_OFFER_ID));
+        assertNull(recipientListener.received);
+    }
+
+    public void testContentOfferedTwiceIsSentTwice() {
+        byte[] content = randomBytes(CONTENT_BYTES, 7);
+
+        // Both offers are made before either is answered
+        deferred = new ArrayList<>();
+        senderOffers.offer(content, recipientPeer);
+        senderOffers.offer(content, recipientPeer);
+        while (!deferred.isEmpty()) deferred.remove(0).run();
+
+        assertEquals(2, senderListener.wantedCount);
+        assertFalse(senderOffers.hasPendingOffers());
+    }
+
+    public void testRejectedOfferSendsNothing() {
+        byte[] content = randomBytes(CONTENT_BYTES, 1);
+        String offerId = senderOffers.offer(content, Collections.<String, Object>singletonMap("name", "photo.jpg"), recipientPeer);
+
+        DataTransferMessage offer = recipientListener.offer;
+        assertNotNull(offer);
+        assertEquals(offerId, ContentOffers.getOfferId(offer));
+        assertEquals(CONTENT_BYTES, ContentOffers.getOfferedLength(offer));
+        assertEquals("photo.jpg", ContentOffers.getOfferedExtras(offer).get("name"));
+
+        assertTrue(recipientOffers.reject(senderPeer, offerId));
+
+        assertTrue(senderListener.declinedReason instanceof CancellationException);
+        assertNull(senderListener.wanted);
+        assertEquals(Arrays.asList(0, 0), bodyLengths);
+    }
+
+    public void testAcceptedRangeIsSent() {
+        byte[] content = randomBytes(CONTENT_BYTES, 2);
+        String offerId = senderOffers.offer(content, null, recipientPeer);
+
+        assertTrue(recipientOffers.accept(senderPeer, offerId, 1000, 500));
+
+        assertTrue(Arrays.equals(Arrays.copyOfRange(content, 1000, 1500), senderListener.wanted));
+        assertEquals(1000, senderListener.wantedExtras.get(ContentOffers.EXTRA_RANGE_OFFSET));
+        assertEquals(offerId, senderListener.wantedExtras.get(ContentOffers.EXTRA_OFFER_ID));
+
+        // A second reply to the same offer is ignored
+        assertFalse(recipientOffers.reject(senderPeer, offerId));
+        assertNull(senderListener.declinedReason);
+    }
+
+    public void testAcceptedOfferOfHeldContentIsReadFromStore() {
+        byte[] content = randomBytes(CONTENT_BYTES, 3);
+        recipientStore.put(content);
+
+        String offerId = senderOffers.offer(content, null, recipientPeer);
+        assertTrue(recipientOffers.accept(senderPeer, offerId, 0, CONTENT_BYTES));
+
+        assertTrue(Arrays.equals(content, recipientListener.received));
+        assertEquals(offerId, recipientListener.receivedOfferId);
+        assertTrue(senderListener.held);
+        assertNull(senderListener.wanted);
+    }
+
+    public void testUnansweredOfferExpires() {
+        senderOffers.offer(randomBytes(CONTENT_BYTES, 4), null, recipientPeer);
+        assertTrue(senderOffers.hasPendingOffers());
+
+        senderOffers.pruneOffers(Long.MAX_VALUE);
+
+        assertTrue(senderListener.declinedReason instanceof TimeoutException);
+        assertFalse(senderOffers.hasPendingOffers());
+    }
+
+    public void testMalformedOfferIsDropped() {
+        Map<String, Object> extras = new HashMap<>();
+        extras.put(ContentOffers.EXTRA_OFFER,     ContentOffers.OFFER_HAS);
+        extras.put(ContentOffers.EXTRA_BODY_HASH, 42);
+
+        recipientOffers.onMessageReceived(DataTransferMessage.createOutgoing(extras, null), senderPeer);
+
+        assertNull(recipientListener.offer);
+        assertTrue(bodyLengths.isEmpty());
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    /** Delivers each message sent by one peer directly to the other */
+    private class Loopback implements MessageSender {
+
+        private final Peer localPeer;
+        private final boolean isSender;
+
+        Loopback(Peer localPeer, boolean isSender) {
+            this.localPeer = localPeer;
+            this.isSender  = isSender;
+        }
+
+        @Override
+        public void sendMessage(@NonNull final DataTransferMessage message, @NonNull Peer recipient) {
+            bodyLengths.add(message.getBodyLengthBytes());
+            Runnable delivery = new Runnable() {
+                @Override
+                public void run() {
+                    (isSender ? recipientOffers : senderOffers).onMessageReceived(message, localPeer);
+                }
+            };
+            if (deferred != null) deferred.add(delivery);
+            else delivery.run();
+        }
+    }
+
+    private static class RecordingListener implements ContentOffers.Listener {
+
+        DataTransferMessage offer;
+        byte[] wanted;
+        int wantedCount;
+        Map<String, Object> wantedExtras;
+        boolean held;
+        Exception declinedReason;
+        byte[] received;
+        String receivedOfferId;
+
+        @Override
+        public void onOfferWanted(@NonNull byte[] content, @NonNull Map<String, Object> extras, @NonNull Peer recipient) {
+            wanted       = content;
+            wantedExtras = extras;
+            wantedCount++;
+        }
+
+        @Override
+        public void onOfferHeld(@NonNull byte[] content, @NonNull Peer recipient) {
+            held = true;
+        }
+
+        @Override
+        public void onOfferDeclined(@NonNull byte[] content, @NonNull Peer recipient, @NonNull Exception reason) {
+            declinedReason = reason;
+        }
+
+        @Override
+        public void onTransferOffered(@NonNull DataTransferMessage offer, @NonNull Peer sender) {
+            this.offer = offer;
+        }
+
+        @Override
+        public void onContentReceived(@NonNull byte[] content, @Nullable String offerId, @NonNull Peer sender) {
+            received        = content;
+            receivedOfferId = offerId;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package pro.dbro.airshare.content;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests that {@link pro.dbro.airshare.content.ContentStore} evicts the least recently used
+ * content, and never returns content not matching its hash
+ */
+public class ContentStoreTest extends ApplicationTestCase<Application> {
+
+    private static final int CONTENT_BYTES = 1024;
+
+    private File directory;
+
+    public ContentStoreTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        directory = new File(getContext().getCacheDir(), "store-" + getName());
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files) file.delete();
+    }
+
+    public void testReadContentIsEvictedLast() {
+        ContentStore store = new ContentStore(directory, 2 * CONTENT_BYTES);
+        byte[] a = randomBytes(CONTENT_BYTES, 1);
+        byte[] b = randomBytes(CONTENT_BYTES, 2);
+        byte[] c = randomBytes(CONTENT_BYTES, 3);
+
+        String hashA = store.put(a);
+        String hashB = store.put(b);
+        assertTrue(Arrays.equals(a, store.get(hashA)));
+        String hashC = store.put(c);
+
+        assertTrue(store.contains(hashA));
+        assertFalse(store.contains(hashB));
+        assertTrue(store.contains(hashC));
+        assertEquals(2 * CONTENT_BYTES, store.getSizeBytes());
+    }
+
+    public void testContentLargerThanStoreIsNotStored() {
+        ContentStore store = new ContentStore(directory, CONTENT_BYTES);
+        String hash = store.put(randomBytes(CONTENT_BYTES + 1, 4));
+
+        assertFalse(store.contains(hash));
+        assertEquals(0, store.getSizeBytes());
+    }
+
+    public void testContentIsRestoredAfterRestart() {
+        byte[] content = randomBytes(CONTENT_BYTES, 5);
+        String hash = new ContentStore(directory, 2 * CONTENT_BYTES).put(content);
+
+        ContentStore store = new ContentStore(directory, 2 * CONTENT_BYTES);
+        assertTrue(Arrays.equals(content, store.get(hash)));
+        assertEquals(CONTENT_BYTES, store.getSizeBytes());
+    }
+
+    public void testCorruptContentIsRemoved() throws Exception {
+        ContentStore store = new ContentStore(directory, 2 * CONTENT_BYTES);
+        String hash = store.put(randomBytes(CONTENT_BYTES, 6));
+
+        FileOutputStream out = new FileOutputStream(new File(directory, hash));
+        out.write(randomBytes(CONTENT_BYTES, 7));
+        out.close();
+
+        assertNull(store.get(hash));
+        assertFalse(store.contains(hash));
+        assertEquals(0, store.getSizeBytes());
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,86 @@
+package pro.dbro.airshare.content;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Tests encoding content as a {@link pro.dbro.airshare.content.Delta} of a prior version
+ * and rebuilding it from that version
+ */
+public class DeltaTest extends ApplicationTestCase<Application> {
+
+    private static final int DOCUMENT_BYTES = 64 * 1024;
+
+    public DeltaTest() {
+        super(Application.class);
+    }
+
+    public void testRollingChecksum() {
+        byte[] data = randomBytes(4096, 1);
+        int window = 512;
+
+        RollingChecksum checksum = new RollingChecksum(data, 0, window);
+        for (int offset = 1; offset + window <= data.length; offset++) {
+            checksum.roll(data[offset - 1], data[offset + window - 1]);
+            assertEquals(RollingChecksum.of(data, offset, window), checksum.getValue());
+        }
+    }
+
+    public void testSmallEditProducesSmallDelta() {
+        byte[] basis   = randomBytes(DOCUMENT_BYTES, 2);
+        byte[] content = Arrays.copyOf(basis, basis.length);
+
+        // Overwrite a few bytes mid-document and insert some near the start
+        content[DOCUMENT_BYTES / 2] ^= 0xFF;
+        byte[] inserted = new byte[content.length + 10];
+        System.arraycopy(content, 0, inserted, 0, 100);
+        System.arraycopy(content, 100, inserted, 110, content.length - 100);
+        content = inserted;
+
+        BlockSignatures signatures = BlockSignatures.fromContent(basis);
+        byte[] delta = Delta.encode(signatures, content);
+
+        assertTrue("Delta of " + delta.length + " bytes is not small", delta.length < DOCUMENT_BYTES / 50);
+        assertTrue(Arrays.equals(content, Delta.apply(basis, signatures.getBlockSizeBytes(), delta)));
+    }
+
+    public void testUnrelatedContent() {
+        byte[] basis   = randomBytes(DOCUMENT_BYTES, 3);
+        byte[] content = randomBytes(DOCUMENT_BYTES + 7, 4);
+
+        BlockSignatures signatures = BlockSignatures.fromContent(basis);
+        byte[] delta = Delta.encode(signatures, content);
+
+        assertTrue(Arrays.equals(content, Delta.apply(basis, signatures.getBlockSizeBytes(), delta)));
+    }
+
+    public void testSignaturesSurviveExtras() {
+        byte[] basis = randomBytes(DOCUMENT_BYTES, 5);
+
+        HashMap<String, Object> extras = new HashMap<>();
+        BlockSignatures.fromContent(basis).writeExtras(extras);
+        BlockSignatures signatures = BlockSignatures.fromExtras(extras);
+
+        assertNotNull(signatures);
+        byte[] delta = Delta.encode(signatures, basis);
+        assertTrue(Arrays.equals(basis, Delta.apply(basis, signatures.getBlockSizeBytes(), delta)));
+    }
+
+    public void testMalformedDelta() {
+        byte[] basis = randomBytes(1024, 6);
+        byte[] delta = new byte[] { Delta.OP_COPY, 0, 0, 0, 0, 0, 0, 0, 100 };
+
+        assertNull(Delta.apply(basis, 256, delta));
+        assertNull(Delta.apply(basis, 256, new byte[] { Delta.OP_LITERAL, 0 }));
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
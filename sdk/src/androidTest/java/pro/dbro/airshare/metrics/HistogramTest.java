@@ -0,0 +1,109 @@
+package pro.dbro.airshare.metrics;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+/**
+ * Tests that {@link pro.dbro.airshare.metrics.Histogram} reports each percentile by nearest rank
+ * within the precision of its buckets, and clamps values beyond its range into its top bucket
+ */
+public class HistogramTest extends ApplicationTestCase<Application> {
+
+    /** Largest value recorded, 2^40 - 1 */
+    private static final long MAX_VALUE = (1L << 40) - 1;
+
+    public HistogramTest() {
+        super(Application.class);
+    }
+
+    public void testSmallValuesAreExact() {
+        Histogram histogram = new Histogram();
+        for (long value = 0; value < 8; value++) histogram.record(value);
+
+        for (int rank = 1; rank <= 8; rank++)
+            assertEquals(rank - 1, histogram.getValueAtPercentile(rank * 100.0 / 8));
+    }
+
+    public void testBucketBoundaries() {
+        // Values from 16 are grouped in pairs, up to the next power of two
+        assertEquals(17, getBucketHighestValue(16));
+        assertEquals(17, getBucketHighestValue(17));
+        assertEquals(19, getBucketHighestValue(18));
+        assertEquals(31, getBucketHighestValue(30));
+        // Then in fours
+        assertEquals(35, getBucketHighestValue(32));
+        assertEquals(39, getBucketHighestValue(36));
+    }
+
+    public void testValuesAreWithinOneEighth() {
+        for (long value = 8; value < MAX_VALUE / 2; value = value * 3 / 2 + 1) {
+            long reported = getBucketHighestValue(value);
+
+            assertTrue(value + " reported as " + reported, reported >= value);
+            assertTrue(value + " reported as " + reported, reported <= value + value / 8);
+        }
+    }
+
+    public void testPercentileIsNearestRank() {
+        Histogram histogram = new Histogram();
+        for (long value = 1; value <= 4; value++) histogram.record(value);
+
+        assertEquals(1, histogram.getValueAtPercentile(0));
+        assertEquals(1, histogram.getValueAtPercentile(25));
+        assertEquals(2, histogram.getValueAtPercentile(26));
+        assertEquals(2, histogram.getValueAtPercentile(50));
+        assertEquals(3, histogram.getValueAtPercentile(75));
+        assertEquals(4, histogram.getValueAtPercentile(100));
+        assertEquals(2.5, histogram.getMean());
+    }
+
+    public void testPercentileDoesNotExceedMax() {
+        Histogram histogram = new Histogram();
+        histogram.record(1000);
+
+        // The bucket holding 1000 extends beyond it
+        assertEquals(1000, histogram.getValueAtPercentile(50));
+        assertEquals(1000, histogram.getValueAtPercentile(100));
+    }
+
+    public void testValuesOutOfRangeAreClamped() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        histogram.record(1L << 41);
+        histogram.record(Long.MAX_VALUE);
+
+        assertEquals(3, histogram.getCount());
+        assertEquals(0, histogram.getMin());
+        assertEquals(MAX_VALUE, histogram.getMax());
+        // Both large values fall in the top bucket
+        assertEquals(MAX_VALUE, histogram.getValueAtPercentile(50));
+        assertEquals(MAX_VALUE, histogram.getValueAtPercentile(100));
+    }
+
+    public void testAddedHistogramsAreMerged() {
+        Histogram first  = new Histogram();
+        Histogram second = new Histogram();
+        first.record(1);
+        second.record(3);
+
+        Histogram merged = first.copy();
+        merged.add(second);
+
+        assertEquals(1, first.getCount());
+        assertEquals(2, merged.getCount());
+        assertEquals(1, merged.getMin());
+        assertEquals(3, merged.getMax());
+        assertEquals(1, merged.getValueAtPercentile(50));
+    }
+
+    /**
+     * @return the highest value of the bucket value is recorded in, reported as the median when
+     * a larger value is also recorded
+     */
+    private static long getBucketHighestValue(long value) {
+        Histogram histogram = new Histogram();
+        histogram.record(value);
+        histogram.record(MAX_VALUE);
+        return histogram.getValueAtPercentile(50);
+    }
+}
@@ -0,0 +1,151 @@
+package pro.dbro.airshare.session;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import pro.dbro.airshare.crypto.KeyPair;
+import pro.dbro.airshare.crypto.SodiumShaker;
+
+/**
+ * Tests that bodies encoded by a {@link pro.dbro.airshare.session.BodyCodec} are decoded by
+ * {@link pro.dbro.airshare.session.SessionMessageDeserializer} as they arrive, including bodies
+ * large enough to be stored on disk
+ */
+public class BodyCodecTest extends ApplicationTestCase<Application> {
+
+    /** Larger than the deserializer holds in memory */
+    private static final int LARGE_BODY_BYTES = 3 * 1000 * 1000;
+
+    /** Chunks carry the end of one message and the start of the next */
+    private static final int CHUNK_BYTES = 8 * 1024;
+
+    private List<SessionMessage> received;
+    private List<Exception> failures;
+
+    public BodyCodecTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        received = new ArrayList<>();
+        failures = new ArrayList<>();
+    }
+
+    public void testLargeSignedBodyIsVerifiedOnDisk() {
+        KeyPair keyPair = SodiumShaker.generateKeyPair();
+        byte[] payload = randomBytes(LARGE_BODY_BYTES, 1);
+        byte[] next    = randomBytes(100, 2);
+
+        DataTransferMessage message = DataTransferMessage.createOutgoing(null, payload);
+        List<SessionMessage> messages = new ArrayList<>();
+        messages.add(message.encode(SignedBodyCodec.forSigning(keyPair.secretKey, message.id)));
+        messages.add(DataTransferMessage.createOutgoing(null, next));
+
+        transfer(messages, null, keyPair.publicKey, -1);
+
+        assertTrue(failures.isEmpty());
+        assertEquals(2, received.size());
+
+        DataTransferMessage large = (DataTransferMessage) received.get(0);
+        assertNotNull(large.getBodyFile());
+        assertEquals(LARGE_BODY_BYTES, large.getBodyLengthBytes());
+        assertTrue(Arrays.equals(payload, large.getBodyAtOffset(0, LARGE_BODY_BYTES)));
+
+        // The message following the large body is deserialized from the same chunks
+        assertTrue(Arrays.equals(next, received.get(1).getBodyAtOffset(0, next.length)));
+        assertTrue(large.getBodyFile().delete());
+    }
+
+    public void testLargeEncryptedBodyIsDecryptedOnDisk() {
+        KeyPair keyPair = SodiumShaker.generateKeyPair();
+        byte[] sessionKey = randomBytes(SodiumShaker.crypto_aead_chacha20poly1305_KEYBYTES, 4);
+        byte[] payload = randomBytes(LARGE_BODY_BYTES, 5);
+
+        DataTransferMessage message = DataTransferMessage.createOutgoing(
+                Collections.<String, Object>singletonMap("name", "video.mp4"), payload);
+        DataTransferMessage encrypted = message.encode(new EncryptedBodyCodec(sessionKey, keyPair.publicKey, message.id));
+
+        // Extras are sealed with the body
+        assertFalse(encrypted.getHeaders().containsKey(DataTransferMessage.HEADER_EXTRA));
+        assertTrue(encrypted.getHeaders().containsKey(BodyCodec.HEADER_SEALED_EXTRA));
+
+        transfer(Collections.<SessionMessage>singletonList(encrypted), sessionKey, keyPair.publicKey, -1);
+
+        assertTrue(failures.isEmpty());
+        assertEquals(1, received.size());
+
+        DataTransferMessage large = (DataTransferMessage) received.get(0);
+        assertNotNull(large.getBodyFile());
+        assertEquals(Collections.singletonMap("name", "video.mp4"),
+                     large.getHeaders().get(DataTransferMessage.HEADER_EXTRA));
+        assertTrue(Arrays.equals(payload, large.getBodyAtOffset(0, LARGE_BODY_BYTES)));
+        assertTrue(large.getBodyFile().delete());
+    }
+
+    public void testDamagedLargeSignedBodyFails() {
+        KeyPair keyPair = SodiumShaker.generateKeyPair();
+
+        DataTransferMessage message = DataTransferMessage.createOutgoing(null, randomBytes(LARGE_BODY_BYTES, 3));
+        List<SessionMessage> messages = new ArrayList<>();
+        messages.add(message.encode(SignedBodyCodec.forSigning(keyPair.secretKey, message.id)));
+
+        transfer(messages, null, keyPair.publicKey, LARGE_BODY_BYTES / 2);
+
+        assertEquals(1, failures.size());
+        assertTrue(received.isEmpty());
+    }
+
+    /**
+     * Serialize messages and deserialize them as from a peer with senderPublicKey
+     * sharing sessionKey
+     *
+     * @param damagedOffset offset of a serialized byte to alter, or -1 for none
+     */
+    private void transfer(List<SessionMessage> messages, byte[] sessionKey, byte[] senderPublicKey, int damagedOffset) {
+        SessionMessageSerializer sender = new SessionMessageSerializer(messages);
+        SessionMessageDeserializer receiver = new SessionMessageDeserializer(getContext(),
+
+                new SessionMessageDeserializer.SessionMessageDeserializerCallback() {
+
+                    @Override
+                    public void onHeaderReady(SessionMessageDeserializer receiver, SessionMessage message) {}
+
+                    @Override
+                    public void onBodyProgress(SessionMessageDeserializer receiver, SessionMessage message, float progress) {}
+
+                    @Override
+                    public void onComplete(SessionMessageDeserializer receiver, SessionMessage message, Exception e) {
+                        if (e != null) failures.add(e);
+                        else received.add(message);
+                    }
+                }
+        );
+        receiver.setSessionKey(sessionKey, senderPublicKey);
+
+        int offset = 0;
+        byte[] chunk;
+        while ((chunk = sender.getNextChunk(CHUNK_BYTES)) != null) {
+            if (damagedOffset >= offset && damagedOffset < offset + chunk.length)
+                chunk[damagedOffset - offset] ^= 0x01;
+
+            offset += chunk.length;
+            receiver.dataReceived(chunk);
+            sender.ackChunkDelivery();
+        }
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,289 @@
+package pro.dbro.airshare.session;
+
+import android.app.Application;
+import android.support.annotation.NonNull;
+import android.test.ApplicationTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests framing a stream with {@link pro.dbro.airshare.session.ChunkFramer} and recovering it
+ * with {@link pro.dbro.airshare.session.ChunkDeframer} despite damaged, duplicated, reordered
+ * and lost frames
+ */
+public class ChunkFrameTest extends ApplicationTestCase<Application> {
+
+    private static final int STREAM_BYTES = 16 * 1024;
+    private static final int CHUNK_BYTES  = 100;
+
+    public ChunkFrameTest() {
+        super(Application.class);
+    }
+
+    public void testReorderedAndDuplicatedFrames() {
+        byte[] stream = randomBytes(STREAM_BYTES, 1);
+        List<byte[]> frames = frame(new ChunkFramer(), stream);
+
+        // Deliver each frame twice, in random order
+        List<byte[]> delivered = new ArrayList<>(frames);
+        delivered.addAll(frames);
+        Collections.shuffle(delivered, new Random(2));
+
+        RecordingListener listener = new RecordingListener();
+        ChunkDeframer deframer = new ChunkDeframer(false, listener);
+        for (byte[] frame : delivered)
+            deframer.dataReceived(frame);
+
+        assertTrue(Arrays.equals(stream, listener.received.toByteArray()));
+        assertEquals(frames.size(), listener.discarded);
+        assertFalse(deframer.hasGap());
+    }
+
+    public void testDamagedFrameIsDiscarded() {
+        byte[] stream = randomBytes(STREAM_BYTES, 3);
+        List<byte[]> frames = frame(new ChunkFramer(), stream);
+
+        RecordingListener listener = new RecordingListener();
+        ChunkDeframer deframer = new ChunkDeframer(false, listener);
+
+        byte[] damaged = frames.get(5).clone();
+        damaged[damaged.length - 1] ^= 0x01;
+        frames.add(5, damaged);
+
+        for (byte[] frame : frames)
+            deframer.dataReceived(frame);
+
+        assertEquals(1, listener.corrupt);
+        assertTrue(Arrays.equals(stream, listener.received.toByteArray()));
+    }
+
+    public void testStreamTransportSplitsAndJoinsFrames() {
+        byte[] stream = randomBytes(STREAM_BYTES, 4);
+
+        ByteArrayOutputStream framed = new ByteArrayOutputStream();
+        for (byte[] frame : frame(new ChunkFramer(), stream))
+            framed.write(frame, 0, frame.length);
+        byte[] framedBytes = framed.toByteArray();
+
+        RecordingListener listener = new RecordingListener();
+        ChunkDeframer deframer = new ChunkDeframer(true, listener);
+
+        Random random = new Random(5);
+        int offset = 0;
+        while (offset < framedBytes.length) {
+            int length = Math.min(framedBytes.length - offset, 1 + random.nextInt(3 * CHUNK_BYTES));
+            deframer.dataReceived(Arrays.copyOfRange(framedBytes, offset, offset + length));
+            offset += length;
+        }
+
+        assertTrue(Arrays.equals(stream, listener.received.toByteArray()));
+    }
+
+    public void testNewStreamResetsReceiver() {
+        RecordingListener listener = new RecordingListener();
+        ChunkDeframer deframer = new ChunkDeframer(false, listener);
+
+        List<byte[]> first = frame(new ChunkFramer(1), randomBytes(3 * CHUNK_BYTES, 6));
+        deframer.dataReceived(first.get(0));
+
+        byte[] second = randomBytes(2 * CHUNK_BYTES, 7);
+        List<byte[]> secondFrames = frame(new ChunkFramer(2), second);
+
+        // A late frame of the first stream once the second begins is ignored
+        deframer.dataReceived(secondFrames.get(0));
+        deframer.dataReceived(first.get(1));
+        deframer.dataReceived(secondFrames.get(1));
+
+        assertEquals(1, listener.resets);
+        assertEquals(1, listener.discarded);
+        assertTrue(Arrays.equals(second, listener.received.toByteArray()));
+    }
+
+    public void testCancelIsPassedOnInStreamOrder() {
+        ChunkFramer framer = new ChunkFramer();
+        byte[] abandoned = randomBytes(CHUNK_BYTES, 11);
+        byte[] next      = randomBytes(CHUNK_BYTES, 12);
+
+        List<byte[]> frames = new ArrayList<>();
+        frames.add(framer.frame(abandoned, 0));
+        frames.add(framer.frameCancel(0));
+        frames.add(framer.frame(next, 0));
+        Collections.reverse(frames);
+
+        RecordingListener listener = new RecordingListener();
+        ChunkDeframer deframer = new ChunkDeframer(false, listener);
+        for (byte[] frame : frames)
+            deframer.dataReceived(frame);
+
+        // The cancel follows the chunk it abandons, and precedes the next
+        assertEquals(1, listener.cancels);
+        assertEquals(CHUNK_BYTES, listener.cancelledAt);
+        assertEquals(2 * CHUNK_BYTES, listener.received.size());
+        assertFalse(deframer.hasGap());
+    }
+
+    public void testLostFrameIsReportedAndSentAgain() {
+        byte[] stream = randomBytes(ChunkFramer.MAX_HISTORY_BYTES, 8);
+        ChunkFramer framer = new ChunkFramer();
+        List<byte[]> frames = frame(framer, stream);
+        int lost = frames.size() - 5;
+
+        RecordingListener listener = new RecordingListener();
+        ChunkDeframer deframer = new ChunkDeframer(false, listener);
+
+        // The transport acknowledges every frame, though one never arrives
+        for (int i = 0; i < frames.size(); i++) {
+            framer.onAcknowledged(frames.get(i), 0);
+            if (i != lost) deframer.dataReceived(frames.get(i));
+            framer.onConfirmed((int) listener.progressOffset, 0);
+        }
+
+        assertEquals(1, listener.gaps.size());
+        long[] gap = listener.gaps.get(0);
+        assertEquals(framer.getStreamId(), gap[0]);
+        assertEquals(lost * CHUNK_BYTES, gap[1]);
+        assertEquals(CHUNK_BYTES, gap[2]);
+
+        // The framer keeps the frames the receiver has not reported receiving
+        List<byte[]> resent = framer.getFramesFrom((int) gap[1], (int) gap[2], 0);
+        assertNotNull(resent);
+        assertEquals(1, resent.size());
+        deframer.dataReceived(resent.get(0));
+
+        assertFalse(deframer.hasGap());
+        assertFalse(deframer.isMissingBytes());
+        assertTrue(Arrays.equals(stream, listener.received.toByteArray()));
+
+        // Once the receiver reports receiving every frame, none is needed again
+        assertTrue(deframer.hasUnreportedProgress());
+        deframer.checkProgress();
+        assertEquals(0, framer.onConfirmed((int) listener.progressOffset, 0));
+        assertFalse(framer.hasUnconfirmed());
+        assertTrue(framer.getFramesFrom((int) gap[1], (int) gap[2], 0).isEmpty());
+    }
+
+    public void testUnconfirmedFramesBoundWindow() {
+        ChunkFramer framer = new ChunkFramer();
+        List<byte[]> frames = frame(framer, randomBytes(ChunkFramer.MAX_HISTORY_BYTES, 10));
+        for (byte[] frame : frames)
+            framer.onAcknowledged(frame, 0);
+
+        // The receiver can hold no more until it reports receiving some
+        assertEquals(0, framer.getWindowChunks(CHUNK_BYTES));
+
+        // Should its report be lost, the latest frame is sent again to prompt another
+        assertNull(framer.getProbeFrame(0));
+        byte[] probe = framer.getProbeFrame(framer.getTimeoutNanos());
+        assertTrue(Arrays.equals(frames.get(frames.size() - 1), probe));
+
+        assertEquals(0, framer.onConfirmed(ChunkFramer.MAX_HISTORY_BYTES / 2, 0));
+        assertTrue(framer.getWindowChunks(CHUNK_BYTES) > 0);
+        assertEquals(-1, framer.onConfirmed(ChunkFramer.MAX_HISTORY_BYTES / 4, 0));
+    }
+
+    public void testUnacknowledgedFrameIsSentAgainUntilStalled() {
+        ChunkFramer framer = new ChunkFramer();
+        byte[] chunk = randomBytes(CHUNK_BYTES, 9);
+        long timeoutNanos = framer.getTimeoutNanos();
+
+        // A prompt acknowledgement of the first frame shortens the timeout
+        byte[] first = framer.frame(chunk, 0);
+        assertEquals(1, framer.onAcknowledged(first, 1000));
+        assertEquals(-1, framer.onAcknowledged(first, 2000));
+        assertTrue(framer.getTimeoutNanos() < timeoutNanos);
+
+        long nowNanos = 0;
+        byte[] second = framer.frame(chunk, nowNanos);
+        assertTrue(framer.getExpiredFrames(nowNanos).isEmpty());
+
+        for (int transmission = 1; transmission < ChunkFramer.MAX_TRANSMISSIONS; transmission++) {
+            assertFalse(framer.isStalled(nowNanos));
+            nowNanos += framer.getTimeoutNanos();
+            List<byte[]> expired = framer.getExpiredFrames(nowNanos);
+            assertEquals(1, expired.size());
+            assertTrue(Arrays.equals(second, expired.get(0)));
+        }
+
+        nowNanos += framer.getTimeoutNanos();
+        assertTrue(framer.getExpiredFrames(nowNanos).isEmpty());
+        assertTrue(framer.isStalled(nowNanos));
+
+        // An earlier stream's acknowledgement does not count toward the new stream
+        framer.restart();
+        assertFalse(framer.hasUnacknowledged());
+        assertEquals(-1, framer.onAcknowledged(second, nowNanos));
+    }
+
+    private static List<byte[]> frame(ChunkFramer framer, byte[] stream) {
+        List<byte[]> frames = new ArrayList<>();
+        for (int offset = 0; offset < stream.length; offset += CHUNK_BYTES) {
+            byte[] chunk = Arrays.copyOfRange(stream, offset, Math.min(stream.length, offset + CHUNK_BYTES));
+            frames.add(framer.frame(chunk, 0));
+        }
+        return frames;
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static class RecordingListener implements ChunkDeframer.Listener {
+
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        int resets;
+        int discarded;
+        int corrupt;
+        int cancels;
+        /** Bytes received when the last cancel was passed on */
+        int cancelledAt;
+        /** Stream id, offset and length of each gap reported */
+        final List<long[]> gaps = new ArrayList<>();
+        long progressOffset;
+
+        @Override
+        public void onPayload(@NonNull byte[] payload) {
+            received.write(payload, 0, payload.length);
+        }
+
+        @Override
+        public void onStreamReset() {
+            resets++;
+            received.reset();
+        }
+
+        @Override
+        public void onCancel() {
+            cancels++;
+            cancelledAt = received.size();
+        }
+
+        @Override
+        public void onFrameDiscarded(boolean corrupt) {
+            if (corrupt) this.corrupt++;
+            else discarded++;
+        }
+
+        @Override
+        public void onGap(int streamId, long offset, int length) {
+            gaps.add(new long[] {streamId, offset, length});
+        }
+
+        @Override
+        public void onNack(int streamId, int offset, int length) {}
+
+        @Override
+        public void onProgress(int streamId, long offset) {
+            progressOffset = offset;
+        }
+
+        @Override
+        public void onAck(int streamId, int offset) {}
+    }
+}
@@ -0,0 +1,103 @@
+package pro.dbro.airshare.session;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that {@link pro.dbro.airshare.session.CongestionController} grows its window while
+ * chunks are promptly acknowledged, and shrinks it on loss, timeout and queuing delay
+ */
+public class CongestionControllerTest extends ApplicationTestCase<Application> {
+
+    private static final int  CHUNK_BYTES = 500;
+    private static final long RTT_NANOS   = TimeUnit.MILLISECONDS.toNanos(20);
+
+    public CongestionControllerTest() {
+        super(Application.class);
+    }
+
+    public void testWindowGrowsWithoutLoss() {
+        CongestionController controller = new CongestionController(new RetransmissionTimer());
+        assertEquals(CongestionController.INITIAL_WINDOW_CHUNKS, controller.getWindowChunks(CHUNK_BYTES));
+
+        // Slow start doubles the window each round trip
+        long nowNanos = acknowledgeWindow(controller, 0, RTT_NANOS);
+        assertEquals(2 * CongestionController.INITIAL_WINDOW_CHUNKS, controller.getWindowChunks(CHUNK_BYTES));
+
+        for (int round = 0; round < 20; round++)
+            nowNanos = acknowledgeWindow(controller, nowNanos, RTT_NANOS);
+
+        assertEquals(CongestionController.MAX_WINDOW_BYTES, controller.getWindowBytes());
+        assertEquals(RTT_NANOS, controller.getMinRttNanos());
+    }
+
+    public void testLossHalvesWindowOncePerRoundTrip() {
+        RetransmissionTimer timer = new RetransmissionTimer();
+        CongestionController controller = new CongestionController(timer);
+        controller.getWindowChunks(CHUNK_BYTES);
+
+        long nowNanos = 0;
+        for (int round = 0; round < 4; round++) {
+            timer.onRttSample(RTT_NANOS);
+            nowNanos = acknowledgeWindow(controller, nowNanos, RTT_NANOS);
+        }
+        long windowBytes = controller.getWindowBytes();
+
+        // Losses within a round trip of the first share its cause
+        controller.onLoss(nowNanos);
+        controller.onLoss(nowNanos + RTT_NANOS / 2);
+        assertEquals(windowBytes / 2, controller.getWindowBytes());
+
+        // Growth is then additive, by about a chunk each round trip
+        nowNanos = acknowledgeWindow(controller, nowNanos + RTT_NANOS, RTT_NANOS);
+        assertEquals(windowBytes / 2 + CHUNK_BYTES, controller.getWindowBytes(), CHUNK_BYTES / 10);
+        assertEquals(CHUNK_BYTES, controller.getChunkLength(CHUNK_BYTES));
+    }
+
+    public void testTimeoutShrinksWindowAndChunk() {
+        CongestionController controller = new CongestionController(new RetransmissionTimer());
+        acknowledgeWindow(controller, 0, RTT_NANOS);
+
+        controller.onTimeout(TimeUnit.SECONDS.toNanos(1));
+        assertEquals(1, controller.getWindowChunks(CHUNK_BYTES));
+        assertEquals(CHUNK_BYTES / 2, controller.getChunkLength(CHUNK_BYTES));
+
+        // A window acknowledged without loss restores the chunk size
+        long nowNanos = TimeUnit.SECONDS.toNanos(2);
+        for (int round = 0; round < 3; round++)
+            nowNanos = acknowledgeWindow(controller, nowNanos, RTT_NANOS);
+        assertEquals(CHUNK_BYTES, controller.getChunkLength(CHUNK_BYTES));
+    }
+
+    public void testQueuingDelayShrinksWindow() {
+        CongestionController controller = new CongestionController(new RetransmissionTimer());
+        long nowNanos = 0;
+        for (int round = 0; round < 4; round++)
+            nowNanos = acknowledgeWindow(controller, nowNanos, RTT_NANOS);
+        long windowBytes = controller.getWindowBytes();
+
+        // Acknowledgements slowing well beyond the least round trip time mean chunks are queuing
+        long queuedRttNanos = CongestionController.QUEUING_RTT_FACTOR * RTT_NANOS +
+                              CongestionController.QUEUING_MARGIN_NANOS + 1;
+        controller.onAcknowledged(CHUNK_BYTES, queuedRttNanos, nowNanos + queuedRttNanos);
+        assertEquals(windowBytes / 2, controller.getWindowBytes());
+
+        // Chunks sent more than once give no round trip time, and are not taken as queuing
+        controller.onAcknowledged(CHUNK_BYTES, -1, nowNanos + 2 * queuedRttNanos);
+        assertTrue(controller.getWindowBytes() > windowBytes / 2);
+    }
+
+    /**
+     * Acknowledge a window of chunks, each after rttNanos, beginning at nowNanos
+     *
+     * @return the time the window is acknowledged
+     */
+    private static long acknowledgeWindow(CongestionController controller, long nowNanos, long rttNanos) {
+        int chunks = controller.getWindowChunks(CHUNK_BYTES);
+        for (int i = 0; i < chunks; i++)
+            controller.onAcknowledged(CHUNK_BYTES, rttNanos, nowNanos + rttNanos);
+        return nowNanos + rttNanos;
+    }
+}
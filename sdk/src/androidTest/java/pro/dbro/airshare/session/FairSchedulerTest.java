@@ -0,0 +1,92 @@
+package pro.dbro.airshare.session;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.util.HashMap;
+
+/**
+ * Tests that {@link pro.dbro.airshare.session.FairScheduler} shares a transport among
+ * backlogged identifiers in proportion to their weights
+ */
+public class FairSchedulerTest extends ApplicationTestCase<Application> {
+
+    private static final int CHUNK_BYTES = 512;
+    private static final int ROUNDS      = 1000;
+
+    public FairSchedulerTest() {
+        super(Application.class);
+    }
+
+    public void testEqualWeightsShareEqually() {
+        HashMap<String, Integer> sent = schedule(new String[] {"a", "b", "c"},
+                                                 new int[]    {1, 1, 1},
+                                                 new int[]    {CHUNK_BYTES, CHUNK_BYTES, CHUNK_BYTES});
+
+        assertEquals(sent.get("a"), sent.get("b"));
+        assertEquals(sent.get("b"), sent.get("c"));
+    }
+
+    public void testSmallChunksAreNotStarved() {
+        // A peer sending small messages receives as many bytes as one sending full chunks
+        HashMap<String, Integer> sent = schedule(new String[] {"bulk", "small"},
+                                                 new int[]    {1, 1},
+                                                 new int[]    {CHUNK_BYTES, 20});
+
+        assertEquals(sent.get("bulk"), sent.get("small"), 2 * CHUNK_BYTES);
+    }
+
+    public void testWeightsShareProportionally() {
+        HashMap<String, Integer> sent = schedule(new String[] {"heavy", "light"},
+                                                 new int[]    {3, 1},
+                                                 new int[]    {CHUNK_BYTES, CHUNK_BYTES});
+
+        assertEquals(3 * sent.get("light"), sent.get("heavy"), 3 * CHUNK_BYTES);
+    }
+
+    public void testIdleIdentifierForfeitsCredit() {
+        FairScheduler scheduler = new FairScheduler();
+        scheduler.setBacklogged("a", CHUNK_BYTES, 0);
+        scheduler.setBacklogged("b", CHUNK_BYTES, 0);
+
+        assertEquals("a", scheduler.next());
+        scheduler.onIdle("a");
+        assertEquals("b", scheduler.next());
+        scheduler.onChunkSent("b", CHUNK_BYTES, 0);
+        assertFalse(scheduler.canSend());
+
+        scheduler.onChunkComplete("b");
+        scheduler.setBacklogged("a", CHUNK_BYTES, 0);
+        assertEquals("a", scheduler.next());
+    }
+
+    /**
+     * Schedule chunks of chunkLengths to always backlogged identifiers, acknowledging each
+     * before the next, and return the bytes sent to each
+     */
+    private static HashMap<String, Integer> schedule(String[] identifiers, int[] weights, int[] chunkLengths) {
+        FairScheduler scheduler = new FairScheduler();
+        HashMap<String, Integer> chunkLengthByIdentifier = new HashMap<>();
+        HashMap<String, Integer> sent = new HashMap<>();
+
+        for (int i = 0; i < identifiers.length; i++) {
+            scheduler.setWeight(identifiers[i], weights[i]);
+            scheduler.setBacklogged(identifiers[i], CHUNK_BYTES, 0);
+            chunkLengthByIdentifier.put(identifiers[i], chunkLengths[i]);
+            sent.put(identifiers[i], 0);
+        }
+
+        for (int i = 0; i < ROUNDS * identifiers.length; i++) {
+            assertTrue(scheduler.canSend());
+            String identifier = scheduler.next();
+            assertNotNull(identifier);
+
+            int length = chunkLengthByIdentifier.get(identifier);
+            scheduler.onChunkSent(identifier, length, 0);
+            scheduler.onChunkComplete(identifier);
+            scheduler.setBacklogged(identifier, CHUNK_BYTES, 0);
+            sent.put(identifier, sent.get(identifier) + length);
+        }
+        return sent;
+    }
+}
@@ -0,0 +1,103 @@
+package pro.dbro.airshare.session;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests that {@link pro.dbro.airshare.session.MeshRouter} learns the shortest routes advertised
+ * by neighbors and taken by relayed messages, forgets routes through departed neighbors, and
+ * remembers a bounded number of relayed message ids
+ */
+public class MeshRouterTest extends ApplicationTestCase<Application> {
+
+    private final Peer local = createPeer(0, "local");
+    private final Peer near  = createPeer(1, "near");
+    private final Peer far   = createPeer(2, "far");
+    private final Peer other = createPeer(3, "other");
+
+    private MeshRouter router;
+
+    public MeshRouterTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        router = new MeshRouter(local);
+    }
+
+    public void testAdvertisedRoutesAreLearned() {
+        router.onNeighborIdentified(near, Collections.singletonMap(getKey(far), 1));
+
+        assertEquals(near, router.getNextHop(getKey(far)));
+
+        Map<String, Integer> advertised = router.getAdvertisedRoutes(Collections.singleton(near));
+        assertEquals(Integer.valueOf(2), advertised.get(getKey(far)));
+        assertEquals(Integer.valueOf(1), advertised.get(getKey(near)));
+    }
+
+    public void testShorterRouteIsPreferred() {
+        router.onNeighborIdentified(near,  Collections.singletonMap(getKey(far), 2));
+        router.onNeighborIdentified(other, Collections.singletonMap(getKey(far), 1));
+        assertEquals(other, router.getNextHop(getKey(far)));
+
+        // A longer route through another neighbor does not replace it
+        router.onNeighborIdentified(near, Collections.singletonMap(getKey(far), 3));
+        assertEquals(other, router.getNextHop(getKey(far)));
+    }
+
+    public void testRoutesTooLongOrToLocalPeerAreIgnored() {
+        Map<String, Integer> routes = new HashMap<>();
+        routes.put(getKey(far),   MeshRouter.MAX_HOPS);
+        routes.put(getKey(local), 1);
+        router.onNeighborIdentified(near, routes);
+
+        assertNull(router.getNextHop(getKey(far)));
+        assertNull(router.getNextHop(getKey(local)));
+    }
+
+    public void testRouteBackToOriginIsLearned() {
+        RelayMessage relay = new RelayMessage(far, local.getPublicKey(), MeshRouter.MAX_HOPS,
+                                              DataTransferMessage.createOutgoing(null, new byte[] {1}));
+        router.onRelayReceived(relay, near);
+
+        assertEquals(near, router.getNextHop(getKey(far)));
+    }
+
+    public void testRoutesExpireWithNeighbor() {
+        router.onNeighborIdentified(near,  Collections.singletonMap(getKey(far), 1));
+        router.onNeighborIdentified(other, Collections.singletonMap(getKey(local), 1));
+
+        router.onNeighborDisconnected(near);
+
+        assertNull(router.getNextHop(getKey(far)));
+        assertTrue(router.getAdvertisedRoutes(Collections.<Peer>emptySet()).isEmpty());
+    }
+
+    public void testSeenIdsAreBounded() {
+        assertTrue(router.markSeen("first"));
+        assertFalse(router.markSeen("first"));
+
+        for (int i = 0; i < MeshRouter.SEEN_CACHE_SIZE; i++)
+            assertTrue(router.markSeen("id-" + i));
+
+        // The oldest id is forgotten once the cache is full
+        assertTrue(router.markSeen("first"));
+        assertFalse(router.markSeen("id-" + (MeshRouter.SEEN_CACHE_SIZE - 1)));
+    }
+
+    private static Peer createPeer(int key, String alias) {
+        return new Peer(new byte[] {(byte) key}, alias, new Date(), 0, 0);
+    }
+
+    private static String getKey(Peer peer) {
+        return RelayMessage.encodeKey(peer.getPublicKey());
+    }
+}
@@ -0,0 +1,181 @@
+package pro.dbro.airshare.session;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests that messages queued by {@link pro.dbro.airshare.session.OutboundQueue} are restored
+ * from its log after it is reopened, less those removed and any record cut short by a crash,
+ * and that its log is compacted
+ */
+public class OutboundQueueTest extends ApplicationTestCase<Application> {
+
+    private static final int BODY_BYTES = 1024;
+
+    private final Peer recipient = new Peer(new byte[] {1, 2, 3}, "recipient", new Date(), 0, 0);
+
+    private File directory;
+
+    public OutboundQueueTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        directory = createDirectory("outbound-" + getName());
+    }
+
+    public void testQueuedMessagesAreRestored() {
+        DataTransferMessage first  = createMessage(1);
+        DataTransferMessage second = DataTransferMessage.createOutgoing(
+                Collections.<String, Object>singletonMap("name", "photo.jpg"), randomBytes(BODY_BYTES, 2));
+
+        OutboundQueue queue = new OutboundQueue(directory);
+        queue.enqueue(recipient, first);
+        queue.enqueue(recipient, second);
+        queue.enqueue(recipient, first);
+        assertTrue(queue.close());
+
+        List<DataTransferMessage> restored = reopen();
+        assertEquals(Arrays.asList(first.id, second.id), getIds(restored));
+        assertTrue(Arrays.equals(second.getBodyAtOffset(0, BODY_BYTES), restored.get(1).getBodyAtOffset(0, BODY_BYTES)));
+        assertEquals(Collections.singletonMap("name", "photo.jpg"), DataTransferMessage.getExtras(restored.get(1)));
+    }
+
+    public void testRemovedMessagesAreNotRestored() {
+        DataTransferMessage first  = createMessage(1);
+        DataTransferMessage second = createMessage(2);
+        DataTransferMessage third  = createMessage(3);
+
+        OutboundQueue queue = new OutboundQueue(directory);
+        queue.enqueue(recipient, first);
+        queue.enqueue(recipient, second);
+        queue.enqueue(recipient, third);
+        assertTrue(queue.close());
+
+        // Removal is recorded by a tombstone appended to the log
+        queue = new OutboundQueue(directory);
+        assertTrue(queue.remove(recipient, second.id));
+        assertFalse(queue.remove(recipient, second.id));
+        assertTrue(queue.close());
+
+        assertEquals(Arrays.asList(first.id, third.id), getIds(reopen()));
+    }
+
+    public void testTruncatedRecordIsDropped() throws Exception {
+        DataTransferMessage first  = createMessage(1);
+        DataTransferMessage second = createMessage(2);
+
+        OutboundQueue queue = new OutboundQueue(directory);
+        queue.enqueue(recipient, first);
+        queue.enqueue(recipient, second);
+        assertTrue(queue.close());
+
+        // As if the process died while appending the second record
+        File log = getLogFile(directory);
+        RandomAccessFile file = new RandomAccessFile(log, "rw");
+        file.setLength(log.length() - BODY_BYTES / 2);
+        file.close();
+
+        DataTransferMessage third = createMessage(3);
+        queue = new OutboundQueue(directory);
+        assertEquals(Collections.singletonList(first.id), getIds(queue.getQueued(recipient)));
+        queue.enqueue(recipient, third);
+        assertTrue(queue.close());
+
+        // The partial record is not left between the first and third
+        assertEquals(Arrays.asList(first.id, third.id), getIds(reopen()));
+    }
+
+    public void testLogIsCompacted() {
+        DataTransferMessage kept = createMessage(0);
+
+        List<DataTransferMessage> removed = new ArrayList<>();
+        for (int i = 1; i <= 100; i++) removed.add(createMessage(i));
+
+        OutboundQueue queue = new OutboundQueue(directory);
+        queue.enqueue(recipient, kept);
+        for (DataTransferMessage message : removed) queue.enqueue(recipient, message);
+        assertTrue(queue.close());
+
+        queue = new OutboundQueue(directory);
+        for (DataTransferMessage message : removed) assertTrue(queue.remove(recipient, message.id));
+        assertTrue(queue.close());
+
+        // Compaction leaves the kept message and at most a few tombstones, rather than every
+        // removed message and its tombstone
+        File reference = createDirectory("outbound-reference-" + getName());
+        OutboundQueue referenceQueue = new OutboundQueue(reference);
+        referenceQueue.enqueue(recipient, kept);
+        assertTrue(referenceQueue.close());
+
+        assertTrue(getLogFile(directory).length() < 2 * getLogFile(reference).length());
+        assertEquals(Collections.singletonList(kept.id), getIds(reopen()));
+    }
+
+    public void testEmptyLogIsDeleted() {
+        DataTransferMessage message = createMessage(1);
+
+        OutboundQueue queue = new OutboundQueue(directory);
+        queue.enqueue(recipient, message);
+        assertTrue(queue.remove(recipient, message.id));
+        assertTrue(queue.close());
+
+        assertNull(getLogFile(directory));
+        assertTrue(reopen().isEmpty());
+    }
+
+    private List<DataTransferMessage> reopen() {
+        OutboundQueue queue = new OutboundQueue(directory);
+        List<DataTransferMessage> queued = queue.getQueued(recipient);
+        assertTrue(queue.close());
+        return queued;
+    }
+
+    private File createDirectory(String name) {
+        File directory = new File(getContext().getCacheDir(), name);
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files) file.delete();
+        return directory;
+    }
+
+    /**
+     * @return the log of the only recipient with queued messages, or null if none
+     */
+    private static File getLogFile(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) return null;
+
+        for (File file : files)
+            if (file.getName().endsWith(".log")) return file;
+        return null;
+    }
+
+    private static List<String> getIds(List<DataTransferMessage> messages) {
+        List<String> ids = new ArrayList<>();
+        for (DataTransferMessage message : messages) ids.add(message.id);
+        return ids;
+    }
+
+    private static DataTransferMessage createMessage(long seed) {
+        return DataTransferMessage.createOutgoing(null, randomBytes(BODY_BYTES, seed));
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
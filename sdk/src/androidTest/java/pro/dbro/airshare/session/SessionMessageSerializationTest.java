@@ -3,6 +3,7 @@ package pro.dbro.airshare.session;
 import android.app.Application;
 import android.content.res.AssetFileDescriptor;
 import android.test.ApplicationTestCase;
+import android.util.Pair;
 
 import com.google.common.util.concurrent.AtomicDouble;
 
@@ -10,6 +11,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -174,11 +176,125 @@ public class SessionMessageSerializationTest extends ApplicationTestCase<Applica
             serializedBytes.addAndGet(chunk.length);
 
             receiver.dataReceived(chunk);
-
+            sender.ackChunkDelivery();
         }
 
         assertEquals(onCompleteCount.get(), messages.size());
         assertEquals(headerReadyCount.get(), messages.size());
 
     }
-}
\ No newline at end of file
+
+    public void testStripeReassembly() {
+
+        byte[] payload = new byte[16000];
+        new Random(0).nextBytes(payload);
+
+        DataTransferMessage message = DataTransferMessage.createOutgoing(null, payload);
+
+        // Stripes are received out of order, as they would be over transports of differing speed
+        List<SessionMessage> stripes = new ArrayList<>();
+        stripes.add(message.createStripe(10000, 6000));
+        stripes.add(message.createStripe(0, 4000));
+        stripes.add(message.createStripe(4000, 6000));
+
+        final List<DataTransferMessage> receivedStripes = new ArrayList<>();
+
+        SessionMessageSerializer sender = new SessionMessageSerializer(stripes);
+        SessionMessageDeserializer receiver = new SessionMessageDeserializer(mContext,
+
+                new SessionMessageDeserializer.SessionMessageDeserializerCallback() {
+
+                    @Override
+                    public void onHeaderReady(SessionMessageDeserializer receiver, SessionMessage message) {}
+
+                    @Override
+                    public void onBodyProgress(SessionMessageDeserializer receiver, SessionMessage message, float progress) {}
+
+                    @Override
+                    public void onComplete(SessionMessageDeserializer receiver, SessionMessage deserializedMessage, Exception e) {
+                        assertNull(e);
+                        receivedStripes.add((DataTransferMessage) deserializedMessage);
+                    }
+                }
+        );
+
+        byte[] chunk;
+        while ((chunk = sender.getNextChunk(BLETransport.DEFAULT_MTU_BYTES)) != null) {
+            receiver.dataReceived(chunk);
+            sender.ackChunkDelivery();
+        }
+
+        assertEquals(stripes.size(), receivedStripes.size());
+
+        LocalPeer sendingPeer = new LocalPeer(getContext(), SodiumShaker.generateKeyPair(), "sender");
+        StripedTransfer transfer = StripedTransfer.forIncoming(receivedStripes.get(0), sendingPeer);
+
+        for (DataTransferMessage stripe : receivedStripes) {
+            assertTrue(stripe.isStripe());
+            assertEquals(message.id, stripe.getStripeOf());
+            assertFalse(transfer.isComplete());
+            transfer.onIncomingStripeComplete(stripe);
+        }
+
+        assertTrue(transfer.isComplete());
+
+        DataTransferMessage reassembled = transfer.getMessage();
+        assertEquals(message.id, reassembled.getHeaders().get(SessionMessage.HEADER_ID));
+        assertTrue(Arrays.equals(payload, reassembled.getBodyAtOffset(0, payload.length)));
+    }
+
+    public void testSmallMessagesArePacked() {
+
+        List<SessionMessage> chatMessages = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            chatMessages.add(DataTransferMessage.createOutgoing(null, ("Message " + i).getBytes()));
+
+        // Chunk lengths down to 1 byte split messages within their prefix and header
+        for (int mtu : new int[] { 1, 2, 3, 7, BLETransport.DEFAULT_MTU_BYTES }) {
+
+            final List<SessionMessage> received = new ArrayList<>();
+            List<SessionMessage> acknowledged = new ArrayList<>();
+
+            SessionMessageSerializer sender = new SessionMessageSerializer(chatMessages);
+            SessionMessageDeserializer receiver = new SessionMessageDeserializer(mContext,
+
+                    new SessionMessageDeserializer.SessionMessageDeserializerCallback() {
+
+                        @Override
+                        public void onHeaderReady(SessionMessageDeserializer receiver, SessionMessage message) {}
+
+                        @Override
+                        public void onBodyProgress(SessionMessageDeserializer receiver, SessionMessage message, float progress) {}
+
+                        @Override
+                        public void onComplete(SessionMessageDeserializer receiver, SessionMessage deserializedMessage, Exception e) {
+                            assertNull(e);
+                            received.add(deserializedMessage);
+                        }
+                    }
+            );
+
+            long totalBytes = 0;
+            for (SessionMessage message : chatMessages)
+                totalBytes += message.getTotalLengthBytes();
+
+            int chunkCount = 0;
+            byte[] chunk;
+            while ((chunk = sender.getNextChunk(mtu)) != null) {
+                chunkCount++;
+                receiver.dataReceived(chunk);
+
+                for (Pair<SessionMessage, Float> delivered : sender.ackChunkDelivery())
+                    if (delivered.second == 1) acknowledged.add(delivered.first);
+            }
+
+            // Every chunk but the last is full
+            assertEquals((totalBytes + mtu - 1) / mtu, chunkCount);
+            assertEquals(chatMessages, received);
+            assertEquals(chatMessages, acknowledged);
+
+            for (int i = 0; i < chatMessages.size(); i++)
+                assertTrue(compareMessageBodies(chatMessages.get(i), received.get(i)));
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package pro.dbro.airshare.transport;
+
+import android.app.Application;
+import android.os.SystemClock;
+import android.test.ApplicationTestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import pro.dbro.airshare.Logging;
+import pro.dbro.airshare.session.DataTransferMessage;
+import pro.dbro.airshare.session.SessionMessage;
+import timber.log.Timber;
+
+/**
+ * Exchanges a message between two {@link pro.dbro.airshare.session.SessionManager}s over an
+ * {@link pro.dbro.airshare.transport.InProcessTransport} under each
+ * {@link pro.dbro.airshare.transport.ExecutionModel}, logging the time taken by each.
+ */
+public class ExecutionModelTest extends ApplicationTestCase<Application> {
+
+    private static final int PAYLOAD_BYTES = 256 * 1024;
+    private static final int MTU_BYTES     = 512;
+    private static final int TIMEOUT_S     = 30;
+
+    public ExecutionModelTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        Logging.forceLogging();
+    }
+
+    public void testEventLoopExecutionModel() throws InterruptedException {
+        assertTransferCompletes("event loop", new EventLoopExecutionModel());
+    }
+
+    public void testPooledExecutionModel() throws InterruptedException {
+        assertTransferCompletes("pooled", new PooledExecutionModel(2));
+    }
+
+    public void testThreadPerConnectionExecutionModel() throws InterruptedException {
+        assertTransferCompletes("thread per connection", new ThreadPerConnectionExecutionModel());
+    }
+
+    private void assertTransferCompletes(String modelName, ExecutionModel executionModel) throws InterruptedException {
+        byte[] payload = new byte[PAYLOAD_BYTES];
+        new Random(0).nextBytes(payload);
+
+        InProcessSession host   = new InProcessSession(getContext(), "host", MTU_BYTES, executionModel);
+        InProcessSession client = new InProcessSession(getContext(), "client", MTU_BYTES, executionModel);
+
+        try {
+            InProcessSession.connect(host, client);
+
+            assertTrue(host.connected.await(TIMEOUT_S, TimeUnit.SECONDS));
+            assertTrue(client.connected.await(TIMEOUT_S, TimeUnit.SECONDS));
+
+            long startMs = SystemClock.elapsedRealtime();
+            client.sessionManager.sendMessage(DataTransferMessage.createOutgoing(null, payload), client.peer.get());
+
+            assertTrue(host.received.await(TIMEOUT_S, TimeUnit.SECONDS));
+            long elapsedMs = SystemClock.elapsedRealtime() - startMs;
+
+            SessionMessage received = host.message.get();
+            assertTrue(Arrays.equals(payload, received.getBodyAtOffset(0, received.getBodyLengthBytes())));
+
+            Timber.d("%s execution model transferred %d bytes in %d ms", modelName, PAYLOAD_BYTES, elapsedMs);
+        } finally {
+            host.stop();
+            client.stop();
+            executionModel.shutdown();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package pro.dbro.airshare.transport;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import pro.dbro.airshare.crypto.SodiumShaker;
+import pro.dbro.airshare.session.DataTransferMessage;
+import pro.dbro.airshare.session.LocalPeer;
+import pro.dbro.airshare.session.Peer;
+import pro.dbro.airshare.session.SessionManager;
+import pro.dbro.airshare.session.SessionMessage;
+
+/**
+ * A {@link pro.dbro.airshare.session.SessionManager} sending over an
+ * {@link pro.dbro.airshare.transport.InProcessTransport}, recording the peer it connects to, the
+ * messages it receives and the delivery of those it sends, for tests exchanging messages between
+ * SessionManagers in one process
+ */
+class InProcessSession implements SessionManager.SessionManagerCallback {
+
+    final CountDownLatch connected = new CountDownLatch(1);
+    final CountDownLatch received  = new CountDownLatch(1);
+    final CountDownLatch sent      = new CountDownLatch(1);
+    /** The last peer connected */
+    final AtomicReference<Peer> peer = new AtomicReference<>();
+    /** The last message received */
+    final AtomicReference<SessionMessage> message = new AtomicReference<>();
+    final AtomicInteger receivedCount = new AtomicInteger();
+
+    final LocalPeer localPeer;
+    final InProcessTransport transport;
+    final SessionManager sessionManager;
+
+    InProcessSession(Context context, String alias, int mtu, ExecutionModel executionModel) {
+        transport = new InProcessTransport(alias, mtu);
+
+        localPeer = new LocalPeer(context, SodiumShaker.generateKeyPair(), alias);
+
+        List<Transport> transports = new ArrayList<>();
+        transports.add(transport);
+
+        sessionManager = new SessionManager(context, "test", localPeer, transports, executionModel, this);
+    }
+
+    /**
+     * Connect the transports of host and client. See {@link #connected}
+     */
+    static void connect(InProcessSession host, InProcessSession client) {
+        InProcessTransport.connect(host.transport, client.transport);
+    }
+
+    void stop() {
+        sessionManager.stop();
+    }
+
+    // <editor-fold desc="SessionManagerCallback">
+
+    @Override
+    public void peerStatusUpdated(@NonNull Peer peer, @NonNull Transport.ConnectionStatus newStatus, boolean isHost) {
+        if (newStatus == Transport.ConnectionStatus.CONNECTED) {
+            this.peer.set(peer);
+            connected.countDown();
+        }
+    }
+
+    @Override
+    public void messageReceivedFromPeer(@NonNull SessionMessage message, @NonNull Peer recipient, @Nullable Exception exception) {
+        if (exception != null) return;
+
+        this.message.set(message);
+        receivedCount.incrementAndGet();
+        received.countDown();
+    }
+
+    @Override
+    public void peerTransportUpdated(@NonNull Peer peer, int newTransportCode, @Nullable Exception exception) {}
+
+    @Override
+    public void messageReceivingFromPeer(@NonNull SessionMessage message, @NonNull Peer recipient, float progress) {}
+
+    @Override
+    public void messageSendingToPeer(@NonNull SessionMessage message, @NonNull Peer recipient, float progress) {}
+
+    @Override
+    public void messageSentToPeer(@NonNull SessionMessage message, @NonNull Peer recipient, @Nullable Exception exception) {
+        if (exception == null && message instanceof DataTransferMessage) sent.countDown();
+    }
+
+    @Override
+    public void peerWritable(@NonNull Peer peer) {}
+
+    @Override
+    public void messageCancelledByPeer(@NonNull SessionMessage message, @NonNull Peer sender) {}
+
+    @Override
+    public void messageResumingToPeer(@NonNull DataTransferMessage message, @NonNull Peer recipient) {}
+
+    // </editor-fold desc="SessionManagerCallback">
+}
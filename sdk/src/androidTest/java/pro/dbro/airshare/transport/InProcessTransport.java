@@ -0,0 +1,126 @@
+package pro.dbro.airshare.transport;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link pro.dbro.airshare.transport.Transport} delivering data to the instances in the same
+ * process it is connected to. Each instance delivers on its own thread, standing in for a radio
+ * callback thread, and acknowledges each chunk once the remote callback returns.
+ *
+ * A link of limited bandwidth that loses chunks may be simulated with {@link #setLinkConditions(double, int)}.
+ * Each chunk then occupies the radio thread for its transmission time, so chunks queue behind it,
+ * and a lost chunk is neither delivered nor acknowledged. Acknowledgements alone may be lost
+ * via {@link #dropAcknowledgements(int)}.
+ */
+public class InProcessTransport extends Transport {
+
+    public static final int TRANSPORT_CODE = 4;
+
+    private final String identifier;
+    private final int mtu;
+    private final ExecutorService radioThread = Executors.newSingleThreadExecutor();
+    private final Random random = new Random(0);
+
+    private double lossProbability;
+    private int    bytesPerSecond;
+    private final AtomicInteger acknowledgementsToDrop = new AtomicInteger();
+
+    /** Identifier -> Connected instance */
+    private final Map<String, InProcessTransport> remotes = new ConcurrentHashMap<>();
+
+    public InProcessTransport(String identifier, int mtu) {
+        super("InProcess", null);
+        this.identifier = identifier;
+        this.mtu = mtu;
+    }
+
+    /**
+     * Connect host and client, reporting the connection to each transport's callback.
+     * Each may be connected to several others
+     */
+    public static void connect(InProcessTransport host, InProcessTransport client) {
+        host.remotes.put(client.identifier, client);
+        client.remotes.put(host.identifier, host);
+
+        host.getCallback().identifierUpdated(host, client.identifier, ConnectionStatus.CONNECTED, false, null);
+        client.getCallback().identifierUpdated(client, host.identifier, ConnectionStatus.CONNECTED, true, null);
+    }
+
+    /**
+     * @param lossProbability probability, from 0 to 1, that each chunk sent is lost
+     * @param bytesPerSecond  rate at which chunks are transmitted, or 0 if unlimited
+     */
+    public void setLinkConditions(double lossProbability, int bytesPerSecond) {
+        this.lossProbability = lossProbability;
+        this.bytesPerSecond  = bytesPerSecond;
+    }
+
+    /**
+     * Deliver the next count chunks sent without acknowledging them, as if their
+     * acknowledgements were lost
+     */
+    public void dropAcknowledgements(int count) {
+        acknowledgementsToDrop.set(count);
+    }
+
+    @Override
+    public boolean sendData(byte[] data, Set<String> identifiers) {
+        boolean sent = true;
+        for (String identifier : identifiers)
+            sent &= sendData(data, identifier);
+        return sent;
+    }
+
+    @Override
+    public boolean sendData(final byte[] data, final String identifier) {
+        final InProcessTransport remote = remotes.get(identifier);
+        if (remote == null) return false;
+
+        radioThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (bytesPerSecond > 0)
+                        TimeUnit.MICROSECONDS.sleep(data.length * 1000000L / bytesPerSecond);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (random.nextDouble() < lossProbability) return;
+
+                remote.getCallback().dataReceivedFromIdentifier(remote, data, InProcessTransport.this.identifier);
+                if (acknowledgementsToDrop.get() > 0 && acknowledgementsToDrop.getAndDecrement() > 0) return;
+
+                getCallback().dataSentToIdentifier(InProcessTransport.this, data, identifier, null);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void advertise() {}
+
+    @Override
+    public void scanForPeers() {}
+
+    @Override
+    public void stop() {
+        radioThread.shutdown();
+    }
+
+    @Override
+    public int getTransportCode() {
+        return TRANSPORT_CODE;
+    }
+
+    @Override
+    public int getMtuForIdentifier(String identifier) {
+        return mtu;
+    }
+}
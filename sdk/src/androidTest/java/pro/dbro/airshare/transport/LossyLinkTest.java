@@ -0,0 +1,147 @@
+package pro.dbro.airshare.transport;
+
+import android.app.Application;
+import android.os.SystemClock;
+import android.test.ApplicationTestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import pro.dbro.airshare.Logging;
+import pro.dbro.airshare.metrics.LinkMetrics;
+import pro.dbro.airshare.session.DataTransferMessage;
+import pro.dbro.airshare.session.SessionMessage;
+import timber.log.Timber;
+
+/**
+ * Exchanges a message between two {@link pro.dbro.airshare.session.SessionManager}s over an
+ * {@link pro.dbro.airshare.transport.InProcessTransport} simulating a slow link that loses chunks,
+ * logging the congestion window and round trip times each adapts to.
+ */
+public class LossyLinkTest extends ApplicationTestCase<Application> {
+
+    private static final int PAYLOAD_BYTES = 256 * 1024;
+    private static final int MTU_BYTES     = 512;
+    private static final int TIMEOUT_S     = 60;
+
+    public LossyLinkTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        Logging.forceLogging();
+    }
+
+    public void testUnlimitedLinkOpensWindow() throws InterruptedException {
+        LinkMetrics metrics = assertTransferCompletes(0, 0);
+
+        assertTrue(metrics.getWindowBytes() > 2 * MTU_BYTES);
+        assertEquals(0, metrics.getRetries());
+    }
+
+    public void testSlowLinkLimitsQueuing() throws InterruptedException {
+        LinkMetrics metrics = assertTransferCompletes(0, 128 * 1024);
+
+        // Queuing on the link delays acknowledgements, which shrinks the window
+        // before the smoothed round trip time greatly exceeds the least
+        assertTrue(metrics.getMinRttMicros() > 0);
+        assertTrue(metrics.getSmoothedRttMicros() < 10 * metrics.getMinRttMicros());
+    }
+
+    public void testLossyLinkRecovers() throws InterruptedException {
+        LinkMetrics metrics = assertTransferCompletes(0.02, 256 * 1024);
+
+        assertTrue(metrics.getRetries() > 0);
+        assertTrue(metrics.getWindowBytes() > 0);
+    }
+
+    public void testLostAcknowledgementsDoNotDuplicateMessage() throws InterruptedException {
+        byte[] payload = new byte[4 * MTU_BYTES];
+        new Random(1).nextBytes(payload);
+
+        ExecutionModel executionModel = new PooledExecutionModel(2);
+        InProcessSession host   = new InProcessSession(getContext(), "host", MTU_BYTES, executionModel);
+        InProcessSession client = new InProcessSession(getContext(), "client", MTU_BYTES, executionModel);
+
+        try {
+            InProcessSession.connect(host, client);
+
+            assertTrue(host.connected.await(TIMEOUT_S, TimeUnit.SECONDS));
+            assertTrue(client.connected.await(TIMEOUT_S, TimeUnit.SECONDS));
+
+            // The message arrives in full, but neither the transport nor the host acknowledges it,
+            // so the client stalls and restarts its stream
+            client.transport.dropAcknowledgements(Integer.MAX_VALUE);
+            host.transport.setLinkConditions(1, 0);
+            client.sessionManager.sendMessage(DataTransferMessage.createOutgoing(null, payload), client.peer.get());
+            assertTrue(host.received.await(TIMEOUT_S, TimeUnit.SECONDS));
+
+            long deadlineMs = SystemClock.elapsedRealtime() + TimeUnit.SECONDS.toMillis(TIMEOUT_S);
+            while (getStreamRestarts(client) == 0 && SystemClock.elapsedRealtime() < deadlineMs)
+                SystemClock.sleep(50);
+            assertTrue(getStreamRestarts(client) > 0);
+
+            // The restarted stream resends the message, which the host reports only once
+            client.transport.dropAcknowledgements(0);
+            host.transport.setLinkConditions(0, 0);
+            assertTrue(client.sent.await(TIMEOUT_S, TimeUnit.SECONDS));
+            assertEquals(1, host.receivedCount.get());
+        } finally {
+            host.stop();
+            client.stop();
+            executionModel.shutdown();
+        }
+    }
+
+    /**
+     * @return restarts of the stream from session to its peer so far
+     */
+    private static long getStreamRestarts(InProcessSession session) {
+        return session.sessionManager.getMetrics().getPeerMetrics(session.peer.get()).getStreamRestarts();
+    }
+
+    /**
+     * @return metrics of the sending SessionManager for the receiving peer
+     */
+    private LinkMetrics assertTransferCompletes(double lossProbability, int bytesPerSecond) throws InterruptedException {
+        byte[] payload = new byte[PAYLOAD_BYTES];
+        new Random(0).nextBytes(payload);
+
+        ExecutionModel executionModel = new PooledExecutionModel(2);
+        InProcessSession host   = new InProcessSession(getContext(), "host", MTU_BYTES, executionModel);
+        InProcessSession client = new InProcessSession(getContext(), "client", MTU_BYTES, executionModel);
+        host.transport.setLinkConditions(lossProbability, bytesPerSecond);
+        client.transport.setLinkConditions(lossProbability, bytesPerSecond);
+
+        try {
+            InProcessSession.connect(host, client);
+
+            assertTrue(host.connected.await(TIMEOUT_S, TimeUnit.SECONDS));
+            assertTrue(client.connected.await(TIMEOUT_S, TimeUnit.SECONDS));
+
+            long startMs = SystemClock.elapsedRealtime();
+            client.sessionManager.sendMessage(DataTransferMessage.createOutgoing(null, payload), client.peer.get());
+
+            assertTrue(host.received.await(TIMEOUT_S, TimeUnit.SECONDS));
+            long elapsedMs = SystemClock.elapsedRealtime() - startMs;
+
+            SessionMessage received = host.message.get();
+            assertTrue(Arrays.equals(payload, received.getBodyAtOffset(0, received.getBodyLengthBytes())));
+
+            LinkMetrics metrics = client.sessionManager.getMetrics().getPeerMetrics(client.peer.get());
+            assertNotNull(metrics);
+
+            Timber.d("%.0f%% loss at %d B/s transferred %d bytes in %d ms: %s",
+                     lossProbability * 100, bytesPerSecond, PAYLOAD_BYTES, elapsedMs, metrics);
+            return metrics;
+        } finally {
+            host.stop();
+            client.stop();
+            executionModel.shutdown();
+        }
+    }
+}
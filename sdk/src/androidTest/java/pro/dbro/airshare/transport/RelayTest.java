@@ -0,0 +1,81 @@
+package pro.dbro.airshare.transport;
+
+import android.app.Application;
+import android.os.SystemClock;
+import android.test.ApplicationTestCase;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import pro.dbro.airshare.Logging;
+import pro.dbro.airshare.session.DataTransferMessage;
+import pro.dbro.airshare.session.Peer;
+import pro.dbro.airshare.session.SessionMessage;
+
+/**
+ * Sends a message between two {@link pro.dbro.airshare.session.SessionManager}s not directly
+ * connected, relayed by a third connected to each over an
+ * {@link pro.dbro.airshare.transport.InProcessTransport}
+ */
+public class RelayTest extends ApplicationTestCase<Application> {
+
+    private static final int PAYLOAD_BYTES = 16 * 1024;
+    private static final int MTU_BYTES     = 512;
+    private static final int TIMEOUT_S     = 30;
+
+    public RelayTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        Logging.forceLogging();
+    }
+
+    public void testMessageIsRelayedToPeerNotConnected() throws InterruptedException {
+        byte[] payload = new byte[PAYLOAD_BYTES];
+        new Random(0).nextBytes(payload);
+
+        ExecutionModel executionModel = new PooledExecutionModel(2);
+        InProcessSession origin      = new InProcessSession(getContext(), "origin", MTU_BYTES, executionModel);
+        InProcessSession relay       = new InProcessSession(getContext(), "relay", MTU_BYTES, executionModel);
+        InProcessSession destination = new InProcessSession(getContext(), "destination", MTU_BYTES, executionModel);
+        origin.sessionManager.setRelayingEnabled(true);
+        relay.sessionManager.setRelayingEnabled(true);
+
+        try {
+            // origin - relay - destination
+            InProcessSession.connect(relay, origin);
+            InProcessSession.connect(relay, destination);
+
+            assertTrue(origin.connected.await(TIMEOUT_S, TimeUnit.SECONDS));
+            assertTrue(destination.connected.await(TIMEOUT_S, TimeUnit.SECONDS));
+
+            long deadlineMs = SystemClock.elapsedRealtime() + TimeUnit.SECONDS.toMillis(TIMEOUT_S);
+            while (relay.sessionManager.getAvailablePeers().size() < 2 && SystemClock.elapsedRealtime() < deadlineMs)
+                SystemClock.sleep(50);
+            assertEquals(2, relay.sessionManager.getAvailablePeers().size());
+
+            Peer recipient = new Peer(destination.localPeer.getPublicKey(), "destination", new Date(), 0, 0);
+            origin.sessionManager.sendMessage(DataTransferMessage.createOutgoing(null, payload), recipient);
+
+            assertTrue(destination.received.await(TIMEOUT_S, TimeUnit.SECONDS));
+            assertTrue(origin.sent.await(TIMEOUT_S, TimeUnit.SECONDS));
+
+            SessionMessage received = destination.message.get();
+            assertTrue(Arrays.equals(payload, received.getBodyAtOffset(0, received.getBodyLengthBytes())));
+            assertEquals(1, destination.receivedCount.get());
+            // Relayed messages are reported only to their destination
+            assertEquals(0, relay.receivedCount.get());
+        } finally {
+            origin.stop();
+            relay.stop();
+            destination.stop();
+            executionModel.shutdown();
+        }
+    }
+}
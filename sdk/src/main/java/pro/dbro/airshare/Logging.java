@@ -7,6 +7,15 @@ import timber.log.Timber;
  */
 public class Logging {
 
+    /**
+     * Enables logging on per-chunk paths through the session and transport layers.
+     *
+     * Guard such calls with <code>if (Logging.VERBOSE)</code>. As this is a compile-time
+     * constant, javac removes guarded calls entirely, including evaluation of their
+     * arguments, when it is false. Flip it locally to debug the wire protocol.
+     */
+    public static final boolean VERBOSE = false;
+
     private static boolean isLogging = false;
 
     /**
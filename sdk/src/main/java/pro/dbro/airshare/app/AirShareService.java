@@ -8,22 +8,33 @@ import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import com.google.common.base.Objects;
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
-
-import java.util.ArrayDeque;
-import java.util.HashSet;
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
-
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import pro.dbro.airshare.content.ContentDeltas;
+import pro.dbro.airshare.content.ContentManifest;
+import pro.dbro.airshare.content.ContentOffers;
+import pro.dbro.airshare.content.ContentStore;
+import pro.dbro.airshare.content.ContentSwarm;
+import pro.dbro.airshare.content.MessageSender;
+import pro.dbro.airshare.content.SwarmDownload;
 import pro.dbro.airshare.crypto.KeyPair;
 import pro.dbro.airshare.crypto.SodiumShaker;
+import pro.dbro.airshare.metrics.SessionMetrics;
 import pro.dbro.airshare.session.DataTransferMessage;
 import pro.dbro.airshare.session.LocalPeer;
+import pro.dbro.airshare.session.OutboundQueue;
 import pro.dbro.airshare.session.Peer;
 import pro.dbro.airshare.session.SessionManager;
 import pro.dbro.airshare.session.SessionMessage;
@@ -58,15 +69,81 @@ public class AirShareService extends Service implements ActivityRecevingMessages
                                     int newTransportCode,
                                     @Nullable Exception exception);
 
+        /**
+         * Reports the progress of an {@link pro.dbro.airshare.app.IncomingTransfer} or
+         * {@link pro.dbro.airshare.app.OutgoingTransfer}. Updates are coalesced so that at most
+         * one is reported per transfer each progress interval. See
+         * {@link pro.dbro.airshare.app.AirShareService.ServiceBinder#setProgressUpdateIntervalMs(long)}
+         */
+        void onTransferProgress(@NonNull AirShareService.ServiceBinder binder,
+                                @NonNull Transfer transfer,
+                                @NonNull Peer peer,
+                                float progress);
+
+        /**
+         * Called when peer, last reported unwritable by
+         * {@link pro.dbro.airshare.app.AirShareService.ServiceBinder#isWritable(Peer)},
+         * has drained enough of its queue to accept more data
+         */
+        void onPeerWritable(@NonNull AirShareService.ServiceBinder binder,
+                            @NonNull Peer peer);
+
+        /**
+         * Called when a peer offers data via
+         * {@link pro.dbro.airshare.app.AirShareService.ServiceBinder#offer(byte[], Map, Peer)}.
+         * None of it is sent until accepted, in whole or in part, via
+         * {@link pro.dbro.airshare.app.IncomingTransfer#accept(int, int)}. Decline it via
+         * {@link pro.dbro.airshare.app.IncomingTransfer#reject()}. Offers unanswered within
+         * {@link #TRANSFER_TIMEOUT_MS} are abandoned
+         */
+        void onTransferOffered(@NonNull AirShareService.ServiceBinder binder,
+                               @NonNull IncomingTransfer transfer);
+
+        /**
+         * Called when the data accepted from an offer arrives, or with an exception if its sender
+         * cancels it. transfer is that reported to
+         * {@link #onTransferOffered(pro.dbro.airshare.app.AirShareService.ServiceBinder, IncomingTransfer)},
+         * identified by the offer id
+         */
+        void onOfferedDataReceived(@NonNull AirShareService.ServiceBinder binder,
+                                   @NonNull IncomingTransfer transfer,
+                                   @Nullable Exception exception);
+
     }
 
-    private SessionManager sessionManager;
+    /** Default minimum interval between progress updates for a single transfer */
+    public static final long DEFAULT_PROGRESS_UPDATE_INTERVAL_MS = 100;
+
+    /** Transfers making no progress for this long are dropped */
+    public static final long TRANSFER_TIMEOUT_MS = 5 * 60 * 1000;
+
+    private volatile SessionManager sessionManager;
     private Callback callback;
     private boolean activityRecevingMessages;
-    private BiMap<Peer, ArrayDeque<OutgoingTransfer>> outPeerTransfers = HashBiMap.create();
-    private BiMap<Peer, ArrayDeque<IncomingTransfer>> inPeerTransfers = HashBiMap.create();
-    private Set<IncomingMessageListener> incomingMessageListeners = new HashSet<>();
-    private Set<MessageDeliveryListener> messageDeliveryListeners = new HashSet<>();
+    private boolean encryptionEnabled;
+    private boolean signingEnabled;
+    private boolean stripingEnabled;
+    private boolean relayingEnabled;
+    private final long[] coalescingWindowsMs = new long[SessionMessage.Priority.values().length];
+    private volatile long maxQueuedBytes = SessionManager.DEFAULT_MAX_QUEUED_BYTES;
+    /** Bytes passed to send but not yet queued by the SessionManager, by recipient */
+    private final ConcurrentHashMap<Peer, AtomicLong> pendingBytes = new ConcurrentHashMap<>();
+    /** Peers reported unwritable to callback and awaiting onPeerWritable */
+    private final Set<Peer> unwritablePeers = Collections.newSetFromMap(new ConcurrentHashMap<Peer, Boolean>());
+    private volatile boolean deduplicationEnabled;
+    private volatile long progressUpdateIntervalMs = DEFAULT_PROGRESS_UPDATE_INTERVAL_MS;
+    /** In-progress transfers and their listeners, keyed by transfer id. Accessed only on backgroundLooper */
+    private final HashMap<String, OutgoingTransfer>        outgoingTransfers        = new HashMap<>();
+    private final HashMap<String, IncomingTransfer>        incomingTransfers        = new HashMap<>();
+    private final HashMap<String, IncomingMessageListener> incomingMessageListeners = new HashMap<>();
+    private final HashMap<String, MessageDeliveryListener> messageDeliveryListeners = new HashMap<>();
+    private boolean transferPrunePending;
+    /** Accessed only on backgroundLooper */
+    private ContentSwarm contentSwarm;
+    private ContentOffers contentOffers;
+    private ContentDeltas contentDeltas;
+    /** Messages to peers not connected, kept across service restarts */
+    private OutboundQueue outboundQueue;
 
     private ServiceBinder binder;
 
@@ -77,10 +154,12 @@ public class AirShareService extends Service implements ActivityRecevingMessages
     private LocalPeer localPeer;
 
     /** Handler Messages */
-    public static final int ADVERTISE     = 0;
-    public static final int SCAN          = 1;
-    public static final int SEND_MESSAGE  = 2;
-    public static final int SHUTDOWN      = 3;
+    public static final int ADVERTISE           = 0;
+    public static final int SCAN                = 1;
+    public static final int SEND_MESSAGE        = 2;
+    public static final int SHUTDOWN            = 3;
+    public static final int UPGRADE_TRANSPORT   = 4;
+    public static final int DOWNGRADE_TRANSPORT = 5;
 
     @Override
     public void onCreate() {
@@ -92,17 +171,37 @@ public class AirShareService extends Service implements ActivityRecevingMessages
         HandlerThread thread = new HandlerThread("AirShareService", android.os.Process.THREAD_PRIORITY_BACKGROUND);
         thread.start();
 
-        // Get the HandlerThread's Looper and use it for our Handler
+        // Get the HandlerThread's Looper and use it for our Handler.
+        // All session work, including transport events, runs on this Looper
         backgroundLooper = thread.getLooper();
         backgroundHandler = new BackgroundThreadHandler(backgroundLooper);
         foregroundHandler = new Handler(Looper.getMainLooper());
+
+        outboundQueue = new OutboundQueue(new File(getFilesDir(), "outbound"));
+
+        MessageSender contentMessageSender = new MessageSender() {
+            @Override
+            public void sendMessage(@NonNull DataTransferMessage message, @NonNull Peer recipient) {
+                if (sessionManager != null) sessionManager.sendMessage(message, recipient);
+            }
+        };
+        contentSwarm = new ContentSwarm(contentMessageSender);
+        contentOffers = new ContentOffers(new ContentStore(new File(getCacheDir(), "content"),
+                                                           ContentStore.DEFAULT_MAX_SIZE_BYTES),
+                                          contentMessageSender,
+                                          new ContentOfferListener());
+        contentDeltas = new ContentDeltas(new ContentStore(new File(getCacheDir(), "documents"),
+                                                           ContentStore.DEFAULT_MAX_SIZE_BYTES),
+                                          contentMessageSender,
+                                          new ContentDeltaListener());
     }
 
     @Override
     public void onDestroy() {
         Timber.d("Service destroyed");
-        sessionManager.stop();
+        if (sessionManager != null) sessionManager.stop();
         backgroundLooper.quit();
+        outboundQueue.close();
     }
 
     @Override
@@ -132,7 +231,16 @@ public class AirShareService extends Service implements ActivityRecevingMessages
 
             if (sessionManager != null) sessionManager.stop();
 
-            sessionManager = new SessionManager(AirShareService.this, serviceName, localPeer, AirShareService.this);
+            sessionManager = new SessionManager(AirShareService.this, serviceName, localPeer,
+                                                backgroundLooper, AirShareService.this);
+            sessionManager.setEncryptionEnabled(encryptionEnabled);
+            sessionManager.setSigningEnabled(signingEnabled);
+            sessionManager.setStripingEnabled(stripingEnabled);
+            sessionManager.setRelayingEnabled(relayingEnabled);
+            for (SessionMessage.Priority priority : SessionMessage.Priority.values())
+                sessionManager.setCoalescingWindowMs(priority, coalescingWindowsMs[priority.ordinal()]);
+            sessionManager.setMaxQueuedBytes(maxQueuedBytes);
+            sessionManager.setOutboundQueue(outboundQueue);
         }
 
         public LocalPeer getLocalPeer() {
@@ -140,23 +248,239 @@ public class AirShareService extends Service implements ActivityRecevingMessages
         }
 
         public void advertiseLocalUser() {
-            sessionManager.advertiseLocalPeer();
+            backgroundHandler.sendEmptyMessage(ADVERTISE);
         }
 
         public void scanForOtherUsers() {
-            sessionManager.scanForPeers();
+            backgroundHandler.sendEmptyMessage(SCAN);
         }
 
         public void stop() {
-            sessionManager.stop();
+            backgroundHandler.sendEmptyMessage(SHUTDOWN);
         }
 
         public void setCallback(Callback callback) {
             AirShareService.this.callback = callback;
         }
 
+        /**
+         * Set whether data sent via {@link #send(byte[], Peer)} is encrypted end-to-end
+         * with a key shared only with the recipient. Disabled by default.
+         *
+         * May be called before or after {@link #registerLocalUserWithService(String, String)}
+         */
+        public void setEncryptionEnabled(boolean enabled) {
+            encryptionEnabled = enabled;
+            if (sessionManager != null) sessionManager.setEncryptionEnabled(enabled);
+        }
+
+        /**
+         * Set whether data sent via {@link #send(byte[], Peer)} is signed so the recipient
+         * can verify it incrementally as it arrives. Disabled by default.
+         * Has no effect while encryption is enabled, which already authenticates data.
+         */
+        public void setSigningEnabled(boolean enabled) {
+            signingEnabled = enabled;
+            if (sessionManager != null) sessionManager.setSigningEnabled(enabled);
+        }
+
+        /**
+         * Set whether large data sent via {@link #send(byte[], Peer)} is split across every
+         * transport connected to the recipient, rather than sent over the fastest alone.
+         * Disabled by default.
+         */
+        public void setStripingEnabled(boolean enabled) {
+            stripingEnabled = enabled;
+            if (sessionManager != null) sessionManager.setStripingEnabled(enabled);
+        }
+
+        /**
+         * Set whether data sent via {@link #send(byte[], Peer)} to a peer out of range is relayed
+         * through connected peers, and whether this device relays data between other peers.
+         * Relayed data is neither encrypted nor signed. Disabled by default.
+         */
+        public void setRelayingEnabled(boolean enabled) {
+            relayingEnabled = enabled;
+            if (sessionManager != null) sessionManager.setRelayingEnabled(enabled);
+        }
+
+        /**
+         * Set how long small data sent via {@link #send(byte[], Peer, SessionMessage.Priority)}
+         * with priority may be held so that data sent soon after shares its transport writes,
+         * saving radio wakeups. Defaults to 0, sending immediately.
+         */
+        public void setCoalescingWindowMs(SessionMessage.Priority priority, long windowMs) {
+            coalescingWindowsMs[priority.ordinal()] = windowMs;
+            if (sessionManager != null) sessionManager.setCoalescingWindowMs(priority, windowMs);
+        }
+
+        /**
+         * Set how many bytes sent via {@link #send(byte[], Peer)} may await delivery to a single
+         * peer before {@link #isWritable(Peer)} reports false. Defaults to
+         * {@link pro.dbro.airshare.session.SessionManager#DEFAULT_MAX_QUEUED_BYTES}
+         */
+        public void setMaxQueuedBytes(long maxQueuedBytes) {
+            AirShareService.this.maxQueuedBytes = maxQueuedBytes;
+            if (sessionManager != null) sessionManager.setMaxQueuedBytes(maxQueuedBytes);
+        }
+
+        /**
+         * @return whether recipient can accept more data without exceeding the limit set by
+         * {@link #setMaxQueuedBytes(long)}. Data sent regardless is not dropped, but a producer
+         * sending in a loop should stop when this returns false and resume on
+         * {@link pro.dbro.airshare.app.AirShareService.Callback#onPeerWritable(ServiceBinder, Peer)},
+         * so that it is throttled to the speed of the link.
+         */
+        public boolean isWritable(Peer recipient) {
+            SessionManager sessionManager = AirShareService.this.sessionManager;
+            if (sessionManager == null) return false;
+
+            if (getPendingBytes(recipient) + sessionManager.getQueuedBytes(recipient) < maxQueuedBytes)
+                return true;
+
+            unwritablePeers.add(recipient);
+            return false;
+        }
+
+        /**
+         * Set the share of link capacity given to data sent to peer when several peers are
+         * sent data at once, relative to the weight of each other peer. Defaults to 1. Requires
+         * a registered local user
+         */
+        public void setPeerWeight(Peer peer, int weight) {
+            if (sessionManager != null) sessionManager.setPeerWeight(peer, weight);
+        }
+
+        /**
+         * Set whether data sent via {@link #send(byte[], Peer)} is first offered by its hash, so it
+         * is not sent to a recipient that already holds it, and whether received data is kept to
+         * answer such offers. Recipients must also enable deduplication. Disabled by default.
+         */
+        public void setDeduplicationEnabled(boolean enabled) {
+            deduplicationEnabled = enabled;
+        }
+
+        /**
+         * Set the minimum interval between reports to
+         * {@link pro.dbro.airshare.app.AirShareService.Callback#onTransferProgress(ServiceBinder, Transfer, Peer, float)}
+         * for a single transfer. Defaults to {@link #DEFAULT_PROGRESS_UPDATE_INTERVAL_MS}
+         */
+        public void setProgressUpdateIntervalMs(long intervalMs) {
+            progressUpdateIntervalMs = intervalMs;
+        }
+
+        /**
+         * Send data to recipient. Returns immediately. Serialization and delivery occur
+         * in the background. If recipient is not connected, data is kept, across service
+         * restarts, and sent when it next connects. Completion is reported via
+         * {@link pro.dbro.airshare.app.AirShareService.Callback#onDataSent(ServiceBinder, byte[], Peer, Exception)}
+         */
         public void send(byte[] data, Peer recipient) {
-            addOutgoingTransfer(new OutgoingTransfer(data, recipient, sessionManager));
+            send(data, recipient, SessionMessage.Priority.NORMAL);
+        }
+
+        /**
+         * Send data to recipient as with {@link #send(byte[], Peer)}, at priority. See
+         * {@link #setCoalescingWindowMs(SessionMessage.Priority, long)}
+         */
+        public void send(byte[] data, Peer recipient, SessionMessage.Priority priority) {
+            AtomicLong pending = pendingBytes.get(recipient);
+            if (pending == null) {
+                pendingBytes.putIfAbsent(recipient, new AtomicLong());
+                pending = pendingBytes.get(recipient);
+            }
+            pending.addAndGet(data.length);
+
+            backgroundHandler.obtainMessage(SEND_MESSAGE, priority.ordinal(), 0, new PendingSend(data, recipient))
+                             .sendToTarget();
+        }
+
+        /**
+         * Offer data to recipient, described by its length and extras, sending it only once
+         * recipient accepts it via
+         * {@link pro.dbro.airshare.app.AirShareService.Callback#onTransferOffered(ServiceBinder, IncomingTransfer)}.
+         * The part of data accepted is reported sent via
+         * {@link pro.dbro.airshare.app.AirShareService.Callback#onDataSent(ServiceBinder, byte[], Peer, Exception)},
+         * or data with a {@link java.util.concurrent.CancellationException} if rejected, or a
+         * {@link java.util.concurrent.TimeoutException} if unanswered within {@link #TRANSFER_TIMEOUT_MS}.
+         * Recipients must also run a version of AirShare supporting offers.
+         */
+        public void offer(final byte[] data, @Nullable final Map<String, Object> extras, final Peer recipient) {
+            backgroundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    contentOffers.offer(data, extras, recipient);
+                    scheduleTransferPrune();
+                }
+            });
+        }
+
+        /**
+         * Send data to recipient as the latest version of the document documentId. If recipient
+         * holds an earlier version of the document, only the parts of data that changed are sent.
+         * Completion is reported as with {@link #send(byte[], Peer)}. Recipients must also run a
+         * version of AirShare supporting document versions.
+         */
+        public void sendVersion(final byte[] data, final String documentId, final Peer recipient) {
+            backgroundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    contentDeltas.offer(documentId, data, recipient);
+                }
+            });
+        }
+
+        /**
+         * Serve data to any peer that requests it by its content hash. Several peers seeding
+         * the same data let a downloading peer fetch different parts from each at once.
+         *
+         * @return the content hash by which peers may download data via {@link #download(String, ContentSwarm.DownloadListener)}
+         */
+        public String seed(final byte[] data) {
+            final ContentManifest manifest = ContentManifest.fromContent(data, ContentManifest.DEFAULT_PIECE_SIZE_BYTES);
+            backgroundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    contentSwarm.seed(manifest, data);
+                }
+            });
+            return manifest.getContentHash();
+        }
+
+        public void stopSeeding(final String contentHash) {
+            backgroundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    contentSwarm.stopSeeding(contentHash);
+                }
+            });
+        }
+
+        /**
+         * Download the data with contentHash from every available peer seeding it. Peers that
+         * connect during the download are asked for it too. listener is notified on the main thread.
+         */
+        public void download(final String contentHash, final ContentSwarm.DownloadListener listener) {
+            backgroundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (sessionManager == null) {
+                        Timber.w("Cannot download %s. No local user registered", contentHash);
+                        return;
+                    }
+                    contentSwarm.download(contentHash, sessionManager.getAvailablePeers(),
+                                          new ForegroundDownloadListener(listener));
+                }
+            });
+        }
+
+        public void cancelDownload(final String contentHash) {
+            backgroundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    contentSwarm.cancelDownload(contentHash);
+                }
+            });
         }
 
         /**
@@ -186,7 +510,7 @@ public class AirShareService extends Service implements ActivityRecevingMessages
          * and should be downgraded as soon as possible via {@link #downgradeTransport()}
          */
         public void requestTransportUpgrade(Peer remotePeer) {
-            sessionManager.requestTransportUpgrade(remotePeer);
+            backgroundHandler.obtainMessage(UPGRADE_TRANSPORT, remotePeer).sendToTarget();
         }
 
         /**
@@ -194,7 +518,7 @@ public class AirShareService extends Service implements ActivityRecevingMessages
          * Currently this is {@link pro.dbro.airshare.transport.ble.BLETransport}
          */
         public void downgradeTransport() {
-            sessionManager.downgradeTransport();
+            backgroundHandler.sendEmptyMessage(DOWNGRADE_TRANSPORT);
         }
 
         /** Get the current preferred available transport for the given peer
@@ -208,6 +532,15 @@ public class AirShareService extends Service implements ActivityRecevingMessages
             return sessionManager.getTransportCodeForPeer(remotePeer);
         }
 
+        /**
+         * @return per-peer and per-transport throughput, latency and retry metrics,
+         * or null if no local user is registered. See
+         * {@link pro.dbro.airshare.metrics.SessionMetrics#getPeerMetrics(Peer)}
+         */
+        public @Nullable SessionMetrics getMetrics() {
+            return sessionManager != null ? sessionManager.getMetrics() : null;
+        }
+
         /**
          * Set by Activity bound to this Service. If isActive is false, this Service
          * should post incoming messages as Notifications.
@@ -226,28 +559,119 @@ public class AirShareService extends Service implements ActivityRecevingMessages
         }
     }
 
-    private void addIncomingTransfer(IncomingTransfer transfer) {
-        Peer recipient = transfer.getSender();
+    // <editor-fold desc="Backpressure">
+
+    private long getPendingBytes(Peer recipient) {
+        AtomicLong pending = pendingBytes.get(recipient);
+        return pending == null ? 0 : pending.get();
+    }
 
-        incomingMessageListeners.add(transfer);
-        messageDeliveryListeners.add(transfer);
+    /**
+     * Called on backgroundLooper once data passed to send is queued by the SessionManager.
+     * A recipient reported unwritable is reported writable here if its session queue has room,
+     * else the SessionManager reports it via {@link #peerWritable(Peer)} once drained
+     */
+    private void onSendQueued(byte[] data, Peer recipient) {
+        AtomicLong pending = pendingBytes.get(recipient);
+        if (pending != null) pending.addAndGet(-data.length);
 
-        if (!inPeerTransfers.containsKey(recipient))
-            inPeerTransfers.put(recipient, new ArrayDeque<IncomingTransfer>());
+        if (!unwritablePeers.contains(recipient) || getPendingBytes(recipient) > 0) return;
 
-        inPeerTransfers.get(recipient).add(transfer);
+        if (sessionManager != null && sessionManager.isWritable(recipient))
+            reportPeerWritable(recipient);
+    }
+
+    private void reportPeerWritable(final Peer peer) {
+        if (!unwritablePeers.remove(peer)) return;
+
+        foregroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (callback != null) callback.onPeerWritable(binder, peer);
+            }
+        });
+    }
+
+    // </editor-fold desc="Backpressure">
+
+    // <editor-fold desc="Transfer Registry">
+
+    private void addIncomingTransfer(IncomingTransfer transfer) {
+        String transferId = transfer.getTransferId();
+
+        incomingTransfers.put(transferId, transfer);
+        incomingMessageListeners.put(transferId, transfer);
+        messageDeliveryListeners.put(transferId, transfer);
+        scheduleTransferPrune();
     }
 
     private void addOutgoingTransfer(OutgoingTransfer transfer) {
-        Peer recipient = transfer.getRecipient();
+        String transferId = transfer.getTransferId();
+
+        outgoingTransfers.put(transferId, transfer);
+        incomingMessageListeners.put(transferId, transfer);
+        messageDeliveryListeners.put(transferId, transfer);
+        scheduleTransferPrune();
+    }
+
+    private void removeTransfer(String transferId) {
+        outgoingTransfers.remove(transferId);
+        incomingTransfers.remove(transferId);
+        incomingMessageListeners.remove(transferId);
+        messageDeliveryListeners.remove(transferId);
+    }
 
-        incomingMessageListeners.add(transfer);
-        messageDeliveryListeners.add(transfer);
+    private void scheduleTransferPrune() {
+        if (transferPrunePending) return;
 
-        if (!outPeerTransfers.containsKey(recipient))
-            outPeerTransfers.put(recipient, new ArrayDeque<OutgoingTransfer>());
+        transferPrunePending = true;
+        backgroundHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                pruneTransfers();
+            }
+        }, TRANSFER_TIMEOUT_MS);
+    }
+
+    /**
+     * Remove transfers making no progress, and offers unanswered, within {@link #TRANSFER_TIMEOUT_MS}
+     */
+    private void pruneTransfers() {
+        transferPrunePending = false;
+        long cutoffMs = SystemClock.uptimeMillis() - TRANSFER_TIMEOUT_MS;
 
-        outPeerTransfers.get(recipient).add(transfer);
+        pruneTransfers(outgoingTransfers.values().iterator(), cutoffMs);
+        pruneTransfers(incomingTransfers.values().iterator(), cutoffMs);
+        contentOffers.pruneOffers(cutoffMs);
+
+        if (outgoingTransfers.size() > 0 || incomingTransfers.size() > 0 || contentOffers.hasPendingOffers())
+            scheduleTransferPrune();
+    }
+
+    private void pruneTransfers(Iterator<? extends Transfer> transfers, long cutoffMs) {
+        while (transfers.hasNext()) {
+            Transfer transfer = transfers.next();
+            if (transfer.lastActivityMs < cutoffMs) {
+                Timber.w("Transfer %s timed out", transfer.getTransferId());
+                transfers.remove();
+                incomingMessageListeners.remove(transfer.getTransferId());
+                messageDeliveryListeners.remove(transfer.getTransferId());
+            }
+        }
+    }
+
+    // </editor-fold desc="Transfer Registry">
+
+    /** Data to send to recipient, carried by a {@link #SEND_MESSAGE} message */
+    private static final class PendingSend {
+
+        final byte[] data;
+        final Peer recipient;
+
+        PendingSend(byte[] data, Peer recipient) {
+            this.data      = data;
+            this.recipient = recipient;
+        }
     }
 
     /** Handler that processes Messages on a background thread */
@@ -258,56 +682,208 @@ public class AirShareService extends Service implements ActivityRecevingMessages
 
         @Override
         public void handleMessage(Message msg) {
-//            switch (msg.what) {
-//                case ADVERTISE:
-//                    Log.i(TAG, "handling connect");
-//                    sessionManager.advertiseLocalPeer();
-//                    break;
-//                case SEND_MESSAGEE:
-//                    mApp.sendPublicMessageFromPrimaryIdentity((String) msg.obj);
-//                    break;
-//                case SHUTDOWN:
-//                    Log.i(TAG, "handling shutdown");
-//                    mApp.makeUnavailable();
-//
-//                    // Stop the service using the startId, so that we don't stop
-//                    // the service in the middle of handling another job
-//                    stopSelf(msg.arg1);
-//                    break;
-//            }
-        }
-    }
-
-    private @Nullable IncomingTransfer getIncomingTransferForFileTransferMessage(SessionMessage transferMessage,
-                                                                                 Peer sender) {
-
-        IncomingTransfer incomingTransfer = null;
-        for (IncomingTransfer transfer : inPeerTransfers.get(sender)) {
-            if (transferMessage instanceof DataTransferMessage) {
-                // If we only target API 19+, we can move to the java.util.Objects.equals
-                if (Objects.equal(transfer.getTransferId(), transferMessage.getHeaders().get(SessionMessage.HEADER_ID)))
-                    incomingTransfer = transfer;
-            } else
-                throw new IllegalStateException("Only DataTransferMessage is supported!");
+            SessionManager sessionManager = AirShareService.this.sessionManager;
+
+            if (sessionManager == null) {
+                Timber.w("Ignoring request %d. No local user registered", msg.what);
+                return;
+            }
+
+            switch (msg.what) {
+                case ADVERTISE:
+                    sessionManager.advertiseLocalPeer();
+                    break;
+
+                case SCAN:
+                    sessionManager.scanForPeers();
+                    break;
+
+                case SEND_MESSAGE:
+                    PendingSend pendingSend = (PendingSend) msg.obj;
+
+                    if (deduplicationEnabled && pendingSend.data.length >= ContentOffers.MIN_OFFER_BYTES) {
+                        // The transfer is registered if the recipient wants the data
+                        contentOffers.offer(pendingSend.data, pendingSend.recipient);
+                        scheduleTransferPrune();
+                        onSendQueued(pendingSend.data, pendingSend.recipient);
+                        break;
+                    }
+                    // Register the transfer before any delivery callbacks, which also run on this Looper
+                    addOutgoingTransfer(new OutgoingTransfer(pendingSend.data,
+                                                             null,
+                                                             pendingSend.recipient,
+                                                             SessionMessage.Priority.values()[msg.arg1],
+                                                             sessionManager,
+                                                             backgroundHandler));
+                    onSendQueued(pendingSend.data, pendingSend.recipient);
+                    break;
+
+                case UPGRADE_TRANSPORT:
+                    sessionManager.requestTransportUpgrade((Peer) msg.obj);
+                    break;
+
+                case DOWNGRADE_TRANSPORT:
+                    sessionManager.downgradeTransport();
+                    break;
+
+                case SHUTDOWN:
+                    sessionManager.stop();
+                    break;
+            }
+        }
+    }
+
+    /** Sends or reports data according to the reply to its offer, and reports offers received */
+    private final class ContentOfferListener implements ContentOffers.Listener {
+
+        @Override
+        public void onOfferWanted(@NonNull byte[] content, @NonNull Map<String, Object> extras, @NonNull Peer recipient) {
+            if (sessionManager == null) return;
+            addOutgoingTransfer(new OutgoingTransfer(content, extras, recipient, SessionMessage.Priority.NORMAL,
+                                                     sessionManager, backgroundHandler));
+        }
+
+        @Override
+        public void onOfferHeld(@NonNull final byte[] content, @NonNull final Peer recipient) {
+            foregroundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (callback != null) callback.onDataSent(binder, content, recipient, null);
+                }
+            });
         }
 
-        return incomingTransfer;
+        @Override
+        public void onOfferDeclined(@NonNull final byte[] content, @NonNull final Peer recipient, @NonNull final Exception reason) {
+            foregroundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (callback != null) callback.onDataSent(binder, content, recipient, reason);
+                }
+            });
+        }
+
+        @Override
+        public void onTransferOffered(@NonNull DataTransferMessage offer, @NonNull Peer sender) {
+            final IncomingTransfer transfer = new IncomingTransfer(offer, sender, sessionManager, contentOffers,
+                                                                   backgroundHandler);
+            addIncomingTransfer(transfer);
+
+            foregroundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (callback != null)
+                        callback.onTransferOffered(binder, transfer);
+                    else
+                        transfer.reject();
+                }
+            });
+        }
+
+        @Override
+        public void onContentReceived(@NonNull final byte[] content, @Nullable String offerId, @NonNull final Peer sender) {
+            final IncomingTransfer transfer = offerId != null ? incomingTransfers.get(offerId) : null;
+            if (transfer != null) {
+                // The content accepted was read from the store rather than sent
+                transfer.onMessageComplete(DataTransferMessage.createOutgoing(null, content));
+                removeTransfer(offerId);
+                reportDataReceived(transfer, sender, null);
+                return;
+            }
+
+            foregroundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (callback != null) callback.onDataRecevied(binder, content, sender, null);
+                }
+            });
+        }
     }
 
-    private @Nullable OutgoingTransfer getOutgoingTransferForFileTransferMessage(SessionMessage transferMessage,
-                                                                                 Peer recipient) {
+    /** Sends or reports document versions according to the reply to their offer */
+    private final class ContentDeltaListener implements ContentDeltas.Listener {
 
-        OutgoingTransfer outgoingTransfer = null;
-        for (OutgoingTransfer transfer : outPeerTransfers.get(recipient)) {
-            if (transferMessage instanceof DataTransferMessage) {
-                // If we only target API 19+, we can move to the java.util.Objects.equals
-                if (Objects.equal(transfer.getTransferId(), transferMessage.getHeaders().get(SessionMessage.HEADER_ID)))
-                    outgoingTransfer = transfer;
-            } else
-                throw new IllegalStateException("Only DataTransferMessage is supported!");
+        @Override
+        public void onFullVersionRequired(@NonNull byte[] content, @NonNull Map<String, Object> extras, @NonNull Peer recipient) {
+            if (sessionManager == null) return;
+            addOutgoingTransfer(new OutgoingTransfer(content, extras, recipient, SessionMessage.Priority.NORMAL,
+                                                     sessionManager, backgroundHandler));
         }
 
-        return outgoingTransfer;
+        @Override
+        public void onDeltaApplied(@NonNull final byte[] content, @NonNull final Peer recipient) {
+            foregroundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (callback != null) callback.onDataSent(binder, content, recipient, null);
+                }
+            });
+        }
+
+        @Override
+        public void onVersionReceived(@NonNull final byte[] content, @NonNull String documentId, @NonNull final Peer sender) {
+            foregroundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (callback != null) callback.onDataRecevied(binder, content, sender, null);
+                }
+            });
+        }
+    }
+
+    /** Reports swarm download events on the main thread */
+    private final class ForegroundDownloadListener implements ContentSwarm.DownloadListener {
+
+        private final ContentSwarm.DownloadListener listener;
+
+        ForegroundDownloadListener(ContentSwarm.DownloadListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void onDownloadProgress(@NonNull final SwarmDownload download, final float progress) {
+            foregroundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onDownloadProgress(download, progress);
+                }
+            });
+        }
+
+        @Override
+        public void onDownloadComplete(@NonNull final SwarmDownload download, @NonNull final byte[] content) {
+            foregroundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onDownloadComplete(download, content);
+                }
+            });
+        }
+    }
+
+    /**
+     * Post the latest progress of transfer to the foreground callback. If an update for transfer
+     * is already pending, it will report this progress instead, so no more than one update is
+     * posted per {@link #progressUpdateIntervalMs}
+     */
+    private void postTransferProgress(final Transfer transfer, final Peer peer, float progress) {
+        transfer.setProgress(progress);
+
+        if (!transfer.progressUpdatePending.compareAndSet(false, true)) return;
+
+        long delayMs = Math.max(0, transfer.lastProgressUpdateMs + progressUpdateIntervalMs -
+                                   SystemClock.uptimeMillis());
+
+        foregroundHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                transfer.lastProgressUpdateMs = SystemClock.uptimeMillis();
+                transfer.progressUpdatePending.set(false);
+
+                if (callback != null)
+                    callback.onTransferProgress(binder, transfer, peer, transfer.getProgress());
+            }
+        }, delayMs);
     }
 
     // <editor-fold desc="SessionManagerCallback">
@@ -315,6 +891,15 @@ public class AirShareService extends Service implements ActivityRecevingMessages
     @Override
     public void peerStatusUpdated(final Peer peer, final Transport.ConnectionStatus newStatus, final boolean isHost) {
 
+        if (newStatus == Transport.ConnectionStatus.CONNECTED)
+            contentSwarm.onPeerConnected(peer);
+        else if (newStatus == Transport.ConnectionStatus.DISCONNECTED) {
+            contentSwarm.onPeerDisconnected(peer);
+            contentOffers.onPeerDisconnected(peer);
+            contentDeltas.onPeerDisconnected(peer);
+            unwritablePeers.remove(peer);
+        }
+
         foregroundHandler.post(new Runnable() {
             @Override
             public void run() {
@@ -328,70 +913,178 @@ public class AirShareService extends Service implements ActivityRecevingMessages
     }
 
     @Override
-    public void messageReceivingFromPeer(@NonNull SessionMessage message, @NonNull final Peer recipient, final float progress) {
-        // currently unused
+    public void messageReceivingFromPeer(@NonNull SessionMessage message, @NonNull final Peer sender, final float progress) {
+        if (!(message instanceof DataTransferMessage) ||
+            ContentSwarm.isSwarmMessage(message) ||
+            ContentOffers.isOfferMessage(message) ||
+            ContentDeltas.isDeltaMessage(message)) return;
+
+        IncomingTransfer incomingTransfer = incomingTransfers.get(getIncomingTransferId(message));
+        if (incomingTransfer != null)
+            incomingTransfer.onMessageReceiving((DataTransferMessage) message);
+        else {
+            incomingTransfer = new IncomingTransfer((DataTransferMessage) message, sender, sessionManager,
+                                                    backgroundHandler, false);
+            addIncomingTransfer(incomingTransfer);
+        }
+
+        postTransferProgress(incomingTransfer, sender, progress);
     }
 
     @Override
-    public void messageReceivedFromPeer(@NonNull SessionMessage message, @NonNull final Peer sender) {
+    public void messageReceivedFromPeer(@NonNull SessionMessage message, @NonNull final Peer sender, @Nullable Exception exception) {
+        if (exception != null) {
+            reportReceiveFailed(message, sender, exception);
+            return;
+        }
+
         Timber.d("Got %s message from %s", message.getType(), sender.getAlias());
-        Iterator<IncomingMessageListener> iterator = incomingMessageListeners.iterator();
-        IncomingMessageListener listener;
 
-        while (iterator.hasNext()) {
-            listener = iterator.next();
+        if (message instanceof DataTransferMessage && ContentSwarm.isSwarmMessage(message)) {
+            contentSwarm.onMessageReceived((DataTransferMessage) message, sender);
+            return;
+        }
 
-            if (!listener.onMessageReceived(message, sender))
-                iterator.remove();
+        if (message instanceof DataTransferMessage && ContentOffers.isOfferMessage(message)) {
+            contentOffers.onMessageReceived((DataTransferMessage) message, sender);
+            return;
+        }
 
+        if (message instanceof DataTransferMessage && ContentDeltas.isDeltaMessage(message)) {
+            contentDeltas.onMessageReceived((DataTransferMessage) message, sender);
+            return;
         }
 
+        String transferId = getIncomingTransferId(message);
+
+        IncomingMessageListener listener = incomingMessageListeners.get(transferId);
+        if (listener != null && !listener.onMessageReceived(message, sender))
+            incomingMessageListeners.remove(transferId);
+
         final IncomingTransfer incomingTransfer;
         if(message.getType().equals(DataTransferMessage.HEADER_TYPE)) {
 
-            incomingTransfer = new IncomingTransfer((DataTransferMessage) message, sender);
+            IncomingTransfer partialTransfer = incomingTransfers.get(transferId);
+            if (partialTransfer != null) {
+                // Transfer was registered to report progress
+                partialTransfer.onMessageComplete((DataTransferMessage) message);
+                removeTransfer(transferId);
+                incomingTransfer = partialTransfer;
+            } else
+                incomingTransfer = new IncomingTransfer((DataTransferMessage) message, sender);
+
+            byte[] body = incomingTransfer.getBodyBytes();
+            if (deduplicationEnabled && body != null)
+                contentOffers.onContentReceived(body);
+
+            String documentId = ContentDeltas.getDocumentId(message);
+            if (documentId != null && body != null)
+                contentDeltas.onVersionReceived(documentId, body);
             // No action is required for DataTransferMessage. Report complete
-            foregroundHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    if (callback != null)
-                        callback.onDataRecevied(binder, incomingTransfer.getBodyBytes(), sender, null);
-                }
-            });
+            reportDataReceived(incomingTransfer, sender, null);
         }
     }
 
+    /**
+     * Discard the transfer of message, whose body could not be decoded, and report it failed
+     */
+    private void reportReceiveFailed(SessionMessage message, Peer sender, Exception exception) {
+        Timber.w("Failed to receive %s message from %s: %s", message.getType(), sender.getAlias(), exception.getMessage());
+
+        if (!(message instanceof DataTransferMessage) ||
+            ContentSwarm.isSwarmMessage(message) ||
+            ContentOffers.isOfferMessage(message) ||
+            ContentDeltas.isDeltaMessage(message)) return;
+
+        String transferId = getIncomingTransferId(message);
+        IncomingTransfer incomingTransfer = incomingTransfers.get(transferId);
+        if (incomingTransfer != null)
+            removeTransfer(transferId);
+        else
+            incomingTransfer = new IncomingTransfer((DataTransferMessage) message, sender, null, null, false);
+
+        reportDataReceived(incomingTransfer, sender, exception);
+    }
+
+    /**
+     * Report incomingTransfer complete, or failed with exception, to the callback for data
+     * offered if it was offered
+     */
+    private void reportDataReceived(final IncomingTransfer incomingTransfer,
+                                    final Peer sender,
+                                    @Nullable final Exception exception) {
+        foregroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (callback == null) return;
+
+                if (incomingTransfer.isOffer())
+                    callback.onOfferedDataReceived(binder, incomingTransfer, exception);
+                else
+                    callback.onDataRecevied(binder, incomingTransfer.getBodyBytes(), sender, exception);
+            }
+        });
+    }
+
     @Override
     public void messageSendingToPeer(@NonNull SessionMessage message, @NonNull Peer recipient, float progress) {
-        // currently unused
+        if (!(message instanceof DataTransferMessage)) return;
+
+        OutgoingTransfer outgoingTransfer = outgoingTransfers.get(getTransferId(message));
+        if (outgoingTransfer != null)
+            postTransferProgress(outgoingTransfer, recipient, progress);
     }
 
     @Override
-    public void messageSentToPeer(@NonNull SessionMessage message, @NonNull final Peer recipient, Exception exception) {
+    public void messageSentToPeer(@NonNull SessionMessage message, @NonNull final Peer recipient, final Exception exception) {
         Timber.d("Sent %s to %s", message.getType(), recipient.getAlias());
-        Iterator<MessageDeliveryListener> iterator = messageDeliveryListeners.iterator();
-        MessageDeliveryListener listener;
+        String transferId = getTransferId(message);
 
-        while (iterator.hasNext()) {
-            listener = iterator.next();
+        final OutgoingTransfer outgoingTransfer = outgoingTransfers.get(transferId);
 
-            if (!listener.onMessageDelivered(message, recipient, exception))
-                iterator.remove();
-        }
+        MessageDeliveryListener listener = messageDeliveryListeners.get(transferId);
+        if (listener != null && !listener.onMessageDelivered(message, recipient, exception))
+            messageDeliveryListeners.remove(transferId);
+
+        if (outgoingTransfer != null && (outgoingTransfer.isComplete() || exception != null))
+            removeTransfer(transferId);
 
-        final OutgoingTransfer outgoingTransfer;
-        if (message.getType().equals(DataTransferMessage.HEADER_TYPE)) {
-            outgoingTransfer = getOutgoingTransferForFileTransferMessage(message, recipient);
+        if (outgoingTransfer != null && message.getType().equals(DataTransferMessage.HEADER_TYPE)) {
             // No action is required for DataTransferMessage. Report complete
             foregroundHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    if (callback != null) callback.onDataSent(binder, outgoingTransfer.getBodyBytes(), recipient, null);
+                    if (callback != null) callback.onDataSent(binder, outgoingTransfer.getBodyBytes(), recipient, exception);
                 }
             });
         }
     }
 
+    @Override
+    public void messageResumingToPeer(@NonNull DataTransferMessage message, @NonNull Peer recipient) {
+        if (ContentSwarm.isSwarmMessage(message) ||
+            ContentOffers.isOfferMessage(message) ||
+            ContentDeltas.isDeltaMessage(message)) return;
+
+        // Queued by an earlier run of this service, or its transfer was pruned while waiting
+        if (!outgoingTransfers.containsKey(getTransferId(message)))
+            addOutgoingTransfer(new OutgoingTransfer(message, recipient, sessionManager, backgroundHandler));
+    }
+
+    @Override
+    public void messageCancelledByPeer(@NonNull SessionMessage message, @NonNull final Peer sender) {
+        Timber.d("%s cancelled %s", sender.getAlias(), message.getType());
+        String transferId = getIncomingTransferId(message);
+
+        IncomingTransfer incomingTransfer = incomingTransfers.get(transferId);
+        if (incomingTransfer == null) return;
+
+        removeTransfer(transferId);
+        incomingTransfer.onCancelled();
+
+        reportDataReceived(incomingTransfer, sender, new CancellationException("Transfer cancelled by sender"));
+    }
+
     @Override
     public void peerTransportUpdated(@NonNull final Peer peer, final int newTransportCode, @Nullable final Exception exception) {
         foregroundHandler.post(new Runnable() {
@@ -402,5 +1095,23 @@ public class AirShareService extends Service implements ActivityRecevingMessages
         });
     }
 
+    @Override
+    public void peerWritable(@NonNull Peer peer) {
+        reportPeerWritable(peer);
+    }
+
     // </editor-fold desc="SessionManagerCallback">
+
+    private static String getTransferId(SessionMessage message) {
+        return (String) message.getHeaders().get(SessionMessage.HEADER_ID);
+    }
+
+    /**
+     * @return the id of the transfer of which incoming message is the data, which is the offer
+     * id if the data was offered. See {@link pro.dbro.airshare.app.IncomingTransfer#getTransferId()}
+     */
+    private static String getIncomingTransferId(SessionMessage message) {
+        String offerId = ContentOffers.getOfferId(message);
+        return offerId != null ? offerId : getTransferId(message);
+    }
 }
\ No newline at end of file
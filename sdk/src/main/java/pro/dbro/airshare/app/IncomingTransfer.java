@@ -1,42 +1,216 @@
 package pro.dbro.airshare.app;
 
+import android.os.Handler;
+import android.support.annotation.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import pro.dbro.airshare.content.ContentOffers;
+import pro.dbro.airshare.session.CancelMessage;
 import pro.dbro.airshare.session.DataTransferMessage;
 import pro.dbro.airshare.session.Peer;
 import pro.dbro.airshare.session.SessionMessage;
+import pro.dbro.airshare.session.SessionMessageScheduler;
 
 /**
  * Facilitates responding to incoming transfer requests that require user acceptance to proceed.
  *
- * 1. Constructed with a complete DataTransferMessage
+ * 1. Constructed with a complete DataTransferMessage, or with a partially received
+ *    DataTransferMessage to report progress, followed by {@link #onMessageComplete(DataTransferMessage)}
+ * 2. Or constructed with an offer, which the sender sends only once accepted via
+ *    {@link #accept(int, int)}. The transfer is then identified by the offer id, as is the data
+ *    sent for it
  *
  * Created by davidbrodsky on 3/13/15.
  */
 public class IncomingTransfer extends Transfer implements IncomingMessageListener, MessageDeliveryListener {
 
     private Peer sender;
+    private SessionMessageScheduler messageSender;
+    private Handler messageHandler;
+    private ContentOffers offers;
+    private String offerId;
+    private int offeredLengthBytes;
+    private Map<String, Object> offeredExtras;
+    private volatile boolean complete;
+    private final AtomicBoolean answered        = new AtomicBoolean();
+    private final AtomicBoolean cancelRequested = new AtomicBoolean();
 
     // <editor-fold desc="Incoming Constructors">
 
     public IncomingTransfer(DataTransferMessage dataMessage, Peer sender) {
+        this(dataMessage, sender, null, null, true);
+    }
+
+    /**
+     * @param messageSender used to ask sender to stop, or null if the transfer cannot be cancelled
+     * @param messageHandler handler of the thread on which messageSender must be used
+     */
+    IncomingTransfer(DataTransferMessage dataMessage,
+                     Peer sender,
+                     @Nullable SessionMessageScheduler messageSender,
+                     @Nullable Handler messageHandler,
+                     boolean complete) {
 
         this.sender = sender;
+        this.messageSender = messageSender;
+        this.messageHandler = messageHandler;
+        this.complete = complete;
         transferMessage = dataMessage;
+        // Data sent for an offer is identified by the offer, which was answered to send it
+        offerId = ContentOffers.getOfferId(dataMessage);
+        answered.set(true);
+    }
+
+    /**
+     * @param offer a message reported by {@link ContentOffers.Listener#onTransferOffered(DataTransferMessage, Peer)}
+     * @param offers used to answer offer on the thread of messageHandler
+     */
+    IncomingTransfer(DataTransferMessage offer,
+                     Peer sender,
+                     SessionMessageScheduler messageSender,
+                     ContentOffers offers,
+                     Handler messageHandler) {
+
+        this(offer, sender, messageSender, messageHandler, false);
+        this.offers = offers;
+        offeredLengthBytes = ContentOffers.getOfferedLength(offer);
+        offeredExtras      = ContentOffers.getOfferedExtras(offer);
+        answered.set(false);
     }
 
     // </editor-fold desc="Incoming Constructors">
 
     public String getTransferId() {
+        return offerId != null ? offerId : getMessageId();
+    }
+
+    private String getMessageId() {
         return (String) transferMessage.getHeaders().get(SessionMessage.HEADER_ID);
     }
 
+    /**
+     * @return whether this transfer was offered by its sender, and so is sent only once accepted
+     */
+    public boolean isOffer() {
+        return offerId != null;
+    }
+
+    /**
+     * @return the length of the data offered, or -1 if unknown or this transfer was not offered
+     */
+    public int getOfferedLengthBytes() {
+        return offers != null ? offeredLengthBytes : -1;
+    }
+
+    /**
+     * Accept all the data offered. See {@link #accept(int, int)}
+     */
+    public boolean accept() {
+        return accept(0, Math.max(0, offeredLengthBytes));
+    }
+
+    /**
+     * Ask the sender of an offer to send lengthBytes of the data offered, beginning at offset.
+     * Its arrival is reported via
+     * {@link pro.dbro.airshare.app.AirShareService.Callback#onOfferedDataReceived(AirShareService.ServiceBinder, IncomingTransfer, Exception)}
+     *
+     * @return false if this transfer was not offered, or the offer was already answered
+     */
+    public boolean accept(final int offset, final int lengthBytes) {
+        if (offers == null || answered.get()) return false;
+
+        if (offset < 0 || lengthBytes < 0 || offset + lengthBytes > offeredLengthBytes)
+            throw new IllegalArgumentException("Range is outside the offered data");
+
+        if (!answered.compareAndSet(false, true)) return false;
+
+        messageHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                offers.accept(sender, offerId, offset, lengthBytes);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Decline an offer. None of its data is sent
+     *
+     * @return false if this transfer was not offered, or the offer was already answered
+     */
+    public boolean reject() {
+        if (offers == null || !answered.compareAndSet(false, true)) return false;
+
+        messageHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                offers.reject(sender, offerId);
+                onCancelled();
+            }
+        });
+        return true;
+    }
+
     public Peer getSender() {
         return sender;
     }
 
     public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Ask sender to stop sending this transfer. The part received is discarded once it does.
+     * The request is sent on the thread of messageHandler, after which {@link #isCancelled()}
+     * is true unless the transfer completed first. An offer not yet answered is rejected
+     */
+    @Override
+    public boolean cancel() {
+        if (offers != null && !answered.get()) return reject();
+
+        if (complete || messageSender == null || !cancelRequested.compareAndSet(false, true))
+            return false;
+
+        messageHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (complete) return;
+
+                messageSender.sendMessage(new CancelMessage(getMessageId()), sender);
+                onCancelled();
+            }
+        });
         return true;
     }
 
+    /**
+     * @return the extras the data was offered with, if offered, else those it was sent with
+     */
+    @Override
+    public @Nullable Map<String, Object> getHeaderExtras() {
+        return offers != null ? offeredExtras : super.getHeaderExtras();
+    }
+
+    @Override
+    public @Nullable byte[] getBodyBytes() {
+        if (!complete) return null;
+        return super.getBodyBytes();
+    }
+
+    /**
+     * Called when data sent for an offer begins to arrive
+     */
+    void onMessageReceiving(DataTransferMessage partialMessage) {
+        transferMessage = partialMessage;
+    }
+
+    void onMessageComplete(DataTransferMessage completeMessage) {
+        transferMessage = completeMessage;
+        complete = true;
+    }
+
     // <editor-fold desc="IncomingMessageInterceptor">
 
     @Override
@@ -1,5 +1,11 @@
 package pro.dbro.airshare.app;
 
+import android.os.Handler;
+import android.support.annotation.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import pro.dbro.airshare.session.DataTransferMessage;
 import pro.dbro.airshare.session.Peer;
 import pro.dbro.airshare.session.SessionMessage;
@@ -8,7 +14,7 @@ import pro.dbro.airshare.session.SessionMessageScheduler;
 /**
  * An OutgoingTransfer wraps an outgoing data transfer.
  *
- * 1. Constructed with a byte[]
+ * 1. Constructed with a byte[], or with a queued DataTransferMessage to track its delivery
  * 2. Sends a DataTransferMessage
  *
  * Created by davidbrodsky on 3/13/15.
@@ -26,7 +32,9 @@ public class OutgoingTransfer extends Transfer implements IncomingMessageListene
 
     private Peer recipient;
     private SessionMessageScheduler messageSender;
-    private State state;
+    private Handler messageHandler;
+    private volatile State state;
+    private final AtomicBoolean cancelRequested = new AtomicBoolean();
 
     // <editor-fold desc="Outgoing Constructors">
 
@@ -34,20 +42,66 @@ public class OutgoingTransfer extends Transfer implements IncomingMessageListene
                             Peer recipient,
                             SessionMessageScheduler messageSender) {
 
-        init(recipient, messageSender);
+        this(data, null, recipient, messageSender);
+    }
+
+    public OutgoingTransfer(byte[] data,
+                            @Nullable Map<String, Object> extras,
+                            Peer recipient,
+                            SessionMessageScheduler messageSender) {
+
+        this(data, extras, recipient, SessionMessage.Priority.NORMAL, messageSender);
+    }
+
+    public OutgoingTransfer(byte[] data,
+                            @Nullable Map<String, Object> extras,
+                            Peer recipient,
+                            SessionMessage.Priority priority,
+                            SessionMessageScheduler messageSender) {
+
+        this(data, extras, recipient, priority, messageSender, null);
+    }
 
-        transferMessage = DataTransferMessage.createOutgoing(null, data);
+    /**
+     * @param messageHandler handler of the thread on which messageSender must be used, or null
+     *                       to use it on the thread calling {@link #cancel()}
+     */
+    OutgoingTransfer(byte[] data,
+                     @Nullable Map<String, Object> extras,
+                     Peer recipient,
+                     SessionMessage.Priority priority,
+                     SessionMessageScheduler messageSender,
+                     @Nullable Handler messageHandler) {
+
+        init(recipient, messageSender, messageHandler);
+
+        transferMessage = DataTransferMessage.createOutgoing(extras, data);
+        transferMessage.setPriority(priority);
         messageSender.sendMessage(transferMessage, recipient);
 
         state = State.AWAITING_DATA_ACK;
     }
 
+    /**
+     * Track delivery of message, which messageSender already holds for recipient
+     */
+    OutgoingTransfer(DataTransferMessage message,
+                     Peer recipient,
+                     SessionMessageScheduler messageSender,
+                     @Nullable Handler messageHandler) {
+
+        init(recipient, messageSender, messageHandler);
+
+        transferMessage = message;
+        state = State.AWAITING_DATA_ACK;
+    }
 
     // </editor-fold desc="Outgoing Constructors">
 
-    private void init(Peer recipient, SessionMessageScheduler sender) {
+    private void init(Peer recipient, SessionMessageScheduler sender, @Nullable Handler handler) {
         this.recipient = recipient;
         this.messageSender = sender;
+        this.messageHandler = handler;
     }
 
     public String getTransferId() {
@@ -59,6 +113,38 @@ public class OutgoingTransfer extends Transfer implements IncomingMessageListene
         return recipient;
     }
 
+    /**
+     * Stop sending this transfer. If a messageHandler was given, the request is made on its
+     * thread, after which {@link #isCancelled()} is true unless the transfer completed first
+     *
+     * @return whether cancellation was requested, or if made synchronously, whether it succeeded
+     */
+    @Override
+    public boolean cancel() {
+        if (isComplete() || isCancelled()) return false;
+
+        if (messageHandler == null) return cancelMessage();
+
+        if (!cancelRequested.compareAndSet(false, true)) return false;
+
+        messageHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                cancelMessage();
+            }
+        });
+        return true;
+    }
+
+    private boolean cancelMessage() {
+        if (isComplete() || !messageSender.cancelMessage(transferMessage, recipient)) return false;
+
+        onCancelled();
+        return true;
+    }
+
+    // <editor-fold desc="IncomingMessageInterceptor">
+
     @Override
     public boolean onMessageReceived(SessionMessage message, Peer recipient) {
         return false;
@@ -71,9 +157,12 @@ public class OutgoingTransfer extends Transfer implements IncomingMessageListene
     @Override
     public boolean onMessageDelivered(SessionMessage message, Peer recipient, Exception exception) {
 
-        if (state == State.AWAITING_DATA_ACK && transferMessage != null && message.equals(transferMessage)) {
+        // Compare ids as the delivered message may be an encoded copy of transferMessage
+        if (state == State.AWAITING_DATA_ACK && transferMessage != null &&
+            getTransferId().equals(message.getHeaders().get(SessionMessage.HEADER_ID))) {
 
-            state = State.COMPLETE;
+            // A cancelled transfer is reported with an exception, and never completes
+            if (exception == null) state = State.COMPLETE;
             return false;
         }
 
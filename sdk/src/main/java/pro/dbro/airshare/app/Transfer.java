@@ -1,10 +1,12 @@
 package pro.dbro.airshare.app;
 
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import pro.dbro.airshare.session.DataTransferMessage;
 import pro.dbro.airshare.session.SessionMessage;
@@ -16,8 +18,49 @@ public abstract class Transfer {
 
     protected SessionMessage transferMessage;
 
+    private volatile float progress;
+    private volatile boolean cancelled;
+
+    /** Coalesces progress updates posted by {@link pro.dbro.airshare.app.AirShareService} */
+    final AtomicBoolean progressUpdatePending = new AtomicBoolean();
+    volatile long lastProgressUpdateMs;
+
+    /** Time of the last progress reported, used to expire stalled transfers */
+    volatile long lastActivityMs = SystemClock.uptimeMillis();
+
+    public abstract String getTransferId();
+
     public abstract boolean isComplete();
 
+    /**
+     * Stop the transfer. Chunks not yet sent are dropped, and the other peer discards the part
+     * of the transfer it holds. Completion is then reported with a
+     * {@link java.util.concurrent.CancellationException}
+     *
+     * @return whether the transfer was cancelled, false if it had already completed
+     */
+    public abstract boolean cancel();
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    void onCancelled() {
+        cancelled = true;
+    }
+
+    /**
+     * @return the fraction of the transfer body delivered, between 0 and 1
+     */
+    public float getProgress() {
+        return isComplete() ? 1 : progress;
+    }
+
+    void setProgress(float progress) {
+        this.progress = progress;
+        lastActivityMs = SystemClock.uptimeMillis();
+    }
+
     public @Nullable InputStream getBody() {
         if (transferMessage instanceof DataTransferMessage)
             return new ByteArrayInputStream(getBodyBytes());
@@ -40,6 +83,6 @@ public abstract class Transfer {
     public @Nullable Map<String, Object> getHeaderExtras() {
         if (transferMessage == null || !(transferMessage instanceof DataTransferMessage))
             return null;
-        return (Map<String, Object>) transferMessage.getHeaders().get(DataTransferMessage.HEADER_EXTRA);
+        return DataTransferMessage.getExtras(transferMessage);
     }
 }
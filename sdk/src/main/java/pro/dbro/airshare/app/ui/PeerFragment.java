@@ -15,6 +15,8 @@ import java.util.ArrayList;
 
 import pro.dbro.airshare.R;
 import pro.dbro.airshare.app.AirShareService;
+import pro.dbro.airshare.app.IncomingTransfer;
+import pro.dbro.airshare.app.Transfer;
 import pro.dbro.airshare.app.adapter.PeerAdapter;
 import pro.dbro.airshare.session.Peer;
 import pro.dbro.airshare.transport.Transport;
@@ -259,6 +261,27 @@ public class PeerFragment extends AirShareFragment implements AirShareService.Ca
         // do nothing for now
     }
 
+    @Override
+    public void onTransferProgress(@NonNull AirShareService.ServiceBinder binder, @NonNull Transfer transfer, @NonNull Peer peer, float progress) {
+        // do nothing for now
+    }
+
+    @Override
+    public void onPeerWritable(@NonNull AirShareService.ServiceBinder binder, @NonNull Peer peer) {
+        // do nothing for now
+    }
+
+    @Override
+    public void onTransferOffered(@NonNull AirShareService.ServiceBinder binder, @NonNull IncomingTransfer transfer) {
+        // The selected peer was chosen by the user, so accept what it offers
+        transfer.accept();
+    }
+
+    @Override
+    public void onOfferedDataReceived(@NonNull AirShareService.ServiceBinder binder, @NonNull IncomingTransfer transfer, @Nullable Exception exception) {
+        onDataRecevied(binder, transfer.getBodyBytes(), transfer.getSender(), exception);
+    }
+
     @Override
     public void onServiceReady(@NonNull AirShareService.ServiceBinder serviceBinder) {
         this.serviceBinder = serviceBinder;
@@ -0,0 +1,156 @@
+package pro.dbro.airshare.content;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The {@link pro.dbro.airshare.content.RollingChecksum} and a strong hash of each fixed size
+ * block of a prior version of content. A peer holding the prior version sends these to a peer
+ * with a newer version, which then need only send the bytes not found in any block.
+ */
+public class BlockSignatures {
+
+    public static final int MIN_BLOCK_SIZE_BYTES = 256;
+    public static final int MAX_BLOCK_SIZE_BYTES = 16 * 1024;
+
+    /** Keys of the signatures within {@link pro.dbro.airshare.session.DataTransferMessage#HEADER_EXTRA} */
+    public static final String EXTRA_BLOCK_SIZE      = "block-size";
+    public static final String EXTRA_BLOCK_CHECKSUMS = "block-checksums";
+    public static final String EXTRA_BLOCK_HASHES    = "block-hashes";
+
+    /** Bytes of each block's SHA-256 kept as its strong hash. The whole result is verified separately */
+    private static final int STRONG_HASH_BYTES = 8;
+
+    private static final HashFunction HASH_FUNCTION = Hashing.sha256();
+
+    private final int           blockSizeBytes;
+    private final List<Integer> checksums;
+    private final List<String>  hashes;
+
+    /** Checksum -> Indexes of blocks with that checksum */
+    private final HashMap<Integer, List<Integer>> blocksByChecksum = new HashMap<>();
+
+    /**
+     * Create signatures of basis, with a block size suited to its length
+     */
+    public static BlockSignatures fromContent(@NonNull byte[] basis) {
+        return fromContent(basis, getBlockSizeBytes(basis.length));
+    }
+
+    public static BlockSignatures fromContent(@NonNull byte[] basis, int blockSizeBytes) {
+        if (blockSizeBytes <= 0)
+            throw new IllegalArgumentException("blockSizeBytes must be positive");
+
+        int blockCount = basis.length / blockSizeBytes; // A trailing partial block is never matched
+        ArrayList<Integer> checksums = new ArrayList<>(blockCount);
+        ArrayList<String>  hashes    = new ArrayList<>(blockCount);
+
+        for (int block = 0; block < blockCount; block++) {
+            int offset = block * blockSizeBytes;
+            checksums.add(RollingChecksum.of(basis, offset, blockSizeBytes));
+            hashes.add(strongHash(basis, offset, blockSizeBytes));
+        }
+        return new BlockSignatures(blockSizeBytes, checksums, hashes);
+    }
+
+    /**
+     * @return the signatures described by extras, or null if extras do not describe valid signatures
+     */
+    public static @Nullable BlockSignatures fromExtras(@Nullable Map<String, Object> extras) {
+        if (extras == null ||
+            !(extras.get(EXTRA_BLOCK_SIZE)      instanceof Integer) ||
+            !(extras.get(EXTRA_BLOCK_CHECKSUMS) instanceof List)    ||
+            !(extras.get(EXTRA_BLOCK_HASHES)    instanceof List))
+            return null;
+
+        int blockSizeBytes = (int) extras.get(EXTRA_BLOCK_SIZE);
+        List<?> checksumValues = (List<?>) extras.get(EXTRA_BLOCK_CHECKSUMS);
+        List<?> hashValues     = (List<?>) extras.get(EXTRA_BLOCK_HASHES);
+
+        if (blockSizeBytes <= 0 || checksumValues.size() != hashValues.size()) return null;
+
+        ArrayList<Integer> checksums = new ArrayList<>(checksumValues.size());
+        ArrayList<String>  hashes    = new ArrayList<>(hashValues.size());
+        for (int block = 0; block < checksumValues.size(); block++) {
+            Object checksum = checksumValues.get(block);
+            Object hash     = hashValues.get(block);
+            if (!(checksum instanceof Integer) || !(hash instanceof String)) return null;
+
+            checksums.add((Integer) checksum);
+            hashes.add((String) hash);
+        }
+        return new BlockSignatures(blockSizeBytes, checksums, hashes);
+    }
+
+    /**
+     * @return a block size near the square root of lengthBytes, which balances the size of the
+     * signatures against the bytes resent around each change
+     */
+    public static int getBlockSizeBytes(int lengthBytes) {
+        int blockSize = Integer.highestOneBit((int) Math.sqrt(lengthBytes));
+        return Math.max(MIN_BLOCK_SIZE_BYTES, Math.min(MAX_BLOCK_SIZE_BYTES, blockSize));
+    }
+
+    private BlockSignatures(int blockSizeBytes, List<Integer> checksums, List<String> hashes) {
+        this.blockSizeBytes = blockSizeBytes;
+        this.checksums      = checksums;
+        this.hashes         = hashes;
+
+        for (int block = 0; block < checksums.size(); block++) {
+            List<Integer> blocks = blocksByChecksum.get(checksums.get(block));
+            if (blocks == null) {
+                blocks = new ArrayList<>(1);
+                blocksByChecksum.put(checksums.get(block), blocks);
+            }
+            blocks.add(block);
+        }
+    }
+
+    /**
+     * Add these signatures to extras, suitable for
+     * {@link pro.dbro.airshare.session.DataTransferMessage#createOutgoing(Map, byte[])}
+     */
+    public void writeExtras(@NonNull Map<String, Object> extras) {
+        extras.put(EXTRA_BLOCK_SIZE,      blockSizeBytes);
+        extras.put(EXTRA_BLOCK_CHECKSUMS, checksums);
+        extras.put(EXTRA_BLOCK_HASHES,    hashes);
+    }
+
+    public int getBlockSizeBytes() {
+        return blockSizeBytes;
+    }
+
+    public int getBlockCount() {
+        return checksums.size();
+    }
+
+    /**
+     * @return the index of a block matching the block size bytes of data from offset, whose
+     * rolling checksum is checksum, or -1 if there is none
+     */
+    public int findBlock(int checksum, @NonNull byte[] data, int offset) {
+        List<Integer> candidates = blocksByChecksum.get(checksum);
+        if (candidates == null) return -1;
+
+        String hash = strongHash(data, offset, blockSizeBytes);
+        for (int block : candidates) {
+            if (hashes.get(block).equals(hash)) return block;
+        }
+        return -1;
+    }
+
+    private static String strongHash(byte[] data, int offset, int length) {
+        byte[] hash = HASH_FUNCTION.hashBytes(data, offset, length).asBytes();
+        return HashCode.fromBytes(Arrays.copyOf(hash, STRONG_HASH_BYTES)).toString();
+    }
+}
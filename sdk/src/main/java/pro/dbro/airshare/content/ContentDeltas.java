@@ -0,0 +1,275 @@
+package pro.dbro.airshare.content;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Table;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import pro.dbro.airshare.session.DataTransferMessage;
+import pro.dbro.airshare.session.Peer;
+import pro.dbro.airshare.session.SessionMessage;
+import timber.log.Timber;
+
+/**
+ * Sends new versions of a document as the difference from the version a recipient already
+ * holds, after the fashion of rsync. Documents are identified by an application-chosen id
+ * carried in {@link pro.dbro.airshare.session.DataTransferMessage#HEADER_EXTRA} as
+ * {@link #EXTRA_DOCUMENT_ID}.
+ *
+ * <ul>
+ *     <li>The sender offers a version with {@link #DELTA_OFFER}</li>
+ *     <li>A recipient holding a prior version replies {@link #DELTA_SIGNATURES} with the
+ *     {@link pro.dbro.airshare.content.BlockSignatures} of that version. Otherwise it replies
+ *     {@link #DELTA_NONE} and the sender sends the version in full</li>
+ *     <li>The sender replies {@link #DELTA_PATCH} with a {@link pro.dbro.airshare.content.Delta}
+ *     as its body, or sends the version in full if the delta would save little</li>
+ *     <li>The recipient replies {@link #DELTA_APPLIED}, or {@link #DELTA_NONE} if the patched
+ *     version does not match its content hash</li>
+ * </ul>
+ *
+ * Both peers must use ContentDeltas, as an offer is otherwise received as empty data.
+ *
+ * Not thread safe. All methods must be called on the thread that delivers session events.
+ */
+public class ContentDeltas {
+
+    public interface Listener {
+
+        /** recipient holds no usable prior version. Send content in full with extras */
+        void onFullVersionRequired(@NonNull byte[] content, @NonNull Map<String, Object> extras, @NonNull Peer recipient);
+
+        /** recipient rebuilt content from its prior version and a delta */
+        void onDeltaApplied(@NonNull byte[] content, @NonNull Peer recipient);
+
+        /** A new version of a document was rebuilt from a delta sent by sender */
+        void onVersionReceived(@NonNull byte[] content, @NonNull String documentId, @NonNull Peer sender);
+    }
+
+    /** Maximum number of documents whose latest version is kept to serve as a basis */
+    public static final int MAX_DOCUMENTS = 64;
+
+    /** A delta must be smaller than this fraction of the content, else the content is sent in full */
+    private static final float MAX_DELTA_RATIO = 0.9f;
+
+    public static final String EXTRA_DELTA        = "delta";
+    public static final String EXTRA_DOCUMENT_ID  = "document-id";
+    public static final String EXTRA_BASIS_HASH   = "basis-hash";
+    public static final String EXTRA_CONTENT_HASH = "content-hash";
+
+    public static final String DELTA_OFFER      = "offer";
+    public static final String DELTA_SIGNATURES = "signatures";
+    public static final String DELTA_NONE       = "none";
+    public static final String DELTA_PATCH      = "patch";
+    public static final String DELTA_APPLIED    = "applied";
+
+    private final ContentStore  store;
+    private final MessageSender sender;
+    private final Listener      listener;
+
+    /** Document id -> Hash of its latest version in store, least recently used first */
+    private final LinkedHashMap<String, String> documentVersions = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_DOCUMENTS;
+        }
+    };
+
+    /** Recipient, document id -> Version offered and awaiting a reply */
+    private final Table<Peer, String, byte[]> pendingVersions = HashBasedTable.create();
+
+    public ContentDeltas(@NonNull ContentStore store,
+                         @NonNull MessageSender sender,
+                         @NonNull Listener listener) {
+        this.store    = store;
+        this.sender   = sender;
+        this.listener = listener;
+    }
+
+    /**
+     * @return whether message belongs to the delta protocol, and so should be passed to
+     * {@link #onMessageReceived(pro.dbro.airshare.session.DataTransferMessage, pro.dbro.airshare.session.Peer)}
+     * rather than reported as application data
+     */
+    public static boolean isDeltaMessage(@NonNull SessionMessage message) {
+        Map<String, Object> extras = DataTransferMessage.getExtras(message);
+        return extras != null && extras.containsKey(EXTRA_DELTA);
+    }
+
+    /**
+     * @return the document id of a version sent in full, or null if message is not a document version
+     */
+    public static @Nullable String getDocumentId(@NonNull SessionMessage message) {
+        Map<String, Object> extras = DataTransferMessage.getExtras(message);
+        if (extras == null || extras.containsKey(EXTRA_DELTA)) return null;
+
+        return getString(extras, EXTRA_DOCUMENT_ID);
+    }
+
+    /**
+     * Send content to recipient as the latest version of documentId. Replaces any earlier
+     * version of documentId still awaiting a reply from recipient
+     */
+    public void offer(@NonNull String documentId, @NonNull byte[] content, @NonNull Peer recipient) {
+        pendingVersions.put(recipient, documentId, content);
+        sender.sendMessage(DataTransferMessage.createOutgoing(createExtras(DELTA_OFFER, documentId), null),
+                           recipient);
+    }
+
+    /**
+     * Keep a version of documentId received in full as the basis for later deltas
+     */
+    public void onVersionReceived(@NonNull String documentId, @NonNull byte[] content) {
+        documentVersions.put(documentId, store.put(content));
+    }
+
+    /**
+     * Abandon versions awaiting a reply from peer
+     */
+    public void onPeerDisconnected(@NonNull Peer peer) {
+        pendingVersions.row(peer).clear();
+    }
+
+    /**
+     * Handle a delta protocol message. See {@link #isDeltaMessage(pro.dbro.airshare.session.SessionMessage)}
+     */
+    public void onMessageReceived(@NonNull DataTransferMessage message, @NonNull Peer remotePeer) {
+        Map<String, Object> extras = DataTransferMessage.getExtras(message);
+        if (extras == null) return;
+
+        String deltaType  = getString(extras, EXTRA_DELTA);
+        String documentId = getString(extras, EXTRA_DOCUMENT_ID);
+        if (deltaType == null || documentId == null) return;
+
+        switch (deltaType) {
+
+            case DELTA_OFFER:
+                sendSignatures(documentId, remotePeer);
+                break;
+
+            case DELTA_SIGNATURES:
+                onSignaturesReceived(documentId, extras, remotePeer);
+                break;
+
+            case DELTA_NONE:
+                byte[] content = pendingVersions.remove(remotePeer, documentId);
+                if (content != null) sendFullVersion(documentId, content, remotePeer);
+                break;
+
+            case DELTA_PATCH:
+                onPatchReceived(message, documentId, extras, remotePeer);
+                break;
+
+            case DELTA_APPLIED:
+                byte[] applied = pendingVersions.remove(remotePeer, documentId);
+                if (applied != null) listener.onDeltaApplied(applied, remotePeer);
+                break;
+
+            default:
+                Timber.w("Unknown delta message %s from %s", deltaType, remotePeer.getAlias());
+        }
+    }
+
+    private void sendSignatures(String documentId, Peer recipient) {
+        String basisHash = documentVersions.get(documentId);
+        byte[] basis = basisHash == null ? null : store.get(basisHash);
+
+        if (basis == null) {
+            documentVersions.remove(documentId);
+            sendReply(DELTA_NONE, documentId, recipient);
+            return;
+        }
+
+        HashMap<String, Object> extras = createExtras(DELTA_SIGNATURES, documentId);
+        extras.put(EXTRA_BASIS_HASH, basisHash);
+        BlockSignatures.fromContent(basis).writeExtras(extras);
+
+        sender.sendMessage(DataTransferMessage.createOutgoing(extras, null), recipient);
+    }
+
+    private void onSignaturesReceived(String documentId, Map<String, Object> extras, Peer recipient) {
+        byte[] content = pendingVersions.get(recipient, documentId);
+        if (content == null) return;
+
+        BlockSignatures signatures = BlockSignatures.fromExtras(extras);
+        Object basisHash = extras.get(EXTRA_BASIS_HASH);
+        if (signatures == null || !(basisHash instanceof String)) {
+            Timber.w("Ignoring invalid signatures for %s from %s", documentId, recipient.getAlias());
+            pendingVersions.remove(recipient, documentId);
+            sendFullVersion(documentId, content, recipient);
+            return;
+        }
+
+        byte[] delta = Delta.encode(signatures, content);
+        if (delta.length > content.length * MAX_DELTA_RATIO) {
+            pendingVersions.remove(recipient, documentId);
+            sendFullVersion(documentId, content, recipient);
+            return;
+        }
+
+        Timber.d("Sending %s to %s as %d byte delta of %d bytes",
+                 documentId, recipient.getAlias(), delta.length, content.length);
+
+        HashMap<String, Object> patchExtras = createExtras(DELTA_PATCH, documentId);
+        patchExtras.put(EXTRA_BASIS_HASH,   basisHash);
+        patchExtras.put(EXTRA_CONTENT_HASH, ContentStore.hash(content));
+        patchExtras.put(BlockSignatures.EXTRA_BLOCK_SIZE, signatures.getBlockSizeBytes());
+
+        sender.sendMessage(DataTransferMessage.createOutgoing(patchExtras, delta), recipient);
+    }
+
+    private void onPatchReceived(DataTransferMessage message, String documentId,
+                                 Map<String, Object> extras, Peer remotePeer) {
+
+        Object basisHash   = extras.get(EXTRA_BASIS_HASH);
+        Object contentHash = extras.get(EXTRA_CONTENT_HASH);
+        Object blockSize   = extras.get(BlockSignatures.EXTRA_BLOCK_SIZE);
+
+        byte[] basis = basisHash instanceof String ? store.get((String) basisHash) : null;
+        byte[] delta = message.getBodyAtOffset(0, message.getBodyLengthBytes());
+
+        byte[] content = null;
+        if (basis != null && delta != null && blockSize instanceof Integer && (int) blockSize > 0)
+            content = Delta.apply(basis, (int) blockSize, delta);
+
+        if (content == null || !ContentStore.hash(content).equals(contentHash)) {
+            Timber.w("Failed to apply delta of %s from %s", documentId, remotePeer.getAlias());
+            sendReply(DELTA_NONE, documentId, remotePeer);
+            return;
+        }
+
+        onVersionReceived(documentId, content);
+        sendReply(DELTA_APPLIED, documentId, remotePeer);
+        listener.onVersionReceived(content, documentId, remotePeer);
+    }
+
+    private void sendFullVersion(String documentId, byte[] content, Peer recipient) {
+        HashMap<String, Object> extras = new HashMap<>();
+        extras.put(EXTRA_DOCUMENT_ID, documentId);
+        listener.onFullVersionRequired(content, extras, recipient);
+    }
+
+    private void sendReply(String deltaType, String documentId, Peer recipient) {
+        sender.sendMessage(DataTransferMessage.createOutgoing(createExtras(deltaType, documentId), null),
+                           recipient);
+    }
+
+    private static HashMap<String, Object> createExtras(String deltaType, String documentId) {
+        HashMap<String, Object> extras = new HashMap<>();
+        extras.put(EXTRA_DELTA,       deltaType);
+        extras.put(EXTRA_DOCUMENT_ID, documentId);
+        return extras;
+    }
+
+    /**
+     * @return the string at key, or null if absent or not a string, as may be sent by a faulty peer
+     */
+    private static @Nullable String getString(Map<String, Object> extras, String key) {
+        Object value = extras.get(key);
+        return value instanceof String ? (String) value : null;
+    }
+}
@@ -0,0 +1,168 @@
+package pro.dbro.airshare.content;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Describes content divided into fixed size pieces, each identified by its SHA-256 hash.
+ *
+ * The content hash is the SHA-256 of the content length, piece size and piece hashes, so a
+ * manifest received from any peer can be checked against the content hash alone, and each
+ * piece can then be verified as it arrives.
+ */
+public class ContentManifest {
+
+    public static final int DEFAULT_PIECE_SIZE_BYTES = 16 * 1024;
+
+    /** Keys of the manifest within {@link pro.dbro.airshare.session.DataTransferMessage#HEADER_EXTRA} */
+    public static final String EXTRA_CONTENT_HASH   = "content-hash";
+    public static final String EXTRA_CONTENT_LENGTH = "content-length";
+    public static final String EXTRA_PIECE_SIZE     = "piece-size";
+    public static final String EXTRA_PIECE_HASHES   = "piece-hashes";
+
+    private static final HashFunction HASH_FUNCTION = Hashing.sha256();
+
+    private final String       contentHash;
+    private final int          lengthBytes;
+    private final int          pieceSizeBytes;
+    private final List<String> pieceHashes;
+
+    /**
+     * Create a manifest describing content
+     */
+    public static ContentManifest fromContent(@NonNull byte[] content, int pieceSizeBytes) {
+        if (pieceSizeBytes <= 0)
+            throw new IllegalArgumentException("pieceSizeBytes must be positive");
+
+        int pieceCount = getPieceCount(content.length, pieceSizeBytes);
+        ArrayList<String> pieceHashes = new ArrayList<>(pieceCount);
+
+        for (int piece = 0; piece < pieceCount; piece++) {
+            int offset = piece * pieceSizeBytes;
+            int length = Math.min(pieceSizeBytes, content.length - offset);
+            pieceHashes.add(HASH_FUNCTION.hashBytes(content, offset, length).toString());
+        }
+
+        return new ContentManifest(computeContentHash(content.length, pieceSizeBytes, pieceHashes),
+                                   content.length, pieceSizeBytes, pieceHashes);
+    }
+
+    /**
+     * @return the manifest described by extras, or null if extras do not describe a valid
+     * manifest whose piece hashes match its content hash
+     */
+    public static @Nullable ContentManifest fromExtras(@Nullable Map<String, Object> extras) {
+        if (extras == null ||
+            !(extras.get(EXTRA_CONTENT_HASH)   instanceof String)  ||
+            !(extras.get(EXTRA_CONTENT_LENGTH) instanceof Integer) ||
+            !(extras.get(EXTRA_PIECE_SIZE)     instanceof Integer) ||
+            !(extras.get(EXTRA_PIECE_HASHES)   instanceof List))
+            return null;
+
+        String contentHash = (String) extras.get(EXTRA_CONTENT_HASH);
+        int lengthBytes    = (int) extras.get(EXTRA_CONTENT_LENGTH);
+        int pieceSizeBytes = (int) extras.get(EXTRA_PIECE_SIZE);
+
+        if (lengthBytes < 0 || pieceSizeBytes <= 0) return null;
+
+        List<?> pieceHashValues = (List<?>) extras.get(EXTRA_PIECE_HASHES);
+        if (pieceHashValues.size() != getPieceCount(lengthBytes, pieceSizeBytes)) return null;
+
+        ArrayList<String> pieceHashes = new ArrayList<>(pieceHashValues.size());
+        for (Object pieceHash : pieceHashValues) {
+            if (!(pieceHash instanceof String)) return null;
+            pieceHashes.add((String) pieceHash);
+        }
+
+        try {
+            if (!contentHash.equals(computeContentHash(lengthBytes, pieceSizeBytes, pieceHashes))) {
+                Timber.w("Manifest piece hashes do not match content hash %s", contentHash);
+                return null;
+            }
+        } catch (IllegalArgumentException e) {
+            // A piece hash was not valid hex
+            return null;
+        }
+
+        return new ContentManifest(contentHash, lengthBytes, pieceSizeBytes, pieceHashes);
+    }
+
+    private ContentManifest(String contentHash, int lengthBytes, int pieceSizeBytes, List<String> pieceHashes) {
+        this.contentHash    = contentHash;
+        this.lengthBytes    = lengthBytes;
+        this.pieceSizeBytes = pieceSizeBytes;
+        this.pieceHashes    = Collections.unmodifiableList(pieceHashes);
+    }
+
+    /**
+     * Add this manifest to extras, suitable for
+     * {@link pro.dbro.airshare.session.DataTransferMessage#createOutgoing(Map, byte[])}
+     */
+    public void writeExtras(@NonNull Map<String, Object> extras) {
+        extras.put(EXTRA_CONTENT_HASH,   contentHash);
+        extras.put(EXTRA_CONTENT_LENGTH, lengthBytes);
+        extras.put(EXTRA_PIECE_SIZE,     pieceSizeBytes);
+        extras.put(EXTRA_PIECE_HASHES,   pieceHashes);
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public int getLengthBytes() {
+        return lengthBytes;
+    }
+
+    public int getPieceSizeBytes() {
+        return pieceSizeBytes;
+    }
+
+    public int getPieceCount() {
+        return pieceHashes.size();
+    }
+
+    public int getPieceOffset(int piece) {
+        return piece * pieceSizeBytes;
+    }
+
+    public int getPieceLength(int piece) {
+        return Math.min(pieceSizeBytes, lengthBytes - getPieceOffset(piece));
+    }
+
+    /**
+     * @return whether the bytes of data from offset hash to the given piece's hash
+     */
+    public boolean verifyPiece(int piece, @NonNull byte[] data, int offset) {
+        int length = getPieceLength(piece);
+        if (offset < 0 || offset + length > data.length) return false;
+
+        return HASH_FUNCTION.hashBytes(data, offset, length).toString().equals(pieceHashes.get(piece));
+    }
+
+    private static int getPieceCount(int lengthBytes, int pieceSizeBytes) {
+        return (int) ((lengthBytes + (long) pieceSizeBytes - 1) / pieceSizeBytes);
+    }
+
+    private static String computeContentHash(int lengthBytes, int pieceSizeBytes, List<String> pieceHashes) {
+        Hasher hasher = HASH_FUNCTION.newHasher()
+                                     .putInt(lengthBytes)
+                                     .putInt(pieceSizeBytes);
+
+        for (String pieceHash : pieceHashes)
+            hasher.putBytes(HashCode.fromString(pieceHash).asBytes());
+
+        return hasher.hash().toString();
+    }
+}
@@ -0,0 +1,407 @@
+package pro.dbro.airshare.content;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import android.os.SystemClock;
+
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Table;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeoutException;
+
+import pro.dbro.airshare.session.DataTransferMessage;
+import pro.dbro.airshare.session.Peer;
+import pro.dbro.airshare.session.SessionMessage;
+import timber.log.Timber;
+
+/**
+ * Avoids sending content a recipient already holds. Before sending content, the sender offers
+ * its hash in a header-only {@link pro.dbro.airshare.session.DataTransferMessage}. A recipient
+ * holding the content in its {@link pro.dbro.airshare.content.ContentStore} replies
+ * {@link #OFFER_HAVE} and reads the content from its store, so a duplicate costs one header
+ * exchange. Otherwise it replies {@link #OFFER_WANT} and the sender sends the content in full.
+ * The reply echoes the {@link #EXTRA_DEDUP_ID} of its offer, so content offered twice is answered per offer.
+ *
+ * An offer may also ask the recipient to accept the content before it is sent, so a declined
+ * transfer costs one header exchange rather than the airtime of its body. Such an offer carries
+ * an {@link #EXTRA_OFFER_ID}, the content length and the extras it is to be sent with, and is
+ * reported via {@link Listener#onTransferOffered(pro.dbro.airshare.session.DataTransferMessage, pro.dbro.airshare.session.Peer)}.
+ * The recipient replies {@link #OFFER_REJECT}, or accepts all or a range of the content. Content
+ * it already holds is then read from its store, else it replies {@link #OFFER_WANT} with the range.
+ * The content sent carries the offer id, so it may be matched to its offer.
+ *
+ * Offers unanswered after the interval given to {@link #pruneOffers(long)} are abandoned.
+ *
+ * Both peers must use ContentOffers, as an offer is otherwise received as empty data.
+ *
+ * Not thread safe. All methods must be called on the thread that delivers session events.
+ */
+public class ContentOffers {
+
+    public interface Listener {
+
+        /** recipient wants content, which may be the range of the content offered it accepted. Send it with extras */
+        void onOfferWanted(@NonNull byte[] content, @NonNull Map<String, Object> extras, @NonNull Peer recipient);
+
+        /** recipient already held content, so it was not sent */
+        void onOfferHeld(@NonNull byte[] content, @NonNull Peer recipient);
+
+        /**
+         * content was not sent, as recipient rejected it, with a {@link java.util.concurrent.CancellationException},
+         * or did not reply in time, with a {@link java.util.concurrent.TimeoutException}
+         */
+        void onOfferDeclined(@NonNull byte[] content, @NonNull Peer recipient, @NonNull Exception reason);
+
+        /**
+         * sender offered the content described by offer, to be sent only once accepted. Reply via
+         * {@link #accept(pro.dbro.airshare.session.Peer, String, int, int)} or
+         * {@link #reject(pro.dbro.airshare.session.Peer, String)}
+         */
+        void onTransferOffered(@NonNull DataTransferMessage offer, @NonNull Peer sender);
+
+        /**
+         * Content offered by sender was read from the local store
+         *
+         * @param offerId the id of the offer accepted, or null if content was offered only to
+         *                avoid sending a duplicate
+         */
+        void onContentReceived(@NonNull byte[] content, @Nullable String offerId, @NonNull Peer sender);
+    }
+
+    /** Content smaller than this is sent without an offer, as the exchange would cost more than it saves */
+    public static final int MIN_OFFER_BYTES = 1024;
+
+    public static final String EXTRA_OFFER        = "offer";
+    public static final String EXTRA_BODY_HASH    = "body-hash";
+    /** Identifies an offer requiring acceptance, its replies, and the content sent for it */
+    public static final String EXTRA_OFFER_ID     = "offer-id";
+    /** Identifies an offer made only to avoid sending a duplicate, and its reply */
+    public static final String EXTRA_DEDUP_ID     = "dedup-id";
+    public static final String EXTRA_OFFER_LENGTH = "offer-length";
+    public static final String EXTRA_OFFER_EXTRAS = "offer-extras";
+    public static final String EXTRA_RANGE_OFFSET = "range-offset";
+    public static final String EXTRA_RANGE_LENGTH = "range-length";
+
+    public static final String OFFER_HAS    = "has";
+    public static final String OFFER_HAVE   = "have";
+    public static final String OFFER_WANT   = "want";
+    public static final String OFFER_REJECT = "reject";
+
+    /** Content awaiting the reply to its offer */
+    private static class PendingOffer {
+        final byte[] content;
+        final Map<String, Object> extras;
+        final long offeredMs = SystemClock.uptimeMillis();
+
+        PendingOffer(byte[] content, @Nullable Map<String, Object> extras) {
+            this.content = content;
+            this.extras  = extras;
+        }
+    }
+
+    /** An offer requiring acceptance, awaiting the local reply */
+    private static class ReceivedOffer {
+        final String contentHash;
+        final int lengthBytes;
+        final long receivedMs = SystemClock.uptimeMillis();
+
+        ReceivedOffer(String contentHash, int lengthBytes) {
+            this.contentHash = contentHash;
+            this.lengthBytes = lengthBytes;
+        }
+    }
+
+    private final ContentStore  store;
+    private final MessageSender sender;
+    private final Listener      listener;
+
+    /** Recipient, offer id or dedup id -> Content awaiting reply to offer */
+    private final Table<Peer, String, PendingOffer>  pendingOffers  = HashBasedTable.create();
+    /** Sender, offer id -> Offer awaiting local reply */
+    private final Table<Peer, String, ReceivedOffer> receivedOffers = HashBasedTable.create();
+
+    public ContentOffers(@NonNull ContentStore store,
+                         @NonNull MessageSender sender,
+                         @NonNull Listener listener) {
+        this.store    = store;
+        this.sender   = sender;
+        this.listener = listener;
+    }
+
+    /**
+     * @return whether message belongs to the offer protocol, and so should be passed to
+     * {@link #onMessageReceived(pro.dbro.airshare.session.DataTransferMessage, pro.dbro.airshare.session.Peer)}
+     * rather than reported as application data
+     */
+    public static boolean isOfferMessage(@NonNull SessionMessage message) {
+        Map<String, Object> extras = DataTransferMessage.getExtras(message);
+        return extras != null && extras.containsKey(EXTRA_OFFER);
+    }
+
+    /**
+     * Offer content to recipient. {@link Listener#onOfferWanted(byte[], java.util.Map, pro.dbro.airshare.session.Peer)}
+     * or {@link Listener#onOfferHeld(byte[], pro.dbro.airshare.session.Peer)} reports the reply
+     */
+    public void offer(@NonNull byte[] content, @NonNull Peer recipient) {
+        // Identified by its own id, so the same content offered again awaits its own reply
+        String dedupId = UUID.randomUUID().toString();
+        pendingOffers.put(recipient, dedupId, new PendingOffer(content, null));
+
+        HashMap<String, Object> offerExtras = createExtras(OFFER_HAS, ContentStore.hash(content), null);
+        offerExtras.put(EXTRA_DEDUP_ID, dedupId);
+
+        sender.sendMessage(DataTransferMessage.createOutgoing(offerExtras, null), recipient);
+    }
+
+    /**
+     * Offer content to recipient, to be sent with extras only once recipient accepts it.
+     * {@link Listener#onOfferWanted(byte[], java.util.Map, pro.dbro.airshare.session.Peer)},
+     * {@link Listener#onOfferHeld(byte[], pro.dbro.airshare.session.Peer)} or
+     * {@link Listener#onOfferDeclined(byte[], pro.dbro.airshare.session.Peer, Exception)} reports the reply
+     *
+     * @return the id of the offer
+     */
+    public String offer(@NonNull byte[] content, @Nullable Map<String, Object> extras, @NonNull Peer recipient) {
+        String offerId = UUID.randomUUID().toString();
+        pendingOffers.put(recipient, offerId, new PendingOffer(content, extras));
+
+        HashMap<String, Object> offerExtras = createExtras(OFFER_HAS, ContentStore.hash(content), offerId);
+        offerExtras.put(EXTRA_OFFER_LENGTH, content.length);
+        if (extras != null) offerExtras.put(EXTRA_OFFER_EXTRAS, extras);
+
+        sender.sendMessage(DataTransferMessage.createOutgoing(offerExtras, null), recipient);
+        return offerId;
+    }
+
+    /**
+     * Accept lengthBytes of the content offered by sender, beginning at offset
+     *
+     * @return false if the offer was already answered or abandoned
+     */
+    public boolean accept(@NonNull Peer sender, @NonNull String offerId, int offset, int lengthBytes) {
+        ReceivedOffer offer = receivedOffers.get(sender, offerId);
+        if (offer == null) return false;
+
+        if (offset < 0 || lengthBytes < 0 || offset + lengthBytes > offer.lengthBytes)
+            throw new IllegalArgumentException("Range is outside the offered content");
+
+        receivedOffers.remove(sender, offerId);
+
+        byte[] content = store.get(offer.contentHash);
+        if (content != null) {
+            Timber.d("Already hold %s offered by %s", offer.contentHash, sender.getAlias());
+            sendReply(OFFER_HAVE, offer.contentHash, offerId, sender);
+            listener.onContentReceived(Arrays.copyOfRange(content, offset, offset + lengthBytes), offerId, sender);
+            return true;
+        }
+
+        HashMap<String, Object> extras = createExtras(OFFER_WANT, offer.contentHash, offerId);
+        extras.put(EXTRA_RANGE_OFFSET, offset);
+        extras.put(EXTRA_RANGE_LENGTH, lengthBytes);
+        this.sender.sendMessage(DataTransferMessage.createOutgoing(extras, null), sender);
+        return true;
+    }
+
+    /**
+     * Decline the content offered by sender
+     *
+     * @return false if the offer was already answered or abandoned
+     */
+    public boolean reject(@NonNull Peer sender, @NonNull String offerId) {
+        ReceivedOffer offer = receivedOffers.remove(sender, offerId);
+        if (offer == null) return false;
+
+        sendReply(OFFER_REJECT, offer.contentHash, offerId, sender);
+        return true;
+    }
+
+    /**
+     * Abandon offers made or received before cutoffMs, in the {@link android.os.SystemClock#uptimeMillis()}
+     * time base. Content offered is reported declined with a {@link java.util.concurrent.TimeoutException}
+     */
+    public void pruneOffers(long cutoffMs) {
+        Iterator<Table.Cell<Peer, String, PendingOffer>> pending = pendingOffers.cellSet().iterator();
+        while (pending.hasNext()) {
+            Table.Cell<Peer, String, PendingOffer> cell = pending.next();
+            if (cell.getValue().offeredMs >= cutoffMs) continue;
+
+            Timber.w("Offer %s to %s was not answered", cell.getColumnKey(), cell.getRowKey().getAlias());
+            pending.remove();
+            listener.onOfferDeclined(cell.getValue().content, cell.getRowKey(), new TimeoutException("Offer was not answered"));
+        }
+
+        Iterator<ReceivedOffer> received = receivedOffers.values().iterator();
+        while (received.hasNext())
+            if (received.next().receivedMs < cutoffMs) received.remove();
+    }
+
+    /**
+     * @return whether any offer awaits a reply, and so may need pruning
+     */
+    public boolean hasPendingOffers() {
+        return !pendingOffers.isEmpty() || !receivedOffers.isEmpty();
+    }
+
+    /**
+     * Store content received in full, so later offers of it can be answered from the store
+     */
+    public void onContentReceived(@NonNull byte[] content) {
+        if (content.length >= MIN_OFFER_BYTES) store.put(content);
+    }
+
+    /**
+     * Abandon offers awaiting a reply from or to peer
+     */
+    public void onPeerDisconnected(@NonNull Peer peer) {
+        pendingOffers.row(peer).clear();
+        receivedOffers.row(peer).clear();
+    }
+
+    /**
+     * Handle an offer protocol message. See {@link #isOfferMessage(pro.dbro.airshare.session.SessionMessage)}
+     */
+    public void onMessageReceived(@NonNull DataTransferMessage message, @NonNull Peer remotePeer) {
+        Map<String, Object> extras = DataTransferMessage.getExtras(message);
+        if (extras == null) return;
+
+        String offerType   = getString(extras, EXTRA_OFFER);
+        String contentHash = getString(extras, EXTRA_BODY_HASH);
+        String offerId     = getString(extras, EXTRA_OFFER_ID);
+        String dedupId     = getString(extras, EXTRA_DEDUP_ID);
+        if (offerType == null || contentHash == null) return;
+
+        String offerKey = offerId != null ? offerId : dedupId;
+        if (offerKey == null) {
+            Timber.w("Offer message %s from %s has no id", offerType, remotePeer.getAlias());
+            return;
+        }
+
+        byte[] content;
+        PendingOffer pendingOffer;
+        switch (offerType) {
+
+            case OFFER_HAS:
+                if (offerId != null) {
+                    receivedOffers.put(remotePeer, offerId, new ReceivedOffer(contentHash, getInt(extras, EXTRA_OFFER_LENGTH)));
+                    listener.onTransferOffered(message, remotePeer);
+                    break;
+                }
+
+                content = store.get(contentHash);
+                if (content != null) {
+                    Timber.d("Already hold %s offered by %s", contentHash, remotePeer.getAlias());
+                    sendDedupReply(OFFER_HAVE, contentHash, dedupId, remotePeer);
+                    listener.onContentReceived(content, null, remotePeer);
+                } else
+                    sendDedupReply(OFFER_WANT, contentHash, dedupId, remotePeer);
+                break;
+
+            case OFFER_HAVE:
+                pendingOffer = pendingOffers.remove(remotePeer, offerKey);
+                if (pendingOffer != null) listener.onOfferHeld(pendingOffer.content, remotePeer);
+                break;
+
+            case OFFER_WANT:
+                pendingOffer = pendingOffers.remove(remotePeer, offerKey);
+                if (pendingOffer == null) break;
+
+                int offset      = extras.containsKey(EXTRA_RANGE_OFFSET) ? getInt(extras, EXTRA_RANGE_OFFSET) : 0;
+                int lengthBytes = extras.containsKey(EXTRA_RANGE_LENGTH) ? getInt(extras, EXTRA_RANGE_LENGTH) :
+                                                                           pendingOffer.content.length;
+                if (offset < 0 || lengthBytes < 0 || offset + lengthBytes > pendingOffer.content.length) {
+                    Timber.w("%s wants invalid range of offer %s", remotePeer.getAlias(), offerKey);
+                    listener.onOfferDeclined(pendingOffer.content, remotePeer, new CancellationException("Invalid range wanted"));
+                    break;
+                }
+
+                HashMap<String, Object> contentExtras = new HashMap<>();
+                if (pendingOffer.extras != null) contentExtras.putAll(pendingOffer.extras);
+                contentExtras.put(EXTRA_BODY_HASH, contentHash);
+                if (offerId != null) {
+                    contentExtras.put(EXTRA_OFFER_ID,     offerId);
+                    contentExtras.put(EXTRA_RANGE_OFFSET, offset);
+                }
+                listener.onOfferWanted(offset == 0 && lengthBytes == pendingOffer.content.length ?
+                                               pendingOffer.content :
+                                               Arrays.copyOfRange(pendingOffer.content, offset, offset + lengthBytes),
+                                       contentExtras,
+                                       remotePeer);
+                break;
+
+            case OFFER_REJECT:
+                pendingOffer = pendingOffers.remove(remotePeer, offerKey);
+                if (pendingOffer != null)
+                    listener.onOfferDeclined(pendingOffer.content, remotePeer, new CancellationException("Offer rejected by recipient"));
+                break;
+
+            default:
+                Timber.w("Unknown offer message %s from %s", offerType, remotePeer.getAlias());
+        }
+    }
+
+    /**
+     * @return the id of the offer, requiring acceptance, that message makes or answers, or that
+     * its content was sent for. Null if none
+     */
+    public static @Nullable String getOfferId(@NonNull SessionMessage message) {
+        Map<String, Object> extras = DataTransferMessage.getExtras(message);
+        return extras != null ? getString(extras, EXTRA_OFFER_ID) : null;
+    }
+
+    /**
+     * @return the length of the content offered by offer, a message reported to
+     * {@link Listener#onTransferOffered(pro.dbro.airshare.session.DataTransferMessage, pro.dbro.airshare.session.Peer)}
+     */
+    public static int getOfferedLength(@NonNull SessionMessage offer) {
+        Map<String, Object> extras = DataTransferMessage.getExtras(offer);
+        return extras != null ? getInt(extras, EXTRA_OFFER_LENGTH) : -1;
+    }
+
+    /**
+     * @return the extras the content offered by offer is to be sent with, or null if none
+     */
+    public static @Nullable Map<String, Object> getOfferedExtras(@NonNull SessionMessage offer) {
+        Map<String, Object> extras = DataTransferMessage.getExtras(offer);
+        Object offeredExtras = extras != null ? extras.get(EXTRA_OFFER_EXTRAS) : null;
+        return DataTransferMessage.toExtras(offeredExtras);
+    }
+
+    private void sendReply(String offerType, String contentHash, @Nullable String offerId, Peer recipient) {
+        sender.sendMessage(DataTransferMessage.createOutgoing(createExtras(offerType, contentHash, offerId), null),
+                           recipient);
+    }
+
+    private void sendDedupReply(String offerType, String contentHash, String dedupId, Peer recipient) {
+        HashMap<String, Object> extras = createExtras(offerType, contentHash, null);
+        extras.put(EXTRA_DEDUP_ID, dedupId);
+        sender.sendMessage(DataTransferMessage.createOutgoing(extras, null), recipient);
+    }
+
+    private static HashMap<String, Object> createExtras(String offerType, String contentHash, @Nullable String offerId) {
+        HashMap<String, Object> extras = new HashMap<>();
+        extras.put(EXTRA_OFFER,     offerType);
+        extras.put(EXTRA_BODY_HASH, contentHash);
+        if (offerId != null) extras.put(EXTRA_OFFER_ID, offerId);
+        return extras;
+    }
+
+    /**
+     * @return the string at key, or null if absent or not a string, as may be sent by a faulty peer
+     */
+    private static @Nullable String getString(Map<String, Object> extras, String key) {
+        Object value = extras.get(key);
+        return value instanceof String ? (String) value : null;
+    }
+
+    private static int getInt(Map<String, Object> extras, String key) {
+        Object value = extras.get(key);
+        return value instanceof Integer ? (int) value : -1;
+    }
+}
@@ -0,0 +1,166 @@
+package pro.dbro.airshare.content;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Stores content on disk by the SHA-256 hash of its bytes. The least recently used content is
+ * evicted to keep the store within a size limit. Contents persist across restarts, with
+ * recency restored from file modification times.
+ */
+public class ContentStore {
+
+    public static final long DEFAULT_MAX_SIZE_BYTES = 16 * 1024 * 1024;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final long maxSizeBytes;
+
+    /** Content hash -> Size in bytes, in order of least to most recent use. Guarded by this */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long sizeBytes;
+
+    public ContentStore(@NonNull File directory, long maxSizeBytes) {
+        this.directory    = directory;
+        this.maxSizeBytes = maxSizeBytes;
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            Timber.e("Failed to create content directory %s", directory.getAbsolutePath());
+
+        indexDirectory();
+    }
+
+    /**
+     * @return the hash by which content is stored
+     */
+    public static String hash(@NonNull byte[] content) {
+        return Hashing.sha256().hashBytes(content).toString();
+    }
+
+    public synchronized boolean contains(@NonNull String contentHash) {
+        return entries.containsKey(contentHash);
+    }
+
+    /**
+     * @return the content with contentHash, or null if not stored or if the stored
+     * copy no longer matches its hash
+     */
+    public synchronized @Nullable byte[] get(@NonNull String contentHash) {
+        // Unlike containsKey, get marks the content as recently used
+        if (entries.get(contentHash) == null) return null;
+
+        File file = getFile(contentHash);
+        try {
+            byte[] content = Files.toByteArray(file);
+            if (hash(content).equals(contentHash)) {
+                file.setLastModified(System.currentTimeMillis());
+                return content;
+            }
+            Timber.w("Stored content %s is corrupt", contentHash);
+        } catch (IOException e) {
+            Timber.e(e, "Failed to read content %s", contentHash);
+        }
+
+        remove(contentHash);
+        return null;
+    }
+
+    /**
+     * Store content, evicting the least recently used content as needed. Content larger than
+     * the store's size limit is not stored.
+     *
+     * @return the hash by which content is stored
+     */
+    public synchronized String put(@NonNull byte[] content) {
+        String contentHash = hash(content);
+
+        if (entries.containsKey(contentHash)) {
+            // Mark as recently used
+            entries.get(contentHash);
+            getFile(contentHash).setLastModified(System.currentTimeMillis());
+            return contentHash;
+        }
+
+        if (content.length > maxSizeBytes) return contentHash;
+
+        File tempFile = new File(directory, contentHash + TEMP_SUFFIX);
+        try {
+            Files.write(content, tempFile);
+            if (!tempFile.renameTo(getFile(contentHash)))
+                throw new IOException("Failed to rename " + tempFile.getName());
+        } catch (IOException e) {
+            Timber.e(e, "Failed to store content %s", contentHash);
+            tempFile.delete();
+            return contentHash;
+        }
+
+        entries.put(contentHash, (long) content.length);
+        sizeBytes += content.length;
+        trimToSize();
+
+        return contentHash;
+    }
+
+    public synchronized void remove(@NonNull String contentHash) {
+        Long size = entries.remove(contentHash);
+        if (size != null) sizeBytes -= size;
+
+        getFile(contentHash).delete();
+    }
+
+    public synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> leastRecent = entries.entrySet().iterator();
+
+        while (sizeBytes > maxSizeBytes && leastRecent.hasNext()) {
+            Map.Entry<String, Long> entry = leastRecent.next();
+            leastRecent.remove();
+            sizeBytes -= entry.getValue();
+            getFile(entry.getKey()).delete();
+        }
+    }
+
+    private synchronized void indexDirectory() {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return Long.compare(lhs.lastModified(), rhs.lastModified());
+            }
+        });
+
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                // Interrupted write
+                file.delete();
+                continue;
+            }
+            entries.put(file.getName(), file.length());
+            sizeBytes += file.length();
+        }
+        trimToSize();
+    }
+
+    private File getFile(String contentHash) {
+        return new File(directory, contentHash);
+    }
+}
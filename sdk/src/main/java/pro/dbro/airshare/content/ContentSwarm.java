@@ -0,0 +1,304 @@
+package pro.dbro.airshare.content;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import pro.dbro.airshare.session.DataTransferMessage;
+import pro.dbro.airshare.session.Peer;
+import pro.dbro.airshare.session.SessionMessage;
+import timber.log.Timber;
+
+/**
+ * Seeds content to, and downloads content from, any number of peers. Content is addressed by
+ * the content hash of its {@link pro.dbro.airshare.content.ContentManifest}.
+ *
+ * Peers exchange {@link pro.dbro.airshare.session.DataTransferMessage}s whose
+ * {@link pro.dbro.airshare.session.DataTransferMessage#HEADER_EXTRA} carries an
+ * {@link #EXTRA_SWARM} entry:
+ *
+ * <ul>
+ *     <li>{@link #SWARM_WANT} asks a peer whether it has the content with a hash</li>
+ *     <li>{@link #SWARM_HAVE} answers with the content's manifest</li>
+ *     <li>{@link #SWARM_GET} requests a run of pieces</li>
+ *     <li>{@link #SWARM_PIECES} delivers a run of pieces as its body</li>
+ * </ul>
+ *
+ * A download requests disjoint runs of pieces from every peer that has the content, so each
+ * seeder's link carries a share of the content in parallel.
+ *
+ * Not thread safe. All methods must be called on the thread that delivers session events.
+ */
+public class ContentSwarm {
+
+    public interface DownloadListener {
+
+        void onDownloadProgress(@NonNull SwarmDownload download, float progress);
+
+        void onDownloadComplete(@NonNull SwarmDownload download, @NonNull byte[] content);
+    }
+
+    public static final String EXTRA_SWARM       = "swarm";
+    public static final String EXTRA_PIECE_INDEX = "piece-index";
+    public static final String EXTRA_PIECE_COUNT = "piece-count";
+
+    public static final String SWARM_WANT   = "want";
+    public static final String SWARM_HAVE   = "have";
+    public static final String SWARM_GET    = "get";
+    public static final String SWARM_PIECES = "pieces";
+
+    private static class SeededContent {
+        final ContentManifest manifest;
+        final byte[]          content;
+
+        SeededContent(ContentManifest manifest, byte[] content) {
+            this.manifest = manifest;
+            this.content  = content;
+        }
+    }
+
+    private final MessageSender                     sender;
+    private final HashMap<String, SeededContent>    seededContent = new HashMap<>();
+    private final HashMap<String, SwarmDownload>    downloads     = new HashMap<>();
+    private final HashMap<String, DownloadListener> listeners     = new HashMap<>();
+
+    public ContentSwarm(@NonNull MessageSender sender) {
+        this.sender = sender;
+    }
+
+    /**
+     * @return whether message belongs to the swarm protocol, and so should be passed to
+     * {@link #onMessageReceived(pro.dbro.airshare.session.DataTransferMessage, pro.dbro.airshare.session.Peer)}
+     * rather than reported as application data
+     */
+    public static boolean isSwarmMessage(@NonNull SessionMessage message) {
+        Map<String, Object> extras = DataTransferMessage.getExtras(message);
+        return extras != null && extras.containsKey(EXTRA_SWARM);
+    }
+
+    /**
+     * Serve content to peers that request it, until {@link #stopSeeding(String)}
+     */
+    public void seed(@NonNull ContentManifest manifest, @NonNull byte[] content) {
+        seededContent.put(manifest.getContentHash(), new SeededContent(manifest, content));
+    }
+
+    public void stopSeeding(@NonNull String contentHash) {
+        seededContent.remove(contentHash);
+    }
+
+    /**
+     * Download content with contentHash from any of peers that have it. Peers that connect
+     * later may be added with {@link #onPeerConnected(pro.dbro.airshare.session.Peer)}
+     */
+    public SwarmDownload download(@NonNull String contentHash,
+                                  @NonNull Collection<Peer> peers,
+                                  @NonNull DownloadListener listener) {
+
+        SwarmDownload download = downloads.get(contentHash);
+        if (download == null) {
+            download = new SwarmDownload(contentHash);
+            downloads.put(contentHash, download);
+        }
+        listeners.put(contentHash, listener);
+
+        for (Peer peer : peers)
+            sendWant(contentHash, peer);
+
+        return download;
+    }
+
+    public void cancelDownload(@NonNull String contentHash) {
+        downloads.remove(contentHash);
+        listeners.remove(contentHash);
+    }
+
+    /**
+     * Ask a newly connected peer for the content of each active download
+     */
+    public void onPeerConnected(@NonNull Peer peer) {
+        for (String contentHash : downloads.keySet())
+            sendWant(contentHash, peer);
+    }
+
+    /**
+     * Request pieces outstanding with a departed peer from the remaining seeders
+     */
+    public void onPeerDisconnected(@NonNull Peer peer) {
+        for (SwarmDownload download : new ArrayList<>(downloads.values())) {
+            if (!download.hasSeeder(peer)) continue;
+
+            download.removeSeeder(peer);
+            requestPieces(download);
+        }
+    }
+
+    /**
+     * Handle a swarm protocol message. See {@link #isSwarmMessage(pro.dbro.airshare.session.SessionMessage)}
+     */
+    public void onMessageReceived(@NonNull DataTransferMessage message, @NonNull Peer sender) {
+        Map<String, Object> extras = DataTransferMessage.getExtras(message);
+        if (extras == null) return;
+
+        String swarmType   = getString(extras, EXTRA_SWARM);
+        String contentHash = getString(extras, ContentManifest.EXTRA_CONTENT_HASH);
+        if (swarmType == null || contentHash == null) return;
+
+        switch (swarmType) {
+
+            case SWARM_WANT:
+                SeededContent wanted = seededContent.get(contentHash);
+                if (wanted != null) sendHave(wanted.manifest, sender);
+                break;
+
+            case SWARM_HAVE:
+                onHaveReceived(contentHash, extras, sender);
+                break;
+
+            case SWARM_GET:
+                onGetReceived(contentHash, extras, sender);
+                break;
+
+            case SWARM_PIECES:
+                onPiecesReceived(message, contentHash, extras, sender);
+                break;
+
+            default:
+                Timber.w("Unknown swarm message %s from %s", swarmType, sender.getAlias());
+        }
+    }
+
+    private void onHaveReceived(String contentHash, Map<String, Object> extras, Peer seeder) {
+        SwarmDownload download = downloads.get(contentHash);
+        if (download == null || download.hasSeeder(seeder)) return;
+
+        ContentManifest manifest = ContentManifest.fromExtras(extras);
+        if (manifest == null || !download.addSeeder(seeder, manifest)) {
+            Timber.w("Ignoring invalid manifest for %s from %s", contentHash, seeder.getAlias());
+            return;
+        }
+
+        Timber.d("%s seeds %s", seeder.getAlias(), contentHash);
+        if (download.isComplete())
+            completeDownload(download); // Empty content
+        else
+            requestPieces(download);
+    }
+
+    private void onGetReceived(String contentHash, Map<String, Object> extras, Peer requester) {
+        SeededContent seeded = seededContent.get(contentHash);
+        if (seeded == null) return;
+
+        ContentManifest manifest = seeded.manifest;
+        int firstPiece = getInt(extras, EXTRA_PIECE_INDEX);
+        int pieceCount = getInt(extras, EXTRA_PIECE_COUNT);
+
+        if (firstPiece < 0 || pieceCount <= 0 || firstPiece >= manifest.getPieceCount()) {
+            Timber.w("Ignoring invalid request for %s from %s", contentHash, requester.getAlias());
+            return;
+        }
+        pieceCount = Math.min(pieceCount, manifest.getPieceCount() - firstPiece);
+
+        int start = manifest.getPieceOffset(firstPiece);
+        int end   = manifest.getPieceOffset(firstPiece + pieceCount - 1) +
+                    manifest.getPieceLength(firstPiece + pieceCount - 1);
+
+        HashMap<String, Object> responseExtras = createExtras(SWARM_PIECES, contentHash);
+        responseExtras.put(EXTRA_PIECE_INDEX, firstPiece);
+        responseExtras.put(EXTRA_PIECE_COUNT, pieceCount);
+
+        sender.sendMessage(DataTransferMessage.createOutgoing(responseExtras,
+                                                              Arrays.copyOfRange(seeded.content, start, end)),
+                           requester);
+    }
+
+    private void onPiecesReceived(DataTransferMessage message, String contentHash,
+                                  Map<String, Object> extras, Peer seeder) {
+
+        SwarmDownload download = downloads.get(contentHash);
+        if (download == null) return;
+
+        byte[] data = message.getBodyAtOffset(0, message.getBodyLengthBytes());
+        if (data == null) data = new byte[0];
+
+        boolean verified = download.onPiecesReceived(seeder,
+                                                     getInt(extras, EXTRA_PIECE_INDEX),
+                                                     getInt(extras, EXTRA_PIECE_COUNT),
+                                                     data);
+        if (!verified) {
+            // Pieces were released to other seeders. Stop trusting this one
+            Timber.w("Pieces of %s from %s failed verification", contentHash, seeder.getAlias());
+            download.removeSeeder(seeder);
+        }
+
+        if (download.isComplete()) {
+            completeDownload(download);
+            return;
+        }
+
+        DownloadListener listener = listeners.get(contentHash);
+        if (listener != null) listener.onDownloadProgress(download, download.getProgress());
+
+        requestPieces(download);
+    }
+
+    /**
+     * Keep every seeder of download busy with requests for unrequested pieces
+     */
+    private void requestPieces(SwarmDownload download) {
+        for (Peer seeder : download.getSeeders()) {
+            SwarmDownload.Request request;
+            while ((request = download.nextRequest(seeder)) != null) {
+                HashMap<String, Object> extras = createExtras(SWARM_GET, download.getContentHash());
+                extras.put(EXTRA_PIECE_INDEX, request.firstPiece);
+                extras.put(EXTRA_PIECE_COUNT, request.pieceCount);
+
+                sender.sendMessage(DataTransferMessage.createOutgoing(extras, null), seeder);
+            }
+        }
+    }
+
+    private void completeDownload(SwarmDownload download) {
+        Timber.d("Downloaded %s", download.getContentHash());
+        downloads.remove(download.getContentHash());
+
+        DownloadListener listener = listeners.remove(download.getContentHash());
+        if (listener != null) listener.onDownloadComplete(download, download.getContent());
+    }
+
+    private void sendWant(String contentHash, Peer peer) {
+        sender.sendMessage(DataTransferMessage.createOutgoing(createExtras(SWARM_WANT, contentHash), null), peer);
+    }
+
+    private void sendHave(ContentManifest manifest, Peer peer) {
+        HashMap<String, Object> extras = createExtras(SWARM_HAVE, manifest.getContentHash());
+        manifest.writeExtras(extras);
+
+        sender.sendMessage(DataTransferMessage.createOutgoing(extras, null), peer);
+    }
+
+    private static HashMap<String, Object> createExtras(String swarmType, String contentHash) {
+        HashMap<String, Object> extras = new HashMap<>();
+        extras.put(EXTRA_SWARM, swarmType);
+        extras.put(ContentManifest.EXTRA_CONTENT_HASH, contentHash);
+        return extras;
+    }
+
+    /**
+     * @return the string at key, or null if absent or not a string, as may be sent by a faulty peer
+     */
+    private static @Nullable String getString(Map<String, Object> extras, String key) {
+        Object value = extras.get(key);
+        return value instanceof String ? (String) value : null;
+    }
+
+    private static int getInt(Map<String, Object> extras, String key) {
+        Object value = extras.get(key);
+        return value instanceof Integer ? (int) value : -1;
+    }
+}
@@ -0,0 +1,134 @@
+package pro.dbro.airshare.content;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes content as the difference from a prior version described by
+ * {@link pro.dbro.airshare.content.BlockSignatures}, and rebuilds the content from the prior
+ * version and that difference.
+ *
+ * A delta is a sequence of operations, each a one byte code followed by two big-endian ints:
+ *
+ * <ul>
+ *     <li>{@link #OP_COPY} first block index, block count: copy a run of prior blocks</li>
+ *     <li>{@link #OP_LITERAL} length, unused: followed by length literal bytes</li>
+ * </ul>
+ */
+public class Delta {
+
+    static final byte OP_COPY    = 1;
+    static final byte OP_LITERAL = 2;
+
+    private static final int OP_HEADER_BYTES = 1 + 4 + 4;
+
+    /**
+     * @return the delta transforming the prior version described by signatures into content
+     */
+    public static byte[] encode(@NonNull BlockSignatures signatures, @NonNull byte[] content) {
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        int blockSize = signatures.getBlockSizeBytes();
+
+        int literalStart = 0;
+        int copyBlock    = -1;
+        int copyCount    = 0;
+        int offset       = 0;
+
+        RollingChecksum checksum = null;
+
+        while (offset + blockSize <= content.length && signatures.getBlockCount() > 0) {
+            if (checksum == null) checksum = new RollingChecksum(content, offset, blockSize);
+
+            int block = signatures.findBlock(checksum.getValue(), content, offset);
+            if (block == -1) {
+                // Slide past a byte that will be sent literally
+                if (offset + blockSize < content.length)
+                    checksum.roll(content[offset], content[offset + blockSize]);
+                offset++;
+                continue;
+            }
+
+            if (literalStart < offset || (copyCount > 0 && block != copyBlock + copyCount)) {
+                writeCopy(delta, copyBlock, copyCount);
+                copyCount = 0;
+            }
+            writeLiteral(delta, content, literalStart, offset - literalStart);
+
+            if (copyCount == 0) copyBlock = block;
+            copyCount++;
+
+            offset      += blockSize;
+            literalStart = offset;
+            checksum     = null;
+        }
+
+        writeCopy(delta, copyBlock, copyCount);
+        writeLiteral(delta, content, literalStart, content.length - literalStart);
+
+        return delta.toByteArray();
+    }
+
+    /**
+     * @return the content produced by applying delta to basis, which was divided into blocks of
+     * blockSizeBytes, or null if delta is malformed or refers to blocks basis does not have
+     */
+    public static @Nullable byte[] apply(@NonNull byte[] basis, int blockSizeBytes, @NonNull byte[] delta) {
+        ByteArrayOutputStream content = new ByteArrayOutputStream(basis.length);
+        ByteBuffer operations = ByteBuffer.wrap(delta);
+
+        try {
+            while (operations.hasRemaining()) {
+                byte op   = operations.get();
+                int first = operations.getInt();
+                int count = operations.getInt();
+
+                switch (op) {
+
+                    case OP_COPY:
+                        long start = (long) first * blockSizeBytes;
+                        long end   = start + (long) count * blockSizeBytes;
+                        if (first < 0 || count < 0 || end > basis.length) return null;
+
+                        content.write(basis, (int) start, (int) (end - start));
+                        break;
+
+                    case OP_LITERAL:
+                        if (first < 0 || first > operations.remaining()) return null;
+
+                        content.write(delta, operations.position(), first);
+                        operations.position(operations.position() + first);
+                        break;
+
+                    default:
+                        return null;
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+        return content.toByteArray();
+    }
+
+    private static void writeCopy(ByteArrayOutputStream delta, int firstBlock, int blockCount) {
+        if (blockCount == 0) return;
+        writeOp(delta, OP_COPY, firstBlock, blockCount);
+    }
+
+    private static void writeLiteral(ByteArrayOutputStream delta, byte[] content, int offset, int length) {
+        if (length == 0) return;
+        writeOp(delta, OP_LITERAL, length, 0);
+        delta.write(content, offset, length);
+    }
+
+    private static void writeOp(ByteArrayOutputStream delta, byte op, int first, int second) {
+        delta.write(ByteBuffer.allocate(OP_HEADER_BYTES)
+                              .put(op)
+                              .putInt(first)
+                              .putInt(second)
+                              .array(), 0, OP_HEADER_BYTES);
+    }
+}
@@ -0,0 +1,14 @@
+package pro.dbro.airshare.content;
+
+import android.support.annotation.NonNull;
+
+import pro.dbro.airshare.session.DataTransferMessage;
+import pro.dbro.airshare.session.Peer;
+
+/**
+ * Sends the control and data messages of content protocols such as
+ * {@link pro.dbro.airshare.content.ContentSwarm}
+ */
+public interface MessageSender {
+    void sendMessage(@NonNull DataTransferMessage message, @NonNull Peer recipient);
+}
@@ -0,0 +1,51 @@
+package pro.dbro.airshare.content;
+
+/**
+ * The rsync weak checksum of a fixed size window of bytes. Sliding the window forward by one
+ * byte updates the checksum in constant time, so every offset of new content can be checked
+ * against the blocks of a prior version cheaply. Matches must be confirmed with a strong hash.
+ */
+public class RollingChecksum {
+
+    private final int windowLength;
+    private int a;
+    private int b;
+
+    /**
+     * Checksum the window of windowLength bytes of data from offset
+     */
+    public RollingChecksum(byte[] data, int offset, int windowLength) {
+        this.windowLength = windowLength;
+
+        for (int i = 0; i < windowLength; i++) {
+            int value = data[offset + i] & 0xFF;
+            a += value;
+            b += (windowLength - i) * value;
+        }
+        a &= 0xFFFF;
+        b &= 0xFFFF;
+    }
+
+    /**
+     * @return the checksum of windowLength bytes of data from offset
+     */
+    public static int of(byte[] data, int offset, int windowLength) {
+        return new RollingChecksum(data, offset, windowLength).getValue();
+    }
+
+    /**
+     * Slide the window forward one byte, removing outByte from its start and
+     * appending inByte to its end
+     */
+    public void roll(byte outByte, byte inByte) {
+        int out = outByte & 0xFF;
+        int in  = inByte  & 0xFF;
+
+        a = (a - out + in) & 0xFFFF;
+        b = (b - windowLength * out + a) & 0xFFFF;
+    }
+
+    public int getValue() {
+        return (b << 16) | a;
+    }
+}
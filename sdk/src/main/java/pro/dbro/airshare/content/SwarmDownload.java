@@ -0,0 +1,195 @@
+package pro.dbro.airshare.content;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+
+import pro.dbro.airshare.session.Peer;
+
+/**
+ * Download of content described by a {@link pro.dbro.airshare.content.ContentManifest} from
+ * any number of seeding peers at once. Each seeder is asked for disjoint runs of pieces, and
+ * each piece is verified against the manifest as it arrives. Pieces requested from a seeder
+ * that leaves, or that fail verification, are requested again from the remaining seeders.
+ *
+ * Not thread safe. Used only by {@link pro.dbro.airshare.content.ContentSwarm}.
+ */
+public class SwarmDownload {
+
+    /** Pieces requested from a seeder in a single request */
+    static final int PIECES_PER_REQUEST = 4;
+
+    /** Requests outstanding with a single seeder, so each seeder's link stays busy */
+    static final int MAX_REQUESTS_PER_SEEDER = 2;
+
+    /** A run of pieces requested from a single seeder */
+    static class Request {
+        final int firstPiece;
+        final int pieceCount;
+
+        Request(int firstPiece, int pieceCount) {
+            this.firstPiece = firstPiece;
+            this.pieceCount = pieceCount;
+        }
+    }
+
+    private final String contentHash;
+    private ContentManifest manifest;
+    private byte[] content;
+
+    /** Seeder of each outstanding piece. Null for pieces neither requested nor verified */
+    private Peer[] pieceSeeders;
+    private boolean[] verifiedPieces;
+    private int verifiedPieceCount;
+
+    /** Seeder -> Number of outstanding requests */
+    private final HashMap<Peer, Integer> seederRequests = new HashMap<>();
+
+    SwarmDownload(@NonNull String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * @return the manifest, or null until a seeder has provided one
+     */
+    public @Nullable ContentManifest getManifest() {
+        return manifest;
+    }
+
+    public float getProgress() {
+        if (manifest == null) return 0;
+        if (manifest.getPieceCount() == 0) return 1;
+
+        return verifiedPieceCount / (float) manifest.getPieceCount();
+    }
+
+    public boolean isComplete() {
+        return manifest != null && verifiedPieceCount == manifest.getPieceCount();
+    }
+
+    /**
+     * @return the downloaded content, or null if not yet complete
+     */
+    public @Nullable byte[] getContent() {
+        return isComplete() ? content : null;
+    }
+
+    /**
+     * Add a peer advertising manifest as a seeder
+     *
+     * @return false if manifest describes other content
+     */
+    boolean addSeeder(@NonNull Peer seeder, @NonNull ContentManifest manifest) {
+        if (!contentHash.equals(manifest.getContentHash())) return false;
+
+        if (this.manifest == null) {
+            this.manifest  = manifest;
+            content        = new byte[manifest.getLengthBytes()];
+            pieceSeeders   = new Peer[manifest.getPieceCount()];
+            verifiedPieces = new boolean[manifest.getPieceCount()];
+        }
+
+        if (!seederRequests.containsKey(seeder))
+            seederRequests.put(seeder, 0);
+
+        return true;
+    }
+
+    /**
+     * Remove seeder, making any pieces outstanding with it available to other seeders
+     */
+    void removeSeeder(@NonNull Peer seeder) {
+        if (seederRequests.remove(seeder) == null) return;
+
+        for (int piece = 0; piece < pieceSeeders.length; piece++) {
+            if (seeder.equals(pieceSeeders[piece]) && !verifiedPieces[piece])
+                pieceSeeders[piece] = null;
+        }
+    }
+
+    boolean hasSeeder(@NonNull Peer peer) {
+        return seederRequests.containsKey(peer);
+    }
+
+    /**
+     * @return the next run of unrequested pieces to request from seeder, or null if seeder
+     * has enough requests outstanding or no unrequested pieces remain
+     */
+    @Nullable Request nextRequest(@NonNull Peer seeder) {
+        Integer outstanding = seederRequests.get(seeder);
+        if (outstanding == null || outstanding >= MAX_REQUESTS_PER_SEEDER) return null;
+
+        int firstPiece = -1;
+        int pieceCount = 0;
+
+        for (int piece = 0; piece < pieceSeeders.length && pieceCount < PIECES_PER_REQUEST; piece++) {
+            boolean available = pieceSeeders[piece] == null && !verifiedPieces[piece];
+
+            if (available) {
+                if (firstPiece == -1) firstPiece = piece;
+                pieceCount++;
+            } else if (firstPiece != -1)
+                break; // Requests cover contiguous pieces
+        }
+
+        if (firstPiece == -1) return null;
+
+        for (int piece = firstPiece; piece < firstPiece + pieceCount; piece++)
+            pieceSeeders[piece] = seeder;
+        seederRequests.put(seeder, outstanding + 1);
+
+        return new Request(firstPiece, pieceCount);
+    }
+
+    /**
+     * Verify and store pieces received from seeder in response to a request for pieceCount
+     * pieces from firstPiece. Requested pieces that are missing or fail verification are made
+     * available to request again
+     *
+     * @return false if any requested piece was missing or failed verification
+     */
+    boolean onPiecesReceived(@NonNull Peer seeder, int firstPiece, int pieceCount, @NonNull byte[] data) {
+        Integer outstanding = seederRequests.get(seeder);
+        if (outstanding != null && outstanding > 0)
+            seederRequests.put(seeder, outstanding - 1);
+
+        if (manifest == null || firstPiece < 0 || pieceCount < 0) return false;
+
+        int lastPiece = Math.min(firstPiece + pieceCount, manifest.getPieceCount());
+        boolean allVerified = true;
+        int dataOffset = 0;
+
+        for (int piece = firstPiece; piece < lastPiece; piece++) {
+            int pieceLength = manifest.getPieceLength(piece);
+
+            if (!seeder.equals(pieceSeeders[piece]) || verifiedPieces[piece]) {
+                // Not requested from this seeder, or already delivered by another
+                dataOffset += pieceLength;
+                continue;
+            }
+
+            if (manifest.verifyPiece(piece, data, dataOffset)) {
+                System.arraycopy(data, dataOffset, content, manifest.getPieceOffset(piece), pieceLength);
+                verifiedPieces[piece] = true;
+                verifiedPieceCount++;
+            } else {
+                pieceSeeders[piece] = null;
+                allVerified = false;
+            }
+            dataOffset += pieceLength;
+        }
+        return allVerified;
+    }
+
+    /**
+     * @return the seeders of this download
+     */
+    Iterable<Peer> getSeeders() {
+        return seederRequests.keySet();
+    }
+}
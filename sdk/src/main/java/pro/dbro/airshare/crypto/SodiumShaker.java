@@ -1,10 +1,15 @@
 package pro.dbro.airshare.crypto;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import org.abstractj.kalium.NaCl;
 import org.abstractj.kalium.Sodium;
 
+import java.io.ByteArrayOutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
 /**
  * Wrapper around libsodium functions.
  *
@@ -17,6 +22,12 @@ public class SodiumShaker {
     private static final int crypto_sign_SECRETKEYBYTES = 64;
     public static final int crypto_sign_BYTES = 64;
 
+    private static final int crypto_scalarmult_curve25519_BYTES = 32;
+    public static final int crypto_generichash_blake2b_BYTES = 32;
+    public static final int crypto_aead_chacha20poly1305_KEYBYTES = 32;
+    public static final int crypto_aead_chacha20poly1305_NPUBBYTES = 8;
+    public static final int crypto_aead_chacha20poly1305_ABYTES = 16;
+
     static {
         // Load native libraries
         NaCl.sodium();
@@ -60,4 +71,116 @@ public class SodiumShaker {
         }
         return true;
     }
+
+    /**
+     * Derive a symmetric key shared by the holders of two Ed25519 keypairs. Both parties
+     * derive the same key by converting their keys to X25519 and performing a Diffie-Hellman
+     * exchange. The raw shared secret is hashed together with both public keys so the result
+     * is bound to this particular pair of identities.
+     *
+     * @param localSecretKey the local Ed25519 secret key
+     * @param localPublicKey the local Ed25519 public key
+     * @param remotePublicKey the remote Ed25519 public key
+     * @return a key of {@link #crypto_aead_chacha20poly1305_KEYBYTES} bytes
+     */
+    public static byte[] deriveSharedKey(@NonNull byte[] localSecretKey,
+                                         @NonNull byte[] localPublicKey,
+                                         @NonNull byte[] remotePublicKey) throws GeneralSecurityException {
+
+        if (localSecretKey.length != crypto_sign_SECRETKEYBYTES) throw new IllegalArgumentException("localSecretKey is incorrect length");
+        if (remotePublicKey.length != crypto_sign_PUBLICKEYBYTES) throw new IllegalArgumentException("remotePublicKey is incorrect length");
+
+        byte[] curveSecretKey = new byte[crypto_scalarmult_curve25519_BYTES];
+        byte[] curvePublicKey = new byte[crypto_scalarmult_curve25519_BYTES];
+        byte[] sharedSecret   = new byte[crypto_scalarmult_curve25519_BYTES];
+
+        try {
+            Sodium.crypto_sign_ed25519_sk_to_curve25519(curveSecretKey, localSecretKey);
+
+            if (Sodium.crypto_sign_ed25519_pk_to_curve25519(curvePublicKey, remotePublicKey) != 0)
+                throw new GeneralSecurityException("Remote public key is not a valid Ed25519 key");
+
+            if (Sodium.crypto_scalarmult_curve25519(sharedSecret, curveSecretKey, curvePublicKey) != 0)
+                throw new GeneralSecurityException("Key exchange failed");
+
+            // Order public keys so both parties hash identical input
+            boolean localFirst = compareKeys(localPublicKey, remotePublicKey) < 0;
+
+            ByteArrayOutputStream keyMaterial = new ByteArrayOutputStream();
+            keyMaterial.write(sharedSecret, 0, sharedSecret.length);
+            keyMaterial.write(localFirst ? localPublicKey : remotePublicKey, 0, crypto_sign_PUBLICKEYBYTES);
+            keyMaterial.write(localFirst ? remotePublicKey : localPublicKey, 0, crypto_sign_PUBLICKEYBYTES);
+
+            return generichash(keyMaterial.toByteArray(), null, crypto_aead_chacha20poly1305_KEYBYTES);
+        } finally {
+            Arrays.fill(curveSecretKey, (byte) 0);
+            Arrays.fill(sharedSecret, (byte) 0);
+        }
+    }
+
+    /**
+     * BLAKE2b hash of input, optionally keyed.
+     */
+    public static byte[] generichash(@NonNull byte[] input, @Nullable byte[] key, int outputLength) {
+        byte[] output = new byte[outputLength];
+        Sodium.crypto_generichash_blake2b(output, outputLength,
+                                          input, input.length,
+                                          key, key == null ? 0 : key.length);
+        return output;
+    }
+
+    /**
+     * Encrypt and authenticate plaintext with ChaCha20-Poly1305.
+     * The nonce must never be reused with the same key.
+     *
+     * @return ciphertext {@link #crypto_aead_chacha20poly1305_ABYTES} longer than plaintext
+     */
+    public static byte[] encryptAead(@NonNull byte[] key, @NonNull byte[] nonce,
+                                     @NonNull byte[] plaintext, @NonNull byte[] additionalData) {
+
+        if (key.length != crypto_aead_chacha20poly1305_KEYBYTES) throw new IllegalArgumentException("key is incorrect length");
+        if (nonce.length != crypto_aead_chacha20poly1305_NPUBBYTES) throw new IllegalArgumentException("nonce is incorrect length");
+
+        byte[] ciphertext = new byte[plaintext.length + crypto_aead_chacha20poly1305_ABYTES];
+        int[] ciphertext_len = new int[1];
+
+        Sodium.crypto_aead_chacha20poly1305_encrypt(ciphertext, ciphertext_len,
+                                                    plaintext, plaintext.length,
+                                                    additionalData, additionalData.length,
+                                                    null, nonce, key);
+        return ciphertext;
+    }
+
+    /**
+     * Verify and decrypt ciphertext produced by {@link #encryptAead(byte[], byte[], byte[], byte[])}
+     *
+     * @throws GeneralSecurityException if the ciphertext or additional data was tampered with
+     */
+    public static byte[] decryptAead(@NonNull byte[] key, @NonNull byte[] nonce,
+                                     @NonNull byte[] ciphertext, @NonNull byte[] additionalData) throws GeneralSecurityException {
+
+        if (ciphertext.length < crypto_aead_chacha20poly1305_ABYTES)
+            throw new GeneralSecurityException("Ciphertext too short");
+
+        byte[] plaintext = new byte[ciphertext.length - crypto_aead_chacha20poly1305_ABYTES];
+        int[] plaintext_len = new int[1];
+
+        if (Sodium.crypto_aead_chacha20poly1305_decrypt(plaintext, plaintext_len, null,
+                                                        ciphertext, ciphertext.length,
+                                                        additionalData, additionalData.length,
+                                                        nonce, key) != 0) {
+            /* Forged or corrupt ciphertext! */
+            throw new GeneralSecurityException("Ciphertext failed authentication");
+        }
+        return plaintext;
+    }
+
+    /** Lexicographic comparison of unsigned key bytes */
+    private static int compareKeys(byte[] first, byte[] second) {
+        for (int i = 0; i < Math.min(first.length, second.length); i++) {
+            int diff = (first[i] & 0xFF) - (second[i] & 0xFF);
+            if (diff != 0) return diff;
+        }
+        return first.length - second.length;
+    }
 }
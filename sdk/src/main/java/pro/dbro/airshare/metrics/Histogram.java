@@ -0,0 +1,126 @@
+package pro.dbro.airshare.metrics;
+
+import java.util.Arrays;
+
+/**
+ * A fixed-size histogram of non-negative long values with log-linear buckets, in the
+ * manner of HdrHistogram. Each power of two is divided into {@link #SUB_BUCKETS} linear
+ * buckets, so any recorded value is reported within 12.5% of its true value.
+ *
+ * Recording never allocates. Instances are not thread-safe.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS     = 1 << SUB_BUCKET_BITS;
+
+    /** Values larger than 2^40 (about 12 days in microseconds) are clamped */
+    private static final int  MAX_VALUE_BITS = 40;
+    private static final long MAX_VALUE      = (1L << MAX_VALUE_BITS) - 1;
+
+    private static final int BUCKET_COUNT = bucketIndex(MAX_VALUE) + 1;
+
+    private final long[] counts;
+    private long totalCount;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    public Histogram() {
+        counts = new long[BUCKET_COUNT];
+    }
+
+    private Histogram(Histogram other) {
+        counts     = Arrays.copyOf(other.counts, other.counts.length);
+        totalCount = other.totalCount;
+        sum        = other.sum;
+        min        = other.min;
+        max        = other.max;
+    }
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        else if (value > MAX_VALUE) value = MAX_VALUE;
+
+        counts[bucketIndex(value)]++;
+        totalCount++;
+        sum += value;
+        if (value < min) min = value;
+        if (value > max) max = value;
+    }
+
+    /**
+     * Add all values recorded by other to this histogram
+     */
+    public void add(Histogram other) {
+        for (int i = 0; i < counts.length; i++)
+            counts[i] += other.counts[i];
+
+        totalCount += other.totalCount;
+        sum        += other.sum;
+        min         = Math.min(min, other.min);
+        max         = Math.max(max, other.max);
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+        sum        = 0;
+        min        = Long.MAX_VALUE;
+        max        = 0;
+    }
+
+    public Histogram copy() {
+        return new Histogram(this);
+    }
+
+    public long getCount() {
+        return totalCount;
+    }
+
+    public long getMin() {
+        return totalCount == 0 ? 0 : min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return totalCount == 0 ? 0 : ((double) sum) / totalCount;
+    }
+
+    /**
+     * @param percentile a value between 0 and 100
+     * @return a value no less than percentile percent of recorded values, or 0 if none recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) return 0;
+
+        long countAtPercentile = Math.max(1, (long) Math.ceil((percentile / 100) * totalCount));
+        long countToIndex = 0;
+
+        for (int i = 0; i < counts.length; i++) {
+            countToIndex += counts[i];
+            if (countToIndex >= countAtPercentile)
+                return Math.min(max, highestValueInBucket(i));
+        }
+        return max;
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+    }
+
+    private static long highestValueInBucket(int index) {
+        if (index < SUB_BUCKETS) return index;
+
+        int shift     = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+}
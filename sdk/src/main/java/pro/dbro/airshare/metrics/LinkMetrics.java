@@ -0,0 +1,204 @@
+package pro.dbro.airshare.metrics;
+
+/**
+ * Counters describing traffic over a link, either with a single peer or over a single
+ * transport. Instances returned by {@link pro.dbro.airshare.metrics.SessionMetrics} are
+ * snapshots and are not updated as traffic continues.
+ *
+ * Durations are in microseconds.
+ */
+public class LinkMetrics {
+
+    final Meter     bytesSent;
+    final Meter     bytesReceived;
+    final Histogram chunkRttMicros;
+    final Histogram serializeMicros;
+    final Histogram deserializeMicros;
+    final Histogram scheduleWaitMicros;
+
+    long chunksSent;
+    long chunksReceived;
+    long chunksSaved;
+    long chunksDiscarded;
+    long chunksCorrupt;
+    long retries;
+    long streamRestarts;
+    long sendFailures;
+    int  mtu;
+    int  queueDepth;
+    long windowBytes;
+    long smoothedRttMicros = -1;
+    long minRttMicros      = -1;
+
+    /** Time at which a snapshot was taken, or 0 if live */
+    private long snapshotNanos;
+
+    LinkMetrics() {
+        bytesSent         = new Meter();
+        bytesReceived     = new Meter();
+        chunkRttMicros    = new Histogram();
+        serializeMicros   = new Histogram();
+        deserializeMicros = new Histogram();
+        scheduleWaitMicros = new Histogram();
+    }
+
+    private LinkMetrics(LinkMetrics other, long snapshotNanos) {
+        bytesSent         = other.bytesSent.copy();
+        bytesReceived     = other.bytesReceived.copy();
+        chunkRttMicros    = other.chunkRttMicros.copy();
+        serializeMicros   = other.serializeMicros.copy();
+        deserializeMicros = other.deserializeMicros.copy();
+        scheduleWaitMicros = other.scheduleWaitMicros.copy();
+        chunksSent        = other.chunksSent;
+        chunksReceived    = other.chunksReceived;
+        chunksSaved       = other.chunksSaved;
+        chunksDiscarded   = other.chunksDiscarded;
+        chunksCorrupt     = other.chunksCorrupt;
+        retries           = other.retries;
+        streamRestarts    = other.streamRestarts;
+        sendFailures      = other.sendFailures;
+        mtu               = other.mtu;
+        queueDepth        = other.queueDepth;
+        windowBytes       = other.windowBytes;
+        smoothedRttMicros = other.smoothedRttMicros;
+        minRttMicros      = other.minRttMicros;
+        this.snapshotNanos = snapshotNanos;
+    }
+
+    LinkMetrics snapshot(long nowNanos) {
+        return new LinkMetrics(this, nowNanos);
+    }
+
+    public long getBytesSent() {
+        return bytesSent.getTotal();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.getTotal();
+    }
+
+    public double getBytesSentPerSecond() {
+        return bytesSent.getRate(snapshotNanos);
+    }
+
+    public double getBytesReceivedPerSecond() {
+        return bytesReceived.getRate(snapshotNanos);
+    }
+
+    public long getChunksSent() {
+        return chunksSent;
+    }
+
+    public long getChunksReceived() {
+        return chunksReceived;
+    }
+
+    /**
+     * @return the number of chunks not sent because messages shared a chunk with the
+     * message before them, through packing and coalescing
+     */
+    public long getChunksSaved() {
+        return chunksSaved;
+    }
+
+    /**
+     * @return the number of incoming chunks discarded as duplicates, or because too many
+     * chunks were already held awaiting a missing chunk before them
+     */
+    public long getChunksDiscarded() {
+        return chunksDiscarded;
+    }
+
+    /** @return the number of incoming chunks discarded because they were damaged */
+    public long getChunksCorrupt() {
+        return chunksCorrupt;
+    }
+
+    /**
+     * @return the number of chunks sent again because their acknowledgement timed out, or the
+     * receiver reported them missing
+     */
+    public long getRetries() {
+        return retries;
+    }
+
+    /**
+     * @return the number of times an outgoing stream stopped being acknowledged, or could not be
+     * repaired, and was restarted from the message in progress
+     */
+    public long getStreamRestarts() {
+        return streamRestarts;
+    }
+
+    public long getSendFailures() {
+        return sendFailures;
+    }
+
+    /** @return the most recently observed MTU, or 0 if unlimited */
+    public int getMtu() {
+        return mtu;
+    }
+
+    /** @return the most recently observed count of outgoing messages awaiting delivery */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return the most recently observed congestion window: the bytes that may await
+     * acknowledgement, or 0 if nothing was sent
+     */
+    public long getWindowBytes() {
+        return windowBytes;
+    }
+
+    /** @return the most recently observed smoothed round trip time, or -1 if none was measured */
+    public long getSmoothedRttMicros() {
+        return smoothedRttMicros;
+    }
+
+    /**
+     * @return the most recently observed least round trip time, taken as the link's round trip
+     * time without queuing. -1 if none was measured
+     */
+    public long getMinRttMicros() {
+        return minRttMicros;
+    }
+
+    /** @return time between handing a chunk to the transport and its acknowledgement */
+    public Histogram getChunkRttMicros() {
+        return chunkRttMicros;
+    }
+
+    /** @return time spent producing each outgoing chunk */
+    public Histogram getSerializeMicros() {
+        return serializeMicros;
+    }
+
+    /** @return time spent consuming each incoming chunk */
+    public Histogram getDeserializeMicros() {
+        return deserializeMicros;
+    }
+
+    /**
+     * @return time between having a chunk ready to send and being scheduled to send it, while
+     * other links compete for the same transport. Bounded for every link if none starves
+     */
+    public Histogram getScheduleWaitMicros() {
+        return scheduleWaitMicros;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LinkMetrics{sent=%d B (%.0f B/s), received=%d B (%.0f B/s), " +
+                             "rtt p50/p99=%d/%d us, wait p99=%d us, retries=%d, restarts=%d, failures=%d, saved=%d, " +
+                             "discarded=%d, corrupt=%d, mtu=%d, queue=%d, window=%d B, srtt/min rtt=%d/%d us}",
+                             getBytesSent(), getBytesSentPerSecond(),
+                             getBytesReceived(), getBytesReceivedPerSecond(),
+                             chunkRttMicros.getValueAtPercentile(50),
+                             chunkRttMicros.getValueAtPercentile(99),
+                             scheduleWaitMicros.getValueAtPercentile(99),
+                             retries, streamRestarts, sendFailures, chunksSaved, chunksDiscarded, chunksCorrupt,
+                             mtu, queueDepth, windowBytes, smoothedRttMicros, minRttMicros);
+    }
+}
@@ -0,0 +1,68 @@
+package pro.dbro.airshare.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a running total and its recent rate per second.
+ *
+ * The rate is measured over consecutive windows of at least {@link #WINDOW_NANOS}, and
+ * reports the most recently completed window. Marking never allocates.
+ * Instances are not thread-safe.
+ */
+public class Meter {
+
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private long   total;
+    private long   windowStartNanos;
+    private long   windowCount;
+    private double lastRate;
+
+    public Meter() {}
+
+    private Meter(Meter other) {
+        total            = other.total;
+        windowStartNanos = other.windowStartNanos;
+        windowCount      = other.windowCount;
+        lastRate         = other.lastRate;
+    }
+
+    public void mark(long count, long nowNanos) {
+        if (windowStartNanos == 0) windowStartNanos = nowNanos;
+
+        long elapsed = nowNanos - windowStartNanos;
+        if (elapsed >= WINDOW_NANOS) {
+            lastRate = perSecond(windowCount, elapsed);
+            windowStartNanos = nowNanos;
+            windowCount = 0;
+        }
+        windowCount += count;
+        total += count;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return the rate per second over the most recent complete window. Decays toward zero
+     * once marks stop arriving.
+     */
+    public double getRate(long nowNanos) {
+        if (windowStartNanos == 0) return 0;
+
+        long elapsed = nowNanos - windowStartNanos;
+        if (elapsed < WINDOW_NANOS) return lastRate;
+
+        // The current window is overdue. Report it as if it had just closed
+        return perSecond(windowCount, elapsed);
+    }
+
+    public Meter copy() {
+        return new Meter(this);
+    }
+
+    private static double perSecond(long count, long elapsedNanos) {
+        return ((double) count) * WINDOW_NANOS / elapsedNanos;
+    }
+}
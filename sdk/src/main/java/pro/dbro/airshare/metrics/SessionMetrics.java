@@ -0,0 +1,276 @@
+package pro.dbro.airshare.metrics;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import pro.dbro.airshare.session.Peer;
+import pro.dbro.airshare.transport.Transport;
+
+/**
+ * Collects {@link pro.dbro.airshare.metrics.LinkMetrics} for each peer and each transport.
+ *
+ * Recording is fed by {@link pro.dbro.airshare.session.SessionManager} and does not allocate
+ * once a remote identifier has been seen, so metrics may be left enabled in production.
+ * Traffic with an identifier is attributed to a peer once that identifier is identified.
+ * Peer metrics are discarded once the last of the peer's identifiers disconnects.
+ */
+public class SessionMetrics {
+
+    private static class IdentifierState {
+        LinkMetrics transportMetrics;
+        LinkMetrics peerMetrics;
+        Peer        peer;
+    }
+
+    private final HashMap<Integer, LinkMetrics>     transportMetrics = new HashMap<>();
+    private final HashMap<Peer, LinkMetrics>        peerMetrics      = new HashMap<>();
+    private final HashMap<String, IdentifierState>  identifierStates = new HashMap<>();
+
+    // <editor-fold desc="Recording">
+
+    /**
+     * @param messageCount the number of messages with bytes in the chunk. Each beyond the first
+     *                     would otherwise have needed a chunk of its own
+     */
+    public synchronized void onChunkSerialized(Transport transport, String identifier,
+                                               long elapsedNanos, int mtu, int queueDepth,
+                                               int messageCount) {
+
+        IdentifierState state = getState(transport, identifier);
+        long micros = TimeUnit.NANOSECONDS.toMicros(elapsedNanos);
+        int chunksSaved = Math.max(0, messageCount - 1);
+
+        state.transportMetrics.serializeMicros.record(micros);
+        state.transportMetrics.mtu = mtu;
+        state.transportMetrics.chunksSaved += chunksSaved;
+        if (state.peerMetrics != null) {
+            state.peerMetrics.serializeMicros.record(micros);
+            state.peerMetrics.mtu = mtu;
+            state.peerMetrics.queueDepth = queueDepth;
+            state.peerMetrics.chunksSaved += chunksSaved;
+        }
+    }
+
+    /**
+     * Record that a chunk was handed to transport again, because its acknowledgement timed out
+     * or identifier reported it missing
+     */
+    public synchronized void onChunkResent(Transport transport, String identifier) {
+        IdentifierState state = getState(transport, identifier);
+
+        state.transportMetrics.retries++;
+        if (state.peerMetrics != null) state.peerMetrics.retries++;
+    }
+
+    /**
+     * Record that the stream to identifier was restarted because it stalled or could not be repaired
+     */
+    public synchronized void onStreamRestarted(Transport transport, String identifier) {
+        IdentifierState state = getState(transport, identifier);
+
+        state.transportMetrics.streamRestarts++;
+        if (state.peerMetrics != null) state.peerMetrics.streamRestarts++;
+    }
+
+    /**
+     * Record that a chunk to identifier was scheduled after waiting waitNanos for other
+     * identifiers sharing transport
+     */
+    public synchronized void onChunkScheduled(Transport transport, String identifier, long waitNanos) {
+        IdentifierState state = getState(transport, identifier);
+        long micros = TimeUnit.NANOSECONDS.toMicros(waitNanos);
+
+        state.transportMetrics.scheduleWaitMicros.record(micros);
+        if (state.peerMetrics != null) state.peerMetrics.scheduleWaitMicros.record(micros);
+    }
+
+    public synchronized void onChunkSendFailed(Transport transport, String identifier) {
+        IdentifierState state = getState(transport, identifier);
+
+        state.transportMetrics.sendFailures++;
+        if (state.peerMetrics != null) state.peerMetrics.sendFailures++;
+    }
+
+    /**
+     * @param rttNanos time between handing the chunk to transport and its acknowledgement,
+     *                 or -1 if it was handed over more than once
+     */
+    public synchronized void onChunkAcknowledged(Transport transport, String identifier,
+                                                 int length, long rttNanos, long nowNanos) {
+
+        IdentifierState state = getState(transport, identifier);
+        long rttMicros = rttNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(rttNanos);
+
+        recordAcknowledged(state.transportMetrics, length, rttMicros, nowNanos);
+        if (state.peerMetrics != null)
+            recordAcknowledged(state.peerMetrics, length, rttMicros, nowNanos);
+    }
+
+    /**
+     * Record the congestion window and round trip time estimates of the link to identifier
+     *
+     * @param smoothedRttNanos the smoothed round trip time, or -1 if none was measured
+     * @param minRttNanos      the least round trip time measured, or -1 if none
+     */
+    public synchronized void onCongestionUpdated(Transport transport, String identifier, long windowBytes,
+                                                 long smoothedRttNanos, long minRttNanos) {
+
+        IdentifierState state = getState(transport, identifier);
+
+        recordCongestion(state.transportMetrics, windowBytes, smoothedRttNanos, minRttNanos);
+        if (state.peerMetrics != null)
+            recordCongestion(state.peerMetrics, windowBytes, smoothedRttNanos, minRttNanos);
+    }
+
+    /**
+     * Record that an incoming chunk from identifier was discarded
+     *
+     * @param corrupt whether the chunk was damaged, rather than a duplicate
+     */
+    public synchronized void onChunkDiscarded(Transport transport, String identifier, boolean corrupt) {
+        IdentifierState state = getState(transport, identifier);
+
+        if (corrupt) {
+            state.transportMetrics.chunksCorrupt++;
+            if (state.peerMetrics != null) state.peerMetrics.chunksCorrupt++;
+        } else {
+            state.transportMetrics.chunksDiscarded++;
+            if (state.peerMetrics != null) state.peerMetrics.chunksDiscarded++;
+        }
+    }
+
+    public synchronized void onChunkReceived(Transport transport, String identifier, int length,
+                                             long deserializeNanos, long nowNanos) {
+
+        IdentifierState state = getState(transport, identifier);
+        long micros = TimeUnit.NANOSECONDS.toMicros(deserializeNanos);
+
+        recordReceived(state.transportMetrics, length, micros, nowNanos);
+        if (state.peerMetrics != null)
+            recordReceived(state.peerMetrics, length, micros, nowNanos);
+    }
+
+    /**
+     * Attribute future traffic with identifier to peer
+     */
+    public synchronized void onIdentifierIdentified(Transport transport, String identifier, Peer peer) {
+        LinkMetrics metrics = peerMetrics.get(peer);
+        if (metrics == null) {
+            metrics = new LinkMetrics();
+            peerMetrics.put(peer, metrics);
+        }
+        IdentifierState state = getState(transport, identifier);
+        state.peerMetrics = metrics;
+        state.peer        = peer;
+    }
+
+    /**
+     * Forget identifier, and its peer's metrics if the peer has no other identifier connected
+     */
+    public synchronized void onIdentifierDisconnected(String identifier) {
+        IdentifierState state = identifierStates.remove(identifier);
+        if (state == null || state.peer == null) return;
+
+        for (IdentifierState other : identifierStates.values())
+            if (state.peer.equals(other.peer)) return;
+
+        peerMetrics.remove(state.peer);
+    }
+
+    // </editor-fold desc="Recording">
+
+    // <editor-fold desc="Queries">
+
+    /**
+     * @return a snapshot of metrics for traffic with peer, or null if none recorded
+     */
+    public synchronized @Nullable LinkMetrics getPeerMetrics(@NonNull Peer peer) {
+        LinkMetrics metrics = peerMetrics.get(peer);
+        return metrics == null ? null : metrics.snapshot(System.nanoTime());
+    }
+
+    /**
+     * @param transportCode a value such as {@link pro.dbro.airshare.transport.ble.BLETransport#TRANSPORT_CODE}
+     * @return a snapshot of metrics for traffic over the transport, or null if none recorded
+     */
+    public synchronized @Nullable LinkMetrics getTransportMetrics(int transportCode) {
+        LinkMetrics metrics = transportMetrics.get(transportCode);
+        return metrics == null ? null : metrics.snapshot(System.nanoTime());
+    }
+
+    /**
+     * @return the current rate of acknowledged bytes sent over the transport, without taking a
+     * snapshot. 0 if nothing has been sent over the transport.
+     */
+    public synchronized double getBytesSentPerSecond(int transportCode) {
+        LinkMetrics metrics = transportMetrics.get(transportCode);
+        return metrics == null ? 0 : metrics.bytesSent.getRate(System.nanoTime());
+    }
+
+    /**
+     * @return the fraction, from 0 to 1, of the current rate of acknowledged bytes sent to all
+     * peers that is sent to peer. 0 if nothing is being sent. Compare with each peer's weight
+     * given to {@link pro.dbro.airshare.session.SessionManager#setPeerWeight(Peer, int)}
+     */
+    public synchronized double getSendShare(@NonNull Peer peer) {
+        LinkMetrics metrics = peerMetrics.get(peer);
+        if (metrics == null) return 0;
+
+        long nowNanos = System.nanoTime();
+        double totalRate = 0;
+        for (LinkMetrics other : peerMetrics.values())
+            totalRate += other.bytesSent.getRate(nowNanos);
+
+        return totalRate == 0 ? 0 : metrics.bytesSent.getRate(nowNanos) / totalRate;
+    }
+
+    /**
+     * @return all connected peers for which metrics have been recorded
+     */
+    public synchronized Set<Peer> getPeers() {
+        return new HashSet<>(peerMetrics.keySet());
+    }
+
+    // </editor-fold desc="Queries">
+
+    private IdentifierState getState(Transport transport, String identifier) {
+        IdentifierState state = identifierStates.get(identifier);
+
+        if (state == null) {
+            state = new IdentifierState();
+
+            int transportCode = transport.getTransportCode();
+            state.transportMetrics = transportMetrics.get(transportCode);
+            if (state.transportMetrics == null) {
+                state.transportMetrics = new LinkMetrics();
+                transportMetrics.put(transportCode, state.transportMetrics);
+            }
+            identifierStates.put(identifier, state);
+        }
+        return state;
+    }
+
+    private static void recordAcknowledged(LinkMetrics metrics, int length, long rttMicros, long nowNanos) {
+        metrics.chunksSent++;
+        metrics.bytesSent.mark(length, nowNanos);
+        if (rttMicros >= 0) metrics.chunkRttMicros.record(rttMicros);
+    }
+
+    private static void recordCongestion(LinkMetrics metrics, long windowBytes,
+                                         long smoothedRttNanos, long minRttNanos) {
+        metrics.windowBytes       = windowBytes;
+        metrics.smoothedRttMicros = smoothedRttNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(smoothedRttNanos);
+        metrics.minRttMicros      = minRttNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(minRttNanos);
+    }
+
+    private static void recordReceived(LinkMetrics metrics, int length, long deserializeMicros, long nowNanos) {
+        metrics.chunksReceived++;
+        metrics.bytesReceived.mark(length, nowNanos);
+        metrics.deserializeMicros.record(deserializeMicros);
+    }
+}
@@ -0,0 +1,191 @@
+package pro.dbro.airshare.session;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+/**
+ * Transforms a {@link pro.dbro.airshare.session.DataTransferMessage} body in fixed-size
+ * segments so it may be encoded as it is serialized and decoded as it is received.
+ * Neither side holds more than one encoded segment at a time.
+ *
+ * A body of n bytes is represented on the wire as ceil(n / {@link #SEGMENT_BYTES}) encoded
+ * segments, each {@link #getSegmentOverheadBytes()} longer than its plaintext, followed by
+ * {@link #getTrailerLengthBytes()} bytes of trailer.
+ *
+ * Segments are encoded and decoded in order. A codec instance belongs to a single message.
+ */
+public abstract class BodyCodec {
+
+    /** Plaintext bytes per segment */
+    public static final int SEGMENT_BYTES = 4 * 1024;
+
+    /** Header naming the codec applied to the body. Absent if the body is not encoded */
+    public static final String HEADER_CODEC        = "codec";
+
+    /** Header holding the length of the decoded body. 'body-length' holds the encoded length */
+    public static final String HEADER_PLAIN_LENGTH = "plain-length";
+
+    /**
+     * Header holding the 'extra' header sealed by a codec that encrypts it, in place of 'extra'.
+     * See {@link #sealExtras(byte[])}
+     */
+    public static final String HEADER_SEALED_EXTRA = "sealed-extra";
+
+    private int    cachedSegmentIndex = -1;
+    private byte[] cachedSegment;
+
+    /**
+     * @return a codec able to decode a body described by the given headers
+     *
+     * @param sessionKey the key shared with the sender, or null if none established
+     * @param senderPublicKey the public key of the sender, or null if not yet identified
+     */
+    public static BodyCodec forIncoming(@NonNull String name,
+                                        @NonNull String messageId,
+                                        @Nullable byte[] sessionKey,
+                                        @Nullable byte[] senderPublicKey) throws GeneralSecurityException {
+        switch (name) {
+            case EncryptedBodyCodec.NAME:
+                if (sessionKey == null || senderPublicKey == null)
+                    throw new GeneralSecurityException("No session key established with sender");
+
+                return new EncryptedBodyCodec(sessionKey, senderPublicKey, messageId);
+
+            case SignedBodyCodec.NAME:
+                if (senderPublicKey == null)
+                    throw new GeneralSecurityException("Sender not yet identified");
+
+                return SignedBodyCodec.forVerification(senderPublicKey, messageId);
+
+            default:
+                throw new GeneralSecurityException("Unknown body codec " + name);
+        }
+    }
+
+    /** @return the value of {@link #HEADER_CODEC} identifying this codec */
+    public abstract @NonNull String getName();
+
+    /** @return the number of bytes each encoded segment adds to its plaintext */
+    public abstract int getSegmentOverheadBytes();
+
+    public int getTrailerLengthBytes() {
+        return 0;
+    }
+
+    public abstract @NonNull byte[] encodeSegment(int index, @NonNull byte[] plaintext, boolean isFinal);
+
+    /**
+     * @throws GeneralSecurityException if the segment fails verification. The remainder of
+     * the body should be discarded.
+     */
+    public abstract @NonNull byte[] decodeSegment(int index, @NonNull byte[] encoded, boolean isFinal) throws GeneralSecurityException;
+
+    /**
+     * Called once after all segments are encoded
+     */
+    public @NonNull byte[] encodeTrailer() {
+        return new byte[0];
+    }
+
+    /**
+     * Called once after all segments are decoded
+     */
+    public void verifyTrailer(@NonNull byte[] trailer) throws GeneralSecurityException {
+        // No trailer by default
+    }
+
+    /**
+     * @return the serialized 'extra' header sealed for transmission, or null if this codec
+     * leaves headers in the clear
+     */
+    public @Nullable byte[] sealExtras(@NonNull byte[] extras) {
+        return null;
+    }
+
+    /**
+     * @return the serialized 'extra' header sealed by {@link #sealExtras(byte[])}
+     * @throws GeneralSecurityException if sealed fails verification
+     */
+    public @NonNull byte[] openExtras(@NonNull byte[] sealed) throws GeneralSecurityException {
+        throw new GeneralSecurityException(getName() + " codec does not seal headers");
+    }
+
+    public int getSegmentCount(int plainLength) {
+        return (plainLength + SEGMENT_BYTES - 1) / SEGMENT_BYTES;
+    }
+
+    public int getEncodedLength(int plainLength) {
+        return plainLength +
+               getSegmentCount(plainLength) * getSegmentOverheadBytes() +
+               getTrailerLengthBytes();
+    }
+
+    public int getEncodedSegmentLength(int index, int plainLength) {
+        return Math.min(SEGMENT_BYTES, plainLength - index * SEGMENT_BYTES) + getSegmentOverheadBytes();
+    }
+
+    /**
+     * Read up to length bytes of the encoded representation of plaintext, beginning at the
+     * given encoded offset. The most recently encoded segment is cached, so sequential reads
+     * smaller than a segment encode each segment once.
+     *
+     * @return the encoded bytes, or null if offset is beyond the encoded body
+     */
+    public @Nullable byte[] readEncoded(@NonNull ByteBuffer plaintext, int offset, int length) {
+        int plainLength   = plaintext.limit();
+        int encodedLength = getEncodedLength(plainLength);
+        int segmentCount  = getSegmentCount(plainLength);
+
+        if (offset >= encodedLength) return null;
+
+        byte[] result = new byte[Math.min(length, encodedLength - offset)];
+        int resultIdx = 0;
+        int segmentStride = SEGMENT_BYTES + getSegmentOverheadBytes();
+        int trailerStart  = encodedLength - getTrailerLengthBytes();
+
+        while (resultIdx < result.length) {
+            int encodedIdx = offset + resultIdx;
+
+            byte[] source;
+            int sourceIdx;
+            if (encodedIdx < trailerStart) {
+                int segmentIdx = encodedIdx / segmentStride;
+                source = getEncodedSegment(plaintext, segmentIdx, segmentCount);
+                sourceIdx = encodedIdx - segmentIdx * segmentStride;
+            } else {
+                source = getEncodedSegment(plaintext, segmentCount, segmentCount);
+                sourceIdx = encodedIdx - trailerStart;
+            }
+
+            int bytesToCopy = Math.min(result.length - resultIdx, source.length - sourceIdx);
+            System.arraycopy(source, sourceIdx, result, resultIdx, bytesToCopy);
+            resultIdx += bytesToCopy;
+        }
+        return result;
+    }
+
+    /**
+     * @return encoded segment at index, or the trailer if index equals segmentCount
+     */
+    private byte[] getEncodedSegment(ByteBuffer plaintext, int index, int segmentCount) {
+        if (index == cachedSegmentIndex) return cachedSegment;
+
+        if (index == segmentCount) {
+            cachedSegment = encodeTrailer();
+        } else {
+            int start = index * SEGMENT_BYTES;
+            byte[] segment = new byte[Math.min(SEGMENT_BYTES, plaintext.limit() - start)];
+
+            ByteBuffer source = plaintext.duplicate();
+            source.position(start);
+            source.get(segment, 0, segment.length);
+
+            cachedSegment = encodeSegment(index, segment, index == segmentCount - 1);
+        }
+        cachedSegmentIndex = index;
+        return cachedSegment;
+    }
+}
@@ -0,0 +1,77 @@
+package pro.dbro.airshare.session;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Asks the recipient to cancel a message it is sending to the local peer, which is
+ * then cancelled as by {@link pro.dbro.airshare.session.SessionManager#cancelMessage(SessionMessage, Peer)}
+ */
+public class CancelMessage extends SessionMessage {
+
+    public static final String HEADER_TYPE = "cancel";
+
+    public static final String HEADER_CANCELLED_ID = "cancelled-id";
+
+    private String cancelledId;
+
+    // <editor-fold desc="Incoming Constructors">
+
+    CancelMessage(@NonNull Map<String, Object> headers) {
+
+        super((String) headers.get(SessionMessage.HEADER_ID));
+        init();
+        this.cancelledId = (String) headers.get(HEADER_CANCELLED_ID);
+        this.headers     = headers;
+        bodyLengthBytes  = (int) headers.get(HEADER_BODY_LENGTH);
+        status           = Status.COMPLETE;
+
+        serializeAndCacheHeaders();
+
+    }
+
+    // </editor-fold desc="Incoming Constructors">
+
+    // <editor-fold desc="Outgoing Constructors">
+
+    /**
+     * @param cancelledId the id of the message to cancel
+     */
+    public CancelMessage(@NonNull String cancelledId) {
+        super();
+        init();
+        this.cancelledId = cancelledId;
+        serializeAndCacheHeaders();
+
+        // Sent ahead of any data held for coalescing
+        setPriority(Priority.HIGH);
+    }
+
+    // </editor-fold desc="Outgoing Constructors">
+
+    public String getCancelledId() {
+        return cancelledId;
+    }
+
+    private void init() {
+        type = HEADER_TYPE;
+    }
+
+    @Override
+    protected HashMap<String, Object> populateHeaders() {
+        HashMap<String, Object> headerMap = super.populateHeaders();
+
+        headerMap.put(HEADER_CANCELLED_ID, cancelledId);
+
+        return headerMap;
+    }
+
+    @Nullable
+    @Override
+    public byte[] getBodyAtOffset(int offset, int length) {
+        return null;
+    }
+}
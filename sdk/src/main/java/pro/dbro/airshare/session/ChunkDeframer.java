@@ -0,0 +1,338 @@
+package pro.dbro.airshare.session;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recovers the incoming stream from a single remote identifier from the
+ * {@link pro.dbro.airshare.session.ChunkFrame}s carrying it.
+ *
+ * Damaged frames are discarded, as are frames already received. Frames arriving beyond a gap
+ * in the stream are held, up to {@link #MAX_REORDER_BYTES}, until the gap is filled, so the
+ * stream is passed on in order regardless of the order frames arrive. The cancellation of a
+ * message marked in the stream is passed on in its place among the bytes.
+ *
+ * Over a datagram transport each delivery is one frame. Over a stream transport deliveries may
+ * split or join frames, which are reassembled by their length. A stream transport is reliable,
+ * so a damaged frame there cannot be skipped and the bytes buffered with it are discarded.
+ *
+ * Bytes found missing, by a damaged frame or by frames arriving beyond them, are reported so
+ * the sender may send them again. The report is repeated while they remain missing, as it or
+ * the frames sent in answer may be lost too.
+ *
+ * The bytes passed on are reported every {@link #ACK_INTERVAL_BYTES}, when a frame already
+ * received arrives again, and when {@link #checkProgress()} finds some unreported, so the
+ * sender may discard the frames it keeps to send again and send further ahead.
+ *
+ * Not thread safe. Used only by {@link pro.dbro.airshare.session.SessionManager}.
+ */
+class ChunkDeframer {
+
+    interface Listener {
+
+        /** Called with each run of stream bytes, in stream order */
+        void onPayload(@NonNull byte[] payload);
+
+        /**
+         * Called when a new stream from the remote identifier begins. Any partially
+         * received message of the previous stream will not be completed
+         */
+        void onStreamReset();
+
+        /**
+         * Called, in stream order, where the sender abandoned the message whose bytes were
+         * passed on before. That message will not be completed, and the bytes passed on
+         * next begin the message following it
+         */
+        void onCancel();
+
+        /**
+         * Called when a frame is discarded
+         *
+         * @param corrupt whether the frame was damaged, rather than a duplicate or beyond
+         *                the frames that may be held
+         */
+        void onFrameDiscarded(boolean corrupt);
+
+        /**
+         * Called when stream bytes from offset appear to be missing. Repeated at most every
+         * {@link #MIN_GAP_REPORT_INTERVAL_NANOS}, up to {@link #MAX_GAP_REPORTS} times
+         *
+         * @param streamId the stream missing bytes
+         * @param length the number of bytes missing, or 0 if unknown
+         */
+        void onGap(int streamId, long offset, int length);
+
+        /**
+         * Called when the remote identifier reports bytes missing from our stream to it
+         *
+         * @param offset the low 32 bits of the first byte missing
+         * @param length the number of bytes missing, or 0 if unknown
+         */
+        void onNack(int streamId, int offset, int length);
+
+        /**
+         * Called to report every stream byte before offset was passed on
+         */
+        void onProgress(int streamId, long offset);
+
+        /**
+         * Called when the remote identifier reports receiving every byte of our stream to it
+         * before offset
+         *
+         * @param offset the low 32 bits of the offset
+         */
+        void onAck(int streamId, int offset);
+    }
+
+    /** Most payload bytes held beyond a gap in the stream */
+    static final int MAX_REORDER_BYTES = 256 * 1024;
+
+    static final long MIN_GAP_REPORT_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    static final int  MAX_GAP_REPORTS               = 8;
+
+    /** Stream bytes passed on between reports of progress */
+    static final int ACK_INTERVAL_BYTES = MAX_REORDER_BYTES / 8;
+
+    private static final int NO_STREAM = -1;
+
+    private final boolean  isStream;
+    private final Listener listener;
+
+    /** Bytes of incomplete frames received over a stream transport */
+    private byte[] pending = new byte[0];
+    private int    pendingLength;
+
+    private int  streamId = NO_STREAM;
+    private long expectedOffset;
+
+    /** Stream offset -> Frames beyond a gap */
+    private final TreeMap<Long, ChunkFrame> reordered = new TreeMap<>();
+    private int                             reorderedBytes;
+
+    /** Offset from which bytes are missing, or -1 if none are known to be */
+    private long missingOffset = -1;
+    private long missingReportedNanos;
+    private int  missingReports;
+
+    /** Offset last reported by {@link Listener#onProgress(int, long)} */
+    private long progressOffset;
+    private long progressReportedNanos;
+
+    /**
+     * @param isStream whether frames arrive over a stream transport, which may split or join them
+     */
+    ChunkDeframer(boolean isStream, @NonNull Listener listener) {
+        this.isStream = isStream;
+        this.listener = listener;
+    }
+
+    void dataReceived(@NonNull byte[] data) {
+        if (!isStream) {
+            frameReceived(data, 0, data.length);
+            return;
+        }
+
+        if (pendingLength + data.length > pending.length)
+            pending = Arrays.copyOf(pending, Math.max(pendingLength + data.length, pending.length * 2));
+        System.arraycopy(data, 0, pending, pendingLength, data.length);
+        pendingLength += data.length;
+
+        int start = 0;
+        while (pendingLength - start >= ChunkFrame.HEADER_BYTES) {
+            int frameLength = ChunkFrame.getFrameLength(pending, start);
+            if (pendingLength - start < frameLength) break;
+
+            if (!frameReceived(pending, start, frameLength)) {
+                // Frame boundaries beyond a damaged frame are unknown
+                pendingLength = 0;
+                return;
+            }
+            start += frameLength;
+        }
+
+        System.arraycopy(pending, start, pending, 0, pendingLength - start);
+        pendingLength -= start;
+    }
+
+    /** @return the offset of the next stream byte to be passed on */
+    long getExpectedOffset() {
+        return expectedOffset;
+    }
+
+    /** @return whether frames beyond a gap in the stream are held */
+    boolean hasGap() {
+        return !reordered.isEmpty();
+    }
+
+    /**
+     * @return whether bytes are missing that are yet to be reported again. See {@link #checkGap()}
+     */
+    boolean isMissingBytes() {
+        return missingOffset >= 0 && missingReports < MAX_GAP_REPORTS;
+    }
+
+    /**
+     * Report missing bytes again if they have not arrived since last reported
+     */
+    void checkGap() {
+        if (missingOffset >= 0) reportGap();
+    }
+
+    /** @return whether stream bytes were passed on since progress was last reported */
+    boolean hasUnreportedProgress() {
+        return streamId != NO_STREAM && expectedOffset > progressOffset;
+    }
+
+    /**
+     * Report progress if bytes were passed on since last reported
+     */
+    void checkProgress() {
+        if (hasUnreportedProgress()) reportProgress();
+    }
+
+    /**
+     * @return false if the frame was damaged
+     */
+    private boolean frameReceived(byte[] data, int start, int length) {
+        ChunkFrame frame = ChunkFrame.decode(data, start, length);
+
+        if (frame == null) {
+            listener.onFrameDiscarded(true);
+            // The damaged frame may have carried the next bytes expected
+            if (streamId != NO_STREAM) onMissing();
+            return false;
+        }
+
+        if (frame.type == ChunkFrame.TYPE_NACK) {
+            listener.onNack(frame.streamId, frame.offset, frame.getNackLength());
+            return true;
+        }
+
+        if (frame.type == ChunkFrame.TYPE_ACK) {
+            listener.onAck(frame.streamId, frame.offset);
+            return true;
+        }
+
+        if (!ChunkFrame.isStreamType(frame.type)) return true;
+
+        if (frame.streamId != streamId) {
+            if (streamId == NO_STREAM) {
+                streamId = frame.streamId;
+            } else if (frame.offset == 0) {
+                // The first frame of a new stream
+                beginStream(frame.streamId);
+            } else {
+                // Left over from an earlier stream, or a new stream's frame ahead of its first.
+                // The sender ignores a report of bytes missing from a stream it has left
+                listener.onFrameDiscarded(false);
+                listener.onGap(frame.streamId, 0, frame.offset);
+                return true;
+            }
+        }
+
+        placeFrame(ChunkFrame.extendOffset(frame.offset, expectedOffset), frame);
+        return true;
+    }
+
+    private void beginStream(int streamId) {
+        this.streamId  = streamId;
+        expectedOffset = 0;
+        reordered.clear();
+        reorderedBytes = 0;
+        missingOffset  = -1;
+        progressOffset = 0;
+        listener.onStreamReset();
+    }
+
+    private void placeFrame(long offset, ChunkFrame frame) {
+        int length = frame.payload.length;
+        if (offset + length <= expectedOffset || reordered.containsKey(offset)) {
+            listener.onFrameDiscarded(false);
+            // The sender may have missed our report of receiving it
+            if (offset + length <= expectedOffset &&
+                System.nanoTime() - progressReportedNanos >= MIN_GAP_REPORT_INTERVAL_NANOS) reportProgress();
+            return;
+        }
+
+        if (offset > expectedOffset) {
+            if (reorderedBytes + length > MAX_REORDER_BYTES) {
+                listener.onFrameDiscarded(false);
+            } else {
+                reordered.put(offset, frame);
+                reorderedBytes += length;
+            }
+            onMissing();
+            return;
+        }
+
+        passOn(offset, frame);
+
+        // Frames held beyond the gap may now follow
+        while (!reordered.isEmpty() && reordered.firstKey() <= expectedOffset) {
+            Map.Entry<Long, ChunkFrame> held = reordered.pollFirstEntry();
+            int heldLength = held.getValue().payload.length;
+            reorderedBytes -= heldLength;
+            if (held.getKey() + heldLength > expectedOffset)
+                passOn(held.getKey(), held.getValue());
+        }
+
+        if (reordered.isEmpty())
+            missingOffset = -1;
+        else
+            onMissing();
+
+        if (expectedOffset - progressOffset >= ACK_INTERVAL_BYTES) reportProgress();
+    }
+
+    private void reportProgress() {
+        progressOffset        = expectedOffset;
+        progressReportedNanos = System.nanoTime();
+        listener.onProgress(streamId, progressOffset);
+    }
+
+    /**
+     * Note bytes from {@link #expectedOffset} are missing, reporting them if newly so
+     */
+    private void onMissing() {
+        if (missingOffset != expectedOffset) {
+            missingOffset  = expectedOffset;
+            missingReports = 0;
+        }
+        reportGap();
+    }
+
+    private void reportGap() {
+        long nowNanos = System.nanoTime();
+        if (missingReports >= MAX_GAP_REPORTS ||
+            (missingReports > 0 && nowNanos - missingReportedNanos < MIN_GAP_REPORT_INTERVAL_NANOS)) return;
+
+        missingReports++;
+        missingReportedNanos = nowNanos;
+
+        // The gap ends where the held frames begin, if any are held
+        int length = reordered.isEmpty() ? 0 :
+                     (int) Math.min(reordered.firstKey() - missingOffset, Integer.MAX_VALUE);
+        listener.onGap(streamId, missingOffset, length);
+    }
+
+    /**
+     * Pass on the bytes of frame, which begins at offset, from {@link #expectedOffset}, or
+     * the cancellation it marks
+     */
+    private void passOn(long offset, ChunkFrame frame) {
+        int skip = (int) (expectedOffset - offset);
+        expectedOffset += frame.payload.length - skip;
+
+        if (frame.type == ChunkFrame.TYPE_CANCEL) {
+            listener.onCancel();
+            return;
+        }
+
+        listener.onPayload(skip == 0 ? frame.payload : Arrays.copyOfRange(frame.payload, skip, frame.payload.length));
+    }
+}
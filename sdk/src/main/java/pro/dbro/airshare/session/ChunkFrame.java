@@ -0,0 +1,194 @@
+package pro.dbro.airshare.session;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A chunk of the serialized {@link pro.dbro.airshare.session.SessionMessage} stream sent to a
+ * remote identifier, as framed for a {@link pro.dbro.airshare.transport.Transport}.
+ *
+ * A frame is laid out as follows, in little endian order:
+ *
+ * | type (1) | stream id (2) | offset (4) | payload length (2) | CRC32C (4) | payload |
+ *
+ * The offset of the payload within its stream lets a receiver place frames arriving out of
+ * order and discard duplicates. It is the low 32 bits of the stream offset, which a receiver
+ * extends relative to the offset it expects. The CRC32C covers the header fields before it
+ * and the payload, so a damaged frame is discarded alone rather than corrupting the stream.
+ *
+ * A {@link #TYPE_NACK} frame travels against the stream it names, reporting the bytes from its
+ * offset that the receiver is missing. Its payload is the length of the gap, or 0 if unknown.
+ * A {@link #TYPE_ACK} frame likewise reports that the receiver holds every byte before its offset.
+ * It has no payload.
+ *
+ * A {@link #TYPE_CANCEL} frame marks where the sender abandoned the message whose bytes precede
+ * it, so the receiver discards that message and takes the bytes following as the next. It is
+ * part of the stream, occupying a single byte of it, so it is ordered, acknowledged and sent
+ * again as a {@link #TYPE_DATA} frame is.
+ */
+class ChunkFrame {
+
+    /** Frame types */
+    static final byte TYPE_DATA   = 0;
+    static final byte TYPE_NACK   = 1;
+    static final byte TYPE_ACK    = 2;
+    static final byte TYPE_CANCEL = 3;
+
+    static final int HEADER_BYTES      = 1 + 2 + 4 + 2 + 4;
+    static final int MAX_PAYLOAD_BYTES = 0xFFFF;
+
+    /** Stream bytes occupied by a {@link #TYPE_CANCEL} frame */
+    static final int CANCEL_BYTES      = 1;
+
+    /** Leading header bytes identifying a frame: its type, stream id and offset */
+    static final int ADDRESS_BYTES     = 1 + 2 + 4;
+
+    private static final int STREAM_ID_INDEX = 1;
+    private static final int OFFSET_INDEX    = STREAM_ID_INDEX + 2;
+    private static final int LENGTH_INDEX    = ADDRESS_BYTES;
+    private static final int CRC_INDEX       = LENGTH_INDEX + 2;
+
+    final byte   type;
+    final int    streamId;
+    /** The low 32 bits of the stream offset. See {@link #extendOffset(int, long)} */
+    final int    offset;
+    final byte[] payload;
+
+    private ChunkFrame(byte type, int streamId, int offset, byte[] payload) {
+        this.type     = type;
+        this.streamId = streamId;
+        this.offset   = offset;
+        this.payload  = payload;
+    }
+
+    /**
+     * @param offset the offset of payload within its stream. Only its low 32 bits are sent
+     */
+    static byte[] encode(byte type, int streamId, long offset, @NonNull byte[] payload) {
+        if (payload.length > MAX_PAYLOAD_BYTES)
+            throw new IllegalArgumentException("Payload of " + payload.length + " bytes exceeds frame limit");
+
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_BYTES + payload.length).order(ByteOrder.LITTLE_ENDIAN);
+        frame.put(type);
+        frame.putShort((short) streamId);
+        frame.putInt((int) offset);
+        frame.putShort((short) payload.length);
+        frame.putInt(0); // CRC placeholder
+        frame.put(payload);
+
+        byte[] bytes = frame.array();
+        frame.putInt(CRC_INDEX, crc(bytes, 0, bytes.length));
+        return bytes;
+    }
+
+    /**
+     * @param offset the first stream byte missing
+     * @param length the number of bytes missing, or 0 if unknown
+     */
+    static byte[] encodeNack(int streamId, long offset, int length) {
+        byte[] payload = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(length).array();
+        return encode(TYPE_NACK, streamId, offset, payload);
+    }
+
+    /**
+     * @param offset the stream offset before which every byte was received
+     */
+    static byte[] encodeAck(int streamId, long offset) {
+        return encode(TYPE_ACK, streamId, offset, new byte[0]);
+    }
+
+    /**
+     * @return a {@link #TYPE_CANCEL} frame at offset
+     */
+    static byte[] encodeCancel(int streamId, long offset) {
+        return encode(TYPE_CANCEL, streamId, offset, new byte[CANCEL_BYTES]);
+    }
+
+    /**
+     * @return whether frames of type carry the stream, rather than report on it
+     */
+    static boolean isStreamType(byte type) {
+        return type == TYPE_DATA || type == TYPE_CANCEL;
+    }
+
+    /**
+     * Read the type of frame beginning data, which need only contain its first
+     * {@link #ADDRESS_BYTES}, as when a transport acknowledges the first part of a frame it split
+     */
+    static byte getType(@NonNull byte[] data) {
+        return data[0];
+    }
+
+    /** See {@link #getType(byte[])} */
+    static int getStreamId(@NonNull byte[] data) {
+        return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).getShort(STREAM_ID_INDEX) & 0xFFFF;
+    }
+
+    /** See {@link #getType(byte[])}. See {@link #extendOffset(int, long)} */
+    static int getOffset(@NonNull byte[] data) {
+        return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).getInt(OFFSET_INDEX);
+    }
+
+    /**
+     * @return the total length of the frame beginning at start, given at least
+     * {@link #HEADER_BYTES} of it
+     */
+    static int getFrameLength(@NonNull byte[] data, int start) {
+        ByteBuffer header = ByteBuffer.wrap(data, start, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        return HEADER_BYTES + (header.getShort(start + LENGTH_INDEX) & 0xFFFF);
+    }
+
+    /**
+     * Decode the frame occupying length bytes of data from start
+     *
+     * @return the frame, or null if it is damaged
+     */
+    static @Nullable ChunkFrame decode(@NonNull byte[] data, int start, int length) {
+        if (length < HEADER_BYTES || getFrameLength(data, start) != length) return null;
+
+        ByteBuffer frame = ByteBuffer.wrap(data, start, length).order(ByteOrder.LITTLE_ENDIAN);
+        byte type     = frame.get();
+        int  streamId = frame.getShort() & 0xFFFF;
+        int  offset   = frame.getInt();
+        frame.getShort();
+        int  crc      = frame.getInt();
+
+        if (crc(data, start, length) != crc) return null;
+
+        byte[] payload = new byte[length - HEADER_BYTES];
+        frame.get(payload);
+
+        return new ChunkFrame(type, streamId, offset, payload);
+    }
+
+    /**
+     * @return the number of bytes a {@link #TYPE_NACK} frame reports missing, or 0 if unknown
+     */
+    int getNackLength() {
+        return payload.length < 4 ? 0 : ByteBuffer.wrap(payload).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    }
+
+    /**
+     * @return the stream offset nearest expectedOffset whose low 32 bits are offset
+     */
+    static long extendOffset(int offset, long expectedOffset) {
+        return expectedOffset + (offset - (int) expectedOffset);
+    }
+
+    /**
+     * @return the CRC32C of the frame occupying length bytes of data from start, excluding
+     * its CRC field
+     */
+    private static int crc(byte[] data, int start, int length) {
+        return Hashing.crc32c().newHasher()
+                      .putBytes(data, start, CRC_INDEX)
+                      .putBytes(data, start + HEADER_BYTES, length - HEADER_BYTES)
+                      .hash()
+                      .asInt();
+    }
+}
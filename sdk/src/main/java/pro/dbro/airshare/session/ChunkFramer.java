@@ -0,0 +1,382 @@
+package pro.dbro.airshare.session;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Frames the chunks of the outgoing stream to a single remote identifier, and keeps each frame
+ * while it may need to be sent again. See {@link pro.dbro.airshare.session.ChunkFrame}.
+ *
+ * Each stream begins with a random id, so a receiver can tell its frames from those
+ * of an earlier stream to the same identifier.
+ *
+ * A frame the transport has not acknowledged within the timeout estimated by a
+ * {@link pro.dbro.airshare.session.RetransmissionTimer} is due to be sent again. Once a frame
+ * goes unacknowledged through {@link #MAX_TRANSMISSIONS} timeouts the stream is stalled.
+ * A transport may acknowledge a frame that never arrives, so frames are kept until the receiver
+ * reports receiving them, and those it reports missing may be sent again. Should its reports
+ * stop, the latest frame is sent again to prompt another.
+ *
+ * Several frames may await acknowledgement, as many as the
+ * {@link pro.dbro.airshare.session.CongestionController} fed by their acknowledgements, losses
+ * and timeouts permits, while no more than {@link #MAX_HISTORY_BYTES} await the receiver.
+ *
+ * Not thread safe. Used only by {@link pro.dbro.airshare.session.SessionManager}.
+ */
+class ChunkFramer {
+
+    /** Transmissions of a frame without acknowledgement after which the stream is stalled */
+    static final int MAX_TRANSMISSIONS = 6;
+
+    /**
+     * Most bytes framed beyond those the receiver reports receiving. The receiver holds no more
+     * than this beyond a gap, so later frames could not be placed
+     */
+    static final int MAX_HISTORY_BYTES = ChunkDeframer.MAX_REORDER_BYTES;
+
+    private static class SentFrame {
+        final byte[] frame;
+        long         sentNanos;
+        int          transmissions = 1;
+        boolean      acknowledged;
+        /** Whether the frame failed to send or timed out, so no longer counts against the window */
+        boolean      lost;
+
+        SentFrame(byte[] frame, long sentNanos) {
+            this.frame     = frame;
+            this.sentNanos = sentNanos;
+        }
+    }
+
+    private static final Random random = new Random();
+
+    private final RetransmissionTimer  timer      = new RetransmissionTimer();
+    private final CongestionController congestion = new CongestionController(timer);
+
+    /** Stream offset -> Each frame that may be sent again */
+    private final TreeMap<Long, SentFrame> sentFrames = new TreeMap<>();
+
+    private int  streamId;
+    private long nextOffset;
+    /** Offset through which every frame is acknowledged */
+    private long acknowledgedOffset;
+    /** Offset before which the receiver reports receiving every byte */
+    private long confirmedOffset;
+    /** Time the receiver last reported progress, or a frame was last framed or sent to prompt it */
+    private long progressNanos;
+    /** Round trip time of the frame last acknowledged, or -1 if it was sent more than once */
+    private long lastRttNanos = -1;
+
+    ChunkFramer() {
+        this(random.nextInt(0x10000));
+    }
+
+    ChunkFramer(int streamId) {
+        this.streamId = streamId & 0xFFFF;
+    }
+
+    /**
+     * @return chunk framed at the offset following the previous chunk, to be handed to the
+     * transport at nowNanos
+     */
+    byte[] frame(@NonNull byte[] chunk, long nowNanos) {
+        return keep(ChunkFrame.encode(ChunkFrame.TYPE_DATA, streamId, nextOffset, chunk), chunk.length, nowNanos);
+    }
+
+    /**
+     * @return a {@link ChunkFrame#TYPE_CANCEL} frame at the offset following the previous chunk,
+     * marking where the message in progress was abandoned, to be handed to the transport at
+     * nowNanos. It is kept and acknowledged as a chunk is
+     */
+    byte[] frameCancel(long nowNanos) {
+        return keep(ChunkFrame.encodeCancel(streamId, nextOffset), ChunkFrame.CANCEL_BYTES, nowNanos);
+    }
+
+    /**
+     * Note the transport acknowledged sending data, which may be a frame of this stream or
+     * the first part of one
+     *
+     * @return the number of chunks now acknowledged in the order framed, which is 0 if data is
+     * acknowledged ahead of a chunk before it. -1 if data is not a frame newly acknowledged
+     */
+    int onAcknowledged(@NonNull byte[] data, long nowNanos) {
+        SentFrame sent = getSentFrame(data);
+        if (sent == null || sent.acknowledged) return -1;
+
+        sent.acknowledged = true;
+        lastRttNanos = sent.transmissions == 1 ? nowNanos - sent.sentNanos : -1;
+        if (lastRttNanos >= 0) timer.onRttSample(lastRttNanos);
+        congestion.onAcknowledged(getPayloadLength(sent), lastRttNanos, nowNanos);
+
+        return advanceAcknowledged();
+    }
+
+    /**
+     * Note the receiver reports receiving every byte before offset, which acknowledges the frames
+     * carrying them should the transport not have
+     *
+     * @param offset the low 32 bits of the offset
+     * @return as {@link #onAcknowledged(byte[], long)}, or -1 if the report is not newer than the last
+     */
+    int onConfirmed(int offset, long nowNanos) {
+        long confirmed = ChunkFrame.extendOffset(offset, nextOffset);
+        if (confirmed <= confirmedOffset || confirmed > nextOffset) return -1;
+
+        confirmedOffset = confirmed;
+        progressNanos   = nowNanos;
+
+        for (Map.Entry<Long, SentFrame> entry : sentFrames.headMap(confirmedOffset).entrySet()) {
+            SentFrame sent = entry.getValue();
+            if (sent.acknowledged || entry.getKey() + getPayloadLength(sent) > confirmedOffset) continue;
+
+            sent.acknowledged = true;
+            congestion.onAcknowledged(getPayloadLength(sent), -1, nowNanos);
+        }
+
+        int acknowledged = advanceAcknowledged();
+        trimHistory();
+        return acknowledged;
+    }
+
+    /**
+     * Note the transport failed to send data. If it is an unacknowledged frame of this stream,
+     * it is due to be sent again by the next call to {@link #getExpiredFrames(long)}
+     *
+     * @return whether data is an unacknowledged frame of this stream
+     */
+    boolean onSendFailed(@NonNull byte[] data, long nowNanos) {
+        SentFrame sent = getSentFrame(data);
+        if (sent == null || sent.acknowledged) return false;
+
+        sent.sentNanos = nowNanos - timer.getTimeoutNanos();
+        sent.lost = true;
+        congestion.onLoss(nowNanos);
+        return true;
+    }
+
+    /**
+     * @return frames whose acknowledgement timed out by nowNanos, each now due to be sent again
+     */
+    List<byte[]> getExpiredFrames(long nowNanos) {
+        ArrayList<byte[]> expired = new ArrayList<>();
+
+        for (SentFrame sent : sentFrames.values()) {
+            if (sent.acknowledged ||
+                sent.transmissions >= MAX_TRANSMISSIONS ||
+                nowNanos - sent.sentNanos < timer.getTimeoutNanos()) continue;
+
+            sent.transmissions++;
+            sent.sentNanos = nowNanos;
+            sent.lost = true;
+            expired.add(sent.frame);
+        }
+
+        if (!expired.isEmpty()) {
+            timer.backOff();
+            congestion.onTimeout(nowNanos);
+        }
+        return expired;
+    }
+
+    /**
+     * @return whether a frame sent {@link #MAX_TRANSMISSIONS} times remains unacknowledged
+     * past its timeout
+     */
+    boolean isStalled(long nowNanos) {
+        for (SentFrame sent : sentFrames.values()) {
+            if (!sent.acknowledged &&
+                sent.transmissions >= MAX_TRANSMISSIONS &&
+                nowNanos - sent.sentNanos >= timer.getTimeoutNanos()) return true;
+        }
+        return false;
+    }
+
+    /** @return whether a frame awaits acknowledgement */
+    boolean hasUnacknowledged() {
+        return acknowledgedOffset < nextOffset;
+    }
+
+    /** @return whether bytes framed await the receiver's report of receiving them */
+    boolean hasUnconfirmed() {
+        return confirmedOffset < nextOffset;
+    }
+
+    /**
+     * @return the latest frame, to be sent again to prompt a report from the receiver, if every
+     * frame is acknowledged but the receiver has not reported progress within the timeout. The
+     * receiver reports progress on receiving it again, or the bytes it lacks on receiving it
+     * beyond them. Null if none is due
+     */
+    @Nullable byte[] getProbeFrame(long nowNanos) {
+        if (!hasUnconfirmed() || hasUnacknowledged() ||
+            nowNanos - progressNanos < timer.getTimeoutNanos()) return null;
+
+        progressNanos = nowNanos;
+        return sentFrames.lastEntry().getValue().frame;
+    }
+
+    /**
+     * @return the number of frames awaiting acknowledgement that have not failed or timed out,
+     * to be compared with {@link #getWindowChunks(int)}
+     */
+    int getFramesInFlight() {
+        int inFlight = 0;
+        for (SentFrame sent : sentFrames.tailMap(acknowledgedOffset).values())
+            if (!sent.acknowledged && !sent.lost) inFlight++;
+        return inFlight;
+    }
+
+    /**
+     * @param offset the low 32 bits of the first stream byte the receiver is missing
+     * @param length the number of bytes missing, or 0 if unknown, in which case only the frame
+     *               containing offset is returned
+     * @return the frames containing the missing bytes, now due to be sent again, or null if
+     * not all are kept
+     */
+    @Nullable List<byte[]> getFramesFrom(int offset, int length, long nowNanos) {
+        long start = ChunkFrame.extendOffset(offset, nextOffset);
+        long end   = Math.min(nextOffset, start + Math.max(1, length));
+        // The receiver has since reported receiving bytes before confirmedOffset
+        start = Math.max(start, confirmedOffset);
+
+        ArrayList<byte[]> frames = new ArrayList<>();
+        if (start >= end) return frames;
+
+        Long first = sentFrames.floorKey(start);
+        if (first == null) return null;
+
+        for (SentFrame sent : sentFrames.subMap(first, true, end, false).values()) {
+            if (!sent.acknowledged) {
+                // Its acknowledgement may now answer either copy
+                sent.transmissions++;
+                sent.sentNanos = nowNanos;
+                sent.lost = true;
+            }
+            frames.add(sent.frame);
+        }
+
+        congestion.onLoss(nowNanos);
+        return frames;
+    }
+
+    /**
+     * Begin a new stream, forgetting the frames of this one. The timeout estimated
+     * for the link is kept
+     */
+    void restart() {
+        int previousStreamId = streamId;
+        while (streamId == previousStreamId)
+            streamId = random.nextInt(0x10000);
+
+        nextOffset = 0;
+        acknowledgedOffset = 0;
+        confirmedOffset = 0;
+        sentFrames.clear();
+    }
+
+    int getStreamId() {
+        return streamId;
+    }
+
+    /** @return the number of payload bytes framed */
+    long getOffset() {
+        return nextOffset;
+    }
+
+    /** @return the time after which an unacknowledged frame is due to be sent again */
+    long getTimeoutNanos() {
+        return timer.getTimeoutNanos();
+    }
+
+    /** See {@link CongestionController#getChunkLength(int)} */
+    int getChunkLength(int maxChunkLength) {
+        return congestion.getChunkLength(maxChunkLength);
+    }
+
+    /**
+     * @return the number of chunks of chunkLength that may await acknowledgement, as
+     * {@link CongestionController#getWindowChunks(int)} permits, less those that would take the
+     * bytes awaiting the receiver beyond {@link #MAX_HISTORY_BYTES}. 0 if none may be sent
+     */
+    int getWindowChunks(int chunkLength) {
+        long unconfirmedRoom = MAX_HISTORY_BYTES - (nextOffset - confirmedOffset);
+        long receiveWindow   = getFramesInFlight() + Math.max(0, unconfirmedRoom / Math.max(1, chunkLength));
+
+        return (int) Math.min(congestion.getWindowChunks(chunkLength), receiveWindow);
+    }
+
+    long getWindowBytes() {
+        return congestion.getWindowBytes();
+    }
+
+    /** @return the round trip time of the frame last acknowledged, or -1 if it was sent more than once */
+    long getLastRttNanos() {
+        return lastRttNanos;
+    }
+
+    /** @return the smoothed round trip time, or -1 if none was measured */
+    long getSmoothedRttNanos() {
+        return timer.getSmoothedRttNanos();
+    }
+
+    /** @return the least round trip time measured, or -1 if none */
+    long getMinRttNanos() {
+        return congestion.getMinRttNanos();
+    }
+
+    /**
+     * Keep frame, occupying length bytes of the stream from {@link #nextOffset}
+     */
+    private byte[] keep(byte[] frame, int length, long nowNanos) {
+        sentFrames.put(nextOffset, new SentFrame(frame, nowNanos));
+        nextOffset += length;
+        progressNanos = nowNanos;
+
+        return frame;
+    }
+
+    private @Nullable SentFrame getSentFrame(byte[] data) {
+        if (data.length < ChunkFrame.ADDRESS_BYTES ||
+            !ChunkFrame.isStreamType(ChunkFrame.getType(data)) ||
+            ChunkFrame.getStreamId(data) != streamId) return null;
+
+        return sentFrames.get(ChunkFrame.extendOffset(ChunkFrame.getOffset(data), nextOffset));
+    }
+
+    /**
+     * Advance {@link #acknowledgedOffset} over frames acknowledged in the order framed
+     *
+     * @return the number of frames advanced over
+     */
+    private int advanceAcknowledged() {
+        int acknowledged = 0;
+        SentFrame next;
+        while ((next = sentFrames.get(acknowledgedOffset)) != null && next.acknowledged) {
+            acknowledgedOffset += getPayloadLength(next);
+            acknowledged++;
+        }
+        return acknowledged;
+    }
+
+    /**
+     * Forget the frames the receiver reports receiving, which will not be needed again
+     */
+    private void trimHistory() {
+        while (!sentFrames.isEmpty()) {
+            Map.Entry<Long, SentFrame> oldest = sentFrames.firstEntry();
+            if (oldest.getKey() + getPayloadLength(oldest.getValue()) > confirmedOffset) break;
+
+            sentFrames.pollFirstEntry();
+        }
+    }
+
+    private static int getPayloadLength(SentFrame sent) {
+        return sent.frame.length - ChunkFrame.HEADER_BYTES;
+    }
+}
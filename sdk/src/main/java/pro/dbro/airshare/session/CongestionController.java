@@ -0,0 +1,144 @@
+package pro.dbro.airshare.session;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adapts how many bytes may await acknowledgement over a single link, and the size of the
+ * chunks carrying them, to the loss and acknowledgement latency observed.
+ *
+ * The window grows additively, after an initial slow start, and shrinks multiplicatively
+ * (AIMD, as TCP Reno) when a chunk is lost or when acknowledgements slow to well beyond the
+ * least round trip time seen, which means chunks are queuing in the transport or its radio
+ * controller rather than reaching the link. A timeout shrinks the window to a single chunk,
+ * and halves the chunk size, down to 1 / 2^{@link #MAX_CHUNK_SHRINK} of the largest the
+ * transport takes, for a link that cannot carry even that. A window of chunks acknowledged
+ * without loss doubles it again.
+ *
+ * The window is reduced at most once per round trip, as the losses of one window share a cause.
+ *
+ * Not thread safe. Used only by {@link pro.dbro.airshare.session.ChunkFramer}.
+ */
+class CongestionController {
+
+    /** Chunks that may await acknowledgement before any are acknowledged */
+    static final int INITIAL_WINDOW_CHUNKS = 2;
+
+    /** Most bytes awaiting acknowledgement. The receiver holds no more beyond a lost chunk */
+    static final int MAX_WINDOW_BYTES = ChunkDeframer.MAX_REORDER_BYTES;
+
+    /** Halvings of the chunk size permitted on timeout */
+    static final int MAX_CHUNK_SHRINK = 2;
+
+    /**
+     * A round trip time exceeding the least seen by this factor, plus {@link #QUEUING_MARGIN_NANOS}
+     * to ignore jitter on fast links, signals queuing
+     */
+    static final int  QUEUING_RTT_FACTOR   = 2;
+    static final long QUEUING_MARGIN_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private final RetransmissionTimer timer;
+
+    /** Bytes that may await acknowledgement, or 0 until the chunk size is known */
+    private long windowBytes;
+    private long slowStartThresholdBytes = MAX_WINDOW_BYTES;
+    private long minRttNanos             = -1;
+    private long reducedNanos;
+    private boolean reduced;
+
+    /** Length of the chunks last asked about, the least window */
+    private int  chunkLength;
+    private int  chunkShrink;
+    /** Bytes acknowledged since the window was last reduced or the chunk size last grew */
+    private long cleanBytes;
+
+    /**
+     * @param timer the estimator of the link's round trip time, which paces reductions
+     */
+    CongestionController(RetransmissionTimer timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * @return the length of the next chunk, given the largest the transport takes
+     */
+    int getChunkLength(int maxChunkLength) {
+        return Math.max(1, maxChunkLength >> chunkShrink);
+    }
+
+    /**
+     * @return the number of chunks of chunkLength that may await acknowledgement, at least 1
+     */
+    int getWindowChunks(int chunkLength) {
+        this.chunkLength = Math.max(1, chunkLength);
+        if (windowBytes == 0) windowBytes = (long) INITIAL_WINDOW_CHUNKS * this.chunkLength;
+        return (int) Math.max(1, windowBytes / this.chunkLength);
+    }
+
+    long getWindowBytes() {
+        return windowBytes;
+    }
+
+    /** @return the least round trip time seen, or -1 if none */
+    long getMinRttNanos() {
+        return minRttNanos;
+    }
+
+    /**
+     * @param rttNanos the round trip time of the chunk, or -1 if it was sent more than once
+     */
+    void onAcknowledged(int length, long rttNanos, long nowNanos) {
+        if (rttNanos >= 0) {
+            if (minRttNanos < 0 || rttNanos < minRttNanos) minRttNanos = rttNanos;
+
+            if (rttNanos > QUEUING_RTT_FACTOR * minRttNanos + QUEUING_MARGIN_NANOS) {
+                reduce(nowNanos);
+                return;
+            }
+        }
+
+        if (windowBytes < slowStartThresholdBytes)
+            windowBytes += length;
+        else
+            windowBytes += Math.max(1, (long) length * length / Math.max(1, windowBytes));
+        windowBytes = Math.min(windowBytes, MAX_WINDOW_BYTES);
+
+        cleanBytes += length;
+        if (chunkShrink > 0 && cleanBytes >= windowBytes) {
+            chunkShrink--;
+            cleanBytes = 0;
+        }
+    }
+
+    /**
+     * Note a chunk was lost, as reported by the receiver or by the transport failing to send it
+     */
+    void onLoss(long nowNanos) {
+        reduce(nowNanos);
+    }
+
+    /**
+     * Note a chunk's acknowledgement timed out. Little is known to be reaching the link
+     */
+    void onTimeout(long nowNanos) {
+        if (reduce(nowNanos) && chunkShrink < MAX_CHUNK_SHRINK) chunkShrink++;
+        windowBytes = Math.max(1, chunkLength);
+    }
+
+    /**
+     * Halve the window, unless it was already reduced within the last round trip
+     *
+     * @return whether the window was reduced
+     */
+    private boolean reduce(long nowNanos) {
+        long rttNanos = Math.max(timer.getSmoothedRttNanos(), minRttNanos);
+        if (reduced && nowNanos - reducedNanos < rttNanos) return false;
+
+        reduced      = true;
+        reducedNanos = nowNanos;
+        cleanBytes   = 0;
+
+        slowStartThresholdBytes = Math.max(Math.max(1, chunkLength), windowBytes / 2);
+        windowBytes = slowStartThresholdBytes;
+        return true;
+    }
+}
@@ -2,8 +2,16 @@ package pro.dbro.airshare.session;
 
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.util.Base64;
 
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -16,8 +24,21 @@ public class DataTransferMessage extends SessionMessage {
 
     public static final String HEADER_EXTRA = "extra";
 
+    /** Id of the message of which this message's body is a stripe */
+    public static final String HEADER_STRIPE_OF     = "stripe-of";
+    /** Offset of this message's body within the striped message's body */
+    public static final String HEADER_STRIPE_OFFSET = "stripe-offset";
+    /** Body length of the striped message */
+    public static final String HEADER_STRIPE_TOTAL  = "stripe-total";
+
     private ByteBuffer data;
+    private File bodyFile;
     private Map<String, Object> extraHeaders;
+    private BodyCodec codec;
+
+    private String stripeOf;
+    private int stripeOffset;
+    private int stripeTotal;
 
     // <editor-fold desc="Incoming Constructors">
 
@@ -27,9 +48,18 @@ public class DataTransferMessage extends SessionMessage {
         super((String) headers.get(SessionMessage.HEADER_ID));
         init();
         this.headers      = headers;
-        bodyLengthBytes   = (int) headers.get(HEADER_BODY_LENGTH);
+        // An encoded body is delivered decoded, so report the decoded length
+        bodyLengthBytes   = headers.containsKey(BodyCodec.HEADER_PLAIN_LENGTH) ?
+                                (int) headers.get(BodyCodec.HEADER_PLAIN_LENGTH) :
+                                (int) headers.get(HEADER_BODY_LENGTH);
         status            = body == null ? Status.HEADER_ONLY : Status.COMPLETE;
 
+        if (headers.containsKey(HEADER_STRIPE_OF)) {
+            stripeOf     = (String) headers.get(HEADER_STRIPE_OF);
+            stripeOffset = (int) headers.get(HEADER_STRIPE_OFFSET);
+            stripeTotal  = (int) headers.get(HEADER_STRIPE_TOTAL);
+        }
+
         if (body != null)
             setBody(body);
 
@@ -63,17 +93,138 @@ public class DataTransferMessage extends SessionMessage {
 
     }
 
+    /**
+     * Recreate an outgoing message persisted before it could be sent. The recreated
+     * message keeps the original's id, so deliveries of either can be matched by
+     * {@link SessionMessage#HEADER_ID}.
+     */
+    static DataTransferMessage restoreOutgoing(@NonNull String id,
+                                               @Nullable Map<String, Object> extraHeaders,
+                                               @Nullable byte[] data) {
+
+        return new DataTransferMessage(id, data, extraHeaders);
+    }
+
+    private DataTransferMessage(@NonNull String id,
+                                @Nullable byte[] data,
+                                @Nullable Map<String, Object> extraHeaders) {
+        super(id);
+        this.extraHeaders = extraHeaders;
+        init();
+        if (data != null) {
+            setBody(data);
+            bodyLengthBytes = data.length;
+        }
+        serializeAndCacheHeaders();
+    }
+
+    /**
+     * Copy of an outgoing message sharing its id, extras and body,
+     * whose body will be transformed by codec during serialization
+     */
+    private DataTransferMessage(@NonNull DataTransferMessage plainMessage,
+                                @NonNull BodyCodec codec) {
+        super(plainMessage.id);
+        this.extraHeaders = plainMessage.extraHeaders;
+        this.codec = codec;
+        stripeOf     = plainMessage.stripeOf;
+        stripeOffset = plainMessage.stripeOffset;
+        stripeTotal  = plainMessage.stripeTotal;
+        init();
+        if (plainMessage.data != null) {
+            data = plainMessage.data.duplicate();
+            data.clear();
+        } else
+            data = ByteBuffer.allocate(0);
+
+        bodyLengthBytes = codec.getEncodedLength(data.limit());
+        serializeAndCacheHeaders();
+    }
+
+    /**
+     * @return a copy of this outgoing message whose body will be encoded by codec as it is
+     * serialized. The copy has the same id, so deliveries of either can be matched by
+     * {@link SessionMessage#HEADER_ID}.
+     */
+    public DataTransferMessage encode(@NonNull BodyCodec codec) {
+        if (this.codec != null)
+            throw new IllegalStateException("Message body is already encoded");
+
+        return new DataTransferMessage(this, codec);
+    }
+
+    /**
+     * Stripe of an outgoing message with a new id, sharing its extras and
+     * the given range of its body without copying
+     */
+    private DataTransferMessage(@NonNull DataTransferMessage wholeMessage,
+                                int offset,
+                                int length) {
+        super();
+        this.extraHeaders = wholeMessage.extraHeaders;
+        init();
+
+        ByteBuffer body = wholeMessage.data.duplicate();
+        body.limit(offset + length);
+        body.position(offset);
+        data = body.slice();
+        status = Status.COMPLETE;
+        bodyLengthBytes = length;
+
+        stripeOf     = wholeMessage.id;
+        stripeOffset = offset;
+        stripeTotal  = wholeMessage.bodyLengthBytes;
+        serializeAndCacheHeaders();
+    }
+
+    /**
+     * @return a message carrying length bytes of this outgoing message's body from offset,
+     * to be sent alongside the other stripes of this message and reassembled by the recipient
+     */
+    DataTransferMessage createStripe(int offset, int length) {
+        if (codec != null)
+            throw new IllegalStateException("Cannot stripe an encoded message");
+        if (isStripe())
+            throw new IllegalStateException("Cannot stripe a stripe");
+
+        return new DataTransferMessage(this, offset, length);
+    }
+
     // </editor-fold desc="Outgoing Constructors">
 
     private void init() {
         type = HEADER_TYPE;
     }
 
+    private byte[] serializeExtras() {
+        try {
+            return new JSONObject(extraHeaders).toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 unsupported", e);
+        }
+    }
+
     @Override
     protected HashMap<String, Object> populateHeaders() {
         HashMap<String, Object> headerMap = super.populateHeaders();
-        if (extraHeaders != null)
-            headerMap.put(HEADER_EXTRA, extraHeaders);
+        if (extraHeaders != null) {
+            byte[] sealedExtras = codec != null ? codec.sealExtras(serializeExtras()) : null;
+            if (sealedExtras != null)
+                headerMap.put(BodyCodec.HEADER_SEALED_EXTRA, Base64.encodeToString(sealedExtras, Base64.NO_WRAP));
+            else
+                headerMap.put(HEADER_EXTRA, extraHeaders);
+        }
+
+        if (codec != null) {
+            headerMap.put(BodyCodec.HEADER_CODEC, codec.getName());
+            headerMap.put(BodyCodec.HEADER_PLAIN_LENGTH, data.limit());
+        }
+
+        if (stripeOf != null) {
+            headerMap.put(HEADER_STRIPE_OF,     stripeOf);
+            headerMap.put(HEADER_STRIPE_OFFSET, stripeOffset);
+            headerMap.put(HEADER_STRIPE_TOTAL,  stripeTotal);
+        }
 
         // The following three lines should be deleted
 //        headerMap.put(HEADER_TYPE,        type);
@@ -83,6 +234,47 @@ public class DataTransferMessage extends SessionMessage {
         return headerMap;
     }
 
+    /**
+     * @return a copy of the extras message was sent with, or null if it was sent with none
+     */
+    public static @Nullable Map<String, Object> getExtras(@NonNull SessionMessage message) {
+        return toExtras(message.getHeaders().get(HEADER_EXTRA));
+    }
+
+    /**
+     * @return a copy of value if it is a map keyed by strings, as deserialized extras are, else null
+     */
+    public static @Nullable Map<String, Object> toExtras(@Nullable Object value) {
+        if (!(value instanceof Map)) return null;
+
+        HashMap<String, Object> extras = new HashMap<>();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+            if (!(entry.getKey() instanceof String)) return null;
+            extras.put((String) entry.getKey(), entry.getValue());
+        }
+        return extras;
+    }
+
+    /**
+     * @return whether this message carries a range of another message's body.
+     * See {@link #createStripe(int, int)}
+     */
+    public boolean isStripe() {
+        return stripeOf != null;
+    }
+
+    public @Nullable String getStripeOf() {
+        return stripeOf;
+    }
+
+    public int getStripeOffset() {
+        return stripeOffset;
+    }
+
+    public int getStripeTotal() {
+        return stripeTotal;
+    }
+
     public void setBody(@NonNull byte[] body) {
         if (data != null)
             throw new IllegalStateException("Attempted to set existing message body");
@@ -91,9 +283,37 @@ public class DataTransferMessage extends SessionMessage {
         status = Status.COMPLETE;
     }
 
+    /**
+     * Set the body of an incoming message to the contents of bodyFile, which are read as
+     * needed rather than held in memory
+     */
+    void setBody(@NonNull File bodyFile) throws IOException {
+        if (data != null)
+            throw new IllegalStateException("Attempted to set existing message body");
+
+        RandomAccessFile file = new RandomAccessFile(bodyFile, "r");
+        try {
+            // The mapping remains valid once the file is closed
+            data = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        } finally {
+            file.close();
+        }
+        this.bodyFile = bodyFile;
+        status = Status.COMPLETE;
+    }
+
+    /**
+     * @return the file holding this incoming message's body, or null if the body is held in memory
+     */
+    public @Nullable File getBodyFile() {
+        return bodyFile;
+    }
+
     @Override
     public byte[] getBodyAtOffset(int offset, int length) {
 
+        if (codec != null) return codec.readEncoded(data, offset, length);
+
         if (offset > bodyLengthBytes - 1) return null;
 
         int bytesToRead = Math.min(length, bodyLengthBytes - offset);
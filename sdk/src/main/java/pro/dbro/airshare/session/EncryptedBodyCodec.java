@@ -0,0 +1,107 @@
+package pro.dbro.airshare.session;
+
+import android.support.annotation.NonNull;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
+
+import pro.dbro.airshare.crypto.SodiumShaker;
+
+/**
+ * Encrypts and authenticates each body segment with ChaCha20-Poly1305.
+ *
+ * The per-peer session key is never used directly. Each message gets its own key, a keyed
+ * hash of the sender's public key and the message id, so the segment index can serve as the
+ * nonce. The final segment is marked in its additional data so a truncated body fails
+ * authentication.
+ *
+ * The 'extra' header, which carries application metadata such as filenames and content
+ * hashes, is sealed under the same key with a nonce no segment uses. The remaining headers
+ * are sent in the clear, as peers need them to frame, route and acknowledge a message before
+ * decrypting it: the message type and id, the encoded and plain body lengths, the codec name
+ * and any stripe headers. An observer therefore learns when and between whom messages are
+ * sent, and how large they are.
+ */
+public class EncryptedBodyCodec extends BodyCodec {
+
+    public static final String NAME = "aead";
+
+    private static final byte[] AD_SEGMENT       = new byte[] { 0 };
+    private static final byte[] AD_FINAL_SEGMENT = new byte[] { 1 };
+    private static final byte[] AD_EXTRAS        = new byte[] { 2 };
+
+    /** Segment indexes are non-negative, so never produce this nonce */
+    private static final int EXTRAS_NONCE_INDEX = -1;
+
+    private final byte[] messageKey;
+
+    /**
+     * @param sessionKey key shared with the remote peer. See
+     *                   {@link pro.dbro.airshare.crypto.SodiumShaker#deriveSharedKey(byte[], byte[], byte[])}
+     * @param senderPublicKey public key of the peer encrypting the message
+     * @param messageId id of the message whose body this codec will transform
+     */
+    public EncryptedBodyCodec(@NonNull byte[] sessionKey,
+                              @NonNull byte[] senderPublicKey,
+                              @NonNull String messageId) {
+
+        byte[] id;
+        try {
+            id = messageId.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 unsupported", e);
+        }
+
+        byte[] keyInput = new byte[senderPublicKey.length + id.length];
+        System.arraycopy(senderPublicKey, 0, keyInput, 0, senderPublicKey.length);
+        System.arraycopy(id, 0, keyInput, senderPublicKey.length, id.length);
+
+        messageKey = SodiumShaker.generichash(keyInput, sessionKey, SodiumShaker.crypto_aead_chacha20poly1305_KEYBYTES);
+    }
+
+    @NonNull
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int getSegmentOverheadBytes() {
+        return SodiumShaker.crypto_aead_chacha20poly1305_ABYTES;
+    }
+
+    @NonNull
+    @Override
+    public byte[] encodeSegment(int index, @NonNull byte[] plaintext, boolean isFinal) {
+        return SodiumShaker.encryptAead(messageKey, nonceForSegment(index), plaintext,
+                                        isFinal ? AD_FINAL_SEGMENT : AD_SEGMENT);
+    }
+
+    @NonNull
+    @Override
+    public byte[] decodeSegment(int index, @NonNull byte[] encoded, boolean isFinal) throws GeneralSecurityException {
+        return SodiumShaker.decryptAead(messageKey, nonceForSegment(index), encoded,
+                                        isFinal ? AD_FINAL_SEGMENT : AD_SEGMENT);
+    }
+
+    @NonNull
+    @Override
+    public byte[] sealExtras(@NonNull byte[] extras) {
+        return SodiumShaker.encryptAead(messageKey, nonceForSegment(EXTRAS_NONCE_INDEX), extras, AD_EXTRAS);
+    }
+
+    @NonNull
+    @Override
+    public byte[] openExtras(@NonNull byte[] sealed) throws GeneralSecurityException {
+        return SodiumShaker.decryptAead(messageKey, nonceForSegment(EXTRAS_NONCE_INDEX), sealed, AD_EXTRAS);
+    }
+
+    private static byte[] nonceForSegment(int index) {
+        return ByteBuffer.allocate(SodiumShaker.crypto_aead_chacha20poly1305_NPUBBYTES)
+                         .order(ByteOrder.LITTLE_ENDIAN)
+                         .putLong(index)
+                         .array();
+    }
+}
@@ -0,0 +1,178 @@
+package pro.dbro.airshare.session;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Deficit round robin scheduling of chunks to the remote identifiers sharing a transport.
+ *
+ * Backlogged identifiers are visited in turn. Each visit credits an identifier with its weight
+ * times its chunk length, and it may send chunks while its credit remains. Each chunk sent is
+ * charged its actual length, and unused credit or overdraft carries to the next visit, so over
+ * any interval in which identifiers remain backlogged they receive bytes in proportion to their
+ * weights, to within a chunk, regardless of how large a chunk each sends. An identifier with
+ * nothing to send forfeits its credit.
+ *
+ * Each identifier may have only as many chunks awaiting acknowledgement as its window, set from
+ * its link's congestion control, so the order in which identifiers share the radio is decided
+ * here rather than by the transport.
+ *
+ * Not thread safe. Used only by {@link pro.dbro.airshare.session.SessionManager}.
+ */
+class FairScheduler {
+
+    /** Weight of an identifier not otherwise weighted */
+    static final int DEFAULT_WEIGHT = 1;
+
+    /** Chunks an identifier may have awaiting acknowledgement until its window is set */
+    static final int DEFAULT_WINDOW = 1;
+
+    /** Identifiers with chunks to send, the head being the one currently visited */
+    private final ArrayDeque<String>       backlogged   = new ArrayDeque<>();
+    /** Identifier -> Unused credit in bytes, negative when overdrawn */
+    private final HashMap<String, Long>    deficits     = new HashMap<>();
+    private final HashMap<String, Integer> chunkLengths = new HashMap<>();
+    private final HashMap<String, Integer> weights      = new HashMap<>();
+    /** Identifier -> Time in nanoseconds since which it has awaited its next chunk */
+    private final HashMap<String, Long>    readyNanos   = new HashMap<>();
+    /** Identifier -> Chunks awaiting acknowledgement */
+    private final HashMap<String, Integer> inFlight     = new HashMap<>();
+    private final HashMap<String, Integer> windows      = new HashMap<>();
+
+    /** Whether the head of {@link #backlogged} has been credited for the current visit */
+    private boolean headCredited;
+
+    void setWeight(@NonNull String identifier, int weight) {
+        weights.put(identifier, Math.max(1, weight));
+    }
+
+    /**
+     * Set the number of chunks identifier may have awaiting acknowledgement, which is 0 while
+     * its receiver can take no more
+     */
+    void setWindow(@NonNull String identifier, int chunks) {
+        windows.put(identifier, Math.max(0, chunks));
+    }
+
+    /**
+     * Correct the number of chunks identifier has awaiting acknowledgement, as when some
+     * will never be acknowledged
+     */
+    void setInFlight(@NonNull String identifier, int chunks) {
+        if (chunks > 0) inFlight.put(identifier, chunks);
+        else inFlight.remove(identifier);
+    }
+
+    /**
+     * Note identifier has a chunk of up to chunkLength bytes to send
+     */
+    void setBacklogged(@NonNull String identifier, int chunkLength, long nowNanos) {
+        chunkLengths.put(identifier, chunkLength);
+        if (!readyNanos.containsKey(identifier)) readyNanos.put(identifier, nowNanos);
+        if (!backlogged.contains(identifier)) backlogged.addLast(identifier);
+    }
+
+    /**
+     * @return whether a backlogged identifier may hand another chunk to the transport
+     */
+    boolean canSend() {
+        for (String identifier : backlogged)
+            if (!isWindowFull(identifier)) return true;
+        return false;
+    }
+
+    /**
+     * @return the identifier whose chunk should be sent next, or null if none is backlogged.
+     * Report the outcome via {@link #onChunkSent(String, int, long)} or {@link #onIdle(String)}
+     */
+    @Nullable String next() {
+        // Overdraft never exceeds a chunk, so one credit restores any identifier's credit,
+        // and this ends within a round unless every backlogged identifier has a full window
+        int awaitingSkipped = 0;
+        while (awaitingSkipped < backlogged.size()) {
+            String identifier = backlogged.peekFirst();
+
+            if (isWindowFull(identifier)) {
+                awaitingSkipped++;
+            } else {
+                awaitingSkipped = 0;
+
+                if (!headCredited) {
+                    deficits.put(identifier, getDeficit(identifier) + getQuantum(identifier));
+                    headCredited = true;
+                }
+
+                if (getDeficit(identifier) > 0) return identifier;
+            }
+
+            backlogged.addLast(backlogged.pollFirst());
+            headCredited = false;
+        }
+        return null;
+    }
+
+    /**
+     * Charge identifier for a chunk of length bytes handed to the transport
+     *
+     * @return nanoseconds identifier waited for the chunk to be scheduled
+     */
+    long onChunkSent(@NonNull String identifier, int length, long nowNanos) {
+        deficits.put(identifier, getDeficit(identifier) - length);
+        setInFlight(identifier, getInFlight(identifier) + 1);
+
+        Long ready = readyNanos.remove(identifier);
+        return ready == null ? 0 : nowNanos - ready;
+    }
+
+    /**
+     * Note a chunk sent to identifier was acknowledged, failed, or will not be acknowledged
+     */
+    void onChunkComplete(@NonNull String identifier) {
+        setInFlight(identifier, getInFlight(identifier) - 1);
+    }
+
+    /**
+     * Note identifier has nothing to send. It forfeits its credit until next backlogged
+     */
+    void onIdle(@NonNull String identifier) {
+        if (identifier.equals(backlogged.peekFirst())) headCredited = false;
+
+        backlogged.remove(identifier);
+        deficits.remove(identifier);
+        readyNanos.remove(identifier);
+    }
+
+    /**
+     * Forget identifier, which has disconnected
+     */
+    void remove(@NonNull String identifier) {
+        onIdle(identifier);
+        inFlight.remove(identifier);
+        windows.remove(identifier);
+        chunkLengths.remove(identifier);
+        weights.remove(identifier);
+    }
+
+    private int getInFlight(String identifier) {
+        Integer chunks = inFlight.get(identifier);
+        return chunks == null ? 0 : chunks;
+    }
+
+    private boolean isWindowFull(String identifier) {
+        Integer window = windows.get(identifier);
+        return getInFlight(identifier) >= (window == null ? DEFAULT_WINDOW : window);
+    }
+
+    private long getDeficit(String identifier) {
+        Long deficit = deficits.get(identifier);
+        return deficit == null ? 0 : deficit;
+    }
+
+    private long getQuantum(String identifier) {
+        Integer weight = weights.get(identifier);
+        return (long) (weight == null ? DEFAULT_WEIGHT : weight) * chunkLengths.get(identifier);
+    }
+}
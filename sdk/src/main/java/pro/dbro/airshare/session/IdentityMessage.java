@@ -1,10 +1,12 @@
 package pro.dbro.airshare.session;
 
 import android.content.Context;
+import android.support.annotation.Nullable;
 import android.util.Base64;
 
 import com.google.common.base.Objects;
 
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
@@ -21,8 +23,12 @@ public class IdentityMessage extends SessionMessage {
     public static final String HEADER_TRANSPORTS  = "transports";
     public static final String HEADER_PUBKEY      = "pubkey";
     public static final String HEADER_ALIAS       = "alias";
+    /** Destinations reachable through the sender by relay. See {@link pro.dbro.airshare.session.RelayMessage} */
+    public static final String HEADER_ROUTES      = "routes";
 
     private Peer peer;
+    /** Encoded destination public key -> Hop count from the sender */
+    private Map<String, Integer> routes;
 
     /**
      * Convenience creator for deserialization
@@ -36,8 +42,18 @@ public class IdentityMessage extends SessionMessage {
                              -1,
                              transports);
 
-        return new IdentityMessage((String) headers.get(SessionMessage.HEADER_ID),
-                                   peer);
+        IdentityMessage message = new IdentityMessage((String) headers.get(SessionMessage.HEADER_ID),
+                                                      peer);
+
+        if (headers.get(HEADER_ROUTES) instanceof Map) {
+            HashMap<String, Integer> routes = new HashMap<>();
+            for (Map.Entry<?, ?> route : ((Map<?, ?>) headers.get(HEADER_ROUTES)).entrySet()) {
+                if (route.getValue() instanceof Integer)
+                    routes.put((String) route.getKey(), (Integer) route.getValue());
+            }
+            message.routes = routes;
+        }
+        return message;
     }
 
     public IdentityMessage(String id, Peer peer) {
@@ -53,8 +69,17 @@ public class IdentityMessage extends SessionMessage {
      * @param peer    peer to provide keypair, alias
      */
     public IdentityMessage(Context context, Peer peer) {
+        this(context, peer, null);
+    }
+
+    /**
+     * Constructor for own identity, advertising routes to peers reachable by relay
+     * @param routes encoded destination public key -> hop count, or null
+     */
+    public IdentityMessage(Context context, Peer peer, @Nullable Map<String, Integer> routes) {
         super();
-        this.peer = peer;
+        this.peer   = peer;
+        this.routes = routes;
         init();
         serializeAndCacheHeaders();
     }
@@ -67,6 +92,14 @@ public class IdentityMessage extends SessionMessage {
         return peer;
     }
 
+    /**
+     * @return encoded destination public key -> hop count of each destination the
+     * sender can reach by relay
+     */
+    public Map<String, Integer> getRoutes() {
+        return routes == null ? Collections.<String, Integer>emptyMap() : routes;
+    }
+
     @Override
     protected HashMap<String, Object> populateHeaders() {
         HashMap<String, Object> headerMap = super.populateHeaders();
@@ -74,6 +107,8 @@ public class IdentityMessage extends SessionMessage {
         headerMap.put(HEADER_ALIAS, peer.getAlias());
         headerMap.put(HEADER_PUBKEY, Base64.encodeToString(peer.getPublicKey(), Base64.DEFAULT));
         headerMap.put(HEADER_TRANSPORTS, peer.getTransports());
+        if (routes != null && !routes.isEmpty())
+            headerMap.put(HEADER_ROUTES, routes);
 
         return headerMap;
     }
@@ -0,0 +1,117 @@
+package pro.dbro.airshare.session;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Routing state for {@link pro.dbro.airshare.session.RelayMessage}s.
+ *
+ * Routes are learned from the routes each neighbor advertises in its
+ * {@link pro.dbro.airshare.session.IdentityMessage}, and from the neighbor each relayed message
+ * arrives through. Routes through a neighbor are forgotten when it disconnects. A bounded cache
+ * of relayed message ids suppresses duplicates arriving by several paths.
+ *
+ * Not thread safe. Used only by {@link pro.dbro.airshare.session.SessionManager}.
+ */
+class MeshRouter {
+
+    /** Most hops a relayed message may take, and the longest route kept */
+    static final int MAX_HOPS = 4;
+
+    /** Relayed message ids remembered to suppress duplicates */
+    static final int SEEN_CACHE_SIZE = 512;
+
+    private static class Route {
+        final Peer nextHop;
+        final int  hops;
+
+        Route(Peer nextHop, int hops) {
+            this.nextHop = nextHop;
+            this.hops    = hops;
+        }
+    }
+
+    private final String localKey;
+
+    /** Destination key -> Best known route */
+    private final HashMap<String, Route> routes = new HashMap<>();
+
+    private final LinkedHashMap<String, Boolean> seenIds = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > SEEN_CACHE_SIZE;
+        }
+    };
+
+    MeshRouter(@NonNull Peer localPeer) {
+        localKey = RelayMessage.encodeKey(localPeer.getPublicKey());
+    }
+
+    /**
+     * Learn the routes advertised by a newly identified neighbor
+     */
+    void onNeighborIdentified(@NonNull Peer neighbor, @NonNull Map<String, Integer> advertisedRoutes) {
+        for (Map.Entry<String, Integer> route : advertisedRoutes.entrySet())
+            learnRoute(route.getKey(), neighbor, route.getValue() + 1);
+    }
+
+    /**
+     * Forget routes through a departed neighbor
+     */
+    void onNeighborDisconnected(@NonNull Peer neighbor) {
+        Iterator<Route> iterator = routes.values().iterator();
+        while (iterator.hasNext())
+            if (iterator.next().nextHop.equals(neighbor)) iterator.remove();
+    }
+
+    /**
+     * Learn the route back to the origin of message, which arrived through neighbor
+     */
+    void onRelayReceived(@NonNull RelayMessage message, @NonNull Peer neighbor) {
+        learnRoute(message.getOrigin(), neighbor, message.getHops() + 1);
+    }
+
+    /**
+     * @return true the first time messageId is seen, false for a duplicate
+     */
+    boolean markSeen(@NonNull String messageId) {
+        return seenIds.put(messageId, Boolean.TRUE) == null;
+    }
+
+    /**
+     * @return the neighbor through which destinationKey is best reached, or null if unknown
+     */
+    @Nullable Peer getNextHop(@NonNull String destinationKey) {
+        Route route = routes.get(destinationKey);
+        return route == null ? null : route.nextHop;
+    }
+
+    /**
+     * @return destination key -> hop count of every destination reachable from here, to
+     * advertise to neighbors
+     */
+    Map<String, Integer> getAdvertisedRoutes(@NonNull Collection<Peer> neighbors) {
+        HashMap<String, Integer> advertised = new HashMap<>();
+        for (Map.Entry<String, Route> route : routes.entrySet())
+            advertised.put(route.getKey(), route.getValue().hops);
+
+        for (Peer neighbor : neighbors)
+            advertised.put(RelayMessage.encodeKey(neighbor.getPublicKey()), 1);
+
+        return advertised;
+    }
+
+    private void learnRoute(String destinationKey, Peer nextHop, int hops) {
+        if (hops > MAX_HOPS || destinationKey.equals(localKey)) return;
+
+        Route existing = routes.get(destinationKey);
+        if (existing == null || hops < existing.hops || existing.nextHop.equals(nextHop))
+            routes.put(destinationKey, new Route(nextHop, hops));
+    }
+}
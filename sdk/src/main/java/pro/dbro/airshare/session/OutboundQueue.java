@@ -0,0 +1,408 @@
+package pro.dbro.airshare.session;
+
+import android.support.annotation.NonNull;
+
+import com.google.common.io.BaseEncoding;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * Persists {@link pro.dbro.airshare.session.DataTransferMessage}s that could not be sent to
+ * their recipient, so they may be sent when the recipient next connects, even if the process
+ * restarts in the meantime. Messages to each recipient are kept in the order queued.
+ *
+ * Each recipient has an append-only log of queued messages and of tombstones marking messages
+ * since delivered. Records are written on a background thread, and records queued within
+ * {@link #SYNC_INTERVAL_MS} of one another share a single sync to disk, so queuing never
+ * waits on storage. Messages queued within that interval of a crash may be lost. A log is
+ * compacted when it is loaded or has accumulated many tombstones, and deleted once empty.
+ *
+ * Thread safe.
+ */
+public class OutboundQueue {
+
+    /** Longest a queued message waits to be synced to disk */
+    public static final long SYNC_INTERVAL_MS = 50;
+
+    /**
+     * Longest {@link #close()} blocks its caller, typically the main thread, awaiting the final sync.
+     * A sync taking longer completes in the background
+     */
+    public static final long CLOSE_TIMEOUT_MS = 500;
+
+    /** A log with more tombstones than this, and than queued messages, is compacted */
+    private static final int MAX_TOMBSTONES = 64;
+
+    private static final byte RECORD_MESSAGE   = 1;
+    private static final byte RECORD_TOMBSTONE = 2;
+
+    private static final String LOG_SUFFIX  = ".log";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** A record to be appended to the log of a recipient */
+    private static class Record {
+        final String recipientKey;
+        final byte[] bytes;
+
+        Record(String recipientKey, byte[] bytes) {
+            this.recipientKey = recipientKey;
+            this.bytes        = bytes;
+        }
+    }
+
+    private final File directory;
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+
+    /** Recipient key -> Message id -> Queued message, in order queued. Guarded by this */
+    private final HashMap<String, LinkedHashMap<String, DataTransferMessage>> queues = new HashMap<>();
+    /** Recipient key -> Tombstones in its log. Guarded by this */
+    private final HashMap<String, Integer> tombstoneCounts = new HashMap<>();
+    /** Records and compactions awaiting the writer. Guarded by this */
+    private ArrayList<Record> pendingRecords = new ArrayList<>();
+    private HashSet<String>   pendingCompactions = new HashSet<>();
+    private boolean           syncScheduled;
+    private boolean           closed;
+
+    /** Recipient key -> Open log. Accessed only on writer */
+    private final HashMap<String, FileOutputStream> logs = new HashMap<>();
+
+    public OutboundQueue(@NonNull File directory) {
+        this.directory = directory;
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            Timber.e("Failed to create outbound queue directory %s", directory.getAbsolutePath());
+    }
+
+    /**
+     * Queue message for delivery to recipient. Has no effect if message is already queued
+     */
+    public synchronized void enqueue(@NonNull Peer recipient, @NonNull DataTransferMessage message) {
+        if (closed) return;
+
+        String recipientKey = getKey(recipient);
+        LinkedHashMap<String, DataTransferMessage> queue = getQueue(recipientKey);
+        if (queue.containsKey(message.id)) return;
+
+        byte[] record;
+        try {
+            record = serializeMessage(message);
+        } catch (IOException e) {
+            Timber.e(e, "Failed to queue message %s", message.id);
+            return;
+        }
+
+        queue.put(message.id, message);
+        pendingRecords.add(new Record(recipientKey, record));
+        scheduleSync();
+    }
+
+    /**
+     * @return the messages queued for recipient, in the order queued. Messages remain
+     * queued until reported delivered via {@link #onMessageDelivered(Peer, String)}
+     */
+    public synchronized List<DataTransferMessage> getQueued(@NonNull Peer recipient) {
+        return new ArrayList<>(getQueue(getKey(recipient)).values());
+    }
+
+    /**
+     * Remove the message with messageId from recipient's queue, if queued
+     */
+    public synchronized void onMessageDelivered(@NonNull Peer recipient, @NonNull String messageId) {
+        remove(recipient, messageId);
+    }
+
+    /**
+     * Remove the message with messageId from recipient's queue, as when it is delivered or cancelled
+     *
+     * @return whether it was queued
+     */
+    public synchronized boolean remove(@NonNull Peer recipient, @NonNull String messageId) {
+        if (closed) return false;
+
+        String recipientKey = getKey(recipient);
+        // Load the log if this is the first access since restart, so the tombstone is not lost
+        LinkedHashMap<String, DataTransferMessage> queue = getQueue(recipientKey);
+        if (queue.remove(messageId) == null) return false;
+
+        int tombstones = tombstoneCounts.containsKey(recipientKey) ? tombstoneCounts.get(recipientKey) + 1 : 1;
+        tombstoneCounts.put(recipientKey, tombstones);
+
+        if (queue.isEmpty() || (tombstones > MAX_TOMBSTONES && tombstones > queue.size()))
+            pendingCompactions.add(recipientKey);
+        else
+            pendingRecords.add(new Record(recipientKey, serializeTombstone(messageId)));
+
+        scheduleSync();
+        return true;
+    }
+
+    /**
+     * Sync all queued messages to disk and release resources. Blocks for at most
+     * {@link #CLOSE_TIMEOUT_MS}
+     *
+     * @return whether the sync completed within that time
+     */
+    public boolean close() {
+        synchronized (this) {
+            if (closed) return true;
+            closed = true;
+        }
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                sync();
+                for (FileOutputStream log : logs.values())
+                    closeQuietly(log);
+                logs.clear();
+            }
+        });
+        writer.shutdown();
+        try {
+            if (writer.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) return true;
+            Timber.w("Outbound queue is still syncing");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    // <editor-fold desc="Writer">
+
+    private void scheduleSync() {
+        if (syncScheduled || closed) return;
+        syncScheduled = true;
+
+        writer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                sync();
+            }
+        }, SYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write pending records and compactions, then sync each log written. Called only on writer
+     */
+    private void sync() {
+        ArrayList<Record> records;
+        HashMap<String, List<DataTransferMessage>> compactions = new HashMap<>();
+
+        synchronized (this) {
+            records        = pendingRecords;
+            pendingRecords = new ArrayList<>();
+            syncScheduled  = false;
+
+            for (String recipientKey : pendingCompactions) {
+                compactions.put(recipientKey, new ArrayList<>(getQueue(recipientKey).values()));
+                tombstoneCounts.remove(recipientKey);
+            }
+            pendingCompactions = new HashSet<>();
+        }
+
+        HashSet<FileOutputStream> written = new HashSet<>();
+        for (Record record : records) {
+            if (compactions.containsKey(record.recipientKey)) continue; // Superseded by compaction
+            try {
+                FileOutputStream log = getLog(record.recipientKey);
+                log.write(record.bytes);
+                written.add(log);
+            } catch (IOException e) {
+                Timber.e(e, "Failed to write outbound queue record");
+            }
+        }
+
+        for (FileOutputStream log : written) {
+            try {
+                log.getFD().sync();
+            } catch (IOException e) {
+                Timber.e(e, "Failed to sync outbound queue");
+            }
+        }
+
+        for (Map.Entry<String, List<DataTransferMessage>> compaction : compactions.entrySet())
+            rewriteLog(compaction.getKey(), compaction.getValue());
+    }
+
+    private FileOutputStream getLog(String recipientKey) throws IOException {
+        FileOutputStream log = logs.get(recipientKey);
+        if (log == null) {
+            log = new FileOutputStream(getLogFile(recipientKey), true);
+            logs.put(recipientKey, log);
+        }
+        return log;
+    }
+
+    /**
+     * Replace the log of recipientKey with one holding only messages, or delete it if there are none
+     */
+    private void rewriteLog(String recipientKey, List<DataTransferMessage> messages) {
+        FileOutputStream openLog = logs.remove(recipientKey);
+        if (openLog != null) closeQuietly(openLog);
+
+        File logFile = getLogFile(recipientKey);
+        if (messages.isEmpty()) {
+            logFile.delete();
+            return;
+        }
+
+        File tempFile = new File(directory, recipientKey + TEMP_SUFFIX);
+        FileOutputStream temp = null;
+        try {
+            temp = new FileOutputStream(tempFile);
+            for (DataTransferMessage message : messages)
+                temp.write(serializeMessage(message));
+            temp.getFD().sync();
+            temp.close();
+            temp = null;
+
+            if (!tempFile.renameTo(logFile))
+                throw new IOException("Failed to rename " + tempFile.getName());
+        } catch (IOException e) {
+            Timber.e(e, "Failed to compact outbound queue");
+            if (temp != null) closeQuietly(temp);
+            tempFile.delete();
+        }
+    }
+
+    // </editor-fold desc="Writer">
+
+    // <editor-fold desc="Log format">
+
+    /**
+     * @return the queue for recipientKey, loading it from its log if not yet loaded. Must hold this
+     */
+    private LinkedHashMap<String, DataTransferMessage> getQueue(String recipientKey) {
+        LinkedHashMap<String, DataTransferMessage> queue = queues.get(recipientKey);
+        if (queue == null) {
+            queue = readLog(recipientKey);
+            queues.put(recipientKey, queue);
+            if (!queue.isEmpty()) Timber.d("Loaded %d queued messages", queue.size());
+        }
+        return queue;
+    }
+
+    private LinkedHashMap<String, DataTransferMessage> readLog(String recipientKey) {
+        LinkedHashMap<String, DataTransferMessage> queue = new LinkedHashMap<>();
+
+        File logFile = getLogFile(recipientKey);
+        if (!logFile.exists()) return queue;
+
+        DataInputStream log = null;
+        try {
+            log = new DataInputStream(new FileInputStream(logFile));
+            long maxLength = logFile.length();
+            while (true) {
+                byte recordType = log.readByte();
+                String id = new String(readBytes(log, maxLength), "UTF-8");
+
+                if (recordType == RECORD_MESSAGE) {
+                    String extras = new String(readBytes(log, maxLength), "UTF-8");
+                    byte[] body = readBytes(log, maxLength);
+                    queue.put(id, DataTransferMessage.restoreOutgoing(id, parseExtras(extras), body));
+                } else
+                    queue.remove(id);
+            }
+        } catch (EOFException e) {
+            // End of log, or a record interrupted by a crash
+        } catch (IOException | JSONException e) {
+            Timber.e(e, "Failed to read outbound queue");
+        } finally {
+            if (log != null) closeQuietly(log);
+        }
+
+        // Drop tombstones and any partial record before appending to the log
+        pendingCompactions.add(recipientKey);
+        scheduleSync();
+        return queue;
+    }
+
+    private static byte[] serializeMessage(DataTransferMessage message) throws IOException {
+        Object extras = message.getHeaders().get(DataTransferMessage.HEADER_EXTRA);
+        byte[] body = message.getBodyAtOffset(0, message.getBodyLengthBytes());
+        if (body == null) body = new byte[0];
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeByte(RECORD_MESSAGE);
+        writeString(out, message.id);
+        writeString(out, extras instanceof Map ? new JSONObject((Map) extras).toString() : "");
+        out.writeInt(body.length);
+        out.write(body);
+        return record.toByteArray();
+    }
+
+    private static byte[] serializeTombstone(String messageId) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        try {
+            out.writeByte(RECORD_TOMBSTONE);
+            writeString(out, messageId);
+        } catch (IOException e) {
+            // ByteArrayOutputStream does not throw
+            throw new IllegalStateException(e);
+        }
+        return record.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a length-prefixed run of bytes, treating an impossible length as the end of the log
+     */
+    private static byte[] readBytes(DataInputStream in, long maxLength) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > maxLength) throw new EOFException("Corrupt record");
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static Map<String, Object> parseExtras(String extras) throws JSONException {
+        return extras.isEmpty() ? null : SessionMessageDeserializer.toMap(new JSONObject(extras));
+    }
+
+    // </editor-fold desc="Log format">
+
+    private File getLogFile(String recipientKey) {
+        return new File(directory, recipientKey + LOG_SUFFIX);
+    }
+
+    private static String getKey(Peer peer) {
+        return BaseEncoding.base16().lowerCase().encode(peer.getPublicKey());
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Timber.w(e, "Failed to close outbound queue log");
+        }
+    }
+}
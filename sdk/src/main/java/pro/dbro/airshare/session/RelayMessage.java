@@ -0,0 +1,237 @@
+package pro.dbro.airshare.session;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Carries a serialized {@link pro.dbro.airshare.session.SessionMessage} from its origin to a
+ * destination peer that may not be directly connected, via intermediate peers.
+ *
+ * Each peer relaying the message forwards copies with {@link #HEADER_TTL} reduced by one,
+ * beginning as soon as the header arrives. The copies share one body, filled as the incoming
+ * body arrives (see {@link #forwardBody(byte[])}), so a relay never holds the whole message
+ * before forwarding it. Copies keep the id of the original, by which peers ignore duplicates.
+ *
+ * A relay that loses its upstream peer completes its copies with zeros, so
+ * {@link #HEADER_BODY_HASH} lets the destination discard a damaged message.
+ */
+public class RelayMessage extends SessionMessage {
+
+    public static final String HEADER_TYPE = "relay";
+
+    /** Header keys */
+    public static final String HEADER_DESTINATION  = "relay-to";
+    public static final String HEADER_ORIGIN       = "relay-from";
+    public static final String HEADER_ORIGIN_ALIAS = "relay-from-alias";
+    public static final String HEADER_TTL          = "ttl";
+    public static final String HEADER_HOPS         = "hops";
+    public static final String HEADER_BODY_HASH    = "body-hash";
+
+    private String destination;
+    private String origin;
+    private String originAlias;
+    private int    ttl;
+    private int    hops;
+    private String bodyHash;
+
+    /** A body of which the first available bytes are present */
+    private static class Body {
+        final byte[] bytes;
+        int available;
+
+        Body(byte[] bytes, int available) {
+            this.bytes     = bytes;
+            this.available = available;
+        }
+    }
+
+    private Body body;
+
+    /** Body shared by forwarded copies of this incoming message */
+    private Body forwardedBody;
+
+    // <editor-fold desc="Incoming Constructors">
+
+    RelayMessage(@NonNull Map<String, Object> headers) {
+        super((String) headers.get(SessionMessage.HEADER_ID));
+        init();
+        this.headers = headers;
+        destination  = (String) headers.get(HEADER_DESTINATION);
+        origin       = (String) headers.get(HEADER_ORIGIN);
+        originAlias  = (String) headers.get(HEADER_ORIGIN_ALIAS);
+        ttl          = (int) headers.get(HEADER_TTL);
+        hops         = (int) headers.get(HEADER_HOPS);
+        bodyHash     = (String) headers.get(HEADER_BODY_HASH);
+        bodyLengthBytes = (int) headers.get(HEADER_BODY_LENGTH);
+        status       = Status.HEADER_ONLY;
+
+        serializeAndCacheHeaders();
+    }
+
+    // </editor-fold desc="Incoming Constructors">
+
+    // <editor-fold desc="Outgoing Constructors">
+
+    /**
+     * Relay message from origin to the peer with destinationPublicKey, over at most ttl hops
+     */
+    public RelayMessage(@NonNull Peer origin,
+                        @NonNull byte[] destinationPublicKey,
+                        int ttl,
+                        @NonNull SessionMessage message) {
+        super();
+        init();
+        this.destination = encodeKey(destinationPublicKey);
+        this.origin      = encodeKey(origin.getPublicKey());
+        this.originAlias = origin.getAlias();
+        this.ttl         = ttl;
+        this.hops        = 0;
+
+        byte[] serialized = message.serialize();
+        body            = new Body(serialized, serialized.length);
+        bodyLengthBytes = serialized.length;
+        bodyHash        = Hashing.sha256().hashBytes(serialized).toString();
+        status          = Status.COMPLETE;
+
+        serializeAndCacheHeaders();
+    }
+
+    /**
+     * Copy of incoming to be forwarded one hop further, with a body filled by
+     * {@link #forwardBody(byte[])}
+     */
+    private RelayMessage(@NonNull RelayMessage incoming, @NonNull Body body) {
+        super(incoming.id);
+        init();
+        destination = incoming.destination;
+        origin      = incoming.origin;
+        originAlias = incoming.originAlias;
+        ttl         = incoming.ttl - 1;
+        hops        = incoming.hops + 1;
+        bodyHash    = incoming.bodyHash;
+
+        this.body       = body;
+        bodyLengthBytes = incoming.bodyLengthBytes;
+        status          = Status.COMPLETE;
+
+        serializeAndCacheHeaders();
+    }
+
+    /**
+     * @return a copy of this incoming message to forward one hop further
+     */
+    RelayMessage createForward() {
+        if (forwardedBody == null) forwardedBody = new Body(new byte[bodyLengthBytes], 0);
+        return new RelayMessage(this, forwardedBody);
+    }
+
+    // </editor-fold desc="Outgoing Constructors">
+
+    private void init() {
+        type = HEADER_TYPE;
+    }
+
+    @Override
+    protected HashMap<String, Object> populateHeaders() {
+        HashMap<String, Object> headerMap = super.populateHeaders();
+
+        headerMap.put(HEADER_DESTINATION,  destination);
+        headerMap.put(HEADER_ORIGIN,       origin);
+        headerMap.put(HEADER_ORIGIN_ALIAS, originAlias);
+        headerMap.put(HEADER_TTL,          ttl);
+        headerMap.put(HEADER_HOPS,         hops);
+        headerMap.put(HEADER_BODY_HASH,    bodyHash);
+
+        return headerMap;
+    }
+
+    public static String encodeKey(@NonNull byte[] publicKey) {
+        return BaseEncoding.base16().lowerCase().encode(publicKey);
+    }
+
+    /** @return the encoded public key of the destination. See {@link #encodeKey(byte[])} */
+    public String getDestination() {
+        return destination;
+    }
+
+    /** @return the encoded public key of the origin. See {@link #encodeKey(byte[])} */
+    public String getOrigin() {
+        return origin;
+    }
+
+    /**
+     * @return a peer representing the origin, which is not necessarily connected
+     */
+    public Peer getOriginPeer() {
+        return new Peer(BaseEncoding.base16().lowerCase().decode(origin), originAlias, new Date(), -1, 0);
+    }
+
+    public int getTtl() {
+        return ttl;
+    }
+
+    public int getHops() {
+        return hops;
+    }
+
+    /**
+     * Pass the next bytes of this incoming message's body to its forwarded copies,
+     * making them available for serialization
+     */
+    void forwardBody(@NonNull byte[] bytes) {
+        if (forwardedBody == null) return;
+
+        int length = Math.min(bytes.length, forwardedBody.bytes.length - forwardedBody.available);
+        System.arraycopy(bytes, 0, forwardedBody.bytes, forwardedBody.available, length);
+        forwardedBody.available += length;
+    }
+
+    /**
+     * Complete forwarded copies whose source was lost. The remainder of their body is
+     * zeros, which the destination detects via {@link #HEADER_BODY_HASH}
+     */
+    void abandonForwards() {
+        if (forwardedBody != null) forwardedBody.available = forwardedBody.bytes.length;
+    }
+
+    /**
+     * @return the number of body bytes passed to forwarded copies
+     */
+    int getForwardedBytes() {
+        return forwardedBody == null ? 0 : forwardedBody.available;
+    }
+
+    void setBody(@NonNull byte[] body) {
+        this.body = new Body(body, body.length);
+        status    = Status.COMPLETE;
+    }
+
+    /**
+     * @return the relayed message's serialized bytes, or null if the body is incomplete
+     * or does not match the hash given by its origin
+     */
+    @Nullable byte[] getVerifiedBody() {
+        if (body == null || body.available < bodyLengthBytes) return null;
+        if (!Hashing.sha256().hashBytes(body.bytes).toString().equals(bodyHash)) return null;
+        return body.bytes;
+    }
+
+    /**
+     * Only bytes already available are returned, so a forwarded copy is
+     * serialized as quickly as its body arrives
+     */
+    @Override
+    public @Nullable byte[] getBodyAtOffset(int offset, int length) {
+        if (body == null || offset >= body.available) return null;
+
+        return Arrays.copyOfRange(body.bytes, offset, offset + Math.min(length, body.available - offset));
+    }
+}
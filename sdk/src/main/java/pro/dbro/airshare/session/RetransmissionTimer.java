@@ -0,0 +1,57 @@
+package pro.dbro.airshare.session;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates how long to await acknowledgement of a chunk before sending it again, from the
+ * round trip times measured over a single link, as TCP does (RFC 6298).
+ *
+ * Only chunks acknowledged on their first transmission are sampled, since the acknowledgement
+ * of a retransmitted chunk may answer either copy. Each timeout doubles the next, up to
+ * {@link #MAX_TIMEOUT_NANOS}, until a new sample is taken.
+ *
+ * Not thread safe. Used only by {@link pro.dbro.airshare.session.ChunkFramer}.
+ */
+class RetransmissionTimer {
+
+    static final long INITIAL_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+    static final long MIN_TIMEOUT_NANOS     = TimeUnit.MILLISECONDS.toNanos(200);
+    static final long MAX_TIMEOUT_NANOS     = TimeUnit.SECONDS.toNanos(10);
+
+    /** Smoothed round trip time, or -1 before the first sample */
+    private long smoothedRttNanos = -1;
+    private long rttVarianceNanos;
+    private long timeoutNanos     = INITIAL_TIMEOUT_NANOS;
+
+    void onRttSample(long rttNanos) {
+        if (smoothedRttNanos < 0) {
+            smoothedRttNanos = rttNanos;
+            rttVarianceNanos = rttNanos / 2;
+        } else {
+            rttVarianceNanos = (3 * rttVarianceNanos + Math.abs(smoothedRttNanos - rttNanos)) / 4;
+            smoothedRttNanos = (7 * smoothedRttNanos + rttNanos) / 8;
+        }
+
+        timeoutNanos = clamp(smoothedRttNanos + 4 * rttVarianceNanos);
+    }
+
+    /**
+     * Note a chunk was not acknowledged within {@link #getTimeoutNanos()}
+     */
+    void backOff() {
+        timeoutNanos = clamp(2 * timeoutNanos);
+    }
+
+    long getTimeoutNanos() {
+        return timeoutNanos;
+    }
+
+    /** @return the smoothed round trip time, or -1 if none was measured */
+    long getSmoothedRttNanos() {
+        return smoothedRttNanos;
+    }
+
+    private static long clamp(long timeoutNanos) {
+        return Math.max(MIN_TIMEOUT_NANOS, Math.min(MAX_TIMEOUT_NANOS, timeoutNanos));
+    }
+}
@@ -1,6 +1,7 @@
 package pro.dbro.airshare.session;
 
 import android.content.Context;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Pair;
@@ -9,31 +10,54 @@ import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.SetMultimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import hugo.weaving.DebugLog;
+import pro.dbro.airshare.Logging;
+import pro.dbro.airshare.crypto.SodiumShaker;
+import pro.dbro.airshare.metrics.SessionMetrics;
+import pro.dbro.airshare.transport.EventLoopExecutionModel;
+import pro.dbro.airshare.transport.ExecutionModel;
 import pro.dbro.airshare.transport.Transport;
+import pro.dbro.airshare.transport.TransportCapabilities;
 import pro.dbro.airshare.transport.TransportState;
 import pro.dbro.airshare.transport.ble.BLETransport;
 import pro.dbro.airshare.transport.wifi.WifiTransport;
 import timber.log.Timber;
 
 /**
+ * Manages identification of and messaging with remote peers over the available transports.
+ *
+ * Transport events are processed via the {@link pro.dbro.airshare.transport.ExecutionModel}
+ * provided at construction, so transport threads such as Bluetooth binder threads return
+ * immediately. Events for a single remote identifier are processed in order.
+ * {@link pro.dbro.airshare.session.SessionManager.SessionManagerCallback} methods are called
+ * from the ExecutionModel. With an {@link pro.dbro.airshare.transport.EventLoopExecutionModel},
+ * methods that send messages or change transport state should be called on its Looper.
+ *
  * Created by davidbrodsky on 2/21/15.
  */
 public class SessionManager implements Transport.TransportCallback,
                                        SessionMessageDeserializer.SessionMessageDeserializerCallback,
                                        SessionMessageScheduler {
 
-    private static final boolean VERBOSE = true;
-
     public interface SessionManagerCallback {
 
         void peerStatusUpdated       (@NonNull Peer peer,
@@ -48,51 +72,182 @@ public class SessionManager implements Transport.TransportCallback,
                                       @NonNull Peer recipient,
                                       float progress);
 
+        /**
+         * Called once per message, including a message resent after its stream restarted
+         * because its acknowledgement was lost. Called with an exception if the body of a
+         * {@link pro.dbro.airshare.session.DataTransferMessage} could not be decrypted or
+         * verified. No more of message will then be received
+         */
         void messageReceivedFromPeer (@NonNull SessionMessage message,
-                                      @NonNull Peer recipient);
+                                      @NonNull Peer recipient,
+                                      @Nullable Exception exception);
 
         void messageSendingToPeer    (@NonNull SessionMessage message,
                                       @NonNull Peer recipient,
                                       float progress);
 
+        /**
+         * Called when message is delivered to recipient, or with a
+         * {@link java.util.concurrent.CancellationException} when it is cancelled. See
+         * {@link #cancelMessage(SessionMessage, Peer)}. Called with a
+         * {@link java.security.GeneralSecurityException} if encryption is enabled and
+         * message cannot be encrypted for recipient
+         */
         void messageSentToPeer       (@NonNull SessionMessage message,
                                       @NonNull Peer recipient,
                                       @Nullable Exception exception);
 
+        /**
+         * Called when sender cancels message, which it had partially sent. No more of message
+         * will be received
+         */
+        void messageCancelledByPeer  (@NonNull SessionMessage message,
+                                      @NonNull Peer sender);
+
+        /**
+         * Called before a message queued while recipient was not connected is sent, so
+         * delivery may be tracked by its id. See {@link #setOutboundQueue(OutboundQueue)}
+         */
+        void messageResumingToPeer   (@NonNull DataTransferMessage message,
+                                      @NonNull Peer recipient);
+
+        /**
+         * Called when bytes queued for peer, having exceeded the limit set by
+         * {@link #setMaxQueuedBytes(long)}, drain to half of it. See {@link #isWritable(Peer)}
+         */
+        void peerWritable            (@NonNull Peer peer);
+
+    }
+
+    /** Smallest body a {@link pro.dbro.airshare.session.DataTransferMessage} may have to be striped */
+    public static final int MIN_STRIPED_BODY_BYTES = 64 * 1024;
+
+    /** Largest serialized message relayed to or through this peer, as each is held in memory */
+    public static final int MAX_RELAYED_MESSAGE_BYTES = 512 * 1024;
+
+    /** Default bytes that may be queued for a peer before it is reported unwritable */
+    public static final long DEFAULT_MAX_QUEUED_BYTES = 1024 * 1024;
+
+    /**
+     * Ids of messages remembered per identifier, to ignore copies resent after a stream restart.
+     * A restart resends only messages with bytes in chunks awaiting acknowledgement
+     */
+    private static final int MAX_RECEIVED_IDS = 256;
+
+    /** Interval at which unacknowledged chunks and gaps in incoming streams are checked, while any exist */
+    private static final long WATCHDOG_INTERVAL_MS = 100;
+
+    /** Key under which watchdog checks are processed by the ExecutionModel */
+    private static final String WATCHDOG_KEY = "AirShareWatchdog";
+
+    /**
+     * Key under which cancellations requested via {@link #cancelMessage(SessionMessage, Peer)},
+     * and messages that could not be encrypted, are reported
+     */
+    private static final String CANCEL_KEY = "AirShareCancel";
+
+    /** An incoming {@link pro.dbro.airshare.session.RelayMessage} and the copies forwarded as it arrives */
+    private static class IncomingRelay {
+        final SessionMessageDeserializer receiver;
+        final RelayMessage               message;
+        /** Identifier -> Transport of each forwarded copy */
+        final HashMap<String, Transport> forwards = new HashMap<>();
+
+        IncomingRelay(SessionMessageDeserializer receiver, RelayMessage message) {
+            this.receiver = receiver;
+            this.message  = message;
+        }
     }
 
     private Context                                   context;
     private String                                    serviceName;
     private SortedSet<Transport>                      transports;
     private LocalPeer                                 localPeer;
-    private IdentityMessage                           localIdentityMessage;
     private SessionManagerCallback                    callback;
+    private ExecutionModel                            executionModel;
     private HashMap<String, Transport>                identifierTransports       = new HashMap<>();
+    private HashMap<String, ChunkFramer>              identifierFramers          = new HashMap<>();
+    private HashMap<String, ChunkDeframer>            identifierDeframers        = new HashMap<>();
     private HashMap<Peer, SortedSet<Transport>>       peerTransports             = new HashMap<>();
     private BiMap<String, SessionMessageDeserializer> identifierReceivers        = HashBiMap.create();
+    /** Identifier -> Ids of messages recently received from it, oldest first */
+    private HashMap<String, Set<String>>              identifierReceivedIds      = new HashMap<>();
     private BiMap<String, SessionMessageSerializer>   identifierSenders          = HashBiMap.create();
     private final HashMap<String, Peer>               identifiedPeers            = new HashMap<>();
     private final SetMultimap<Peer, String>           peerIdentifiers            = HashMultimap.create();
     private Set<String>                               identifyingPeers           = new HashSet<>();
     private Set<String>                               hostIdentifiers            = new HashSet<>();
     private HashMap<Peer, Transport>                  peerUpgradeRequests        = new HashMap<>();
+    private HashMap<Peer, byte[]>                     peerSessionKeys            = new HashMap<>();
     private TransportState                            baseTransportState         = new TransportState(false, false, false);
+    private HashMap<String, StripedTransfer>          outgoingStripes            = new HashMap<>();
+    private HashMap<String, StripedTransfer>          incomingStripes            = new HashMap<>();
+    private final SessionMetrics                      metrics                    = new SessionMetrics();
+    private OutboundQueue                             outboundQueue;
+    private MeshRouter                                meshRouter;
+    private HashMap<String, IncomingRelay>            incomingRelays             = new HashMap<>();
+    private HashMap<String, Pair<SessionMessage, Peer>> originatedRelays         = new HashMap<>();
+    private boolean                                   encryptionEnabled          = false;
+    private boolean                                   signingEnabled             = false;
+    private boolean                                   stripingEnabled            = false;
+    private boolean                                   relayingEnabled            = false;
+    /** Identifier -> Time in nanoseconds by which messages held for coalescing must be sent */
+    private HashMap<String, Long>                     coalescingDeadlines        = new HashMap<>();
+    private final long[]                              coalescingWindowsMs        = new long[SessionMessage.Priority.values().length];
+    private ScheduledExecutorService                  timer;
+    private boolean                                   watchdogScheduled;
+    private long                                      maxQueuedBytes             = DEFAULT_MAX_QUEUED_BYTES;
+    /** Peers reported unwritable, to be notified via {@link SessionManagerCallback#peerWritable(Peer)} */
+    private Set<Peer>                                 unwritablePeers            = new HashSet<>();
+    private HashMap<Transport, FairScheduler>         transportSchedulers        = new HashMap<>();
+    private HashMap<Peer, Integer>                    peerWeights                = new HashMap<>();
 
     // <editor-fold desc="Public API">
 
+    /**
+     * @param sessionLooper the Looper on which transport events are processed and callback
+     *                      is notified
+     */
+    public SessionManager(Context context,
+                          String serviceName,
+                          LocalPeer localPeer,
+                          Looper sessionLooper,
+                          SessionManagerCallback callback) {
+
+        this(context, serviceName, localPeer, null, new EventLoopExecutionModel(sessionLooper), callback);
+    }
+
+    /**
+     * @param transports the transports to use in place of the default Bluetooth and WiFi transports,
+     *                   or null for the defaults. The transport with the smallest MTU is considered
+     *                   the base transport. Each transport's callback and execution model is replaced.
+     * @param executionModel the model on which transport events are processed. It is shared with
+     *                       the transports and is not shut down by this SessionManager.
+     */
     public SessionManager(Context context,
                           String serviceName,
                           LocalPeer localPeer,
+                          @Nullable List<Transport> transports,
+                          ExecutionModel executionModel,
                           SessionManagerCallback callback) {
 
-        this.context     = context;
-        this.serviceName = serviceName;
-        this.localPeer   = localPeer;
-        this.callback    = callback;
+        this.context        = context;
+        this.serviceName    = serviceName;
+        this.localPeer      = localPeer;
+        this.callback       = callback;
+        this.executionModel = executionModel;
+
+        meshRouter = new MeshRouter(this.localPeer);
 
-        localIdentityMessage = new IdentityMessage(this.context, this.localPeer);
+        if (transports == null)
+            initializeTransports(serviceName);
+        else
+            this.transports = new TreeSet<>(transports);
 
-        initializeTransports(serviceName);
+        for (Transport transport : this.transports) {
+            transport.setTransportCallback(this);
+            transport.setExecutionModel(executionModel);
+        }
     }
 
     public String getServiceName() {
@@ -111,20 +266,184 @@ public class SessionManager implements Transport.TransportCallback,
         baseTransportState = new TransportState(baseTransportState.isStopped, baseTransportState.wasAdvertising, true);
     }
 
+    /**
+     * Set whether outgoing {@link pro.dbro.airshare.session.DataTransferMessage} bodies are
+     * encrypted with a key shared only with their recipient. Incoming encrypted bodies are
+     * decrypted regardless of this setting.
+     */
+    public synchronized void setEncryptionEnabled(boolean enabled) {
+        encryptionEnabled = enabled;
+    }
+
+    public boolean isEncryptionEnabled() {
+        return encryptionEnabled;
+    }
+
+    /**
+     * Set whether outgoing {@link pro.dbro.airshare.session.DataTransferMessage} bodies are
+     * signed with the local identity key so the recipient can verify their integrity and
+     * origin as they stream in. Encrypted bodies are already authenticated and are not
+     * additionally signed.
+     */
+    public synchronized void setSigningEnabled(boolean enabled) {
+        signingEnabled = enabled;
+    }
+
+    public boolean isSigningEnabled() {
+        return signingEnabled;
+    }
+
+    /**
+     * Set whether outgoing {@link pro.dbro.airshare.session.DataTransferMessage}s with bodies of
+     * at least {@link #MIN_STRIPED_BODY_BYTES} are split into stripes sent concurrently over every
+     * transport connected to their recipient. Stripes are sized in proportion to each transport's
+     * recent throughput. Incoming stripes are reassembled regardless of this setting.
+     */
+    public synchronized void setStripingEnabled(boolean enabled) {
+        stripingEnabled = enabled;
+    }
+
+    public boolean isStripingEnabled() {
+        return stripingEnabled;
+    }
+
+    /**
+     * Set whether {@link pro.dbro.airshare.session.DataTransferMessage}s to peers not directly
+     * connected are relayed through connected peers, and whether messages between other peers
+     * are relayed through this one. Relayed messages travel at most {@link MeshRouter#MAX_HOPS}
+     * hops and are not encrypted or signed end to end.
+     */
+    public synchronized void setRelayingEnabled(boolean enabled) {
+        relayingEnabled = enabled;
+    }
+
+    public boolean isRelayingEnabled() {
+        return relayingEnabled;
+    }
+
+    /**
+     * Set how long a {@link pro.dbro.airshare.session.DataTransferMessage} of priority smaller
+     * than the MTU may be held before sending, so that messages sent in quick succession share
+     * transport writes. Held messages are sent once an MTU's worth accumulates, or when the
+     * shortest window among them elapses. A message whose window is 0 is sent immediately,
+     * along with any held before it. All windows default to 0.
+     */
+    public synchronized void setCoalescingWindowMs(SessionMessage.Priority priority, long windowMs) {
+        coalescingWindowsMs[priority.ordinal()] = Math.max(0, windowMs);
+    }
+
+    public long getCoalescingWindowMs(SessionMessage.Priority priority) {
+        return coalescingWindowsMs[priority.ordinal()];
+    }
+
+    /**
+     * Set how many bytes may be queued for a peer before {@link #isWritable(Peer)} reports false.
+     * The limit does not refuse messages, but a producer that waits for
+     * {@link SessionManagerCallback#peerWritable(Peer)} before sending more is throttled to the
+     * speed of the link, and the memory held for the peer stays near the limit.
+     */
+    public synchronized void setMaxQueuedBytes(long maxQueuedBytes) {
+        this.maxQueuedBytes = Math.max(1, maxQueuedBytes);
+    }
+
+    public long getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    /**
+     * @return the bytes of messages queued for peer across its transports and not yet acknowledged
+     */
+    public synchronized long getQueuedBytes(Peer peer) {
+        long queuedBytes = 0;
+        for (String identifier : peerIdentifiers.get(peer)) {
+            SessionMessageSerializer sender = identifierSenders.get(identifier);
+            if (sender != null) queuedBytes += sender.getQueuedBytes();
+        }
+        return queuedBytes;
+    }
+
+    /**
+     * @return whether fewer than {@link #getMaxQueuedBytes()} bytes are queued for peer. When false,
+     * {@link SessionManagerCallback#peerWritable(Peer)} is called once the queue drains to half
+     * the limit
+     */
+    public synchronized boolean isWritable(Peer peer) {
+        if (unwritablePeers.contains(peer)) return false;
+
+        if (getQueuedBytes(peer) >= maxQueuedBytes) {
+            unwritablePeers.add(peer);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Set the share of each transport's capacity given to peer while it competes with other
+     * peers, relative to the weight of each other peer. Chunks to peers sharing a transport are
+     * scheduled by deficit round robin, so a peer of weight 2 receives twice the bytes of a
+     * peer of weight 1, and no backlogged peer waits more than a round of the others' chunks.
+     * Weights default to 1. See {@link SessionMetrics#getSendShare(Peer)}
+     */
+    public synchronized void setPeerWeight(Peer peer, int weight) {
+        peerWeights.put(peer, Math.max(1, weight));
+
+        for (String identifier : peerIdentifiers.get(peer)) {
+            Transport transport = identifierTransports.get(identifier);
+            if (transport != null) getScheduler(transport).setWeight(identifier, weight);
+        }
+    }
+
+    public int getPeerWeight(Peer peer) {
+        Integer weight = peerWeights.get(peer);
+        return weight == null ? FairScheduler.DEFAULT_WEIGHT : weight;
+    }
+
+    /**
+     * Set a queue persisting {@link pro.dbro.airshare.session.DataTransferMessage}s sent to
+     * peers not currently connected, or null to drop such messages. Queued messages are sent
+     * in order when their recipient next connects. The queue is not closed by this SessionManager.
+     */
+    public synchronized void setOutboundQueue(@Nullable OutboundQueue queue) {
+        outboundQueue = queue;
+    }
+
+    /**
+     * @return throughput, latency and retry metrics for each peer and transport
+     */
+    public SessionMetrics getMetrics() {
+        return metrics;
+    }
+
     /**
      * Send a message to the given recipient. If the recipient is not currently available,
+     * a {@link pro.dbro.airshare.session.DataTransferMessage} is relayed through connected peers
+     * if relaying is enabled, else if an {@link pro.dbro.airshare.session.OutboundQueue} is set,
      * delivery will occur next time the peer is available
      */
     // TODO : This  method needs to be re-evaluated to be more robust
     // If preferred transport not available, queue on base transport?
-    @DebugLog
     public synchronized void sendMessage(SessionMessage message, Peer recipient) {
 
+        if (stripingEnabled &&
+            message instanceof DataTransferMessage &&
+            message.getBodyLengthBytes() >= MIN_STRIPED_BODY_BYTES &&
+            peerTransports.containsKey(recipient) &&
+            peerTransports.get(recipient).size() > 1) {
+
+            sendStripedMessage((DataTransferMessage) message, recipient);
+            return;
+        }
+
         Set<String> recipientIdentifiers = peerIdentifiers.get(recipient);
         String targetRecipientIdentifier = null;
 
         if (recipientIdentifiers == null || recipientIdentifiers.size() == 0) { // TODO: Does HashMultiMap return null or empty collection?
+            if (relayingEnabled && message instanceof DataTransferMessage) {
+                sendRelayedMessage(message, recipient);
+                return;
+            }
             Timber.e("No Identifiers for peer %s", recipient.getAlias());
+            queueUntilConnected(message, recipient);
             return;
         }
 
@@ -132,33 +451,44 @@ public class SessionManager implements Transport.TransportCallback,
 
         if (transport == null) {
             Timber.e("No transport for %s", recipient.getAlias());
+            queueUntilConnected(message, recipient);
             return;
         }
 
-        for (String recipientIdentifier : recipientIdentifiers) {
-            if (identifierTransports.get(recipientIdentifier).equals(transport))
-                targetRecipientIdentifier = recipientIdentifier;
-        }
+        targetRecipientIdentifier = getIdentifierForPeerOnTransport(recipient, transport);
 
         if (targetRecipientIdentifier == null) {
             Timber.e("Could not find identifier for %s on preferred transport %d", recipient.getAlias(), transport.getTransportCode());
+            queueUntilConnected(message, recipient);
             return;
             // TODO : Fall back to base transport
         }
 
-        if (!identifierSenders.containsKey(targetRecipientIdentifier))
-            identifierSenders.put(targetRecipientIdentifier, new SessionMessageSerializer(message));
-        else
-            identifierSenders.get(targetRecipientIdentifier).queueMessage(message);
-
-        SessionMessageSerializer sender = identifierSenders.get(targetRecipientIdentifier);
-
-        transport.sendData(sender.getNextChunk(transport.getMtuForIdentifier(targetRecipientIdentifier)),
-                               targetRecipientIdentifier);
-//        else
-//            Timber.d("Send queued. No transport available for identifier %s", targetRecipientIdentifier);
+        sendMessageToIdentifier(message, recipient, transport, targetRecipientIdentifier);
+    }
 
-        // If no transport for the peer is available, data will be sent next time peer is available
+    /**
+     * Cancel message, sent to recipient via {@link #sendMessage(SessionMessage, Peer)}, so no more
+     * of it is sent. If part of it was sent, recipient is told to discard that part, and reports
+     * it via {@link SessionManagerCallback#messageCancelledByPeer(SessionMessage, Peer)}. A message
+     * already sent in full, or relayed through other peers, cannot be cancelled.
+     *
+     * Cancellation is reported via {@link SessionManagerCallback#messageSentToPeer(SessionMessage, Peer, Exception)}
+     *
+     * @return whether message was cancelled
+     */
+    @Override
+    public synchronized boolean cancelMessage(SessionMessage message, final Peer recipient) {
+        final SessionMessage cancelled = cancelOutgoingMessage(message.id, recipient);
+        if (cancelled == null) return false;
+
+        executionModel.execute(CANCEL_KEY, new Runnable() {
+            @Override
+            public void run() {
+                reportCancelled(cancelled, recipient);
+            }
+        });
+        return true;
     }
 
     public Set<Peer> getAvailablePeers() {
@@ -171,6 +501,12 @@ public class SessionManager implements Transport.TransportCallback,
         for (Transport transport : transports)
             transport.stop();
 
+        if (timer != null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+        watchdogScheduled = false;
+
         reset();
     }
 
@@ -250,12 +586,23 @@ public class SessionManager implements Transport.TransportCallback,
         identifierTransports.clear();
         peerTransports.clear();
         identifierReceivers.clear();
+        identifierReceivedIds.clear();
         identifierSenders.clear();
+        identifierFramers.clear();
+        identifierDeframers.clear();
         identifiedPeers.clear();
         identifyingPeers.clear();
         hostIdentifiers.clear();
         peerUpgradeRequests.clear();
         peerIdentifiers.clear();
+        peerSessionKeys.clear();
+        outgoingStripes.clear();
+        incomingStripes.clear();
+        incomingRelays.clear();
+        originatedRelays.clear();
+        coalescingDeadlines.clear();
+        unwritablePeers.clear();
+        transportSchedulers.clear();
 
         baseTransportState = new TransportState(false, false, false);
     }
@@ -309,190 +656,1176 @@ public class SessionManager implements Transport.TransportCallback,
                              .last();
     }
 
-    private boolean shouldIdentifyPeer(String identifier) {
-        // TODO : Might have banned peers etc.
-        return !identifyingPeers.contains(identifier);
+    /**
+     * @return the key shared with peer, deriving it on first use. The key is cached
+     * until the peer disconnects from all transports.
+     */
+    private @Nullable byte[] getSessionKeyForPeer(Peer peer) {
+        byte[] sessionKey = peerSessionKeys.get(peer);
+
+        if (sessionKey == null) {
+            try {
+                sessionKey = SodiumShaker.deriveSharedKey(localPeer.privateKey,
+                                                          localPeer.getPublicKey(),
+                                                          peer.getPublicKey());
+                peerSessionKeys.put(peer, sessionKey);
+            } catch (GeneralSecurityException e) {
+                Timber.e(e, "Failed to derive session key for %s", peer.getAlias());
+            }
+        }
+        return sessionKey;
     }
 
-    private void registerTransportForIdentifier(Transport transport, String identifier) {
-        if (identifierTransports.containsKey(identifier)) {
-            //Timber.w("Transport already registered for identifier %s", identifier);
-            return;
+    /**
+     * Encode message as configured and queue it for delivery to identifier over transport
+     *
+     * @return whether the message was queued
+     */
+    private boolean sendMessageToIdentifier(SessionMessage message,
+                                            Peer recipient,
+                                            Transport transport,
+                                            String identifier) {
+
+        // Encoded copies are sent in place of message
+        SessionMessage.Priority priority = message.getPriority();
+
+        if (encryptionEnabled && message instanceof DataTransferMessage) {
+            byte[] sessionKey = getSessionKeyForPeer(recipient);
+            if (sessionKey == null) {
+                reportNoSessionKey(message, recipient);
+                return false;
+            }
+            message = ((DataTransferMessage) message).encode(new EncryptedBodyCodec(sessionKey,
+                                                                                    localPeer.getPublicKey(),
+                                                                                    message.id));
+        } else if (signingEnabled && message instanceof DataTransferMessage) {
+            message = ((DataTransferMessage) message).encode(SignedBodyCodec.forSigning(localPeer.privateKey,
+                                                                                        message.id));
         }
 
-        Timber.d("Transported added for identifier %s", identifier);
-        identifierTransports.put(identifier, transport);
-    }
+        message.setPriority(priority);
 
-    private void registerTransportForPeer(Transport transport, Peer peer) {
-        if (!peerTransports.containsKey(peer))
-            peerTransports.put(peer, new TreeSet<Transport>());
+        if (!identifierSenders.containsKey(identifier))
+            identifierSenders.put(identifier, new SessionMessageSerializer(message));
+        else
+            identifierSenders.get(identifier).queueMessage(message);
 
-        boolean newTransport = peerTransports.get(peer).add(transport);
-        if (newTransport) {
-            Timber.d("Transport added for peer %s", peer.getAlias());
-            if (peerUpgradeRequests.containsKey(peer) &&
-                peerUpgradeRequests.get(peer).getTransportCode() == transport.getTransportCode()) {
+        SessionMessageSerializer sender = identifierSenders.get(identifier);
 
-                Timber.d("Established upgraded transport connection with %s", peer.getAlias());
-                peerUpgradeRequests.remove(peer);
-                // Important: client must call callback.onPeerTransportUpdated(peer, transport, null);
-                // when appropriate
+        if (getQueuedBytes(recipient) >= maxQueuedBytes) unwritablePeers.add(recipient);
+
+        if (holdForCoalescing(message, sender, transport, identifier)) return true;
+
+        scheduleChunks(transport, identifier);
+        return true;
+    }
+
+    /**
+     * Report message to recipient failed, as it cannot be encrypted for recipient and
+     * will not be sent unencrypted. It is not retried, so is removed from the outbound queue.
+     * As with cancellation, the failure is reported once the caller of
+     * {@link #sendMessage(SessionMessage, Peer)} has returned, so it may first track message
+     */
+    private void reportNoSessionKey(final SessionMessage message, final Peer recipient) {
+        Timber.e("No session key for %s. Will not send unencrypted", recipient.getAlias());
+        if (outboundQueue != null) outboundQueue.remove(recipient, message.id);
+
+        executionModel.execute(CANCEL_KEY, new Runnable() {
+            @Override
+            public void run() {
+                callback.messageSentToPeer(message, recipient,
+                                           new GeneralSecurityException("No session key for " + recipient.getAlias()));
             }
-        }
+        });
     }
 
-    // </editor-fold desc="Private API">
+    /**
+     * Hold message, just queued on sender, if it is small and its priority has a coalescing
+     * window. Sending is then deferred until the earliest window among held messages elapses
+     *
+     * @return whether sending should be deferred
+     */
+    private boolean holdForCoalescing(SessionMessage message,
+                                      SessionMessageSerializer sender,
+                                      Transport transport,
+                                      String identifier) {
+
+        long windowMs = coalescingWindowsMs[message.getPriority().ordinal()];
+        if (windowMs == 0 ||
+            !(message instanceof DataTransferMessage) ||
+            sender.getQueuedBytes() >= transport.getMtuForIdentifier(identifier)) return false;
+
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMs);
+        Long heldDeadlineNanos = coalescingDeadlines.get(identifier);
+        if (heldDeadlineNanos != null && heldDeadlineNanos <= deadlineNanos) return true;
+
+        coalescingDeadlines.put(identifier, deadlineNanos);
+        scheduleCoalescedSend(transport, identifier, deadlineNanos, windowMs);
+        return true;
+    }
 
-    // <editor-fold desc="TransportCallback">
+    private void scheduleCoalescedSend(final Transport transport,
+                                       final String identifier,
+                                       final long deadlineNanos,
+                                       long delayMs) {
+
+        getTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                executionModel.execute(identifier, new Runnable() {
+                    @Override
+                    public void run() {
+                        sendCoalescedMessages(transport, identifier, deadlineNanos);
+                    }
+                });
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
 
-    @Override
-    @DebugLog
-    public synchronized void dataReceivedFromIdentifier(Transport transport, byte[] data, String identifier) {
+    private ScheduledExecutorService getTimer() {
+        if (timer == null)
+            timer = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("AirShareTimer")
+                                              .setDaemon(true)
+                                              .build());
+        return timer;
+    }
 
-        // An asymmetric transport may not receive connection events
-        // so we use this opportunity to associate the identifier with its transport
-        registerTransportForIdentifier(transport, identifier);
+    private synchronized void sendCoalescedMessages(Transport transport, String identifier, long deadlineNanos) {
+        // Held messages may have been sent already, or held again with a sooner deadline
+        Long heldDeadlineNanos = coalescingDeadlines.get(identifier);
+        if (heldDeadlineNanos == null || heldDeadlineNanos != deadlineNanos) return;
 
-        if (!identifierReceivers.containsKey(identifier))
-            identifierReceivers.put(identifier, new SessionMessageDeserializer(context, this));
+        coalescingDeadlines.remove(identifier);
 
-        identifierReceivers.get(identifier)
-                           .dataReceived(data);
+        if (!identifierSenders.containsKey(identifier)) return;
+
+        scheduleChunks(transport, identifier);
     }
 
-    @Override
-    @DebugLog
-    public synchronized void dataSentToIdentifier(Transport transport, byte[] data, String identifier, Exception exception) {
+    /**
+     * Split message into stripes, one per transport connected to recipient, sized in
+     * proportion to each transport's recent throughput. Transports without recent traffic
+     * cannot be compared by throughput, so stripes are then sized by MTU
+     */
+    private void sendStripedMessage(DataTransferMessage message, Peer recipient) {
+        ArrayList<Transport> stripeTransports  = new ArrayList<>();
+        ArrayList<String>    stripeIdentifiers = new ArrayList<>();
 
-        if (exception != null) {
-            Timber.w("Data failed to send to %s", identifier);
-            return;
+        for (Transport transport : peerTransports.get(recipient)) {
+            String identifier = getIdentifierForPeerOnTransport(recipient, transport);
+            if (identifier == null) continue;
+
+            stripeTransports.add(transport);
+            stripeIdentifiers.add(identifier);
         }
 
-        SessionMessageSerializer sender = identifierSenders.get(identifier);
+        int stripeCount = stripeTransports.size();
+        if (stripeCount == 0) {
+            Timber.e("No identifiers for peer %s", recipient.getAlias());
+            queueUntilConnected(message, recipient);
+            return;
+        }
 
-        if (sender == null) {
-            Timber.w("No sender for dataSentToIdentifier to %s", identifier);
+        // Report the message once, rather than each of its stripes, if it cannot be encrypted
+        if (encryptionEnabled && getSessionKeyForPeer(recipient) == null) {
+            reportNoSessionKey(message, recipient);
             return;
         }
 
-        Pair<SessionMessage, Float> messagePair = sender.ackChunkDelivery();
+        double[] weights = new double[stripeCount];
+        double totalWeight = 0;
+        boolean weightByThroughput = true;
+        for (int i = 0; i < stripeCount; i++) {
+            weights[i] = metrics.getBytesSentPerSecond(stripeTransports.get(i).getTransportCode());
+            if (weights[i] <= 0) weightByThroughput = false;
+        }
+        for (int i = 0; i < stripeCount; i++) {
+            if (!weightByThroughput)
+                weights[i] = stripeTransports.get(i).getMtuForIdentifier(stripeIdentifiers.get(i));
+            totalWeight += weights[i];
+        }
+
+        StripedTransfer transfer = StripedTransfer.forOutgoing(message, recipient);
+        int bodyLength = message.getBodyLengthBytes();
+        int offset = 0;
 
-        if (messagePair != null) {
+        for (int i = 0; i < stripeCount; i++) {
+            int stripeLength = (i == stripeCount - 1) ? bodyLength - offset :
+                                                        (int) (bodyLength * (weights[i] / totalWeight));
+            if (stripeLength == 0) continue;
 
-            SessionMessage message = messagePair.first;
-            float progress = messagePair.second;
+            DataTransferMessage stripe = message.createStripe(offset, stripeLength);
+            Timber.d("Striping [%d, %d) of %s over transport %d",
+                     offset, offset + stripeLength, message.id, stripeTransports.get(i).getTransportCode());
 
-            if (VERBOSE) Timber.d("%d %s bytes (%.0f pct) sent to %s",
-                                  data.length,
-                                  message.getType(),
-                                  progress * 100,
-                                  identifier);
+            outgoingStripes.put(stripe.id, transfer);
+            if (!sendMessageToIdentifier(stripe, recipient, stripeTransports.get(i), stripeIdentifiers.get(i)))
+                outgoingStripes.remove(stripe.id);
 
-            if (progress == 1 && message.equals(localIdentityMessage)) {
-                Timber.d("Local identity acknowledged by recipient");
-                identifyingPeers.add(identifier);
-            }
+            offset += stripeLength;
+        }
+    }
 
-            Peer recipient = identifiedPeers.get(identifier);
-            if (recipient != null) {
-                if (progress == 1) {
+    /**
+     * @return our identity, advertising the peers we can reach by relay if relaying is enabled
+     */
+    private IdentityMessage createLocalIdentityMessage() {
+        return new IdentityMessage(context,
+                                   localPeer,
+                                   relayingEnabled ? meshRouter.getAdvertisedRoutes(getAvailablePeers()) : null);
+    }
 
-                    // Process completely sent AirShare messages, pass non-AirShare messages
-                    // up via messageSentToPeer
-                    if (message.equals(localIdentityMessage)) {
+    /**
+     * Relay message to a recipient not directly connected, via the neighbor on the best known
+     * route or, if none is known, via every neighbor
+     */
+    private void sendRelayedMessage(SessionMessage message, Peer recipient) {
+        RelayMessage relay = new RelayMessage(localPeer, recipient.getPublicKey(), MeshRouter.MAX_HOPS, message);
+        if (relay.getBodyLengthBytes() > MAX_RELAYED_MESSAGE_BYTES) {
+            Timber.w("%d byte message to %s is too large to relay", relay.getBodyLengthBytes(), recipient.getAlias());
+            queueUntilConnected(message, recipient);
+            return;
+        }
 
-                        if (peerIdentifiers.get(recipient).size() == 1) {
-                            Timber.d("Reporting peer connected after last id sent");
-                            callback.peerStatusUpdated(recipient,
-                                                       Transport.ConnectionStatus.CONNECTED,
-                                                       hostIdentifiers.contains(identifier));
-                        }
+        List<Peer> targets = getRelayTargets(relay.getDestination(), null);
+        if (targets.isEmpty()) {
+            Timber.e("No neighbors to relay to %s", recipient.getAlias());
+            queueUntilConnected(message, recipient);
+            return;
+        }
 
-                    } else if (message.getType().equals(TransportUpgradeMessage.HEADER_TYPE)) {
-                        // Report transport upgraded once peer connects over new transport
-                        // don't report to #messageSendingToPeer
-                        Timber.d("Sent TranportUpgradeMessage");
+        Timber.d("Relaying %s message to %s via %d neighbors", message.getType(), recipient.getAlias(), targets.size());
+        meshRouter.markSeen(relay.id);
+        originatedRelays.put(relay.id, new Pair<>(message, recipient));
+        for (Peer target : targets)
+            sendMessage(relay, target);
+    }
 
-                    } else {
-                        callback.messageSentToPeer(message,
-                                identifiedPeers.get(identifier),
-                                null);
-                    }
+    /**
+     * @return the neighbors to which a relayed message for destinationKey should be sent: the
+     * destination itself if connected, else the next hop of a known route, else all neighbors.
+     * Never includes source, the neighbor the message arrived from
+     */
+    private List<Peer> getRelayTargets(String destinationKey, @Nullable Peer source) {
+        ArrayList<Peer> neighbors = new ArrayList<>(getAvailablePeers());
+        neighbors.remove(source);
 
-                } else {
+        for (Peer neighbor : neighbors)
+            if (RelayMessage.encodeKey(neighbor.getPublicKey()).equals(destinationKey))
+                return Collections.singletonList(neighbor);
 
-                    callback.messageSendingToPeer(message,
-                            identifiedPeers.get(identifier),
-                            progress);
-                }
-            } else
-                Timber.w("Cannot report %s message send, %s not yet identified",
-                    message.getType(), identifier);
+        Peer nextHop = meshRouter.getNextHop(destinationKey);
+        if (nextHop != null && neighbors.contains(nextHop))
+            return Collections.singletonList(nextHop);
 
-            byte[] toSend = sender.getNextChunk(transport.getMtuForIdentifier(identifier));
-            if (toSend != null)
-                transport.sendData(toSend, identifier);
-        } else
-            Timber.w("No current message corresponding to dataSentToIdentifier");
+        return neighbors;
     }
 
-    @Override
-    @DebugLog
-    public synchronized void identifierUpdated(Transport transport,
-                                  String identifier,
-                                  Transport.ConnectionStatus status,
-                                  boolean peerIsHost,
-                                  Map<String, Object> extraInfo) {
-        switch(status) {
-            case CONNECTED:
-                Timber.d("Connected to %s", identifier);
-                if (peerIsHost) hostIdentifiers.add(identifier);
+    /**
+     * Begin forwarding an incoming relayed message, if it is new and not addressed to us
+     */
+    private void onRelayHeaderReceived(SessionMessageDeserializer receiver, RelayMessage relay, Peer sender) {
+        if (!meshRouter.markSeen(relay.id)) {
+            Timber.d("Ignoring duplicate relayed message %s from %s", relay.id, sender.getAlias());
+            return;
+        }
 
-                // Only one peer (client) needs to initiate identification
-                if (peerIsHost && shouldIdentifyPeer(identifier)) {
-                    Timber.d("Queuing identity to %s", identifier);
-                    if (!identifierSenders.containsKey(identifier)) {
-                        identifierSenders.put(identifier, new SessionMessageSerializer(localIdentityMessage));
-                    } else
-                        Timber.w("Outgoing messages already exist for unidentified peer %s", identifier);
-                }
+        meshRouter.onRelayReceived(relay, sender);
 
-                registerTransportForIdentifier(transport, identifier);
+        boolean forLocalPeer = relay.getDestination().equals(RelayMessage.encodeKey(localPeer.getPublicKey()));
+        if (relay.getBodyLengthBytes() > MAX_RELAYED_MESSAGE_BYTES) {
+            Timber.w("Ignoring %d byte relayed message from %s", relay.getBodyLengthBytes(), sender.getAlias());
+            return;
+        }
+        if (!forLocalPeer && (!relayingEnabled || relay.getTtl() <= 1)) return;
 
-                // Send outgoing messages to peer
-                SessionMessageSerializer sender = identifierSenders.get(identifier);
+        IncomingRelay incoming = new IncomingRelay(receiver, relay);
+        incomingRelays.put(relay.id, incoming);
+        if (forLocalPeer) return;
 
-                if (sender != null && sender.getCurrentMessage() != null) {
+        for (Peer target : getRelayTargets(relay.getDestination(), sender)) {
+            Transport transport = getPreferredTransportForPeer(target);
+            String identifier = transport == null ? null : getIdentifierForPeerOnTransport(target, transport);
+            if (identifier == null) continue;
 
-                    boolean sendingIdentity = sender.getCurrentMessage() instanceof IdentityMessage;
+            if (sendMessageToIdentifier(relay.createForward(), target, transport, identifier))
+                incoming.forwards.put(identifier, transport);
+        }
+        Timber.d("Forwarding relayed message %s from %s to %d neighbors",
+                 relay.id, sender.getAlias(), incoming.forwards.size());
+    }
 
-                    byte[] toSend = sender.getNextChunk(transport.getMtuForIdentifier(identifier));
-                    if (toSend == null) return;
+    /**
+     * Pass body bytes of an incoming relayed message received since last called to its
+     * forwarded copies, and resume sending any copy that was waiting on them
+     */
+    private void forwardRelayBody(IncomingRelay incoming) {
+        if (incoming.forwards.isEmpty()) return;
+
+        int forwarded = incoming.message.getForwardedBytes();
+        int received  = incoming.receiver.getBodyBytesReceived();
+        if (received > forwarded) {
+            byte[] bytes = incoming.receiver.getReceivedBody(forwarded, received - forwarded);
+            if (bytes != null) incoming.message.forwardBody(bytes);
+        }
+        resumeRelayForwards(incoming);
+    }
 
-                    if (transport.sendData(toSend, identifier)) {
-                        if (sendingIdentity) {
-                            Timber.d("Sent identity to %s", identifier);
-                        }
-                    } else
-                        Timber.w("Failed to send %s message to new peer %s",
-                                sender.getCurrentMessage().getType(),
-                                identifier);
-                }
+    private void resumeRelayForwards(IncomingRelay incoming) {
+        for (Map.Entry<String, Transport> forward : incoming.forwards.entrySet()) {
+            if (!identifierSenders.containsKey(forward.getKey())) continue;
 
-                break;
+            scheduleChunks(forward.getValue(), forward.getKey());
+        }
+    }
 
-            case DISCONNECTED:
-                if (peerIsHost) hostIdentifiers.remove(identifier);
+    /**
+     * Deliver a relayed message addressed to us, if it arrived intact
+     */
+    private void deliverRelayedMessage(final RelayMessage relay) {
+        byte[] serialized = relay.getVerifiedBody();
+        if (serialized == null) {
+            Timber.w("Discarding damaged relayed message %s", relay.id);
+            return;
+        }
 
-                Peer peer = identifiedPeers.get(identifier);
+        final Peer origin = relay.getOriginPeer();
+        new SessionMessageDeserializer(context, new SessionMessageDeserializer.SessionMessageDeserializerCallback() {
+            @Override
+            public void onHeaderReady(SessionMessageDeserializer receiver, SessionMessage message) {}
 
-                if (peer != null) {
+            @Override
+            public void onBodyProgress(SessionMessageDeserializer receiver, SessionMessage message, float progress) {}
 
-                    Timber.d("Disconnected from %s (%s). Had %d transports",
-                            identifier,
-                            peer.getAlias(),
+            @Override
+            public void onComplete(SessionMessageDeserializer receiver, SessionMessage message, Exception e) {
+                if (e == null && message instanceof DataTransferMessage) {
+                    Timber.d("Received relayed message from %s over %d hops", origin.getAlias(), relay.getHops() + 1);
+                    callback.messageReceivedFromPeer(message, origin, null);
+                } else
+                    Timber.w("Discarding invalid relayed message %s", relay.id);
+            }
+        }).dataReceived(serialized);
+    }
+
+    /**
+     * Complete the copies forwarded from relayed messages arriving over identifier, which
+     * will never finish arriving
+     */
+    private void abandonIncomingRelays(String identifier) {
+        SessionMessageDeserializer receiver = identifierReceivers.get(identifier);
+        if (receiver == null) return;
+
+        Iterator<IncomingRelay> iterator = incomingRelays.values().iterator();
+        while (iterator.hasNext()) {
+            IncomingRelay incoming = iterator.next();
+            if (incoming.receiver != receiver) continue;
+
+            iterator.remove();
+            incoming.message.abandonForwards();
+            resumeRelayForwards(incoming);
+        }
+    }
+
+    /**
+     * Report progress of a relayed message we originated, as the progress of the message it carries.
+     * The first neighbor to receive a flooded message completes it
+     */
+    private void reportRelaySending(RelayMessage relay, float progress) {
+        Pair<SessionMessage, Peer> originated = originatedRelays.get(relay.id);
+        if (originated == null) return;
+
+        if (progress == 1) originatedRelays.remove(relay.id);
+        reportMessageSending(originated.first, originated.second, progress);
+    }
+
+    private @Nullable String getIdentifierForPeerOnTransport(Peer peer, Transport transport) {
+        for (String identifier : peerIdentifiers.get(peer)) {
+            if (transport.equals(identifierTransports.get(identifier)))
+                return identifier;
+        }
+        return null;
+    }
+
+    /**
+     * Persist message for delivery when recipient next connects, if an outbound queue is set
+     */
+    private void queueUntilConnected(SessionMessage message, Peer recipient) {
+        if (outboundQueue == null ||
+            !(message instanceof DataTransferMessage) ||
+            ((DataTransferMessage) message).isStripe()) return;
+
+        Timber.d("Queuing %s message for %s until connected", message.getType(), recipient.getAlias());
+        outboundQueue.enqueue(recipient, (DataTransferMessage) message);
+    }
+
+    /**
+     * Send messages queued for peer while it was not connected, in the order queued
+     */
+    private void sendQueuedMessages(Peer peer) {
+        if (outboundQueue == null) return;
+
+        List<DataTransferMessage> queued = outboundQueue.getQueued(peer);
+        if (queued.isEmpty()) return;
+
+        Timber.d("Sending %d queued messages to %s", queued.size(), peer.getAlias());
+        for (DataTransferMessage message : queued) {
+            callback.messageResumingToPeer(message, peer);
+            sendMessage(message, peer);
+        }
+    }
+
+    /**
+     * Report progress sending message to recipient, combining the progress of stripes
+     */
+    private void reportMessageSending(SessionMessage message, Peer recipient, float progress) {
+        StripedTransfer transfer = outgoingStripes.get(message.id);
+
+        if (transfer == null) {
+            if (progress == 1) {
+                if (outboundQueue != null) outboundQueue.onMessageDelivered(recipient, message.id);
+                callback.messageSentToPeer(message, recipient, null);
+            } else
+                callback.messageSendingToPeer(message, recipient, progress);
+            return;
+        }
+
+        float transferProgress = transfer.onStripeProgress(message.id, message.getBodyLengthBytes(), progress);
+        if (progress == 1) outgoingStripes.remove(message.id);
+
+        if (transfer.isComplete()) {
+            if (outboundQueue != null) outboundQueue.onMessageDelivered(recipient, transfer.getMessage().id);
+            callback.messageSentToPeer(transfer.getMessage(), recipient, null);
+        } else
+            callback.messageSendingToPeer(transfer.getMessage(), recipient, transferProgress);
+    }
+
+    /**
+     * @return the reassembly of the message of which stripe is a part, beginning it if necessary
+     */
+    private StripedTransfer getIncomingStripedTransfer(DataTransferMessage stripe, Peer sender) {
+        StripedTransfer transfer = incomingStripes.get(stripe.getStripeOf());
+        if (transfer == null) {
+            transfer = StripedTransfer.forIncoming(stripe, sender);
+            incomingStripes.put(stripe.getStripeOf(), transfer);
+        }
+        return transfer;
+    }
+
+    /**
+     * Abandon striped transfers with peer. Stripes queued on its identifiers are discarded
+     * on disconnection, so these transfers can never complete
+     */
+    private void removeStripedTransfers(Peer peer) {
+        Iterator<StripedTransfer> outgoing = outgoingStripes.values().iterator();
+        while (outgoing.hasNext())
+            if (outgoing.next().getPeer().equals(peer)) outgoing.remove();
+
+        Iterator<StripedTransfer> incoming = incomingStripes.values().iterator();
+        while (incoming.hasNext())
+            if (incoming.next().getPeer().equals(peer)) incoming.remove();
+    }
+
+    /**
+     * Remove the message with messageId, and any stripes of it, from the queues for recipient.
+     * Where part of it was sent, the stream is marked so recipient discards that part
+     *
+     * @return the message cancelled, or null if it was not queued
+     */
+    private @Nullable SessionMessage cancelOutgoingMessage(String messageId, Peer recipient) {
+        StripedTransfer stripedTransfer = null;
+        HashSet<String> ids = new HashSet<>();
+        ids.add(messageId);
+        for (Map.Entry<String, StripedTransfer> stripe : outgoingStripes.entrySet()) {
+            if (!stripe.getValue().getMessage().id.equals(messageId)) continue;
+
+            stripedTransfer = stripe.getValue();
+            ids.add(stripe.getKey());
+        }
+
+        SessionMessage cancelled = null;
+        for (String identifier : peerIdentifiers.get(recipient)) {
+            SessionMessageSerializer sender = identifierSenders.get(identifier);
+            Transport transport = identifierTransports.get(identifier);
+            if (sender == null || transport == null) continue;
+
+            for (String id : ids) {
+                boolean serializing = sender.isSerializing(id);
+                SessionMessage removed = sender.cancelMessage(id);
+                if (removed == null) continue;
+
+                cancelled = removed;
+                if (serializing) sendCancel(transport, identifier);
+            }
+        }
+
+        if (cancelled != null && stripedTransfer != null) {
+            // Stripes already delivered will not complete the message
+            outgoingStripes.values().removeAll(Collections.singleton(stripedTransfer));
+            cancelled = stripedTransfer.getMessage();
+        }
+
+        if (cancelled == null && outboundQueue != null) {
+            for (DataTransferMessage queued : outboundQueue.getQueued(recipient))
+                if (queued.id.equals(messageId) && outboundQueue.remove(recipient, messageId)) cancelled = queued;
+        }
+
+        return cancelled;
+    }
+
+    /**
+     * Report message to recipient cancelled, and recipient writable if cancelling message
+     * drained its queue
+     */
+    private synchronized void reportCancelled(SessionMessage message, Peer recipient) {
+        Timber.d("Cancelled %s message to %s", message.getType(), recipient.getAlias());
+        callback.messageSentToPeer(message, recipient, new CancellationException("Message cancelled"));
+        reportIfWritable(recipient);
+    }
+
+    /**
+     * Note identifier has chunks to send over transport, and send those the transport's
+     * scheduler permits
+     */
+    private void scheduleChunks(Transport transport, String identifier) {
+        updateWindow(transport, identifier);
+        getScheduler(transport).setBacklogged(identifier,
+                                              getChunkLengthForIdentifier(transport, identifier),
+                                              System.nanoTime());
+        dispatchChunks(transport);
+    }
+
+    /**
+     * Send chunks to the identifiers on transport in the order its scheduler chooses,
+     * until it permits no more
+     */
+    private void dispatchChunks(Transport transport) {
+        FairScheduler scheduler = getScheduler(transport);
+
+        String identifier;
+        while (scheduler.canSend() && (identifier = scheduler.next()) != null) {
+
+            SessionMessageSerializer sender = identifierSenders.get(identifier);
+            byte[] toSend = sender == null ? null : serializeNextChunk(sender, transport, identifier);
+
+            if (toSend == null) {
+                scheduler.onIdle(identifier);
+                continue;
+            }
+
+            // Messages held for coalescing are sent with this chunk
+            coalescingDeadlines.remove(identifier);
+
+            long waitNanos = scheduler.onChunkSent(identifier, toSend.length, System.nanoTime());
+            metrics.onChunkScheduled(transport, identifier, waitNanos);
+
+            // A chunk the transport could not take is not awaiting acknowledgement
+            if (!sendChunk(toSend, transport, identifier))
+                scheduler.onChunkComplete(identifier);
+        }
+    }
+
+    /**
+     * Give the scheduler of transport the window that the congestion control of the link to
+     * identifier, and the bytes its receiver can hold, permit, and the number of chunks awaiting
+     * acknowledgement within it
+     */
+    private void updateWindow(Transport transport, String identifier) {
+        ChunkFramer framer = getFramer(identifier);
+        FairScheduler scheduler = getScheduler(transport);
+
+        scheduler.setWindow(identifier, framer.getWindowChunks(getChunkLengthForIdentifier(transport, identifier)));
+        scheduler.setInFlight(identifier, framer.getFramesInFlight());
+        metrics.onCongestionUpdated(transport, identifier, framer.getWindowBytes(),
+                                    framer.getSmoothedRttNanos(), framer.getMinRttNanos());
+    }
+
+    private FairScheduler getScheduler(Transport transport) {
+        FairScheduler scheduler = transportSchedulers.get(transport);
+        if (scheduler == null) {
+            scheduler = new FairScheduler();
+            transportSchedulers.put(transport, scheduler);
+        }
+        return scheduler;
+    }
+
+    /**
+     * Get the next chunk from sender, recording the time taken
+     */
+    private @Nullable byte[] serializeNextChunk(SessionMessageSerializer sender, Transport transport, String identifier) {
+        int chunkLength = getChunkLengthForIdentifier(transport, identifier);
+
+        long startNanos = System.nanoTime();
+        byte[] chunk = sender.getNextChunk(chunkLength);
+        metrics.onChunkSerialized(transport, identifier, System.nanoTime() - startNanos,
+                                  transport.getMtuForIdentifier(identifier),
+                                  sender.getQueuedMessageCount(),
+                                  chunk == null ? 0 : sender.getChunkMessageCount());
+        return chunk;
+    }
+
+    /**
+     * @return the length of chunks sent to identifier over transport. A stream transport
+     * segments writes itself, so it is given large slices of each message, each reported
+     * sent once, rather than one chunk per MTU. Chunks shrink while the link is losing them
+     */
+    private int getChunkLengthForIdentifier(Transport transport, String identifier) {
+        int chunkLength;
+        TransportCapabilities capabilities = transport.getCapabilities();
+        if (capabilities.isStream && capabilities.maxWriteBytes > 0)
+            chunkLength = Math.min(capabilities.maxWriteBytes - ChunkFrame.HEADER_BYTES, ChunkFrame.MAX_PAYLOAD_BYTES);
+        else
+            // An MTU too small for the frame header leaves the transport to split frames
+            chunkLength = Math.max(1, Math.min(transport.getMtuForIdentifier(identifier) - ChunkFrame.HEADER_BYTES,
+                                               ChunkFrame.MAX_PAYLOAD_BYTES));
+
+        return getFramer(identifier).getChunkLength(chunkLength);
+    }
+
+    private ChunkFramer getFramer(String identifier) {
+        ChunkFramer framer = identifierFramers.get(identifier);
+        if (framer == null) {
+            framer = new ChunkFramer();
+            identifierFramers.put(identifier, framer);
+        }
+        return framer;
+    }
+
+    /**
+     * Frame chunk as the next in the stream to identifier and hand it to transport
+     */
+    private boolean sendChunk(byte[] chunk, Transport transport, String identifier) {
+        ChunkFramer framer = getFramer(identifier);
+        long nowNanos = System.nanoTime();
+
+        return sendFrame(framer.frame(chunk, nowNanos), framer, transport, identifier, nowNanos);
+    }
+
+    /**
+     * Mark the stream to identifier where the message in progress was abandoned, so the
+     * receiver discards the part it holds
+     */
+    private void sendCancel(Transport transport, String identifier) {
+        ChunkFramer framer = getFramer(identifier);
+        long nowNanos = System.nanoTime();
+
+        sendFrame(framer.frameCancel(nowNanos), framer, transport, identifier, nowNanos);
+        updateWindow(transport, identifier);
+    }
+
+    /**
+     * Hand frame, just framed by framer, to transport
+     */
+    private boolean sendFrame(byte[] frame, ChunkFramer framer, Transport transport, String identifier, long nowNanos) {
+        // A frame the transport cannot take is sent again by the next watchdog check
+        boolean sent = transport.sendData(frame, identifier);
+        if (!sent) {
+            framer.onSendFailed(frame, nowNanos);
+            metrics.onChunkSendFailed(transport, identifier);
+        }
+
+        scheduleWatchdog();
+        return sent;
+    }
+
+    /**
+     * Send frame, already sent once, to identifier again
+     */
+    private void resendFrame(Transport transport, String identifier, byte[] frame) {
+        metrics.onChunkResent(transport, identifier);
+        transport.sendData(frame, identifier);
+    }
+
+    /**
+     * Send again the frames of our stream to identifier that it reports missing. If they are
+     * no longer held the stream cannot be repaired, and is restarted
+     */
+    private void handleNack(Transport transport, String identifier, int streamId, int offset, int length) {
+        ChunkFramer framer = identifierFramers.get(identifier);
+        // Bytes missing from a stream since restarted will never be needed
+        if (framer == null || framer.getStreamId() != streamId) return;
+
+        List<byte[]> frames = framer.getFramesFrom(offset, length, System.nanoTime());
+        if (frames == null) {
+            Timber.w("%s is missing chunks no longer held", identifier);
+            restartStream(transport, identifier);
+            return;
+        }
+
+        if (Logging.VERBOSE) Timber.d("%s is missing %d chunks. Sending again", identifier, frames.size());
+        for (byte[] frame : frames)
+            resendFrame(transport, identifier, frame);
+
+        updateWindow(transport, identifier);
+    }
+
+    /**
+     * Begin a new stream to identifier, whose previous stream stopped being acknowledged or
+     * cannot be repaired. Sending resumes from the first message with bytes in the oldest chunk awaiting
+     * acknowledgement, as the receiver discards its partial message when a new stream begins.
+     * Messages the receiver already received in full but did not acknowledge are ignored by it
+     */
+    private void restartStream(Transport transport, String identifier) {
+        Timber.w("Restarting stream to %s", identifier);
+        metrics.onStreamRestarted(transport, identifier);
+
+        ChunkFramer framer = identifierFramers.get(identifier);
+        if (framer != null) framer.restart();
+
+        SessionMessageSerializer sender = identifierSenders.get(identifier);
+        if (sender != null) sender.rewindChunksInFlight();
+
+        scheduleChunks(transport, identifier);
+    }
+
+    /**
+     * Check unacknowledged chunks and gaps in incoming streams after {@link #WATCHDOG_INTERVAL_MS},
+     * unless a check is already scheduled
+     */
+    private void scheduleWatchdog() {
+        if (watchdogScheduled) return;
+        watchdogScheduled = true;
+
+        getTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                executionModel.execute(WATCHDOG_KEY, new Runnable() {
+                    @Override
+                    public void run() {
+                        checkStreams();
+                    }
+                });
+            }
+        }, WATCHDOG_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send again each chunk whose acknowledgement timed out, restart each stream that stalled,
+     * prompt receivers that stopped reporting progress, and report again bytes still missing from
+     * incoming streams, as well as progress not yet reported. A lost acknowledgement or a failed
+     * write thereby delays an identifier rather than halting it
+     */
+    private synchronized void checkStreams() {
+        watchdogScheduled = false;
+        if (timer == null) return; // Stopped
+
+        long nowNanos = System.nanoTime();
+        boolean watching = false;
+
+        for (Map.Entry<String, ChunkFramer> entry : new ArrayList<>(identifierFramers.entrySet())) {
+            String identifier = entry.getKey();
+            ChunkFramer framer = entry.getValue();
+            Transport transport = identifierTransports.get(identifier);
+            if (transport == null) continue;
+
+            if (framer.isStalled(nowNanos)) {
+                restartStream(transport, identifier);
+            } else {
+                List<byte[]> expired = framer.getExpiredFrames(nowNanos);
+                if (!expired.isEmpty()) {
+                    Timber.d("%d chunks to %s unacknowledged. Sending again", expired.size(), identifier);
+                    for (byte[] frame : expired)
+                        resendFrame(transport, identifier, frame);
+
+                    // The timeout shrinks the window, and frames the lost chunks from it
+                    updateWindow(transport, identifier);
+                    dispatchChunks(transport);
+                }
+
+                byte[] probe = framer.getProbeFrame(nowNanos);
+                if (probe != null) {
+                    Timber.d("No progress reported by %s. Sending latest chunk again", identifier);
+                    resendFrame(transport, identifier, probe);
+                }
+            }
+            watching |= framer.hasUnacknowledged() || framer.hasUnconfirmed();
+        }
+
+        for (ChunkDeframer deframer : identifierDeframers.values()) {
+            deframer.checkGap();
+            deframer.checkProgress();
+            watching |= deframer.isMissingBytes();
+        }
+
+        if (watching) scheduleWatchdog();
+    }
+
+    private boolean shouldIdentifyPeer(String identifier) {
+        // TODO : Might have banned peers etc.
+        return !identifyingPeers.contains(identifier);
+    }
+
+    private void registerTransportForIdentifier(Transport transport, String identifier) {
+        if (identifierTransports.containsKey(identifier)) {
+            //Timber.w("Transport already registered for identifier %s", identifier);
+            return;
+        }
+
+        Timber.d("Transported added for identifier %s", identifier);
+        identifierTransports.put(identifier, transport);
+    }
+
+    private void registerTransportForPeer(Transport transport, Peer peer) {
+        if (!peerTransports.containsKey(peer))
+            peerTransports.put(peer, new TreeSet<Transport>());
+
+        boolean newTransport = peerTransports.get(peer).add(transport);
+        if (newTransport) {
+            Timber.d("Transport added for peer %s", peer.getAlias());
+            if (peerUpgradeRequests.containsKey(peer) &&
+                peerUpgradeRequests.get(peer).getTransportCode() == transport.getTransportCode()) {
+
+                Timber.d("Established upgraded transport connection with %s", peer.getAlias());
+                peerUpgradeRequests.remove(peer);
+                // Important: client must call callback.onPeerTransportUpdated(peer, transport, null);
+                // when appropriate
+            }
+        }
+    }
+
+    // </editor-fold desc="Private API">
+
+    // <editor-fold desc="TransportCallback">
+
+    /*
+     * Transports may call back on their own threads. Process all events via executionModel,
+     * keyed by identifier so each connection's events remain ordered
+     */
+
+    @Override
+    public void dataReceivedFromIdentifier(final Transport transport,
+                                           final byte[] data,
+                                           final String identifier) {
+        executionModel.execute(identifier, new Runnable() {
+            @Override
+            public void run() {
+                handleDataReceived(transport, data, identifier);
+            }
+        });
+    }
+
+    @Override
+    public void dataSentToIdentifier(final Transport transport,
+                                     final byte[] data,
+                                     final String identifier,
+                                     final Exception exception) {
+        executionModel.execute(identifier, new Runnable() {
+            @Override
+            public void run() {
+                handleDataSent(transport, data, identifier, exception);
+            }
+        });
+    }
+
+    @Override
+    public void identifierUpdated(final Transport transport,
+                                  final String identifier,
+                                  final Transport.ConnectionStatus status,
+                                  final boolean peerIsHost,
+                                  final Map<String, Object> extraInfo) {
+        executionModel.execute(identifier, new Runnable() {
+            @Override
+            public void run() {
+                handleIdentifierUpdated(transport, identifier, status, peerIsHost, extraInfo);
+            }
+        });
+    }
+
+    private synchronized void handleDataReceived(Transport transport, byte[] data, String identifier) {
+
+        // An asymmetric transport may not receive connection events
+        // so we use this opportunity to associate the identifier with its transport
+        registerTransportForIdentifier(transport, identifier);
+
+        if (!identifierReceivers.containsKey(identifier))
+            identifierReceivers.put(identifier, new SessionMessageDeserializer(context, this));
+
+        if (!identifierDeframers.containsKey(identifier))
+            identifierDeframers.put(identifier, createDeframer(transport, identifier));
+
+        ChunkDeframer deframer = identifierDeframers.get(identifier);
+
+        long startNanos = System.nanoTime();
+        deframer.dataReceived(data);
+        long endNanos = System.nanoTime();
+
+        metrics.onChunkReceived(transport, identifier, data.length, endNanos - startNanos, endNanos);
+
+        // Progress not yet reported is reported by the next watchdog check
+        if (deframer.hasUnreportedProgress()) scheduleWatchdog();
+    }
+
+    /**
+     * @return a deframer passing the stream from identifier to its deserializer
+     */
+    private ChunkDeframer createDeframer(final Transport transport, final String identifier) {
+        return new ChunkDeframer(transport.getCapabilities().isStream, new ChunkDeframer.Listener() {
+            @Override
+            public void onPayload(@NonNull byte[] payload) {
+                SessionMessageDeserializer receiver = identifierReceivers.get(identifier);
+                if (receiver != null) receiver.dataReceived(payload);
+            }
+
+            @Override
+            public void onStreamReset() {
+                Timber.w("%s began a new stream. Discarding partial message", identifier);
+                SessionMessageDeserializer receiver = identifierReceivers.get(identifier);
+                if (receiver != null) receiver.reset(true);
+            }
+
+            @Override
+            public void onCancel() {
+                handleCancel(identifier);
+            }
+
+            @Override
+            public void onFrameDiscarded(boolean corrupt) {
+                if (corrupt) Timber.w("Discarding damaged chunk from %s", identifier);
+                metrics.onChunkDiscarded(transport, identifier, corrupt);
+            }
+
+            @Override
+            public void onGap(int streamId, long offset, int length) {
+                if (Logging.VERBOSE) Timber.d("Reporting %d bytes missing at %d from %s", length, offset, identifier);
+                transport.sendData(ChunkFrame.encodeNack(streamId, offset, length), identifier);
+                scheduleWatchdog();
+            }
+
+            @Override
+            public void onNack(int streamId, int offset, int length) {
+                handleNack(transport, identifier, streamId, offset, length);
+            }
+
+            @Override
+            public void onProgress(int streamId, long offset) {
+                transport.sendData(ChunkFrame.encodeAck(streamId, offset), identifier);
+            }
+
+            @Override
+            public void onAck(int streamId, int offset) {
+                handleAck(transport, identifier, streamId, offset);
+            }
+        });
+    }
+
+    /**
+     * Discard the message identifier abandoned part way through sending it, and report it cancelled
+     */
+    private void handleCancel(String identifier) {
+        SessionMessageDeserializer receiver = identifierReceivers.get(identifier);
+        if (receiver == null) return;
+
+        // Relays of the message stop where it does
+        abandonIncomingRelays(identifier);
+
+        SessionMessage cancelled = receiver.cancel();
+        Peer sender = identifiedPeers.get(identifier);
+        if (cancelled == null || sender == null) return;
+
+        Timber.d("%s cancelled %s message", sender.getAlias(), cancelled.getType());
+        if (cancelled instanceof RelayMessage) return;
+
+        if (cancelled instanceof DataTransferMessage && ((DataTransferMessage) cancelled).isStripe()) {
+            // Stripes on other transports are cancelled with it
+            StripedTransfer transfer = incomingStripes.remove(((DataTransferMessage) cancelled).getStripeOf());
+            if (transfer != null) callback.messageCancelledByPeer(transfer.getMessage(), sender);
+            return;
+        }
+
+        callback.messageCancelledByPeer(cancelled, sender);
+    }
+
+    private synchronized void handleDataSent(Transport transport, byte[] data, String identifier, Exception exception) {
+
+        ChunkFramer framer = identifierFramers.get(identifier);
+
+        if (exception != null) {
+            Timber.w("Data failed to send to %s", identifier);
+            if (framer == null) return;
+
+            // The chunk is sent again by the next watchdog check
+            if (!framer.onSendFailed(data, System.nanoTime())) return;
+
+            metrics.onChunkSendFailed(transport, identifier);
+            // The loss shrinks the window, and frees the failed chunk's place in it
+            updateWindow(transport, identifier);
+            dispatchChunks(transport);
+            return;
+        }
+
+        SessionMessageSerializer sender = identifierSenders.get(identifier);
+
+        if (sender == null) {
+            Timber.w("No sender for dataSentToIdentifier to %s", identifier);
+            return;
+        }
+
+        // Acknowledgements of NACKs, of chunks sent again and of earlier streams do not advance the stream
+        long nowNanos = System.nanoTime();
+        int acknowledged = framer == null ? -1 : framer.onAcknowledged(data, nowNanos);
+        if (acknowledged < 0) return;
+
+        metrics.onChunkAcknowledged(transport, identifier, data.length, framer.getLastRttNanos(), nowNanos);
+
+        handleChunksAcknowledged(transport, identifier, sender, acknowledged, data.length);
+    }
+
+    /**
+     * Note identifier reports receiving every byte of our stream to it before offset. Frames it
+     * holds are no longer kept to be sent again, making room for more, and any the transport has
+     * yet to acknowledge are acknowledged
+     */
+    private void handleAck(Transport transport, String identifier, int streamId, int offset) {
+        ChunkFramer framer = identifierFramers.get(identifier);
+        SessionMessageSerializer sender = identifierSenders.get(identifier);
+        if (framer == null || sender == null || framer.getStreamId() != streamId) return;
+
+        int acknowledged = framer.onConfirmed(offset, System.nanoTime());
+        if (acknowledged < 0) return;
+
+        handleChunksAcknowledged(transport, identifier, sender, acknowledged, 0);
+    }
+
+    /**
+     * Report sent the messages in the oldest chunks sender awaits acknowledgement of, and send
+     * those the window now permits
+     *
+     * @param acknowledged the number of chunks acknowledged, in the order sent. Chunks acknowledged
+     *                     ahead of one awaiting acknowledgement are reported once it is
+     */
+    private void handleChunksAcknowledged(Transport transport, String identifier,
+                                          SessionMessageSerializer sender, int acknowledged, int chunkLength) {
+
+        for (int i = 0; i < acknowledged; i++) {
+            List<Pair<SessionMessage, Float>> messagePairs = sender.ackChunkDelivery();
+
+            if (messagePairs == null) {
+                Timber.w("No current message corresponding to dataSentToIdentifier");
+                break;
+            }
+
+            // A chunk may carry several messages, each reported in the order serialized
+            for (Pair<SessionMessage, Float> messagePair : messagePairs)
+                handleMessageSent(messagePair.first, messagePair.second, chunkLength, identifier);
+        }
+
+        scheduleChunks(transport, identifier);
+
+        Peer recipient = identifiedPeers.get(identifier);
+        if (recipient != null) reportIfWritable(recipient);
+    }
+
+    /**
+     * Notify callback if recipient was reported unwritable and its queue has drained to half
+     * the limit, leaving room for the producer to refill it before the link runs dry
+     */
+    private void reportIfWritable(Peer recipient) {
+        if (!unwritablePeers.contains(recipient) ||
+            getQueuedBytes(recipient) > maxQueuedBytes / 2) return;
+
+        unwritablePeers.remove(recipient);
+        callback.peerWritable(recipient);
+    }
+
+    private void handleMessageSent(SessionMessage message, float progress, int chunkLength, String identifier) {
+
+        if (Logging.VERBOSE) Timber.d("%d %s bytes (%.0f pct) sent to %s",
+                              chunkLength,
+                              message.getType(),
+                              progress * 100,
+                              identifier);
+
+        if (progress == 1 && message instanceof IdentityMessage) {
+            Timber.d("Local identity acknowledged by recipient");
+            identifyingPeers.add(identifier);
+        }
+
+        Peer recipient = identifiedPeers.get(identifier);
+        if (recipient != null) {
+            if (message instanceof RelayMessage) {
+                reportRelaySending((RelayMessage) message, progress);
+
+            } else if (progress == 1) {
+
+                // Process completely sent AirShare messages, pass non-AirShare messages
+                // up via messageSentToPeer
+                if (message instanceof IdentityMessage) {
+
+                    if (peerIdentifiers.get(recipient).size() == 1) {
+                        Timber.d("Reporting peer connected after last id sent");
+                        callback.peerStatusUpdated(recipient,
+                                                   Transport.ConnectionStatus.CONNECTED,
+                                                   hostIdentifiers.contains(identifier));
+                    }
+
+                } else if (message.getType().equals(TransportUpgradeMessage.HEADER_TYPE)) {
+                    // Report transport upgraded once peer connects over new transport
+                    // don't report to #messageSendingToPeer
+                    Timber.d("Sent TranportUpgradeMessage");
+
+                } else if (message instanceof CancelMessage) {
+                    // Reported by recipient as its message is cancelled
+                    Timber.d("Sent cancellation of %s", ((CancelMessage) message).getCancelledId());
+
+                } else {
+                    reportMessageSending(message, recipient, progress);
+                }
+
+            } else {
+
+                reportMessageSending(message, recipient, progress);
+            }
+        } else
+            Timber.w("Cannot report %s message send, %s not yet identified",
+                message.getType(), identifier);
+    }
+
+    @DebugLog
+    private synchronized void handleIdentifierUpdated(Transport transport,
+                                                      String identifier,
+                                                      Transport.ConnectionStatus status,
+                                                      boolean peerIsHost,
+                                                      Map<String, Object> extraInfo) {
+        switch(status) {
+            case CONNECTED:
+                Timber.d("Connected to %s", identifier);
+                if (peerIsHost) hostIdentifiers.add(identifier);
+
+                // Only one peer (client) needs to initiate identification
+                if (peerIsHost && shouldIdentifyPeer(identifier)) {
+                    Timber.d("Queuing identity to %s", identifier);
+                    if (!identifierSenders.containsKey(identifier)) {
+                        identifierSenders.put(identifier, new SessionMessageSerializer(createLocalIdentityMessage()));
+                    } else
+                        Timber.w("Outgoing messages already exist for unidentified peer %s", identifier);
+                }
+
+                registerTransportForIdentifier(transport, identifier);
+
+                // Send outgoing messages to peer
+                SessionMessageSerializer sender = identifierSenders.get(identifier);
+
+                if (sender != null && sender.getCurrentMessage() != null) {
+
+                    if (sender.getCurrentMessage() instanceof IdentityMessage)
+                        Timber.d("Sending identity to %s", identifier);
+
+                    scheduleChunks(transport, identifier);
+                }
+
+                break;
+
+            case DISCONNECTED:
+                if (peerIsHost) hostIdentifiers.remove(identifier);
+
+                Peer peer = identifiedPeers.get(identifier);
+
+                if (peer != null) {
+
+                    Timber.d("Disconnected from %s (%s). Had %d transports",
+                            identifier,
+                            peer.getAlias(),
                             peerIdentifiers.get(peer).size());
 
                     peerTransports.get(peer).remove(transport);
@@ -507,6 +1840,11 @@ public class SessionManager implements Transport.TransportCallback,
                                 Transport.ConnectionStatus.DISCONNECTED,
                                 peerIsHost);
 
+                        peerSessionKeys.remove(peer);
+                        unwritablePeers.remove(peer);
+                        removeStripedTransfers(peer);
+                        meshRouter.onNeighborDisconnected(peer);
+
                     } else if (identifiers.size() > 0) {
                         Timber.d("Transport disconnected from %s. %d others remain", peer.getAlias(), identifiers.size());
                         // One of the peers' identifiers disconnected.
@@ -525,11 +1863,22 @@ public class SessionManager implements Transport.TransportCallback,
                 } else
                     Timber.w("Could not report disconnection, peer not identified");
 
+                abandonIncomingRelays(identifier);
+                coalescingDeadlines.remove(identifier);
                 identifierTransports.remove(identifier);
                 identifyingPeers.remove(identifier);
                 identifiedPeers.remove(identifier);
                 identifierSenders.remove(identifier);
                 identifierReceivers.remove(identifier);
+                identifierReceivedIds.remove(identifier);
+                identifierFramers.remove(identifier);
+                identifierDeframers.remove(identifier);
+                metrics.onIdentifierDisconnected(identifier);
+                executionModel.release(identifier);
+
+                // Identifiers waiting behind the departed one may proceed
+                getScheduler(transport).remove(identifier);
+                dispatchChunks(transport);
                 break;
         }
     }
@@ -543,19 +1892,43 @@ public class SessionManager implements Transport.TransportCallback,
 
         String senderIdentifier = identifierReceivers.inverse().get(receiver);
         Timber.d("Received header for %s message from %s", message.getType(), senderIdentifier);
+        if (wasReceived(senderIdentifier, message)) return;
+
+        Peer sender = identifiedPeers.get(senderIdentifier);
+        if (sender != null && message instanceof RelayMessage)
+            onRelayHeaderReceived(receiver, (RelayMessage) message, sender);
     }
 
     @Override
     public void onBodyProgress(SessionMessageDeserializer receiver, SessionMessage message, float progress) {
 
         String senderIdentifier = identifierReceivers.inverse().get(receiver);
-        if (VERBOSE) Timber.d("Received %s message with progress %f from %s", message.getType(), progress, senderIdentifier);
+        if (Logging.VERBOSE) Timber.d("Received %s message with progress %f from %s", message.getType(), progress, senderIdentifier);
+
+        Peer sender = identifiedPeers.get(senderIdentifier);
+        if (sender == null || wasReceived(senderIdentifier, message)) return;
+
+        if (message instanceof RelayMessage) {
+            // Relayed messages are reported only once delivered
+            IncomingRelay incoming = incomingRelays.get(message.id);
+            if (incoming != null && incoming.receiver == receiver) forwardRelayBody(incoming);
+            return;
+        }
 
-        callback.messageReceivingFromPeer(message, identifiedPeers.get(senderIdentifier), progress);
+        if (message instanceof DataTransferMessage && ((DataTransferMessage) message).isStripe()) {
+            // A stripe is complete only once its body is copied in onComplete
+            if (progress == 1) return;
+
+            StripedTransfer transfer = getIncomingStripedTransfer((DataTransferMessage) message, sender);
+            float transferProgress = transfer.onStripeProgress(message.id, message.getBodyLengthBytes(), progress);
+            callback.messageReceivingFromPeer(transfer.getMessage(), sender, transferProgress);
+            return;
+        }
+
+        callback.messageReceivingFromPeer(message, sender, progress);
     }
 
     @Override
-    @DebugLog
     public void onComplete(SessionMessageDeserializer receiver, SessionMessage message, Exception e) {
 
         // Process messages belonging to the AirShare framework and propagate
@@ -565,6 +1938,12 @@ public class SessionManager implements Transport.TransportCallback,
 
         if (e == null) {
 
+            if (wasReceived(senderIdentifier, message)) {
+                Timber.d("Ignoring %s message %s resent by %s", message.getType(), message.id, senderIdentifier);
+                return;
+            }
+            markReceived(senderIdentifier, message);
+
             Timber.d("Received complete %s message from %s", message.getType(), senderIdentifier);
 
             if (message instanceof IdentityMessage) {
@@ -572,6 +1951,7 @@ public class SessionManager implements Transport.TransportCallback,
                 Peer peer = ((IdentityMessage) message).getPeer();
 
                 peerIdentifiers.put(peer, senderIdentifier);
+                meshRouter.onNeighborIdentified(peer, ((IdentityMessage) message).getRoutes());
 
                 boolean sentIdentityToSender = identifyingPeers.contains(senderIdentifier);
                 boolean newIdentity = !identifiedPeers.containsKey(senderIdentifier); // should never be false
@@ -579,7 +1959,12 @@ public class SessionManager implements Transport.TransportCallback,
                 identifyingPeers.remove(senderIdentifier);
                 identifiedPeers.put(senderIdentifier, peer);
 
+                // Messages following identity may have bodies encrypted to us
+                receiver.setSessionKey(getSessionKeyForPeer(peer), peer.getPublicKey());
+
                 Transport identifierTransport = identifierTransports.get(senderIdentifier);
+                metrics.onIdentifierIdentified(identifierTransport, senderIdentifier, peer);
+                getScheduler(identifierTransport).setWeight(senderIdentifier, getPeerWeight(peer));
                 boolean newTransport = peerTransports.get(peer) == null || !peerTransports.get(peer).contains(identifierTransport);
                 registerTransportForPeer(identifierTransport, peer);
 
@@ -590,9 +1975,13 @@ public class SessionManager implements Transport.TransportCallback,
                     // As far as upper layers are concerned, connection events occur when the remote
                     // peer is identified.
                     if (!sentIdentityToSender)
-                        sendMessage(localIdentityMessage, peer); // Report peer connected after identity send ack'd
+                        sendMessage(createLocalIdentityMessage(), peer); // Report peer connected after identity send ack'd
                     else if (peerIdentifiers.get(peer).size() == 1) // If peer is already connected via another transport, don't re-notify
                         callback.peerStatusUpdated(peer, Transport.ConnectionStatus.CONNECTED, hostIdentifiers.contains(senderIdentifier));
+
+                    // Queued messages follow our identity
+                    if (peerIdentifiers.get(peer).size() == 1)
+                        sendQueuedMessages(peer);
                 }
 
                 // We must notify client of new transport *after* sending identity, if necessary. Else they might queue data ahead of it
@@ -600,10 +1989,13 @@ public class SessionManager implements Transport.TransportCallback,
                     callback.peerTransportUpdated(peer, identifierTransport.getTransportCode(), null);
 
                     // TESTING : Stop base transport when upgrade successful
-                    Timber.d("Stopping base transport. %d identifiers for peer", peerIdentifiers.get(peer).size());
-                    baseTransportState = new TransportState(true, baseTransportState.wasAdvertising, baseTransportState.wasScanning);
-                    Transport baseTransport = transports.first();
-                    baseTransport.stop();
+                    // Striping keeps the base transport to carry its share of each message
+                    if (!stripingEnabled) {
+                        Timber.d("Stopping base transport. %d identifiers for peer", peerIdentifiers.get(peer).size());
+                        baseTransportState = new TransportState(true, baseTransportState.wasAdvertising, baseTransportState.wasScanning);
+                        Transport baseTransport = transports.first();
+                        baseTransport.stop();
+                    }
                 }
 
             } else if (message instanceof TransportUpgradeMessage) {
@@ -613,9 +2005,46 @@ public class SessionManager implements Transport.TransportCallback,
                 peerUpgradeRequests.put(peer, getAvailableTransportByCode(transportCode));
                 upgradeTransport(peer, transportCode);
 
+            } else if (message instanceof CancelMessage) {
+                Peer peer = identifiedPeers.get(senderIdentifier);
+                SessionMessage cancelled = peer == null ? null :
+                        cancelOutgoingMessage(((CancelMessage) message).getCancelledId(), peer);
+                if (cancelled != null) reportCancelled(cancelled, peer);
+
+            } else if (message instanceof RelayMessage) {
+                IncomingRelay incoming = incomingRelays.get(message.id);
+                if (incoming == null || incoming.receiver != receiver) return;
+
+                incomingRelays.remove(message.id);
+                forwardRelayBody(incoming);
+                if (incoming.message.getDestination().equals(RelayMessage.encodeKey(localPeer.getPublicKey())))
+                    deliverRelayedMessage(incoming.message);
+
+            } else if (message instanceof DataTransferMessage &&
+                       ((DataTransferMessage) message).isStripe() &&
+                       identifiedPeers.containsKey(senderIdentifier)) {
+
+                Peer sender = identifiedPeers.get(senderIdentifier);
+                DataTransferMessage stripe = (DataTransferMessage) message;
+                StripedTransfer transfer = getIncomingStripedTransfer(stripe, sender);
+
+                try {
+                    float transferProgress = transfer.onIncomingStripeComplete(stripe);
+
+                    if (transfer.isComplete()) {
+                        incomingStripes.remove(stripe.getStripeOf());
+                        callback.messageReceivedFromPeer(transfer.getMessage(), sender, null);
+                    } else
+                        callback.messageReceivingFromPeer(transfer.getMessage(), sender, transferProgress);
+
+                } catch (IllegalArgumentException stripeException) {
+                    Timber.e(stripeException, "Discarding striped message %s from %s", stripe.getStripeOf(), sender.getAlias());
+                    incomingStripes.remove(stripe.getStripeOf());
+                }
+
             } else if (identifiedPeers.containsKey(senderIdentifier)) {
                 // This message is not involved in the AirShare framework, so we notify the next layer up
-                callback.messageReceivedFromPeer(message, identifiedPeers.get(senderIdentifier));
+                callback.messageReceivedFromPeer(message, identifiedPeers.get(senderIdentifier), null);
 
             } else {
 
@@ -625,7 +2054,48 @@ public class SessionManager implements Transport.TransportCallback,
         } else {
             Timber.d("Incoming message from %s failed with error '%s'", senderIdentifier, e.getLocalizedMessage());
             e.printStackTrace();
+
+            Peer sender = identifiedPeers.get(senderIdentifier);
+            if (sender != null && message instanceof DataTransferMessage)
+                reportReceiveFailed((DataTransferMessage) message, sender, e);
+        }
+    }
+
+    /**
+     * Report message from sender failed with e, as its body could not be decoded. A stripe
+     * fails the message it belongs to
+     */
+    private void reportReceiveFailed(DataTransferMessage message, Peer sender, Exception e) {
+        if (message.isStripe()) {
+            StripedTransfer transfer = incomingStripes.remove(message.getStripeOf());
+            if (transfer != null) callback.messageReceivedFromPeer(transfer.getMessage(), sender, e);
+            return;
+        }
+
+        callback.messageReceivedFromPeer(message, sender, e);
+    }
+
+    /**
+     * @return whether message was already received in full from identifier, and so is a copy
+     * resent after the stream from identifier restarted
+     */
+    private boolean wasReceived(String identifier, SessionMessage message) {
+        Set<String> receivedIds = identifierReceivedIds.get(identifier);
+        return receivedIds != null && receivedIds.contains(message.id);
+    }
+
+    private void markReceived(String identifier, SessionMessage message) {
+        Set<String> receivedIds = identifierReceivedIds.get(identifier);
+        if (receivedIds == null) {
+            receivedIds = Collections.newSetFromMap(new LinkedHashMap<String, Boolean>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > MAX_RECEIVED_IDS;
+                }
+            });
+            identifierReceivedIds.put(identifier, receivedIds);
         }
+        receivedIds.add(message.id);
     }
 
     // </editor-fold desc="SessionMessageReceiverCallback">
@@ -31,6 +31,13 @@ public abstract class SessionMessage {
 
     public static enum Status { HEADER_ONLY, COMPLETE }
 
+    /**
+     * Local sending priority. Not transmitted. Determines how long a small message may be held
+     * to share a chunk with those sent after it. See
+     * {@link pro.dbro.airshare.session.SessionManager#setCoalescingWindowMs(Priority, long)}
+     */
+    public static enum Priority { HIGH, NORMAL, LOW }
+
     /** SessionMessage version. Must be representable by {@link #HEADER_VERSION_BYTES} bytes */
     public static final int CURRENT_HEADER_VERSION = 1;
 
@@ -51,6 +58,7 @@ public abstract class SessionMessage {
     protected @NonNull String                  id;
     protected @NonNull Status                  status;
     protected @NonNull Map<String, Object>     headers;
+    private   @NonNull Priority                priority = Priority.NORMAL;
     private   @NonNull byte[]                  serializedHeaders;
 
     /**
@@ -99,6 +107,14 @@ public abstract class SessionMessage {
         return type;
     }
 
+    public @NonNull Priority getPriority() {
+        return priority;
+    }
+
+    public void setPriority(@NonNull Priority priority) {
+        this.priority = priority;
+    }
+
     /**
      * @return the length of the serialized headers
      */
@@ -133,7 +149,8 @@ public abstract class SessionMessage {
      * [3-X]    | Header JSON. 'X' is value specified by Header length
      * [X-Y]    | Body. 'Y' is value specified in 'body-length' entry of Header JSON.
      *
-     * @param length should never be less than {@link #HEADER_LENGTH_BYTES} + {@link #HEADER_VERSION_BYTES}
+     * A chunk may end anywhere within a message, including within its prefix, so that
+     * chunks may be packed with the end of one message and the start of the next.
      *
      */
     public @Nullable byte[] serialize(int offset, int length) {
@@ -147,61 +164,50 @@ public abstract class SessionMessage {
 
         try {
             int bytesWritten = 0;
+            int prefixLength = HEADER_VERSION_BYTES + HEADER_LENGTH_BYTES;
 
-            // Write SessionMessage header version if offset dictates
-            if (offset + bytesWritten < HEADER_LENGTH_BYTES) {
-
-                outputStream.write((byte) CURRENT_HEADER_VERSION);
-
-                bytesWritten += HEADER_VERSION_BYTES;
-            }
-
-            // Write SessionMessage header length if offset dictates
-            if (offset + bytesWritten < HEADER_LENGTH_BYTES) {
+            // Write SessionMessage header version and length if offset dictates
+            if (offset < prefixLength) {
 
-                ByteBuffer lengthBuffer = ByteBuffer.allocate(Integer.SIZE / 8)
-                                                    .order(ByteOrder.LITTLE_ENDIAN)
-                                                    .putInt(serializedHeaders.length);
+                // limit little endian length by ignoring last (most significant) bits
+                byte[] prefix = ByteBuffer.allocate(HEADER_VERSION_BYTES + Integer.SIZE / 8)
+                                          .order(ByteOrder.LITTLE_ENDIAN)
+                                          .put((byte) CURRENT_HEADER_VERSION)
+                                          .putInt(serializedHeaders.length)
+                                          .array();
 
-                byte[] truncatedLength = new byte[HEADER_LENGTH_BYTES];
-                lengthBuffer.rewind();
-                // limit little endian value by ignoring last (most significant) bits
-                lengthBuffer.get(truncatedLength);
-                outputStream.write(truncatedLength);
+                int prefixBytesToCopy = Math.min(length, prefixLength - offset);
+                outputStream.write(prefix, offset, prefixBytesToCopy);
 
-                bytesWritten += HEADER_LENGTH_BYTES;
+                bytesWritten += prefixBytesToCopy;
             }
 
             // Write SessionMessage HashMap header if offset dictates
-            if (offset + bytesWritten >= HEADER_LENGTH_BYTES + HEADER_VERSION_BYTES &&
-                offset + bytesWritten < serializedHeaders.length) {
+            if (bytesWritten < length &&
+                offset + bytesWritten >= prefixLength &&
+                offset + bytesWritten < prefixLength + serializedHeaders.length) {
 
+                int headerOffset = offset + bytesWritten - prefixLength;
                 int headerBytesToCopy = Math.min(length - bytesWritten,
-                                                 serializedHeaders.length - (bytesWritten + offset - (HEADER_LENGTH_BYTES + HEADER_VERSION_BYTES)));
+                                                 serializedHeaders.length - headerOffset);
 
-                outputStream.write(serializedHeaders,
-                                   offset + bytesWritten - (HEADER_LENGTH_BYTES + HEADER_VERSION_BYTES),
-                                   headerBytesToCopy);
+                outputStream.write(serializedHeaders, headerOffset, headerBytesToCopy);
 
                 bytesWritten += headerBytesToCopy;
             }
 
             // Write raw body if offset dictates
             if (bytesWritten < length && status == Status.COMPLETE) {
-                // If no non-body data was written and there is no body, return null
-                if (getBodyLengthBytes() == 0 && bytesWritten == 0)
-                    return null;
 
-                int bodyOffset = Math.max(0,
-                                          offset - (HEADER_LENGTH_BYTES +
-                                                    HEADER_VERSION_BYTES +
-                                                    serializedHeaders.length)
-                );
+                int bodyOffset = Math.max(0, offset - (prefixLength + serializedHeaders.length));
 
-                byte[] body = getBodyAtOffset(bodyOffset, length - bytesWritten);
+                if (bodyOffset < getBodyLengthBytes()) {
+                    byte[] body = getBodyAtOffset(bodyOffset,
+                                                  Math.min(length - bytesWritten, getBodyLengthBytes() - bodyOffset));
 
-                if (body != null)
-                    outputStream.write(body);
+                    if (body != null)
+                        outputStream.write(body);
+                }
             }
 
         } catch (IOException e) {
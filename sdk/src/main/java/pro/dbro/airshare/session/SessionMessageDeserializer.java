@@ -2,6 +2,7 @@ package pro.dbro.airshare.session;
 
 import android.content.Context;
 import android.support.annotation.Nullable;
+import android.util.Base64;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -16,12 +17,15 @@ import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
 
+import pro.dbro.airshare.Logging;
 import timber.log.Timber;
 
 /**
@@ -52,7 +56,13 @@ public class SessionMessageDeserializer {
 
     }
 
-    /** Bodies over this size will be stored on disk */
+    /** Initial capacity of the buffer holding the message in progress */
+    private static final int INITIAL_BUFFER_BYTES = 5 * 1000;
+
+    /**
+     * Bodies over this size will be stored on disk. An encoded body is decoded a segment
+     * at a time as it arrives, so only its plaintext is stored
+     */
     private static final int BODY_SIZE_CUTOFF_BYTES = 2 * 1000 * 1000; // 2 MB
 
     private Context                            context;
@@ -63,26 +73,50 @@ public class SessionMessageDeserializer {
     private HashMap<String, Object>            headers;
     private ByteBuffer                         headerLengthBuffer;
     private SessionMessage                     sessionMessage;
+    private BodyCodec                          codec;
+    /** Encoded segment, or trailer, of a disk-backed body awaiting its remaining bytes */
+    private ByteBuffer                         segmentBuffer;
+    private byte[]                             sessionKey;
+    private byte[]                             remotePublicKey;
 
     private boolean gotVersion;
     private boolean gotHeaderLength;
     private boolean gotHeader;
     private boolean gotBody;
     private boolean gotBodyBoundary;
+    private boolean codecFailed;
 
     private int headerLength;
     private int bodyLength;
     private int bodyBytesReceived;
     private int bufferOffset;
 
+    /** Progress decoding an encoded body. See {@link #decodeAvailableSegments()} */
+    private int plainLength;
+    private int segmentsDecoded;
+    private int encodedBytesDecoded;
+    private int plainBytesDecoded;
+
     public SessionMessageDeserializer(Context context, SessionMessageDeserializerCallback callback) {
-        buffer = ByteBuffer.allocate(5 * 1000);
+        buffer = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
         this.callback = callback;
         this.context = context;
 
         init();
     }
 
+    /**
+     * Provide the keys needed to decode encoded message bodies from the remote peer.
+     * Until called, incoming messages with encrypted bodies will fail.
+     *
+     * @param sessionKey key shared with the remote peer
+     * @param remotePublicKey the remote peer's public key
+     */
+    public void setSessionKey(@Nullable byte[] sessionKey, @Nullable byte[] remotePublicKey) {
+        this.sessionKey      = sessionKey;
+        this.remotePublicKey = remotePublicKey;
+    }
+
     /**
      * Reset the state of the receiver in preparation for a new SessionMessage.
      *
@@ -100,11 +134,19 @@ public class SessionMessageDeserializer {
         gotHeader       = false;
         gotBody         = false;
         gotBodyBoundary = false;
+        codecFailed     = false;
 
         headerLength      = 0;
         bodyLength        = 0;
         bodyBytesReceived = 0;
 
+        codec               = null;
+        plainLength         = 0;
+        segmentsDecoded     = 0;
+        encodedBytesDecoded = 0;
+        plainBytesDecoded   = 0;
+        if (segmentBuffer != null) segmentBuffer.clear();
+
         if (clear) {
             bufferOffset  = 0;
             buffer.clear();
@@ -122,6 +164,24 @@ public class SessionMessageDeserializer {
         }
     }
 
+    /**
+     * Abandon the message in progress, as when its sender cancels it, deleting any part of its
+     * body stored on disk. The data that follows begins the next message.
+     *
+     * @return the message abandoned, or null if its header was not yet received
+     */
+    public @Nullable SessionMessage cancel() {
+        SessionMessage cancelled = gotHeader ? sessionMessage : null;
+        File partialBody = bodyStream != null ? bodyFile : null;
+
+        reset(true);
+
+        if (partialBody != null && !partialBody.delete())
+            Timber.w("Failed to delete partial body %s", partialBody.getAbsolutePath());
+
+        return cancelled;
+    }
+
     /**
      * Process sequential chunk of a serialized {@link pro.dbro.airshare.session.SessionMessage}
      *
@@ -130,8 +190,10 @@ public class SessionMessageDeserializer {
      * @param data sequential chunk of a serialized {@link pro.dbro.airshare.session.SessionMessage}
      */
     public void dataReceived(byte[] data) {
+        compactBuffer();
+
         if (data.length > buffer.capacity() - buffer.position())
-            resizeBuffer(data.length);
+            resizeBuffer(buffer.position() + data.length);
 
         try {
 
@@ -141,15 +203,21 @@ public class SessionMessageDeserializer {
              */
             if (gotHeaderLength && getMessageIndex() >= getPrefixAndHeaderLengthBytes()) {
 
-                if (bodyLength > BODY_SIZE_CUTOFF_BYTES) {
+                // data may continue into following messages, left in buffer for processData
+                if (isBodyOnDisk()) {
 
                     if (bodyStream == null) prepareBodyOutputStream();
 
-                    bodyStream.write(data);
-                } else
+                    int bodyBytes = Math.min(bodyLength - bodyBytesReceived, data.length);
+                    writeBody(data, 0, bodyBytes);
+                    bodyBytesReceived += bodyBytes;
+                    buffer.put(data, bodyBytes, data.length - bodyBytes);
+                } else {
                     buffer.put(data);
+                    bodyBytesReceived = Math.min(bodyLength, getMessageIndex() - getPrefixAndHeaderLengthBytes());
 
-                bodyBytesReceived += Math.min(bodyLength - bodyBytesReceived, data.length);
+                    if (codec != null) decodeAvailableSegments();
+                }
 
                 if (callback != null && bodyLength > 0)
                     callback.onBodyProgress(this, sessionMessage, bodyBytesReceived / (float) bodyLength);
@@ -166,7 +234,7 @@ public class SessionMessageDeserializer {
 
 
         if (!gotBody && gotHeader) {
-            Timber.d(String.format("Read %d / %d body bytes", bodyBytesReceived, bodyLength));
+            if (Logging.VERBOSE) Timber.d("Read %d / %d body bytes", bodyBytesReceived, bodyLength);
         }
 
     }
@@ -177,8 +245,7 @@ public class SessionMessageDeserializer {
     }
 
     private void processData(int bytesJustReceived) {
-        Timber.d("Received %d bytes", bytesJustReceived);
-        int dataBytesProcessed = 0;
+        if (Logging.VERBOSE) Timber.d("Received %d bytes", bytesJustReceived);
 
         /** Deserialize SessionMessage Header version byte, if not yet done since construction
          * or last call to {@link #reset()}
@@ -187,14 +254,13 @@ public class SessionMessageDeserializer {
             // Get version int from first byte
             // Check we can deserialize this version
             int version = new BigInteger(new byte[]{buffer.get(bufferOffset)}).intValue();
-            Timber.d("Deserialized header version %d at idx %d", version, bufferOffset);
+            if (Logging.VERBOSE) Timber.d("Deserialized header version %d at idx %d", version, bufferOffset);
             if (version != SessionMessage.CURRENT_HEADER_VERSION) {
                 Timber.e("Unknown SessionMessage version");
                 if (callback != null)
                     callback.onComplete(this, null, new UnsupportedOperationException("Unknown SessionMessage version " + version));
                 return;
             }
-            dataBytesProcessed += SessionMessage.HEADER_VERSION_BYTES;
             gotVersion = true;
         }
 
@@ -207,7 +273,7 @@ public class SessionMessageDeserializer {
             // Get header length and store. Deserialize header when possible
             byte[] headerLengthBytes = new byte[SessionMessage.HEADER_LENGTH_BYTES];
             int originalPosition = buffer.position();
-            buffer.position(bufferOffset + dataBytesProcessed);
+            buffer.position(bufferOffset + SessionMessage.HEADER_VERSION_BYTES);
             buffer.get(headerLengthBytes, 0, headerLengthBytes.length);
             buffer.position(originalPosition);
 
@@ -216,9 +282,8 @@ public class SessionMessageDeserializer {
             headerLengthBuffer.rewind();
 
             headerLength = headerLengthBuffer.getInt();
-            Timber.d("Deserialized header length " + headerLength);
+            if (Logging.VERBOSE) Timber.d("Deserialized header length %d", headerLength);
             gotHeaderLength = true;
-            dataBytesProcessed += SessionMessage.HEADER_LENGTH_BYTES;
         }
 
         /** Deserialize SessionMessage Header content, if not yet done since construction
@@ -237,7 +302,8 @@ public class SessionMessageDeserializer {
                 headers = toMap(jsonHeader);
                 bodyLength = (int) headers.get(SessionMessage.HEADER_BODY_LENGTH);
                 sessionMessage = sessionMessageFromHeaders(headers);
-                Timber.d(String.format("Deserialized %s header indicating body length %d", (String) headers.get(SessionMessage.HEADER_TYPE), (int) headers.get(SessionMessage.HEADER_BODY_LENGTH)));
+                prepareBodyCodec();
+                if (Logging.VERBOSE) Timber.d("Deserialized %s header indicating body length %d", headers.get(SessionMessage.HEADER_TYPE), bodyLength);
                 if (sessionMessage != null && callback != null)
                     callback.onHeaderReady(this, sessionMessage);
             } catch (JSONException | UnsupportedEncodingException e) {
@@ -246,7 +312,6 @@ public class SessionMessageDeserializer {
             }
 
             gotHeader = true;
-            dataBytesProcessed += headerLength;
         }
 //        else if (!gotHeader)
 //            Timber.d(String.format("Got %d / %d header bytes", buffer.position(), SessionMessage.HEADER_VERSION_BYTES + SessionMessage.HEADER_LENGTH_BYTES + headerLength));
@@ -254,7 +319,8 @@ public class SessionMessageDeserializer {
         /** If the boundary between header content and body content occurred within {@link data},
          * update {@link #bodyBytesReceived} appropriately. Additionally, if this SessionMessage
          * requires off-memory body storage we remove body data from {@link buffer} and insert it into
-         * the {@link bodyStream}. Must be performed before determining body completion.
+         * the {@link bodyStream}, leaving any bytes of following messages in its place.
+         * Must be performed before determining body completion.
          *
          * Performed at most once per SessionMessage
          */
@@ -264,25 +330,35 @@ public class SessionMessageDeserializer {
                 getMessageIndex() >= getPrefixAndHeaderLengthBytes()) {
 
             try {
-                int bodyBytesJustReceived = bytesJustReceived - dataBytesProcessed;
+                // The prefix and header may have arrived over several calls, and data may
+                // continue into following messages, so count body bytes by position in buffer
+                int bodyBytesJustReceived = Math.min(bodyLength,
+                                                     getMessageIndex() - getPrefixAndHeaderLengthBytes());
 
-                if (bodyLength > BODY_SIZE_CUTOFF_BYTES) {
+                bodyBytesReceived += bodyBytesJustReceived;
+
+                if (isBodyOnDisk()) {
 
                     if (bodyStream == null) prepareBodyOutputStream();
 
+                    int bodyStart = bufferOffset + getPrefixAndHeaderLengthBytes();
                     byte[] bodyBytes = new byte[bodyBytesJustReceived];
-                    buffer.position(buffer.position() - bodyBytesJustReceived);
-                    buffer.get(bodyBytes, 0, bodyBytesJustReceived);
-                    buffer.position(buffer.position() - bodyBytesJustReceived);
-                    bodyStream.write(bodyBytes, 0, bodyBytesJustReceived);
-                }
+                    byte[] followingBytes = new byte[buffer.position() - bodyStart - bodyBytesJustReceived];
+                    buffer.position(bodyStart);
+                    buffer.get(bodyBytes, 0, bodyBytes.length);
+                    buffer.get(followingBytes, 0, followingBytes.length);
+                    buffer.position(bodyStart);
+                    buffer.put(followingBytes);
 
-                bodyBytesReceived += bodyBytesJustReceived;
+                    writeBody(bodyBytes, 0, bodyBytes.length);
+
+                } else if (codec != null)
+                    decodeAvailableSegments();
 
                 if (callback != null && bodyLength > 0)
                     callback.onBodyProgress(this, sessionMessage, bodyBytesReceived / (float) bodyLength);
 
-                Timber.d(String.format("Splitting received data between header (%d bytes) and body (%d bytes)", dataBytesProcessed, bodyBytesJustReceived));
+                if (Logging.VERBOSE) Timber.d("Splitting received data between header and body (%d bytes)", bodyBytesJustReceived);
                 gotBodyBoundary = true;
 
             } catch (IOException e) {
@@ -293,46 +369,234 @@ public class SessionMessageDeserializer {
         /** Construct and deliver complete SessionMessage if deserialized header and body are received */
         if (gotHeader && !gotBody && bodyBytesReceived == bodyLength) {
 
-            Timber.d("Got body!");
+            if (Logging.VERBOSE) Timber.d("Got body!");
             // Construct appropriate SessionMessage or child object
-            if (bodyLength > BODY_SIZE_CUTOFF_BYTES) {
-
-                if (sessionMessage instanceof DataTransferMessage) {
-                    // TODO This shouldn't happen. We should enforce an upper limit on DataTransferMessage
-                    throw new UnsupportedOperationException("Cannot have a disk-backed DataTransferMessage");
-                }
+            if (isBodyOnDisk()) {
+                completeBodyOnDisk();
             } else {
-                byte[] body = new byte[bodyLength];
+                // An encoded body has been decoded in place at the start of the body region
+                int decodedBodyLength = codec != null ? plainLength : bodyLength;
+                byte[] body = new byte[decodedBodyLength];
                 int originalPos = buffer.position();
                 buffer.position(bufferOffset + getPrefixAndHeaderLengthBytes());
-                buffer.get(body, 0, bodyLength);
+                buffer.get(body, 0, decodedBodyLength);
                 buffer.position(originalPos);
 
-                if (sessionMessage instanceof DataTransferMessage) {
+                if (sessionMessage instanceof DataTransferMessage && !codecFailed) {
                     ((DataTransferMessage) sessionMessage).setBody(body);
+                } else if (sessionMessage instanceof RelayMessage) {
+                    ((RelayMessage) sessionMessage).setBody(body);
                 }
-                dataBytesProcessed += bodyLength;
             }
 
-            if (callback != null) callback.onComplete(this, sessionMessage, null);
+            // A message failing decoding was reported when the failure occurred
+            if (callback != null && !codecFailed) callback.onComplete(this, sessionMessage, null);
 
             gotBody = true;
 
             // Prepare for next incoming message
-            bufferOffset += (getPrefixAndHeaderLengthBytes() + bodyLength); // The next message begins at this offset. We can't simply use dataBytesProcessed because this message may have been processed over prior calls to this method
-            Timber.d("Message complete. Buffer offset %d, dataBytes processed %d", bufferOffset, dataBytesProcessed);
+            // The next message begins at this offset. This message may have been processed over prior calls to this method
+            bufferOffset += getPrefixAndHeaderLengthBytes() + (isBodyOnDisk() ? 0 : bodyLength);
+            if (Logging.VERBOSE) Timber.d("Message complete. Buffer offset %d", bufferOffset);
             reset(false);
-            if (dataBytesProcessed < bytesJustReceived) {
-                Timber.d("%d / %d bytes deserialized in complete msg. Proceeding to next msg", dataBytesProcessed, bytesJustReceived);
-                processData(bytesJustReceived - dataBytesProcessed);
+            // A packed chunk may carry the start of the next message
+            if (getMessageIndex() > 0) {
+                if (Logging.VERBOSE) Timber.d("%d bytes of next msg received. Proceeding to next msg", getMessageIndex());
+                processData(getMessageIndex());
+            }
+        }
+    }
+
+    /**
+     * Prepare to decode the body of the current message if its headers indicate
+     * it is encoded, and open its sealed extras. Must be called once headers are deserialized.
+     */
+    private void prepareBodyCodec() {
+        if (!headers.containsKey(BodyCodec.HEADER_CODEC)) return;
+
+        plainLength = (int) headers.get(BodyCodec.HEADER_PLAIN_LENGTH);
+        try {
+            codec = BodyCodec.forIncoming((String) headers.get(BodyCodec.HEADER_CODEC),
+                                          (String) headers.get(SessionMessage.HEADER_ID),
+                                          sessionKey,
+                                          remotePublicKey);
+
+            if (codec.getEncodedLength(plainLength) != bodyLength)
+                throw new GeneralSecurityException("Encoded body length does not match plain length");
+
+            // The message shares headers, so sees the opened extras
+            if (headers.containsKey(BodyCodec.HEADER_SEALED_EXTRA)) {
+                byte[] sealedExtras = Base64.decode((String) headers.remove(BodyCodec.HEADER_SEALED_EXTRA), Base64.DEFAULT);
+                headers.put(DataTransferMessage.HEADER_EXTRA,
+                            toMap(new JSONObject(new String(codec.openExtras(sealedExtras), "UTF-8"))));
+            }
+
+        } catch (JSONException | UnsupportedEncodingException e) {
+            onBodyCodecFailure(new GeneralSecurityException("Malformed sealed extras", e));
+        } catch (GeneralSecurityException e) {
+            onBodyCodecFailure(e);
+        }
+    }
+
+    /**
+     * Decode each complete encoded segment received so far, writing its plaintext back into
+     * {@link #buffer} at the start of the body region. Plaintext is never longer than the encoded
+     * bytes preceding it, so decoding in place never overwrites undecoded data.
+     *
+     * Once the final segment is decoded, the trailer is verified.
+     */
+    private void decodeAvailableSegments() {
+        if (codecFailed) return;
+
+        int bodyStart = bufferOffset + getPrefixAndHeaderLengthBytes();
+        int segmentCount = codec.getSegmentCount(plainLength);
+        int originalPosition = buffer.position();
+
+        try {
+            while (segmentsDecoded < segmentCount) {
+                int segmentLength = codec.getEncodedSegmentLength(segmentsDecoded, plainLength);
+                if (bodyBytesReceived - encodedBytesDecoded < segmentLength) break;
+
+                byte[] encoded = new byte[segmentLength];
+                buffer.position(bodyStart + encodedBytesDecoded);
+                buffer.get(encoded, 0, segmentLength);
+
+                byte[] plaintext = codec.decodeSegment(segmentsDecoded,
+                                                       encoded,
+                                                       segmentsDecoded == segmentCount - 1);
+                buffer.position(bodyStart + plainBytesDecoded);
+                buffer.put(plaintext);
+
+                encodedBytesDecoded += segmentLength;
+                plainBytesDecoded   += plaintext.length;
+                segmentsDecoded++;
+            }
+
+            if (segmentsDecoded == segmentCount && bodyBytesReceived == bodyLength) {
+                byte[] trailer = new byte[codec.getTrailerLengthBytes()];
+                buffer.position(bodyStart + encodedBytesDecoded);
+                buffer.get(trailer, 0, trailer.length);
+                codec.verifyTrailer(trailer);
+            }
+
+        } catch (GeneralSecurityException e) {
+            onBodyCodecFailure(e);
+        } finally {
+            buffer.position(originalPosition);
+        }
+    }
+
+    /**
+     * Write body bytes of a disk-backed message to {@link #bodyStream}. An encoded body is
+     * gathered a segment at a time in {@link #segmentBuffer} and written decoded, so neither
+     * the encoded nor the decoded body is held in memory.
+     *
+     * Once the final segment is decoded, the trailer is verified.
+     */
+    private void writeBody(byte[] data, int offset, int length) throws IOException {
+        if (codec == null) {
+            bodyStream.write(data, offset, length);
+            return;
+        }
+
+        int segmentCount = codec.getSegmentCount(plainLength);
+        while (length > 0 && !codecFailed) {
+            boolean isTrailer = segmentsDecoded == segmentCount;
+            int unitLength = isTrailer ? codec.getTrailerLengthBytes() :
+                                         codec.getEncodedSegmentLength(segmentsDecoded, plainLength);
+
+            if (segmentBuffer == null || segmentBuffer.capacity() < unitLength)
+                segmentBuffer = ByteBuffer.allocate(Math.max(unitLength, BodyCodec.SEGMENT_BYTES +
+                                                                         codec.getSegmentOverheadBytes()));
+
+            int bytesToCopy = Math.min(length, unitLength - segmentBuffer.position());
+            segmentBuffer.put(data, offset, bytesToCopy);
+            offset += bytesToCopy;
+            length -= bytesToCopy;
+            if (segmentBuffer.position() < unitLength) break;
+
+            byte[] encoded = Arrays.copyOf(segmentBuffer.array(), unitLength);
+            segmentBuffer.clear();
+
+            try {
+                if (isTrailer) {
+                    codec.verifyTrailer(encoded);
+                    continue;
+                }
+
+                bodyStream.write(codec.decodeSegment(segmentsDecoded, encoded, segmentsDecoded == segmentCount - 1));
+                segmentsDecoded++;
+
+                if (segmentsDecoded == segmentCount && codec.getTrailerLengthBytes() == 0)
+                    codec.verifyTrailer(new byte[0]);
+
+            } catch (GeneralSecurityException e) {
+                onBodyCodecFailure(e);
             }
         }
     }
 
+    /**
+     * Close the body file of the completed disk-backed message and attach it to the message,
+     * or delete it if the message failed decoding or cannot hold it
+     */
+    private void completeBodyOnDisk() {
+        File completedBody = bodyFile;
+        try {
+            bodyStream.close();
+
+            if (sessionMessage instanceof DataTransferMessage && !codecFailed) {
+                ((DataTransferMessage) sessionMessage).setBody(bodyFile);
+                completedBody = null;
+            }
+        } catch (IOException e) {
+            Timber.e(e, "Failed to read body file");
+            onBodyCodecFailure(e);
+        }
+
+        bodyStream = null;
+        bodyFile   = null;
+
+        if (completedBody != null && !completedBody.delete())
+            Timber.w("Failed to delete body %s", completedBody.getAbsolutePath());
+    }
+
+    /**
+     * Report the current message failed. Its remaining body bytes will be
+     * consumed without further notification
+     */
+    private void onBodyCodecFailure(Exception e) {
+        Timber.w("Failed to decode %s body: %s", headers.get(SessionMessage.HEADER_TYPE), e.getMessage());
+        codecFailed = true;
+        if (callback != null) callback.onComplete(this, sessionMessage, e);
+    }
+
     private void init() {
         headerLengthBuffer = ByteBuffer.allocate(Integer.SIZE / 8).order(ByteOrder.LITTLE_ENDIAN);
     }
 
+    /**
+     * Discard the bytes of messages already delivered, which precede {@link #bufferOffset},
+     * so the buffer holds only the message in progress. An empty buffer grown for a large
+     * message is returned to its initial size.
+     */
+    private void compactBuffer() {
+        if (bufferOffset == 0) return;
+
+        if (buffer.position() <= bufferOffset) {
+            // Nothing of the next message has arrived
+            if (buffer.capacity() > INITIAL_BUFFER_BYTES)
+                buffer = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+            else
+                buffer.clear();
+        } else {
+            buffer.limit(buffer.position());
+            buffer.position(bufferOffset);
+            buffer.compact();
+        }
+        bufferOffset = 0;
+    }
+
     private void resizeBuffer(int minLength) {
         int curLen = buffer.capacity();
         int curOccupied = buffer.position();
@@ -342,7 +606,7 @@ public class SessionMessageDeserializer {
         buffer.position(0);
         newBuffer.put(buffer);
         buffer = newBuffer;
-        Timber.d("Buffer resized from %d (%d used) to %d. %d bytes avail", curLen, curOccupied, newLen, buffer.capacity() - buffer.position());
+        if (Logging.VERBOSE) Timber.d("Buffer resized from %d (%d used) to %d. %d bytes avail", curLen, curOccupied, newLen, buffer.capacity() - buffer.position());
     }
 
     private void prepareBodyOutputStream() {
@@ -356,6 +620,40 @@ public class SessionMessageDeserializer {
         }
     }
 
+    /**
+     * @return the number of body bytes of the current message received so far
+     */
+    int getBodyBytesReceived() {
+        return bodyBytesReceived;
+    }
+
+    /**
+     * Read body bytes of the current message as they arrive, before it is complete.
+     * Available only for bodies held in memory that are not encoded
+     *
+     * @return length body bytes from offset, or null if not yet received or not available
+     */
+    @Nullable byte[] getReceivedBody(int offset, int length) {
+        if (!gotHeader || codec != null || bodyLength > BODY_SIZE_CUTOFF_BYTES ||
+            offset < 0 || offset + length > bodyBytesReceived)
+            return null;
+
+        byte[] body = new byte[length];
+        int originalPosition = buffer.position();
+        buffer.position(bufferOffset + getPrefixAndHeaderLengthBytes() + offset);
+        buffer.get(body, 0, length);
+        buffer.position(originalPosition);
+        return body;
+    }
+
+    /**
+     * @return whether the body of the current message is stored on disk
+     * This method only returns a valid value if {@link #gotHeader} is {@code true}
+     */
+    private boolean isBodyOnDisk() {
+        return bodyLength > BODY_SIZE_CUTOFF_BYTES;
+    }
+
     private float getCurrentMessageProgress() {
         if (bodyLength == 0) return 0;
         return bodyBytesReceived / (float) bodyLength;
@@ -384,6 +682,12 @@ public class SessionMessageDeserializer {
             case DataTransferMessage.HEADER_TYPE:
                 return new DataTransferMessage(headers, null);
 
+            case RelayMessage.HEADER_TYPE:
+                return new RelayMessage(headers);
+
+            case CancelMessage.HEADER_TYPE:
+                return new CancelMessage(headers);
+
             default:
                 Timber.w("Unable to deserialize %s message", headerType);
                 return null;
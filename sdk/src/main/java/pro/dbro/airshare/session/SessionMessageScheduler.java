@@ -10,4 +10,11 @@ public interface SessionMessageScheduler {
 
     public void sendMessage(SessionMessage message, Peer recipient);
 
+    /**
+     * Stop delivering message to recipient
+     *
+     * @return whether message was cancelled before its delivery
+     */
+    public boolean cancelMessage(SessionMessage message, Peer recipient);
+
 }
@@ -3,28 +3,47 @@ package pro.dbro.airshare.session;
 import android.support.annotation.Nullable;
 import android.util.Pair;
 
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
+import pro.dbro.airshare.Logging;
 import timber.log.Timber;
 
 /**
  * This class facilitates queuing {@link pro.dbro.airshare.session.SessionMessage}s
- * for sequential serialization
+ * for sequential serialization.
+ *
+ * Chunks are packed: when the current message ends within a chunk, the chunk is filled
+ * with the start of the next queued message, so a burst of small messages shares
+ * transport writes rather than costing one write each.
+ *
+ * Several chunks may await acknowledgement at once. Acknowledgements are taken to arrive
+ * in the order chunks were returned.
+ *
+ * A queued message may be cancelled, even part way through serialization. See
+ * {@link #cancelMessage(String)}.
  *
  * Created by davidbrodsky on 3/12/15.
  */
 public class SessionMessageSerializer {
 
-    private static final boolean VERBOSE = false;
+    /** Largest chunk returned by {@link #getNextChunk(int)}, regardless of requested length */
+    private static final int MAX_CHUNK_BYTES = 500 * 1024;
 
-    private ArrayList<Pair<Integer, SessionMessage>> completedMessages;
     private ArrayDeque<SessionMessage> messages;
-    private byte[] lastChunk;
     private int marker;
-    private int serializeCount;
-    private int ackCount;
+
+    /** Total length of messages in {@link #messages} */
+    private long queuedBytes;
+
+    /**
+     * For each chunk awaiting acknowledgement, oldest first, each message with bytes in it
+     * and its progress once that chunk is delivered
+     */
+    private ArrayDeque<List<Pair<SessionMessage, Float>>> chunksInFlight;
 
     public SessionMessageSerializer(final SessionMessage message) {
         this(new ArrayList<SessionMessage>() {{ add(message); }});
@@ -33,10 +52,10 @@ public class SessionMessageSerializer {
     public SessionMessageSerializer(List<SessionMessage> messages) {
         this.messages = new ArrayDeque<>();
         this.messages.addAll(messages);
-        this.completedMessages = new ArrayList<>();
+        for (SessionMessage message : messages)
+            queuedBytes += message.getTotalLengthBytes();
+        this.chunksInFlight = new ArrayDeque<>();
         marker = 0;
-        serializeCount = 0;
-        ackCount = 0;
     }
 
     public @Nullable SessionMessage getCurrentMessage() {
@@ -45,6 +64,84 @@ public class SessionMessageSerializer {
 
     public void queueMessage(SessionMessage message) {
         messages.offer(message);
+        queuedBytes += message.getTotalLengthBytes();
+    }
+
+    /**
+     * @return whether a chunk returned by {@link #getNextChunk(int)} awaits {@link #ackChunkDelivery()}
+     */
+    public boolean hasChunkInFlight() {
+        return !chunksInFlight.isEmpty();
+    }
+
+    /**
+     * @return whether the current message has the id messageId and some, but not all, of its
+     * bytes are serialized
+     */
+    public boolean isSerializing(String messageId) {
+        SessionMessage current = messages.peek();
+        return current != null && marker > 0 && current.id.equals(messageId);
+    }
+
+    /**
+     * Remove the queued message with messageId, so no more of its bytes are serialized, and
+     * forget its bytes in chunks awaiting acknowledgement, which no longer report its progress.
+     * A message whose bytes are all serialized is not removed.
+     *
+     * If some of its bytes were serialized, as reported by {@link #isSerializing(String)}, the
+     * recipient must be told to discard them by a marker sent after them, which awaits
+     * {@link #ackChunkDelivery()} as a chunk does. Serialization resumes with the next message.
+     *
+     * @return the message removed, or null if none with messageId was queued
+     */
+    public @Nullable SessionMessage cancelMessage(String messageId) {
+        boolean serializing = isSerializing(messageId);
+
+        SessionMessage cancelled = null;
+        Iterator<SessionMessage> queued = messages.iterator();
+        while (queued.hasNext()) {
+            SessionMessage message = queued.next();
+            if (!message.id.equals(messageId)) continue;
+
+            cancelled = message;
+            queued.remove();
+            queuedBytes -= message.getTotalLengthBytes();
+            break;
+        }
+
+        if (!serializing) return cancelled;
+
+        for (List<Pair<SessionMessage, Float>> chunkMessages : chunksInFlight) {
+            Iterator<Pair<SessionMessage, Float>> messagePairs = chunkMessages.iterator();
+            while (messagePairs.hasNext())
+                if (messagePairs.next().first == cancelled) messagePairs.remove();
+        }
+
+        // The marker ending its bytes
+        chunksInFlight.offer(new ArrayList<Pair<SessionMessage, Float>>());
+        marker = 0;
+        return cancelled;
+    }
+
+    /**
+     * @return the number of messages not yet completely serialized, including the current message
+     */
+    public int getQueuedMessageCount() {
+        return messages.size();
+    }
+
+    /**
+     * @return the number of bytes of queued messages not yet serialized
+     */
+    public long getQueuedBytes() {
+        return queuedBytes - marker;
+    }
+
+    /**
+     * @return the number of messages with bytes in the chunk last returned by {@link #getNextChunk(int)}
+     */
+    public int getChunkMessageCount() {
+        return chunksInFlight.isEmpty() ? 0 : chunksInFlight.peekLast().size();
     }
 
     public float getCurrentMessageProgress() {
@@ -54,69 +151,87 @@ public class SessionMessageSerializer {
     }
 
     /**
-     * Read up to length bytes of the current outgoing SessionMessage.
-     * If length is 0, a fixed memory-safe size will be read.
+     * Read up to length bytes of the outgoing SessionMessages, beginning with the current message
+     * and continuing into those queued after it until length bytes are read.
      *
-     * If {@param length} extends beyond the bytes left in the current message,
-     * the result will be a byte[] of lesser length containing the completion of the current message.
+     * The result is shorter than length only when no further bytes are available.
+     * Returns null if no bytes are available.
      *
-     * The chunk returned will not advance until a corresponding call to {@link #ackChunkDelivery()}
+     * Each chunk returned awaits a corresponding call to {@link #ackChunkDelivery()}
      */
-    public byte[] getNextChunk(int length) {
-        if (lastChunk != null) return lastChunk;
+    public @Nullable byte[] getNextChunk(int length) {
+        length = Math.min(length, MAX_CHUNK_BYTES);
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream(length);
+        ArrayList<Pair<SessionMessage, Float>> chunkMessages = new ArrayList<>();
+
+        while (chunk.size() < length && messages.size() > 0) {
+            SessionMessage message = messages.peek();
+            byte[] part = message.serialize(marker, length - chunk.size());
+
+            if (part != null) {
+                chunk.write(part, 0, part.length);
+                marker += part.length;
+            }
 
-        if (messages.size() == 0) return null;
-        length = Math.min(length, 500 * 1024);
-        byte[] result = messages.peek().serialize(marker, length);
+            if (marker < message.getTotalLengthBytes()) {
+                // The message continues in the next chunk. If its body is not yet available,
+                // as when relaying a message still being received, serialization resumes on a later call
+                if (part != null) chunkMessages.add(new Pair<>(message, getCurrentMessageProgress()));
+                break;
+            }
 
-        if (result == null) {
-            Timber.d("Completed %s message (%d / %d bytes)", messages.peek().getType(),
-                    marker, messages.peek().getTotalLengthBytes());
-            completedMessages.add(new Pair<>(serializeCount, messages.poll()));
+            if (Logging.VERBOSE) Timber.d("Completed %s message (%d bytes)", message.getType(), marker);
+            chunkMessages.add(new Pair<>(messages.poll(), 1f));
+            queuedBytes -= marker;
             marker = 0;
-            return getNextChunk(length);
-
-        } else {
-            marker += result.length;
-            serializeCount++;
-            //Timber.d("getNextChunk");
         }
 
-        lastChunk = result;
-        return result;
+        if (chunk.size() == 0) return null;
+
+        chunksInFlight.offer(chunkMessages);
+        return chunk.toByteArray();
     }
 
     /**
-     * @return a Pair containing the message delivery progress and the
-     * {@link pro.dbro.airshare.session.SessionMessage} corresponding
-     * to the chunk being acknowledged. Assumes sequential delivery of chunks returned
-     * by {@link #getNextChunk(int)}
+     * Acknowledge delivery of the oldest chunk returned by {@link #getNextChunk(int)} and not
+     * yet acknowledged
+     *
+     * @return a Pair of each {@link pro.dbro.airshare.session.SessionMessage} with bytes
+     * in the chunk being acknowledged and its delivery progress, in the order serialized.
+     * Null if no chunk awaited acknowledgement.
      */
-    public @Nullable Pair<SessionMessage, Float> ackChunkDelivery() {
-        ackCount++;
-        if (VERBOSE) Timber.d("Ack");
-        SessionMessage message = null;
-        float progress = 0;
-
-        for (Pair<Integer, SessionMessage> messagePair : completedMessages) {
-            if (messagePair.first >= ackCount) {
-                message = messagePair.second;
-                progress = ((float) ackCount) / messagePair.first;
-                if (VERBOSE) Timber.d("ackChunkDelivery reporting prev msg progress %f", progress);
-                break;
-            }
-        }
+    public @Nullable List<Pair<SessionMessage, Float>> ackChunkDelivery() {
+        if (Logging.VERBOSE) Timber.d("Ack");
+        return chunksInFlight.poll(); // Null if acknowledgements have fallen out of sync!
+    }
 
-        if (message == null) {
-            message = messages.peek();
-            progress = getCurrentMessageProgress();
-            if (VERBOSE) Timber.d("ackChunkDelivery reporting current progress %f", progress);
+    /**
+     * Abandon the chunks awaiting acknowledgement, which will not be acknowledged. Serialization
+     * resumes from the beginning of the first message with bytes in the oldest, or of the current
+     * message if none awaits acknowledgement, as the recipient discards any part of that message
+     * received before it.
+     *
+     * @return whether a chunk awaited acknowledgement
+     */
+    public boolean rewindChunksInFlight() {
+        marker = 0;
+        if (chunksInFlight.isEmpty()) return false;
+
+        // Messages completed by the chunks return to the front of the queue, in order
+        Iterator<List<Pair<SessionMessage, Float>>> chunks = chunksInFlight.descendingIterator();
+        while (chunks.hasNext()) {
+            List<Pair<SessionMessage, Float>> chunkMessages = chunks.next();
+            for (int i = chunkMessages.size() - 1; i >= 0; i--) {
+                Pair<SessionMessage, Float> messagePair = chunkMessages.get(i);
+                if (messagePair.second < 1) continue;
+
+                messages.addFirst(messagePair.first);
+                queuedBytes += messagePair.first.getTotalLengthBytes();
+            }
         }
 
-        if (message == null) return null; // Acknowledgements have fallen out of sync!
-
-        lastChunk = null;
-        return new Pair<>(message, progress);
+        chunksInFlight.clear();
+        return true;
     }
 
 }
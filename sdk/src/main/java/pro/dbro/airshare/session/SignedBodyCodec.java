@@ -0,0 +1,154 @@
+package pro.dbro.airshare.session;
+
+import android.support.annotation.NonNull;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import pro.dbro.airshare.crypto.SodiumShaker;
+
+/**
+ * Authenticates a plaintext body without holding it in memory.
+ *
+ * Each segment is followed by a short checksum of the segment and its index, so a corrupt
+ * segment is detected as soon as it arrives. A SHA-256 digest of the message id and body is
+ * accumulated segment by segment, and its Ed25519 signature is sent as the trailer and
+ * verified against the sender's public key once the body is complete.
+ */
+public class SignedBodyCodec extends BodyCodec {
+
+    public static final String NAME = "signed";
+
+    /** Length of the per-segment checksum. Guards against corruption, not forgery */
+    private static final int CHECKSUM_BYTES = 8;
+
+    private final MessageDigest bodyDigest;
+    private final MessageDigest segmentDigest;
+
+    private byte[] secretKey;
+    private byte[] publicKey;
+    private byte[] signature;
+
+    private int     digestedSegments;
+    private boolean digestedFinalSegment;
+
+    /**
+     * @return a codec signing the body of the outgoing message with id messageId
+     */
+    public static SignedBodyCodec forSigning(@NonNull byte[] secretKey, @NonNull String messageId) {
+        SignedBodyCodec codec = new SignedBodyCodec(messageId);
+        codec.secretKey = secretKey;
+        return codec;
+    }
+
+    /**
+     * @return a codec verifying the body of the incoming message with id messageId
+     */
+    public static SignedBodyCodec forVerification(@NonNull byte[] senderPublicKey, @NonNull String messageId) {
+        SignedBodyCodec codec = new SignedBodyCodec(messageId);
+        codec.publicKey = senderPublicKey;
+        return codec;
+    }
+
+    private SignedBodyCodec(String messageId) {
+        try {
+            bodyDigest    = MessageDigest.getInstance("SHA-256");
+            segmentDigest = MessageDigest.getInstance("SHA-256");
+            // Bind the signature to this message
+            bodyDigest.update(messageId.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new IllegalStateException("SHA-256 or UTF-8 unsupported", e);
+        }
+    }
+
+    @NonNull
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int getSegmentOverheadBytes() {
+        return CHECKSUM_BYTES;
+    }
+
+    @Override
+    public int getTrailerLengthBytes() {
+        return SodiumShaker.crypto_sign_BYTES;
+    }
+
+    @NonNull
+    @Override
+    public byte[] encodeSegment(int index, @NonNull byte[] plaintext, boolean isFinal) {
+        digestSegment(index, plaintext, isFinal);
+
+        byte[] encoded = Arrays.copyOf(plaintext, plaintext.length + CHECKSUM_BYTES);
+        System.arraycopy(checksum(index, plaintext), 0, encoded, plaintext.length, CHECKSUM_BYTES);
+        return encoded;
+    }
+
+    @NonNull
+    @Override
+    public byte[] decodeSegment(int index, @NonNull byte[] encoded, boolean isFinal) throws GeneralSecurityException {
+        byte[] plaintext = Arrays.copyOf(encoded, encoded.length - CHECKSUM_BYTES);
+        byte[] receivedChecksum = Arrays.copyOfRange(encoded, plaintext.length, encoded.length);
+
+        if (!MessageDigest.isEqual(checksum(index, plaintext), receivedChecksum))
+            throw new GeneralSecurityException("Body segment " + index + " is corrupt");
+
+        digestSegment(index, plaintext, isFinal);
+        return plaintext;
+    }
+
+    @NonNull
+    @Override
+    public byte[] encodeTrailer() {
+        if (secretKey == null)
+            throw new IllegalStateException("Codec was not created for signing");
+
+        if (signature == null) {
+            byte[] digest = finishDigest();
+            signature = SodiumShaker.generateSignatureForMessage(secretKey, digest, digest.length);
+        }
+        return signature;
+    }
+
+    @Override
+    public void verifyTrailer(@NonNull byte[] trailer) throws GeneralSecurityException {
+        if (publicKey == null)
+            throw new IllegalStateException("Codec was not created for verification");
+
+        if (!SodiumShaker.verifySignature(publicKey, trailer, finishDigest()))
+            throw new GeneralSecurityException("Body signature invalid");
+    }
+
+    /**
+     * Accumulate segment into the body digest. Segments re-encoded for retransmission
+     * have already been digested and are ignored.
+     */
+    private void digestSegment(int index, byte[] plaintext, boolean isFinal) {
+        if (index != digestedSegments) return;
+
+        bodyDigest.update(plaintext);
+        digestedSegments++;
+        digestedFinalSegment = isFinal;
+    }
+
+    private byte[] finishDigest() {
+        // An empty body has no segments
+        if (digestedSegments > 0 && !digestedFinalSegment)
+            throw new IllegalStateException("Body digest requested before final segment");
+
+        return bodyDigest.digest();
+    }
+
+    private byte[] checksum(int index, byte[] plaintext) {
+        segmentDigest.update(ByteBuffer.allocate(Integer.SIZE / 8).putInt(index).array());
+        segmentDigest.update(plaintext);
+        return Arrays.copyOf(segmentDigest.digest(), CHECKSUM_BYTES);
+    }
+}
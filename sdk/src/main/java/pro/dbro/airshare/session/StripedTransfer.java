@@ -0,0 +1,124 @@
+package pro.dbro.airshare.session;
+
+import android.support.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link pro.dbro.airshare.session.DataTransferMessage} whose body is sent as several
+ * stripes, each over a different transport. Combines the progress of each stripe and, for an
+ * incoming message, reassembles the body by offset.
+ *
+ * Not thread safe. Used only by {@link pro.dbro.airshare.session.SessionManager}.
+ */
+class StripedTransfer {
+
+    private final Peer                     peer;
+    private final int                      totalLengthBytes;
+    private final Map<String, Object>      headers;
+    private final HashMap<String, Integer> stripeLengths  = new HashMap<>();
+    private final HashMap<String, Float>   stripeProgress = new HashMap<>();
+
+    private DataTransferMessage message;
+    private byte[]              body;
+    private int                 completedBytes;
+
+    /**
+     * Track delivery of stripes of an outgoing message
+     */
+    static StripedTransfer forOutgoing(@NonNull DataTransferMessage message, @NonNull Peer recipient) {
+        return new StripedTransfer(recipient, message, message.getBodyLengthBytes(), null);
+    }
+
+    /**
+     * Begin reassembly of the message of which firstStripe is a part
+     */
+    static StripedTransfer forIncoming(@NonNull DataTransferMessage firstStripe, @NonNull Peer sender) {
+        int totalLengthBytes = firstStripe.getStripeTotal();
+
+        HashMap<String, Object> headers = new HashMap<>();
+        headers.put(SessionMessage.HEADER_TYPE,        DataTransferMessage.HEADER_TYPE);
+        headers.put(SessionMessage.HEADER_ID,          firstStripe.getStripeOf());
+        headers.put(SessionMessage.HEADER_BODY_LENGTH, totalLengthBytes);
+        if (firstStripe.getHeaders().containsKey(DataTransferMessage.HEADER_EXTRA))
+            headers.put(DataTransferMessage.HEADER_EXTRA, firstStripe.getHeaders().get(DataTransferMessage.HEADER_EXTRA));
+
+        // Reported with progress until the body is reassembled
+        StripedTransfer transfer = new StripedTransfer(sender, new DataTransferMessage(headers, null),
+                                                       totalLengthBytes, headers);
+        transfer.body = new byte[totalLengthBytes];
+        return transfer;
+    }
+
+    private StripedTransfer(Peer peer, DataTransferMessage message, int totalLengthBytes,
+                            Map<String, Object> headers) {
+        this.peer             = peer;
+        this.message          = message;
+        this.totalLengthBytes = totalLengthBytes;
+        this.headers          = headers;
+    }
+
+    /**
+     * @return the striped message. For an incoming message this has no body until
+     * {@link #isComplete()}
+     */
+    DataTransferMessage getMessage() {
+        return message;
+    }
+
+    Peer getPeer() {
+        return peer;
+    }
+
+    /**
+     * Record the progress of a stripe
+     *
+     * @return the progress of the whole message
+     */
+    float onStripeProgress(@NonNull String stripeId, int stripeLengthBytes, float progress) {
+        Float previousProgress = stripeProgress.put(stripeId, progress);
+        stripeLengths.put(stripeId, stripeLengthBytes);
+
+        if (progress == 1 && (previousProgress == null || previousProgress < 1))
+            completedBytes += stripeLengthBytes;
+
+        if (totalLengthBytes == 0) return 1;
+
+        float transferredBytes = 0;
+        for (Map.Entry<String, Float> entry : stripeProgress.entrySet())
+            transferredBytes += entry.getValue() * stripeLengths.get(entry.getKey());
+
+        return Math.min(1, transferredBytes / totalLengthBytes);
+    }
+
+    /**
+     * Copy the body of a completely received stripe into the reassembled body
+     *
+     * @return the progress of the whole message
+     */
+    float onIncomingStripeComplete(@NonNull DataTransferMessage stripe) {
+        int length = stripe.getBodyLengthBytes();
+        int offset = stripe.getStripeOffset();
+
+        if (offset < 0 || offset + length > totalLengthBytes)
+            throw new IllegalArgumentException(String.format("Stripe [%d, %d) exceeds message length %d",
+                                                             offset, offset + length, totalLengthBytes));
+
+        if (length > 0) {
+            byte[] stripeBody = stripe.getBodyAtOffset(0, length);
+            System.arraycopy(stripeBody, 0, body, offset, length);
+        }
+
+        float progress = onStripeProgress(stripe.id, length, 1);
+
+        if (isComplete() && message.status == SessionMessage.Status.HEADER_ONLY)
+            message = new DataTransferMessage(headers, body);
+
+        return progress;
+    }
+
+    boolean isComplete() {
+        return completedBytes >= totalLengthBytes;
+    }
+}
@@ -0,0 +1,57 @@
+package pro.dbro.airshare.transport;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs all non-blocking work on a single {@link android.os.Looper}, serializing work across
+ * every connection. Blocking work runs on a shared pool of threads created as needed.
+ */
+public class EventLoopExecutionModel implements ExecutionModel {
+
+    private final Handler         handler;
+    private final HandlerThread   ownedThread;
+    private final ExecutorService blockingExecutor = Executors.newCachedThreadPool();
+
+    /**
+     * Run work on a new event loop thread owned by this model
+     */
+    public EventLoopExecutionModel() {
+        ownedThread = new HandlerThread("AirShareEventLoop");
+        ownedThread.start();
+        handler = new Handler(ownedThread.getLooper());
+    }
+
+    /**
+     * Run work on an existing Looper. The Looper is not quit on {@link #shutdown()}
+     */
+    public EventLoopExecutionModel(Looper looper) {
+        ownedThread = null;
+        handler = new Handler(looper);
+    }
+
+    @Override
+    public void execute(String key, Runnable task) {
+        handler.post(task);
+    }
+
+    @Override
+    public void executeBlocking(String key, Runnable task) {
+        blockingExecutor.execute(task);
+    }
+
+    @Override
+    public void release(String key) {
+        // No per-key resources
+    }
+
+    @Override
+    public void shutdown() {
+        blockingExecutor.shutdown();
+        if (ownedThread != null) ownedThread.quit();
+    }
+}
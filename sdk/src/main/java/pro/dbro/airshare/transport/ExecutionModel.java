@@ -0,0 +1,39 @@
+package pro.dbro.airshare.transport;
+
+/**
+ * Determines the threads on which transport and session work runs.
+ *
+ * Work is submitted under a key, typically a remote identifier. Tasks submitted via
+ * {@link #execute(String, Runnable)} under the same key run one at a time in submission order,
+ * so per-connection state needs no further ordering. Tasks under different keys may run
+ * concurrently, depending on the model.
+ *
+ * see {@link pro.dbro.airshare.transport.EventLoopExecutionModel}
+ * see {@link pro.dbro.airshare.transport.PooledExecutionModel}
+ * see {@link pro.dbro.airshare.transport.ThreadPerConnectionExecutionModel}
+ */
+public interface ExecutionModel {
+
+    /**
+     * Run a short, non-blocking task after all tasks previously submitted under key
+     */
+    public void execute(String key, Runnable task);
+
+    /**
+     * Run a task that may block indefinitely, such as a socket read loop.
+     * Blocking tasks are never run on threads serving {@link #execute(String, Runnable)}
+     */
+    public void executeBlocking(String key, Runnable task);
+
+    /**
+     * Release any resources held for key, such as a dedicated thread.
+     * Tasks already submitted under key still run.
+     */
+    public void release(String key);
+
+    /**
+     * Stop accepting tasks and release all threads owned by this model
+     */
+    public void shutdown();
+
+}
@@ -0,0 +1,100 @@
+package pro.dbro.airshare.transport;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import timber.log.Timber;
+
+/**
+ * Runs non-blocking work on a bounded pool of threads. Work for different keys runs in
+ * parallel, while work for a single key runs in order on at most one thread at a time.
+ * Blocking work runs on a separate pool of threads created as needed, so it cannot
+ * starve the bounded pool.
+ */
+public class PooledExecutionModel implements ExecutionModel {
+
+    /** Tasks run for a key before yielding its pool thread to other keys */
+    private static final int TASKS_PER_TURN = 16;
+
+    private final ExecutorService pool;
+    private final ExecutorService blockingExecutor = Executors.newCachedThreadPool();
+
+    /** Keys with pending work. Guarded by itself */
+    private final HashMap<String, SerialQueue> queues = new HashMap<>();
+
+    public PooledExecutionModel(int threadCount) {
+        pool = Executors.newFixedThreadPool(threadCount);
+    }
+
+    @Override
+    public void execute(String key, Runnable task) {
+        synchronized (queues) {
+            SerialQueue queue = queues.get(key);
+            if (queue == null) {
+                queue = new SerialQueue(key);
+                queues.put(key, queue);
+            }
+            queue.tasks.add(task);
+
+            if (!queue.scheduled) {
+                queue.scheduled = true;
+                pool.execute(queue);
+            }
+        }
+    }
+
+    @Override
+    public void executeBlocking(String key, Runnable task) {
+        blockingExecutor.execute(task);
+    }
+
+    @Override
+    public void release(String key) {
+        // Queues are discarded as soon as they drain
+    }
+
+    @Override
+    public void shutdown() {
+        pool.shutdown();
+        blockingExecutor.shutdown();
+    }
+
+    /**
+     * Tasks for a single key. Scheduled on the pool while it has tasks
+     */
+    private class SerialQueue implements Runnable {
+
+        final String key;
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        boolean scheduled;
+
+        SerialQueue(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < TASKS_PER_TURN; i++) {
+                Runnable task;
+                synchronized (queues) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        scheduled = false;
+                        queues.remove(key);
+                        return;
+                    }
+                }
+
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Timber.e(e, "Task for %s failed", key);
+                }
+            }
+            // Yield to other keys, resuming after work already queued on the pool
+            pool.execute(this);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package pro.dbro.airshare.transport;
+
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gives each key its own thread for non-blocking work, and a new thread for each blocking
+ * task. This mirrors a transport spawning a thread per connection. Idle per-key threads exit
+ * after {@link #IDLE_TIMEOUT_S}, and are replaced if work for the key resumes.
+ */
+public class ThreadPerConnectionExecutionModel implements ExecutionModel {
+
+    private static final int IDLE_TIMEOUT_S = 30;
+
+    /** Guarded by itself */
+    private final HashMap<String, ThreadPoolExecutor> executors = new HashMap<>();
+    private boolean isShutdown;
+
+    @Override
+    public void execute(String key, Runnable task) {
+        synchronized (executors) {
+            if (isShutdown) throw new IllegalStateException("ExecutionModel is shut down");
+
+            ThreadPoolExecutor executor = executors.get(key);
+            if (executor == null) {
+                executor = new ThreadPoolExecutor(1, 1, IDLE_TIMEOUT_S, TimeUnit.SECONDS,
+                                                  new LinkedBlockingQueue<Runnable>(),
+                                                  new NamedThreadFactory(key));
+                executor.allowCoreThreadTimeOut(true);
+                executors.put(key, executor);
+            }
+            // Submit while holding the lock so a concurrent release cannot shut the executor down first
+            executor.execute(task);
+        }
+    }
+
+    @Override
+    public void executeBlocking(String key, Runnable task) {
+        new NamedThreadFactory(key).newThread(task).start();
+    }
+
+    @Override
+    public void release(String key) {
+        synchronized (executors) {
+            ThreadPoolExecutor executor = executors.remove(key);
+            if (executor != null) executor.shutdown();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        synchronized (executors) {
+            isShutdown = true;
+            for (ThreadPoolExecutor executor : executors.values())
+                executor.shutdown();
+            executors.clear();
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String name;
+
+        NamedThreadFactory(String key) {
+            name = "AirShare-" + key;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, name);
+        }
+    }
+}
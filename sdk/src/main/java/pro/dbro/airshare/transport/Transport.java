@@ -42,6 +42,7 @@ public abstract class Transport implements Comparable<Transport> {
 
     protected String serviceName;
     protected WeakReference<TransportCallback> callback;
+    protected ExecutionModel executionModel = new ThreadPerConnectionExecutionModel();
 
     public Transport(String serviceName, TransportCallback callback) {
         this.serviceName = serviceName;
@@ -57,6 +58,14 @@ public abstract class Transport implements Comparable<Transport> {
         return callback.get();
     }
 
+    /**
+     * Set the model on which this transport runs connection work, such as socket loops.
+     * Must be called before the transport is started.
+     */
+    public void setExecutionModel(ExecutionModel executionModel) {
+        this.executionModel = executionModel;
+    }
+
     public abstract boolean sendData(byte[] data, Set<String> identifier);
 
     public abstract boolean sendData(byte[] data, String identifier);
@@ -81,6 +90,14 @@ public abstract class Transport implements Comparable<Transport> {
      */
     public abstract int getMtuForIdentifier(String identifier);
 
+    /**
+     * @return the delivery guarantees of this transport and the largest write it accepts.
+     * Defaults to {@link pro.dbro.airshare.transport.TransportCapabilities#DATAGRAM}
+     */
+    public TransportCapabilities getCapabilities() {
+        return TransportCapabilities.DATAGRAM;
+    }
+
     @Override
     public int compareTo (@NonNull Transport another) {
         return getMtuForIdentifier("") - another.getMtuForIdentifier("");
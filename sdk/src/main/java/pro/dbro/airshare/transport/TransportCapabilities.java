@@ -0,0 +1,33 @@
+package pro.dbro.airshare.transport;
+
+/**
+ * Describes the delivery guarantees of a {@link pro.dbro.airshare.transport.Transport}
+ * and the size of writes it accepts.
+ */
+public class TransportCapabilities {
+
+    /** Unreliable, unordered datagrams of at most the transport's MTU */
+    public static final TransportCapabilities DATAGRAM = new TransportCapabilities(false, false, false, 0);
+
+    /** Data handed to the transport is delivered unless the connection fails */
+    public final boolean isReliable;
+
+    /** Data is delivered in the order handed to the transport */
+    public final boolean isOrdered;
+
+    /**
+     * The transport carries a byte stream without message boundaries, such as a socket,
+     * segmenting writes larger than its MTU itself
+     */
+    public final boolean isStream;
+
+    /** Largest write accepted by a stream transport, in bytes, or 0 to use its MTU */
+    public final int maxWriteBytes;
+
+    public TransportCapabilities(boolean isReliable, boolean isOrdered, boolean isStream, int maxWriteBytes) {
+        this.isReliable    = isReliable;
+        this.isOrdered     = isOrdered;
+        this.isStream      = isStream;
+        this.maxWriteBytes = maxWriteBytes;
+    }
+}
@@ -36,6 +36,7 @@ import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 
 import pro.dbro.airshare.DataUtil;
+import pro.dbro.airshare.Logging;
 import pro.dbro.airshare.R;
 import pro.dbro.airshare.transport.ConnectionGovernor;
 import pro.dbro.airshare.transport.Transport;
@@ -158,7 +159,7 @@ public class BLECentral {
         if (recipient != null) {
             boolean success = recipient.writeCharacteristic(discoveredCharacteristic);
             // write type should be 2 (Default)
-            Timber.d("Wrote %d bytes with type %d to %s with success %b", data.length, discoveredCharacteristic.getWriteType(), deviceAddress, success);
+            if (Logging.VERBOSE) Timber.d("Wrote %d bytes with type %d to %s with success %b", data.length, discoveredCharacteristic.getWriteType(), deviceAddress, success);
             return success;
         }
         Timber.w("Unable to write " + deviceAddress);
@@ -386,7 +387,7 @@ public class BLECentral {
 
                     @Override
                     public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-                        Timber.d("onCharacteristicChanged %s with %d bytes", characteristic.getUuid().toString().substring(0,5),
+                        if (Logging.VERBOSE) Timber.d("onCharacteristicChanged %s with %d bytes", characteristic.getUuid().toString().substring(0,5),
                                                                              characteristic.getValue().length);
 
                         if (transportCallback != null)
@@ -401,7 +402,7 @@ public class BLECentral {
                     public void onCharacteristicWrite(BluetoothGatt gatt,
                                                       BluetoothGattCharacteristic characteristic, int status) {
 
-                        Timber.d("onCharacteristicWrite with %d bytes", characteristic.getValue().length);
+                        if (Logging.VERBOSE) Timber.d("onCharacteristicWrite with %d bytes", characteristic.getValue().length);
                         Exception exception = null;
                         if (status != BluetoothGatt.GATT_SUCCESS) {
                             String msg = "Write was not successful with code " + status;
@@ -469,6 +470,8 @@ public class BLECentral {
     }
 
     private void logCharacteristic(BluetoothGattCharacteristic characteristic) {
+        if (!Logging.VERBOSE) return;
+
         StringBuilder builder = new StringBuilder();
         builder.append(characteristic.getUuid().toString().substring(0, 3));
         builder.append("... instance: ");
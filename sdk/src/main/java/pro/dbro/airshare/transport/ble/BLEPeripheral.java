@@ -29,6 +29,7 @@ import java.util.HashSet;
 import java.util.Set;
 import java.util.UUID;
 
+import pro.dbro.airshare.Logging;
 import pro.dbro.airshare.transport.ConnectionGovernor;
 import pro.dbro.airshare.transport.Transport;
 import timber.log.Timber;
@@ -155,7 +156,7 @@ public class BLEPeripheral {
                                                                      targetCharacteristic,
                                                                      true);
             if (success) lastNotified = data;
-            Timber.d("Notified %d bytes to %s with success %b", data.length, deviceAddress, success);
+            if (Logging.VERBOSE) Timber.d("Notified %d bytes to %s with success %b", data.length, deviceAddress, success);
             return success;
         }
 
@@ -267,7 +268,7 @@ public class BLEPeripheral {
 
             @Override
             public void onCharacteristicWriteRequest(BluetoothDevice remoteCentral, int requestId, BluetoothGattCharacteristic characteristic, boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
-                Timber.d("onCharacteristicWriteRequest for request %d char %s offset %d length %d responseNeeded %b", requestId, characteristic.getUuid().toString().substring(0,3), offset, value == null ? 0 : value.length, responseNeeded);
+                if (Logging.VERBOSE) Timber.d("onCharacteristicWriteRequest for request %d char %s offset %d length %d responseNeeded %b", requestId, characteristic.getUuid().toString().substring(0,3), offset, value == null ? 0 : value.length, responseNeeded);
 
                 BluetoothGattCharacteristic localCharacteristic = gattServer.getService(serviceUUID).getCharacteristic(characteristic.getUuid());
                 if (localCharacteristic != null) {
@@ -275,7 +276,7 @@ public class BLEPeripheral {
                     // Must send response before notifying callback (which might trigger data send before remote central received ack)
                     if (responseNeeded) {
                         boolean success = gattServer.sendResponse(remoteCentral, requestId, BluetoothGatt.GATT_SUCCESS, offset, value);
-                        Timber.d("Ack'd write with success " + success);
+                        if (Logging.VERBOSE) Timber.d("Ack'd write with success " + success);
                     }
 
                     if (transportCallback != null)
@@ -322,7 +323,7 @@ public class BLEPeripheral {
 
             @Override
             public void onNotificationSent(BluetoothDevice device, int status) {
-                Timber.d("onNotificationSent");
+                if (Logging.VERBOSE) Timber.d("onNotificationSent");
                 Exception exception = null;
                 if (status != BluetoothGatt.GATT_SUCCESS) {
                     String msg = "notify not successful with code " + status;
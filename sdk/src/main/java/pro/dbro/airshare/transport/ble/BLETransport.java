@@ -11,12 +11,15 @@ import org.apache.commons.codec.digest.DigestUtils;
 
 import java.io.ByteArrayOutputStream;
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
+import pro.dbro.airshare.Logging;
 import pro.dbro.airshare.transport.Transport;
+import pro.dbro.airshare.transport.TransportCapabilities;
 import timber.log.Timber;
 
 /**
@@ -51,6 +54,8 @@ public class BLETransport extends Transport implements BLETransportCallback {
 
     public static final int TRANSPORT_CODE = 1;
 
+    private static final TransportCapabilities CAPABILITIES = new TransportCapabilities(true, true, false, 0);
+
     private final UUID serviceUUID;
     private final UUID dataUUID    = UUID.fromString("72A7700C-859D-4317-9E35-D7F5A93005B1");
 
@@ -163,6 +168,15 @@ public class BLETransport extends Transport implements BLETransportCallback {
         return (mtu == null ? DEFAULT_MTU_BYTES : mtu ) - 10;
     }
 
+    /**
+     * Writes with response and indications are acknowledged and ordered, but each
+     * carries at most one MTU
+     */
+    @Override
+    public TransportCapabilities getCapabilities() {
+        return CAPABILITIES;
+    }
+
     // </editor-fold desc="Transport">
 
     // <editor-fold desc="BLETransportCallback">
@@ -175,7 +189,7 @@ public class BLETransport extends Transport implements BLETransportCallback {
 
     @Override
     public void dataSentToIdentifier(DeviceType deviceType, byte[] data, String identifier, Exception exception) {
-        Timber.d("Got receipt for %d sent bytes", data.length);
+        if (Logging.VERBOSE) Timber.d("Got receipt for %d sent bytes", data.length);
 
         if (callback.get() != null)
             callback.get().dataSentToIdentifier(this, data, identifier, exception);
@@ -219,12 +233,14 @@ public class BLETransport extends Transport implements BLETransportCallback {
             if (data.length - readIdx > mtu) {
                 ByteArrayOutputStream bos = new ByteArrayOutputStream(mtu);
                 bos.write(data, readIdx, mtu);
-                Timber.d("Adding %d byte chunk to queue", bos.size());
+                if (Logging.VERBOSE) Timber.d("Adding %d byte chunk to queue", bos.size());
                 outBuffers.get(identifier).add(bos.toByteArray());
                 readIdx += mtu;
             } else {
-                Timber.d("Adding %d byte chunk to queue", data.length);
-                outBuffers.get(identifier).add(data);
+                // Queue only the remainder, not all of data
+                byte[] remainder = readIdx == 0 ? data : Arrays.copyOfRange(data, readIdx, data.length);
+                if (Logging.VERBOSE) Timber.d("Adding %d byte chunk to queue", remainder.length);
+                outBuffers.get(identifier).add(remainder);
                 break;
             }
         }
@@ -246,7 +262,7 @@ public class BLETransport extends Transport implements BLETransportCallback {
             }
 
             if (didSend) {
-                Timber.d("Sent %d byte chunk to %s. %d more chunks in queue", toSend.length, identifier, outBuffers.get(identifier).size() - 1);
+                if (Logging.VERBOSE) Timber.d("Sent %d byte chunk to %s. %d more chunks in queue", toSend.length, identifier, outBuffers.get(identifier).size() - 1);
 
                 outBuffers.get(identifier).poll();
             } else {
@@ -30,18 +30,24 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.util.ArrayDeque;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import pro.dbro.airshare.Logging;
 import pro.dbro.airshare.transport.Transport;
+import pro.dbro.airshare.transport.TransportCapabilities;
 import timber.log.Timber;
 
 /**
  * Wifi Direct Transport. Requires Android 4.0.
  *
- * Proof-of-concept. Not yet ready for use. Supports a single WiFi Direct connection at time
+ * Proof-of-concept. Not yet ready for use. As group owner, accepts any number of clients, each
+ * identified by its IP address and served on its own blocking task of {@link #executionModel}.
+ * As a client, supports a single connection to the group owner.
  *
  * Development Note : Need to implement true acknowledgement.
  * {@link pro.dbro.airshare.transport.Transport.TransportCallback#dataSentToIdentifier(Transport, byte[], String, Exception)}
@@ -53,13 +59,17 @@ import timber.log.Timber;
  */
 public class WifiTransport extends Transport implements WifiP2pManager.ConnectionInfoListener, WifiP2pManager.ChannelListener {
 
-    private static final boolean VERBOSE = true;
-
     /** Values to id transport useful in bit fields */
     public static final int TRANSPORT_CODE = 2;
 
     public static final int DEFAULT_MTU_BYTES = 1024;
 
+    /** Largest write accepted via {@link #sendData(byte[], String)}, and largest read reported */
+    public static final int MAX_WRITE_BYTES = 64 * 1024;
+
+    private static final TransportCapabilities CAPABILITIES =
+            new TransportCapabilities(true, true, true, MAX_WRITE_BYTES);
+
     private static final int PORT = 8787;
     private static final int SOCKET_TIMEOUT_MS = 5000;
 
@@ -68,9 +78,19 @@ public class WifiTransport extends Transport implements WifiP2pManager.Connectio
     private WifiP2pManager.Channel channel;
     private IntentFilter intentFilter;
 
-    private Thread socketThread;
+    /** Key under which the server socket's accept loop runs on {@link #executionModel} */
+    private static final String SERVER_SOCKET_KEY = "wifi-server";
 
-    private boolean connectionDesired = true;
+    private volatile boolean socketActive;
+
+    /** Open while this device, as group owner, accepts clients */
+    private volatile ServerSocket serverSocket;
+
+    /**
+     * Set by {@link #startServerSocket()} and {@link #startClientSocket(InetAddress)}, and cleared
+     * only by {@link #stop()}, ending each socket loop
+     */
+    private volatile boolean connectionDesired;
     private boolean discoveringPeers = false;
     private boolean localPrefersToHost = false;
     private boolean retryChannel = true;
@@ -79,7 +99,8 @@ public class WifiTransport extends Transport implements WifiP2pManager.Connectio
     private BiMap<String, String> macToIpAddress = HashBiMap.create();
 
     private HashSet<String> connectingPeers = new HashSet<>();
-    private HashSet<String> connectedPeers = new HashSet<>();
+    /** Modified by each client's socket task */
+    private Set<String> connectedPeers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     private static int PEER_DISCOVERY_TIMEOUT_MS = 30 * 1000;
     private CountDownTimer peerDiscoveryTimer;
@@ -163,9 +184,8 @@ public class WifiTransport extends Transport implements WifiP2pManager.Connectio
             receiverRegistered = false;
         }
         connectionDesired = false;
-        if (socketThread != null) {
-            socketThread = null;
-        }
+        socketActive = false;
+        closeServerSocket();
 
         if (discoveringPeers)
             manager.stopPeerDiscovery(channel, new WifiP2pManager.ActionListener() {
@@ -188,7 +208,9 @@ public class WifiTransport extends Transport implements WifiP2pManager.Connectio
         connectedPeers.clear();
         connectingPeers.clear();
 
-        outBuffers.clear();
+        synchronized (outBuffers) {
+            outBuffers.clear();
+        }
 
         discoveringPeers = false;
     }
@@ -205,6 +227,15 @@ public class WifiTransport extends Transport implements WifiP2pManager.Connectio
         return DEFAULT_MTU_BYTES;
     }
 
+    /**
+     * A TCP socket is a reliable, ordered stream, so the session layer may write large slices
+     * of its messages rather than awaiting a report for each MTU
+     */
+    @Override
+    public TransportCapabilities getCapabilities() {
+        return CAPABILITIES;
+    }
+
     // </editor-fold desc="Transport">
 
     private void cancelConnections() {
@@ -287,23 +318,10 @@ public class WifiTransport extends Transport implements WifiP2pManager.Connectio
                 outBuffers.put(identifier, new ArrayDeque<byte[]>());
             }
 
-            int mtu = getMtuForIdentifier(identifier);
-
-            int readIdx = 0;
-            while (readIdx < data.length) {
+            // The socket segments data itself, and each write is reported sent once
+            outBuffers.get(identifier).add(data);
 
-                if (data.length - readIdx > mtu) {
-                    ByteArrayOutputStream bos = new ByteArrayOutputStream(mtu);
-                    bos.write(data, readIdx, mtu);
-                    outBuffers.get(identifier).add(bos.toByteArray());
-                    readIdx += mtu;
-                } else {
-                    outBuffers.get(identifier).add(data);
-                    break;
-                }
-            }
-
-            if (VERBOSE) Timber.d("Queued %d outgoing bytes for %s", data.length, identifier);
+            if (Logging.VERBOSE) Timber.d("Queued %d outgoing bytes for %s", data.length, identifier);
             outBuffers.notify();
         }
     }
@@ -428,7 +446,7 @@ public class WifiTransport extends Transport implements WifiP2pManager.Connectio
 
         if (!connectedPeers.contains(device.deviceAddress) && !connectingPeers.contains(device.deviceAddress)) {
 
-            if (socketThread != null) {
+            if (socketActive) {
                 // TODO : Check, stop socket if different peer
                 Timber.e("Cannot honor request to connect to peer. Socket already open.");
                 return;
@@ -455,8 +473,9 @@ public class WifiTransport extends Transport implements WifiP2pManager.Connectio
     public void onConnectionInfoAvailable(WifiP2pInfo info) {
         Timber.d("Got Connection Info");
 
-        if (socketThread != null) {
-            Timber.w("SocketThread already set. Will not act on connection info");
+        if (socketActive) {
+            Timber.w("Socket already active. Will not act on connection info");
+            // As group owner, the server socket accepts each new client as it arrives
             return;
         }
 
@@ -467,7 +486,7 @@ public class WifiTransport extends Transport implements WifiP2pManager.Connectio
             startServerSocket();
 
         } else if (info.groupFormed) {
-            // The other device is the group owner. For now we assume groups of fixed size 2
+            // The other device is the group owner, which may be serving other clients
             Timber.d("Connected to %s (local is client)", info.groupOwnerAddress.getHostAddress());
 
             if (connectingPeers.size() == 1) {
@@ -494,7 +513,9 @@ public class WifiTransport extends Transport implements WifiP2pManager.Connectio
     }
 
     public void startClientSocket(final InetAddress address) {
-        socketThread = new Thread(new Runnable() {
+        socketActive = true;
+        connectionDesired = true;
+        executionModel.executeBlocking(address.getHostAddress(), new Runnable() {
 
             @Override
             public void run() {
@@ -510,71 +531,109 @@ public class WifiTransport extends Transport implements WifiP2pManager.Connectio
                     connectedPeers.add(address.getHostAddress());
                     callback.get().identifierUpdated(WifiTransport.this, address.getHostAddress(), ConnectionStatus.CONNECTED, true, null);
 
-                    maintainSocket(null, socket, address.getHostAddress());
+                    maintainSocket(socket, address.getHostAddress());
 
                 } catch (IOException e) {
                     e.printStackTrace();
+                } finally {
+                    socketActive = false;
                 }
             }
         });
-        socketThread.start();
     }
 
     public void startServerSocket() {
-        socketThread = new Thread(new Runnable() {
+        socketActive = true;
+        connectionDesired = true;
+        executionModel.executeBlocking(SERVER_SOCKET_KEY, new Runnable() {
             @Override
             public void run() {
                 try {
+                    serverSocket = new ServerSocket(PORT);
 
-                    ServerSocket serverSocket = new ServerSocket(PORT);
+                    Timber.d("Created Server socket. Waiting for connections");
+                    while (connectionDesired) {
+                        final Socket client = serverSocket.accept();
 
-                    Timber.d("Created Server socket. Waiting for connection");
-                    Socket client = serverSocket.accept();
-
-                    cancelPeerDiscoveryTimer();
+                        cancelPeerDiscoveryTimer();
 
-                    String clientAddress = client.getInetAddress().getHostAddress();
-                    Timber.d("Connected to %s (local is server)", clientAddress);
+                        final String clientAddress = client.getInetAddress().getHostAddress();
+                        Timber.d("Connected to %s (local is server)", clientAddress);
 
-                    connectedPeers.add(clientAddress);
-                    callback.get().identifierUpdated(WifiTransport.this, clientAddress, ConnectionStatus.CONNECTED, false, null);
+                        connectedPeers.add(clientAddress);
+                        callback.get().identifierUpdated(WifiTransport.this, clientAddress, ConnectionStatus.CONNECTED, false, null);
 
-                    maintainSocket(serverSocket, client, client.getInetAddress().getHostAddress());
+                        executionModel.executeBlocking(clientAddress, new Runnable() {
+                            @Override
+                            public void run() {
+                                maintainSocket(client, clientAddress);
+                            }
+                        });
+                    }
 
+                } catch (SocketException e) {
+                    // Server socket was closed by stop()
+                    Timber.d("Server socket closed");
                 } catch (IOException e) {
-                    Timber.e(e, "Failed to read socket inputstream");
-                    e.printStackTrace();
+                    Timber.e(e, "Failed to accept client connection");
+                } finally {
+                    closeServerSocket();
+                    socketActive = false;
                 }
             }
         });
-        socketThread.start();
+    }
+
+    private void closeServerSocket() {
+        ServerSocket socket = serverSocket;
+        serverSocket = null;
+        if (socket == null) return;
+
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Timber.e(e, "Failed to close server socket");
+        }
+    }
+
+    /**
+     * @return the next queued outgoing buffer for remoteAddress, or null if none is queued
+     */
+    @Nullable
+    private byte[] pollOutgoingData(String remoteAddress) {
+        synchronized (outBuffers) {
+            ArrayDeque<byte[]> outBuffersForPeer = outBuffers.get(remoteAddress);
+            return outBuffersForPeer == null ? null : outBuffersForPeer.poll();
+        }
     }
 
     /**
      * Maintains the given socket in a read / write loop until
-     * {@link #connectionDesired} is set false.
+     * {@link #connectionDesired} is set false or the remote closes the socket.
      */
-    private void maintainSocket(@Nullable ServerSocket serverSocket, Socket socket, String remoteAddress) {
+    private void maintainSocket(Socket socket, String remoteAddress) {
         try {
-            connectionDesired = true;
+            boolean remoteClosed = false;
             socket.setSoTimeout(50);
 
             InputStream inputStream = socket.getInputStream();
             OutputStream outputStream = socket.getOutputStream();
 
-            byte[] buf = new byte[DEFAULT_MTU_BYTES];
+            byte[] buf = new byte[MAX_WRITE_BYTES];
             int len;
 
-            while (connectionDesired) {
+            while (connectionDesired && !remoteClosed) {
 
                 // Read incoming data
                 try {
                     while ((len = inputStream.read(buf)) > 0) {
                         ByteArrayOutputStream os = new ByteArrayOutputStream(len);
                         os.write(buf, 0, len);
-                        if (VERBOSE) Timber.d("Got %d bytes from %s", len, remoteAddress);
+                        if (Logging.VERBOSE) Timber.d("Got %d bytes from %s", len, remoteAddress);
                         callback.get().dataReceivedFromIdentifier(WifiTransport.this, os.toByteArray(), remoteAddress);
                     }
+                    // End of stream
+                    if (len == -1) remoteClosed = true;
                 } catch (SocketTimeoutException e) {
                     // No incoming data received
                     //Timber.d("No incoming data found in timeout period");
@@ -585,23 +644,21 @@ public class WifiTransport extends Transport implements WifiP2pManager.Connectio
                 }
 
                 // Write outgoing data
-                if (outBuffers.containsKey(remoteAddress) &&
-                        outBuffers.get(remoteAddress).size() > 0) {
-
-                    ArrayDeque<byte[]> outBuffersForPeer = outBuffers.get(remoteAddress);
-
-                    while (outBuffers.get(remoteAddress).size() > 0) {
-                        outputStream.write(outBuffersForPeer.peek());
-                        if (VERBOSE) Timber.d("Wrote %d bytes to %s", outBuffersForPeer.peek().length, remoteAddress);
-                        callback.get().dataSentToIdentifier(WifiTransport.this, outBuffersForPeer.poll(), remoteAddress, null);
-                    }
-
+                byte[] outgoing;
+                while ((outgoing = pollOutgoingData(remoteAddress)) != null) {
+                    outputStream.write(outgoing);
+                    if (Logging.VERBOSE) Timber.d("Wrote %d bytes to %s", outgoing.length, remoteAddress);
+                    callback.get().dataSentToIdentifier(WifiTransport.this, outgoing, remoteAddress, null);
                 }
             }
             outputStream.close();
             inputStream.close();
             socket.close();
-            if (serverSocket != null) serverSocket.close();
+
+            connectedPeers.remove(remoteAddress);
+            synchronized (outBuffers) {
+                outBuffers.remove(remoteAddress);
+            }
 
             Timber.d("%s closed socket with %s", connectionDesired ? "remote" : "local", remoteAddress);
 